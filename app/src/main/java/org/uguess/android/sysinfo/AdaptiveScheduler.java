@@ -0,0 +1,287 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+
+/**
+ * AdaptiveScheduler <br>
+ * <br>
+ * Adjusts the periods of sampler hub subscriptions at runtime. The period of a channel is doubled
+ * each time its readings stayed within the change threshold for a few samples, and drops back to
+ * the configured period as soon as a reading changes by more than the threshold. Low battery and
+ * a locked screen stretch all channels further.
+ */
+final class AdaptiveScheduler {
+
+    /**
+     * default change threshold, in percentage points for absolute channels and in percent of the
+     * previous value for relative channels
+     */
+    static final int DEFAULT_THRESHOLD = 5;
+
+    static final int LOW_BATTERY_LEVEL = 20;
+
+    private static final int MAX_STRETCH = 8;
+
+    private static final int STABLE_SAMPLES = 5;
+
+    private static final int LOW_BATTERY_STRETCH = 2;
+
+    private static final int HIDDEN_STRETCH = 4;
+
+    /**
+     * Channel
+     */
+    static final class Channel {
+
+        final SamplerHub.Subscription sub;
+
+        final long basePeriod;
+
+        /**
+         * whether the change is measured relative to the previous value, e.g. for rates
+         */
+        final boolean relative;
+
+        long period;
+
+        private int stretch = 1;
+        private int stable;
+
+        private long lastValue = -1;
+        private long lastTime;
+
+        private long wakeups, saved;
+
+        Channel(SamplerHub.Subscription sub, long basePeriod, boolean relative) {
+            this.sub = sub;
+            this.basePeriod = basePeriod;
+            this.relative = relative;
+            this.period = basePeriod;
+        }
+    }
+
+    private final SamplerHub hub;
+
+    private final ArrayList<Channel> channels = new ArrayList<Channel>();
+
+    private int threshold = DEFAULT_THRESHOLD;
+
+    private boolean enabled = true;
+
+    private boolean lowBattery, hidden;
+
+    /**
+     * subscription that follows the fastest channel, but never below its own minimal period
+     */
+    private SamplerHub.Subscription follower;
+    private long followerMinPeriod;
+
+    AdaptiveScheduler(Context ctx) {
+        hub = SamplerHub.getInstance(ctx);
+    }
+
+    /**
+     * @param threshold change threshold, see {@link #DEFAULT_THRESHOLD}
+     */
+    void setThreshold(int threshold) {
+        this.threshold = threshold > 0 ? threshold : DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * If disabled, all channels run at their configured period.
+     */
+    void setEnabled(boolean enabled) {
+        if (this.enabled != enabled) {
+            this.enabled = enabled;
+
+            applyAll();
+        }
+    }
+
+    Channel add(SamplerHub.Subscription sub, long basePeriod, boolean relative) {
+        Channel c = new Channel(sub, basePeriod, relative);
+
+        channels.add(c);
+
+        apply(c);
+
+        return c;
+    }
+
+    void setFollower(SamplerHub.Subscription sub, long minPeriod) {
+        follower = sub;
+        followerMinPeriod = minPeriod;
+
+        updateFollower();
+    }
+
+    /**
+     * Drops all channels, the subscriptions are not touched.
+     */
+    void clear() {
+        channels.clear();
+        follower = null;
+    }
+
+    void setLowBattery(boolean lowBattery) {
+        if (this.lowBattery != lowBattery) {
+            this.lowBattery = lowBattery;
+
+            applyAll();
+        }
+    }
+
+    /**
+     * @param hidden whether the status bar cannot be seen or opened, e.g. under the keyguard
+     */
+    void setHidden(boolean hidden) {
+        if (this.hidden != hidden) {
+            this.hidden = hidden;
+
+            applyAll();
+        }
+    }
+
+    /**
+     * Reports a new reading of the channel.
+     *
+     * @param time  SystemClock.elapsedRealtime() of the reading
+     * @param value non-negative reading
+     */
+    void onValue(Channel c, long time, long value) {
+        if (c == null) {
+            return;
+        }
+
+        c.wakeups++;
+
+        if (c.lastTime > 0 && time > c.lastTime) {
+            // a fixed loop would have woken up this many times in between
+            long fixed = (time - c.lastTime) / c.basePeriod;
+
+            if (fixed > 1) {
+                c.saved += fixed - 1;
+            }
+        }
+
+        c.lastTime = time;
+
+        if (c.lastValue >= 0) {
+            long change = Math.abs(value - c.lastValue);
+
+            if (c.relative) {
+                change = change * 100 / Math.max(1, Math.max(value, c.lastValue));
+            }
+
+            if (change >= threshold) {
+                c.stable = 0;
+                c.stretch = 1;
+            } else if (++c.stable >= STABLE_SAMPLES && c.stretch < MAX_STRETCH) {
+                c.stable = 0;
+                c.stretch *= 2;
+            }
+        }
+
+        c.lastValue = value;
+
+        apply(c);
+    }
+
+    /**
+     * @return the current period of the channel in milliseconds
+     */
+    long getEffectivePeriod(Channel c) {
+        return c == null ? 0 : c.period;
+    }
+
+    /**
+     * @return the number of wakeups avoided compared to fixed periods, over all channels
+     */
+    long getWakeupsSaved() {
+        long saved = 0;
+
+        for (int i = 0, size = channels.size(); i < size; i++) {
+            saved += channels.get(i).saved;
+        }
+
+        return saved;
+    }
+
+    /**
+     * @return the number of readings taken, over all channels
+     */
+    long getWakeups() {
+        long wakeups = 0;
+
+        for (int i = 0, size = channels.size(); i < size; i++) {
+            wakeups += channels.get(i).wakeups;
+        }
+
+        return wakeups;
+    }
+
+    private void applyAll() {
+        for (int i = 0, size = channels.size(); i < size; i++) {
+            apply(channels.get(i));
+        }
+    }
+
+    private void apply(Channel c) {
+        int factor = 1;
+
+        if (enabled) {
+            factor = c.stretch;
+
+            if (lowBattery) {
+                factor = Math.max(factor, LOW_BATTERY_STRETCH);
+            }
+
+            if (hidden) {
+                factor = Math.max(factor, HIDDEN_STRETCH);
+            }
+        }
+
+        long period = c.basePeriod * factor;
+
+        if (period != c.period) {
+            c.period = period;
+
+            hub.setPeriod(c.sub, period);
+
+            updateFollower();
+        }
+    }
+
+    private void updateFollower() {
+        if (follower == null) {
+            return;
+        }
+
+        long period = Long.MAX_VALUE;
+
+        for (int i = 0, size = channels.size(); i < size; i++) {
+            period = Math.min(period, channels.get(i).period);
+        }
+
+        if (period != Long.MAX_VALUE) {
+            hub.setPeriod(follower, Math.max(period, followerMinPeriod));
+        }
+    }
+}
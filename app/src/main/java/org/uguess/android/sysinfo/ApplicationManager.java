@@ -1591,10 +1591,11 @@ public class ApplicationManager extends ListActivity implements Constants,
                                                 handler.sendMessage(handler.obtainMessage(MSG_SHOW_PROGRESS,
                                                         ResUtil.getString(ApplicationManager.this, R.string.root_copying)));
 
-                                                List<String> result =
-                                                        RootUtil.runRoot(commands.toArray(new String[commands.size()]));
+                                                RootShellSession.Command result =
+                                                        RootUtil.execRoot(RootShellSession.NO_TIMEOUT,
+                                                                commands.toArray(new String[commands.size()]));
 
-                                                if (result == null) {
+                                                if (result == null || result.exitCode != 0) {
                                                     handler.sendMessage(handler.obtainMessage(MSG_TOAST,
                                                             ResUtil.getString(ApplicationManager.this, R.string.root_copy_fail)));
                                                 } else {
@@ -0,0 +1,345 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CapabilityRegistry <br>
+ * <br>
+ * Remembers for each data source whether it can be read directly, only through root, or not at
+ * all. A source is probed the first time it is asked for, and the result is persisted together
+ * with the kernel boot id, so it stays valid until the next reboot. A source found unreadable only
+ * because root was not granted yet is not persisted, it is probed again once a root session is
+ * up.
+ */
+final class CapabilityRegistry {
+
+    static final int SRC_PROC_STAT = 0;
+    static final int SRC_PROC_PID = 1;
+    static final int SRC_NET_TCP = 2;
+    static final int SRC_NET_TCP6 = 3;
+    static final int SRC_NET_UDP = 4;
+    static final int SRC_NET_UDP6 = 5;
+    static final int SRC_NET_DEV = 6;
+    static final int SRC_NET_QTAGUID = 7;
+    static final int SRC_UID_STAT = 8;
+    static final int SRC_TIME_IN_STATE = 9;
+
+    static final int SRC_COUNT = 10;
+
+    static final int ACCESS_UNKNOWN = -1;
+    static final int ACCESS_DIRECT = 0;
+    static final int ACCESS_ROOT = 1;
+    static final int ACCESS_NONE = 2;
+
+    private static final String STORE_NAME = "CapabilityRegistry"; //$NON-NLS-1$
+    private static final String KEY_BOOT_ID = "boot_id"; //$NON-NLS-1$
+    private static final String KEY_SOURCE_PREFIX = "src_"; //$NON-NLS-1$
+
+    private static final String F_BOOT_ID = "/proc/sys/kernel/random/boot_id"; //$NON-NLS-1$
+
+    /**
+     * the boot time derived from the clocks may drift by this between reads, in seconds
+     */
+    private static final long BOOT_TIME_TOLERANCE = 120;
+
+    private static final String[] SOURCE_PATHS = {"/proc/stat", //$NON-NLS-1$
+            "/proc/1/stat", //$NON-NLS-1$
+            "/proc/net/tcp", //$NON-NLS-1$
+            "/proc/net/tcp6", //$NON-NLS-1$
+            "/proc/net/udp", //$NON-NLS-1$
+            "/proc/net/udp6", //$NON-NLS-1$
+            "/proc/net/dev", //$NON-NLS-1$
+            "/proc/net/xt_qtaguid/stats", //$NON-NLS-1$
+            "/proc/uid_stat", //$NON-NLS-1$
+            "/sys/devices/system/cpu/cpu0/cpufreq/stats/time_in_state", //$NON-NLS-1$
+    };
+
+    /**
+     * whether the source is worth reading through root at all, /proc/net/dev is read each tick
+     * and has the sysfs counters as fallback
+     */
+    private static final boolean[] SOURCE_ROOT = {true, true, true, true, true, true, false, true,
+            false, false};
+
+    /**
+     * read without locking on the sampling paths, written only under the class lock
+     */
+    private static final AtomicIntegerArray access = new AtomicIntegerArray(SRC_COUNT);
+
+    /**
+     * one lock per source, held while that source is probed
+     */
+    private static final Object[] probeLocks = new Object[SRC_COUNT];
+
+    private static Context appContext;
+
+    private static String bootId;
+
+    private static volatile boolean loaded;
+
+    /**
+     * bits of the sources that are ACCESS_NONE only because root was not available
+     */
+    private static volatile int rootPending;
+
+    static {
+        for (int i = 0; i < SRC_COUNT; i++) {
+            access.set(i, ACCESS_UNKNOWN);
+            probeLocks[i] = new Object();
+        }
+    }
+
+    private CapabilityRegistry() {
+    }
+
+    /**
+     * Sets the context used to persist the probe results, should be called once at startup.
+     */
+    static synchronized void init(Context ctx) {
+        appContext = ctx.getApplicationContext();
+    }
+
+    static String getPath(int src) {
+        return SOURCE_PATHS[src];
+    }
+
+    /**
+     * @return one of the ACCESS_* constants other than ACCESS_UNKNOWN. This may run a probe, so
+     * should be called in worker thread. Once the source is known this does not lock.
+     */
+    static int getAccess(int src) {
+        int acc = peekAccess(src);
+
+        if (acc != ACCESS_UNKNOWN && !isRootRetryDue(src)) {
+            return acc;
+        }
+
+        ensureLoaded();
+
+        // the probe may ask for root, only callers of the same source wait for it
+        synchronized (probeLocks[src]) {
+            acc = access.get(src);
+
+            if (acc == ACCESS_UNKNOWN || isRootRetryDue(src)) {
+                acc = probe(src);
+
+                Log.d(CapabilityRegistry.class.getName(), "Source " //$NON-NLS-1$
+                        + SOURCE_PATHS[src] + " access: " + acc); //$NON-NLS-1$
+
+                publish(src, acc);
+            }
+        }
+
+        return acc;
+    }
+
+    /**
+     * @return the known access of the source without probing, may be ACCESS_UNKNOWN. Safe to
+     * call in UI thread.
+     */
+    static int peekAccess(int src) {
+        if (!loaded) {
+            return ACCESS_UNKNOWN;
+        }
+
+        return access.get(src);
+    }
+
+    /**
+     * Probes the given sources in a worker thread, if not known yet.
+     */
+    static void probeInBackground(final int... srcs) {
+        new Thread("Capability Probe") { //$NON-NLS-1$
+
+            public void run() {
+                for (int src : srcs) {
+                    getAccess(src);
+                }
+            }
+        }.start();
+    }
+
+    static boolean isReadable(int src) {
+        return getAccess(src) != ACCESS_NONE;
+    }
+
+    /**
+     * @return true if the source was found unreadable without root, and a root session is up now
+     */
+    private static boolean isRootRetryDue(int src) {
+        return (rootPending & (1 << src)) != 0 && RootUtil.hasSession();
+    }
+
+    /**
+     * Sets or clears the root pending bit of the source, as a side effect of the probe.
+     */
+    private static int probe(int src) {
+        String path = SOURCE_PATHS[src];
+
+        File f = new File(path);
+
+        if (f.isDirectory()) {
+            return f.list() != null ? ACCESS_DIRECT : ACCESS_NONE;
+        }
+
+        if (canReadDirect(path)) {
+            return ACCESS_DIRECT;
+        }
+
+        boolean noRoot = false;
+
+        if (SOURCE_ROOT[src]) {
+            if (RootUtil.rootAvailable()) {
+                List<String> output = RootUtil.readFileRoot(path);
+
+                if (output != null && output.size() > 0) {
+                    setRootPending(src, false);
+                    return ACCESS_ROOT;
+                }
+            } else {
+                // not granted yet or still in the retry interval, may change in this boot
+                noRoot = true;
+            }
+        }
+
+        setRootPending(src, noRoot);
+
+        return ACCESS_NONE;
+    }
+
+    private static boolean canReadDirect(String path) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(path, "r"); //$NON-NLS-1$
+
+            return raf.read() != -1;
+        } catch (IOException e) {
+            // not existing or not readable
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static synchronized void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+
+        bootId = getBootId();
+
+        if (appContext != null) {
+            SharedPreferences sp = appContext.getSharedPreferences(STORE_NAME, Context.MODE_PRIVATE);
+
+            String storedId = sp.getString(KEY_BOOT_ID, null);
+
+            if (isSameBoot(storedId, bootId)) {
+                // keep the stored one, the fallback id may drift a little
+                bootId = storedId;
+
+                for (int i = 0; i < SRC_COUNT; i++) {
+                    access.set(i, sp.getInt(KEY_SOURCE_PREFIX + i, ACCESS_UNKNOWN));
+                }
+            } else {
+                // results from a previous boot are stale
+                sp.edit().clear().putString(KEY_BOOT_ID, bootId).commit();
+            }
+        }
+
+        loaded = true;
+    }
+
+    private static synchronized void setRootPending(int src, boolean pending) {
+        if (pending) {
+            rootPending |= 1 << src;
+        } else {
+            rootPending &= ~(1 << src);
+        }
+    }
+
+    private static synchronized void publish(int src, int acc) {
+        access.set(src, acc);
+
+        if (appContext == null || (rootPending & (1 << src)) != 0) {
+            return;
+        }
+
+        Editor et = appContext.getSharedPreferences(STORE_NAME, Context.MODE_PRIVATE).edit();
+        et.putString(KEY_BOOT_ID, bootId);
+        et.putInt(KEY_SOURCE_PREFIX + src, acc);
+        et.commit();
+    }
+
+    static String getBootId() {
+        String id = Util.readFileFirstLine(F_BOOT_ID, 64);
+
+        if (id != null && id.trim().length() > 0) {
+            return id.trim();
+        }
+
+        // old kernels have no boot id, use the boot time in seconds instead
+        long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+
+        return "t" + (bootTime / 1000); //$NON-NLS-1$
+    }
+
+    /**
+     * @return true if both are the id of the same boot from {@link #getBootId()}, the boot times
+     * of the fallback ids may differ by up to BOOT_TIME_TOLERANCE
+     */
+    static boolean isSameBoot(String id1, String id2) {
+        if (id1 == null || id2 == null) {
+            return false;
+        }
+
+        if (id1.equals(id2)) {
+            return true;
+        }
+
+        if (id1.length() > 1 && id1.charAt(0) == 't' && id2.length() > 1
+                && id2.charAt(0) == 't') {
+            try {
+                long t1 = Long.parseLong(id1.substring(1));
+                long t2 = Long.parseLong(id2.substring(1));
+
+                return Math.abs(t1 - t2) <= BOOT_TIME_TOLERANCE;
+            } catch (NumberFormatException e) {
+                // not a fallback id
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,617 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * ConnectionTable <br>
+ * <br>
+ * The rows of /proc/net/tcp, udp, tcp6 and udp6, decoded from the raw bytes into one primitive
+ * array per column. Addresses are kept as numbers, IPv4 in one int and IPv6 in two longs, all in
+ * network order, and are only turned into strings for display.
+ */
+final class ConnectionTable {
+
+    static final int PROTO_TCP = 0;
+    static final int PROTO_UDP = 1;
+
+    private static final String[] PROTO_NAMES = {"TCP", "UDP"}; //$NON-NLS-1$ //$NON-NLS-2$
+
+    private static final String[] SOCKET_STATES = new String[]{"ESTABLISHED", //$NON-NLS-1$
+            "SYN_SENT", //$NON-NLS-1$
+            "SYN_RECV", //$NON-NLS-1$
+            "FIN_WAIT1", //$NON-NLS-1$
+            "FIN_WAIT2", //$NON-NLS-1$
+            "TIME_WAIT", //$NON-NLS-1$
+            "CLOSE", //$NON-NLS-1$
+            "CLOSE_WAIT", //$NON-NLS-1$
+            "LAST_ACK", //$NON-NLS-1$
+            "LISTEN", //$NON-NLS-1$
+            "CLOSING" //$NON-NLS-1$
+    };
+
+    private static final String STATE_UNKNOWN = "Unknown"; //$NON-NLS-1$
+
+    /**
+     * state value of rows whose state is not shown, the kernel states start at 1
+     */
+    private static final int STATE_NONE = 0;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+    private int count;
+
+    private byte[] proto = new byte[0];
+    private boolean[] v6 = new boolean[0];
+
+    /**
+     * IPv4 addresses, or the high and low halves of IPv6 addresses
+     */
+    private long[] localHi = new long[0], localLo = new long[0];
+    private long[] remoteHi = new long[0], remoteLo = new long[0];
+
+    private int[] localPort = new int[0], remotePort = new int[0];
+    private byte[] state = new byte[0];
+    private int[] uid = new int[0];
+    private long[] inode = new long[0];
+    private int[] txQueue = new int[0], rxQueue = new int[0];
+
+    private byte[] buf = new byte[8192];
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Drops all rows, the arrays are kept for the next parse.
+     */
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * Appends the rows of one connection table.
+     *
+     * @param source    one of the CapabilityRegistry.SRC_NET_* sources
+     * @param protocol  PROTO_TCP or PROTO_UDP
+     * @param withState whether the socket state is shown
+     */
+    void parse(int source, int protocol, boolean withState) {
+        int access = CapabilityRegistry.peekAccess(source);
+
+        if (access == CapabilityRegistry.ACCESS_NONE) {
+            return;
+        }
+
+        int len;
+
+        if (access == CapabilityRegistry.ACCESS_ROOT) {
+            len = readRoot(CapabilityRegistry.getPath(source));
+        } else {
+            len = readFile(CapabilityRegistry.getPath(source));
+        }
+
+        if (len > 0) {
+            parse(buf, len, protocol, withState);
+        }
+    }
+
+    void parse(byte[] data, int len, int protocol, boolean withState) {
+        // skip the header line
+        int pos = 0;
+
+        while (pos < len && data[pos] != '\n') {
+            pos++;
+        }
+
+        pos++;
+
+        while (pos < len) {
+            int end = pos;
+
+            while (end < len && data[end] != '\n') {
+                end++;
+            }
+
+            if (!parseRow(data, pos, end, protocol, withState)) {
+                Log.e(ConnectionTable.class.getName(), "Unexpected " //$NON-NLS-1$
+                        + PROTO_NAMES[protocol] + " line format: " //$NON-NLS-1$
+                        + new String(data, pos, end - pos));
+            }
+
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * The columns are: sl, local address, remote address, st, tx_queue:rx_queue, tr:tm->when,
+     * retrnsmt, uid, timeout, inode, and more that are not used. Addresses are the hex words of the
+     * kernel in host order followed by the hex port.
+     */
+    private boolean parseRow(byte[] data, int pos, int end, int protocol, boolean withState) {
+        int row = count;
+
+        ensureCapacity(row + 1);
+
+        int column = 0;
+
+        while (column < 10) {
+            while (pos < end && data[pos] == ' ') {
+                pos++;
+            }
+
+            if (pos == end) {
+                // blank trailing line
+                return column == 0;
+            }
+
+            int start = pos;
+
+            while (pos < end && data[pos] != ' ') {
+                pos++;
+            }
+
+            switch (column) {
+                case 1:
+                    if (!parseAddress(data, start, pos, row, true)) {
+                        return false;
+                    }
+                    break;
+                case 2:
+                    if (!parseAddress(data, start, pos, row, false)) {
+                        return false;
+                    }
+                    break;
+                case 3:
+                    state[row] = withState ? (byte) parseHex(data, start, pos) : STATE_NONE;
+                    break;
+                case 4:
+                    int colon = indexOf(data, start, pos, ':');
+
+                    if (colon == -1) {
+                        return false;
+                    }
+
+                    txQueue[row] = (int) parseHex(data, start, colon);
+                    rxQueue[row] = (int) parseHex(data, colon + 1, pos);
+                    break;
+                case 7:
+                    uid[row] = (int) FileHandlePool.parseLong(data, start, pos - start);
+                    break;
+                case 9:
+                    inode[row] = FileHandlePool.parseLong(data, start, pos - start);
+                    break;
+            }
+
+            column++;
+        }
+
+        proto[row] = (byte) protocol;
+
+        count++;
+
+        return true;
+    }
+
+    private boolean parseAddress(byte[] data, int start, int end, int row, boolean local) {
+        int colon = indexOf(data, start, end, ':');
+
+        if (colon == -1) {
+            return false;
+        }
+
+        int port = (int) parseHex(data, colon + 1, end);
+        long hi, lo;
+        boolean isV6;
+
+        if (colon - start == 8) {
+            hi = 0;
+            lo = Integer.reverseBytes((int) parseHex(data, start, colon)) & 0xffffffffL;
+            isV6 = false;
+        } else if (colon - start == 32) {
+            hi = getWord(data, start) << 32 | getWord(data, start + 8);
+            lo = getWord(data, start + 16) << 32 | getWord(data, start + 24);
+            isV6 = true;
+        } else {
+            return false;
+        }
+
+        if (local) {
+            localHi[row] = hi;
+            localLo[row] = lo;
+            localPort[row] = port;
+            v6[row] = isV6;
+        } else {
+            remoteHi[row] = hi;
+            remoteLo[row] = lo;
+            remotePort[row] = port;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the 32 bit word at the offset in network order, the kernel prints it in host order
+     */
+    private static long getWord(byte[] data, int start) {
+        return Integer.reverseBytes((int) parseHex(data, start, start + 8)) & 0xffffffffL;
+    }
+
+    private static long parseHex(byte[] data, int start, int end) {
+        long v = 0;
+
+        for (int i = start; i < end; i++) {
+            int c = data[i];
+
+            if (c >= '0' && c <= '9') {
+                v = (v << 4) | (c - '0');
+            } else if (c >= 'A' && c <= 'F') {
+                v = (v << 4) | (c - 'A' + 10);
+            } else if (c >= 'a' && c <= 'f') {
+                v = (v << 4) | (c - 'a' + 10);
+            } else {
+                break;
+            }
+        }
+
+        return v;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= proto.length) {
+            return;
+        }
+
+        int cap = Math.max(64, proto.length * 2);
+
+        byte[] nproto = new byte[cap];
+        System.arraycopy(proto, 0, nproto, 0, count);
+        proto = nproto;
+
+        boolean[] nv6 = new boolean[cap];
+        System.arraycopy(v6, 0, nv6, 0, count);
+        v6 = nv6;
+
+        localHi = grow(localHi, cap);
+        localLo = grow(localLo, cap);
+        remoteHi = grow(remoteHi, cap);
+        remoteLo = grow(remoteLo, cap);
+        inode = grow(inode, cap);
+
+        localPort = grow(localPort, cap);
+        remotePort = grow(remotePort, cap);
+        uid = grow(uid, cap);
+        txQueue = grow(txQueue, cap);
+        rxQueue = grow(rxQueue, cap);
+
+        byte[] nstate = new byte[cap];
+        System.arraycopy(state, 0, nstate, 0, count);
+        state = nstate;
+    }
+
+    private long[] grow(long[] arr, int cap) {
+        long[] narr = new long[cap];
+        System.arraycopy(arr, 0, narr, 0, count);
+        return narr;
+    }
+
+    private int[] grow(int[] arr, int cap) {
+        int[] narr = new int[cap];
+        System.arraycopy(arr, 0, narr, 0, count);
+        return narr;
+    }
+
+    /**
+     * @return the bytes read into buf, or -1
+     */
+    private int readFile(String path) {
+        FileInputStream fis = null;
+
+        try {
+            fis = new FileInputStream(path);
+
+            int len = 0;
+            int n;
+
+            while ((n = fis.read(buf, len, buf.length - len)) > 0) {
+                len += n;
+
+                if (len == buf.length) {
+                    byte[] nbuf = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, nbuf, 0, len);
+                    buf = nbuf;
+                }
+            }
+
+            return len;
+        } catch (FileNotFoundException fe) {
+            Log.d(ConnectionTable.class.getName(), "File not found: " + fe.getLocalizedMessage()); //$NON-NLS-1$
+        } catch (IOException e) {
+            Log.e(ConnectionTable.class.getName(), e.getLocalizedMessage(), e);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(ConnectionTable.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private int readRoot(String path) {
+        List<String> lines = RootUtil.readFileRoot(path);
+
+        if (lines == null) {
+            return -1;
+        }
+
+        int len = 0;
+
+        for (String ln : lines) {
+            int size = ln.length() + 1;
+
+            if (len + size > buf.length) {
+                byte[] nbuf = new byte[Math.max(buf.length * 2, len + size)];
+                System.arraycopy(buf, 0, nbuf, 0, len);
+                buf = nbuf;
+            }
+
+            // the table is plain ascii
+            for (int i = 0; i < size - 1; i++) {
+                buf[len++] = (byte) ln.charAt(i);
+            }
+
+            buf[len++] = '\n';
+        }
+
+        return len;
+    }
+
+    int getProto(int row) {
+        return proto[row];
+    }
+
+    static String getProtoName(int proto) {
+        return PROTO_NAMES[proto];
+    }
+
+    /**
+     * @return the raw socket state, 0 if the state is not shown for the row
+     */
+    int getState(int row) {
+        return state[row];
+    }
+
+    /**
+     * @return the state name, or null if the state is not shown
+     */
+    static String getStateName(int st) {
+        if (st == STATE_NONE) {
+            return null;
+        }
+
+        return st <= SOCKET_STATES.length ? SOCKET_STATES[st - 1] : STATE_UNKNOWN;
+    }
+
+    int getUid(int row) {
+        return uid[row];
+    }
+
+    long getInode(int row) {
+        return inode[row];
+    }
+
+    int getTxQueue(int row) {
+        return txQueue[row];
+    }
+
+    int getRxQueue(int row) {
+        return rxQueue[row];
+    }
+
+    boolean isV6(int row) {
+        return v6[row];
+    }
+
+    long getLocalHi(int row) {
+        return localHi[row];
+    }
+
+    long getLocalLo(int row) {
+        return localLo[row];
+    }
+
+    int getLocalPort(int row) {
+        return localPort[row];
+    }
+
+    long getRemoteHi(int row) {
+        return remoteHi[row];
+    }
+
+    long getRemoteLo(int row) {
+        return remoteLo[row];
+    }
+
+    int getRemotePort(int row) {
+        return remotePort[row];
+    }
+
+    /**
+     * @return the address without port, or null if it is unspecified or loopback
+     */
+    static String getValidIP(boolean isV6, long hi, long lo) {
+        if (!isV6 || isMappedV4(hi, lo)) {
+            int addr = (int) lo;
+
+            if (addr == 0 || addr == 0x7f000001) {
+                return null;
+            }
+        } else if (hi == 0 && (lo == 0 || lo == 1)) {
+            return null;
+        }
+
+        return formatAddress(isV6, hi, lo);
+    }
+
+    /**
+     * Compares two addresses numerically, IPv4 first.
+     */
+    static int compareAddress(boolean v6a, long hiA, long loA, boolean v6b, long hiB, long loB) {
+        int rlt = (v6a ? 1 : 0) - (v6b ? 1 : 0);
+
+        if (rlt == 0) {
+            rlt = compareUnsigned(hiA, hiB);
+        }
+
+        if (rlt == 0) {
+            rlt = compareUnsigned(loA, loB);
+        }
+
+        return rlt;
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static boolean isMappedV4(long hi, long lo) {
+        return hi == 0 && (lo >>> 32) == 0xffffL;
+    }
+
+    /**
+     * @return the address and port as shown, e.g. "10.0.0.2:443" or "[fe80::1]:443"
+     */
+    static String formatEndpoint(boolean isV6, long hi, long lo, int port) {
+        StringBuilder sb = new StringBuilder(48);
+
+        boolean bracket = isV6 && !isMappedV4(hi, lo);
+
+        if (bracket) {
+            sb.append('[');
+        }
+
+        appendAddress(sb, isV6, hi, lo);
+
+        if (bracket) {
+            sb.append(']');
+        }
+
+        sb.append(':');
+
+        if (port == 0) {
+            sb.append('*');
+        } else {
+            sb.append(port);
+        }
+
+        return sb.toString();
+    }
+
+    static String formatAddress(boolean isV6, long hi, long lo) {
+        StringBuilder sb = new StringBuilder(40);
+
+        appendAddress(sb, isV6, hi, lo);
+
+        return sb.toString();
+    }
+
+    /**
+     * v4-mapped IPv6 addresses are shown as IPv4 like before, others in the RFC 5952 form: lower
+     * case, no leading zeros and the longest run of two or more zero groups replaced by "::".
+     */
+    private static void appendAddress(StringBuilder sb, boolean isV6, long hi, long lo) {
+        if (!isV6 || isMappedV4(hi, lo)) {
+            int addr = (int) lo;
+
+            sb.append((addr >>> 24) & 0xff).append('.').append((addr >>> 16) & 0xff).append('.')
+                    .append((addr >>> 8) & 0xff).append('.').append(addr & 0xff);
+            return;
+        }
+
+        int bestStart = -1, bestLen = 1;
+
+        for (int i = 0; i < 8; ) {
+            if (getGroup(hi, lo, i) != 0) {
+                i++;
+                continue;
+            }
+
+            int j = i;
+
+            while (j < 8 && getGroup(hi, lo, j) == 0) {
+                j++;
+            }
+
+            if (j - i > bestLen) {
+                bestStart = i;
+                bestLen = j - i;
+            }
+
+            i = j;
+        }
+
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                sb.append("::"); //$NON-NLS-1$
+                i += bestLen - 1;
+                continue;
+            }
+
+            if (i > 0 && i != bestStart + bestLen) {
+                sb.append(':');
+            }
+
+            int g = getGroup(hi, lo, i);
+            boolean lead = true;
+
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                int d = (g >>> shift) & 0xf;
+
+                if (d != 0 || !lead || shift == 0) {
+                    sb.append(HEX[d]);
+                    lead = false;
+                }
+            }
+        }
+    }
+
+    private static int getGroup(long hi, long lo, int i) {
+        return (int) ((i < 4 ? hi >>> ((3 - i) * 16) : lo >>> ((7 - i) * 16)) & 0xffff);
+    }
+}
@@ -0,0 +1,414 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import java.util.ArrayList;
+
+/**
+ * ConnectionTracker <br>
+ * <br>
+ * Follows the connections across the polls of the connection tables. A row belongs to a known
+ * connection if protocol and endpoints are the same and the socket inode is the same or unknown,
+ * the kernel reports inode 0 e.g. in TIME_WAIT. Each poll reports the connections that were
+ * opened, closed or changed their state, closed connections are kept in a bounded history.
+ */
+final class ConnectionTracker {
+
+    static final int HISTORY_SIZE = 128;
+
+    /**
+     * state changes kept per connection, the first is the state when it was seen first
+     */
+    static final int MAX_TRANSITIONS = 8;
+
+    /**
+     * Connection
+     */
+    static final class Connection {
+
+        final int proto;
+        final boolean v6;
+        final long localHi, localLo, remoteHi, remoteLo;
+        final int localPort, remotePort;
+        final int uid;
+
+        /**
+         * elapsed realtime when first and last seen, and when found closed or 0
+         */
+        final long firstSeen;
+        volatile long lastSeen;
+        volatile long closedAt;
+
+        volatile int state;
+        volatile int txQueue, rxQueue;
+
+        long inode;
+
+        private final long hash;
+
+        private final int[] stateLog = new int[MAX_TRANSITIONS];
+        private final long[] timeLog = new long[MAX_TRANSITIONS];
+        private int logCount;
+
+        /**
+         * poll in which the connection was last matched
+         */
+        private int generation;
+
+        /**
+         * display strings, made on first use
+         */
+        private String localText, remoteText, remoteIP;
+        private boolean remoteIPDone;
+
+        Connection(ConnectionTable table, int row, long hash, long now) {
+            this.proto = table.getProto(row);
+            this.v6 = table.isV6(row);
+            this.localHi = table.getLocalHi(row);
+            this.localLo = table.getLocalLo(row);
+            this.localPort = table.getLocalPort(row);
+            this.remoteHi = table.getRemoteHi(row);
+            this.remoteLo = table.getRemoteLo(row);
+            this.remotePort = table.getRemotePort(row);
+            this.uid = table.getUid(row);
+            this.inode = table.getInode(row);
+            this.hash = hash;
+            this.firstSeen = now;
+            this.lastSeen = now;
+            this.state = table.getState(row);
+            this.txQueue = table.getTxQueue(row);
+            this.rxQueue = table.getRxQueue(row);
+
+            logState(state, now);
+        }
+
+        boolean matches(ConnectionTable table, int row) {
+            long rowInode = table.getInode(row);
+
+            return proto == table.getProto(row) && v6 == table.isV6(row)
+                    && localPort == table.getLocalPort(row) && remotePort == table.getRemotePort(row)
+                    && localLo == table.getLocalLo(row) && localHi == table.getLocalHi(row)
+                    && remoteLo == table.getRemoteLo(row) && remoteHi == table.getRemoteHi(row)
+                    && (inode == 0 || rowInode == 0 || inode == rowInode);
+        }
+
+        /**
+         * @return whether the state changed
+         */
+        boolean update(ConnectionTable table, int row, long now) {
+            lastSeen = now;
+            txQueue = table.getTxQueue(row);
+            rxQueue = table.getRxQueue(row);
+
+            if (inode == 0) {
+                inode = table.getInode(row);
+            }
+
+            int st = table.getState(row);
+
+            if (st != state) {
+                state = st;
+                logState(st, now);
+
+                return true;
+            }
+
+            return false;
+        }
+
+        private synchronized void logState(int st, long now) {
+            if (logCount == MAX_TRANSITIONS) {
+                // keep the first state, drop the oldest change after it
+                System.arraycopy(stateLog, 2, stateLog, 1, MAX_TRANSITIONS - 2);
+                System.arraycopy(timeLog, 2, timeLog, 1, MAX_TRANSITIONS - 2);
+                logCount--;
+            }
+
+            stateLog[logCount] = st;
+            timeLog[logCount] = now;
+            logCount++;
+        }
+
+        /**
+         * Copies the state changes, oldest first.
+         *
+         * @return the number of changes copied
+         */
+        synchronized int getTransitions(int[] states, long[] times) {
+            int n = Math.min(logCount, Math.min(states.length, times.length));
+
+            System.arraycopy(stateLog, 0, states, 0, n);
+            System.arraycopy(timeLog, 0, times, 0, n);
+
+            return n;
+        }
+
+        String getProtoName() {
+            return ConnectionTable.getProtoName(proto);
+        }
+
+        String getStateName() {
+            return ConnectionTable.getStateName(state);
+        }
+
+        String getLocal() {
+            if (localText == null) {
+                localText = ConnectionTable.formatEndpoint(v6, localHi, localLo, localPort);
+            }
+
+            return localText;
+        }
+
+        String getRemote() {
+            if (remoteText == null) {
+                remoteText = ConnectionTable.formatEndpoint(v6, remoteHi, remoteLo, remotePort);
+            }
+
+            return remoteText;
+        }
+
+        /**
+         * @return the remote address without port, or null if it is unspecified or loopback
+         */
+        String getRemoteIP() {
+            if (!remoteIPDone) {
+                remoteIP = ConnectionTable.getValidIP(v6, remoteHi, remoteLo);
+                remoteIPDone = true;
+            }
+
+            return remoteIP;
+        }
+
+        int compareLocal(Connection other) {
+            int rlt = ConnectionTable.compareAddress(v6, localHi, localLo, other.v6, other.localHi,
+                    other.localLo);
+
+            return rlt != 0 ? rlt : localPort - other.localPort;
+        }
+
+        int compareRemote(Connection other) {
+            int rlt = ConnectionTable.compareAddress(v6, remoteHi, remoteLo, other.v6,
+                    other.remoteHi, other.remoteLo);
+
+            return rlt != 0 ? rlt : remotePort - other.remotePort;
+        }
+    }
+
+    /**
+     * Delta
+     */
+    static final class Delta {
+
+        final ArrayList<Connection> inserted = new ArrayList<Connection>();
+        final ArrayList<Connection> removed = new ArrayList<Connection>();
+
+        /**
+         * connections whose state changed
+         */
+        final ArrayList<Connection> updated = new ArrayList<Connection>();
+
+        void clear() {
+            inserted.clear();
+            removed.clear();
+            updated.clear();
+        }
+
+        boolean isEmpty() {
+            return inserted.isEmpty() && removed.isEmpty() && updated.isEmpty();
+        }
+    }
+
+    private ArrayList<Connection> live = new ArrayList<Connection>();
+    private ArrayList<Connection> next = new ArrayList<Connection>();
+
+    /**
+     * open addressing index of the live connections by hash, rebuilt after each poll
+     */
+    private Connection[] slots = new Connection[64];
+
+    private int generation;
+
+    private final Connection[] history = new Connection[HISTORY_SIZE];
+    private int historyHead, historyCount;
+
+    /**
+     * Matches the rows of the table with the known connections.
+     *
+     * @param now   elapsed realtime of the poll
+     * @param delta receives the changes since the last poll
+     */
+    synchronized void update(ConnectionTable table, long now, Delta delta) {
+        delta.clear();
+        next.clear();
+
+        generation++;
+
+        for (int row = 0, count = table.getCount(); row < count; row++) {
+            long h = hash(table, row);
+
+            Connection c = find(table, row, h);
+
+            if (c == null) {
+                c = new Connection(table, row, h, now);
+
+                delta.inserted.add(c);
+            } else if (c.update(table, row, now)) {
+                delta.updated.add(c);
+            }
+
+            c.generation = generation;
+
+            next.add(c);
+        }
+
+        for (int i = 0, size = live.size(); i < size; i++) {
+            Connection c = live.get(i);
+
+            if (c.generation != generation) {
+                c.closedAt = now;
+
+                addHistory(c);
+
+                delta.removed.add(c);
+            }
+        }
+
+        ArrayList<Connection> tmp = live;
+        live = next;
+        next = tmp;
+        next.clear();
+
+        rebuildIndex();
+    }
+
+    /**
+     * @return the open connections as of the last poll
+     */
+    synchronized Connection[] getConnections() {
+        return live.toArray(new Connection[live.size()]);
+    }
+
+    /**
+     * @return the recently closed connections, newest first
+     */
+    synchronized Connection[] getHistory() {
+        Connection[] result = new Connection[historyCount];
+
+        for (int i = 0; i < historyCount; i++) {
+            result[i] = history[(historyHead - 1 - i + HISTORY_SIZE) % HISTORY_SIZE];
+        }
+
+        return result;
+    }
+
+    synchronized void clear() {
+        live.clear();
+
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = null;
+        }
+
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            history[i] = null;
+        }
+
+        historyHead = 0;
+        historyCount = 0;
+    }
+
+    private void addHistory(Connection c) {
+        history[historyHead] = c;
+        historyHead = (historyHead + 1) % HISTORY_SIZE;
+
+        if (historyCount < HISTORY_SIZE) {
+            historyCount++;
+        }
+    }
+
+    /**
+     * @return the live connection of the row not yet matched in this poll, or null
+     */
+    private Connection find(ConnectionTable table, int row, long h) {
+        int mask = slots.length - 1;
+
+        for (int i = mix(h) & mask; ; i = (i + 1) & mask) {
+            Connection c = slots[i];
+
+            if (c == null) {
+                return null;
+            }
+
+            if (c.hash == h && c.generation != generation && c.matches(table, row)) {
+                return c;
+            }
+        }
+    }
+
+    private void rebuildIndex() {
+        int size = live.size();
+
+        // keep the load factor at most a half
+        int cap = slots.length;
+
+        while (cap < size * 2) {
+            cap <<= 1;
+        }
+
+        if (cap != slots.length) {
+            slots = new Connection[cap];
+        } else {
+            for (int i = 0; i < cap; i++) {
+                slots[i] = null;
+            }
+        }
+
+        int mask = cap - 1;
+
+        for (int n = 0; n < size; n++) {
+            Connection c = live.get(n);
+
+            int i = mix(c.hash) & mask;
+
+            while (slots[i] != null) {
+                i = (i + 1) & mask;
+            }
+
+            slots[i] = c;
+        }
+    }
+
+    /**
+     * Hash of protocol and endpoints, the inode is left out so it can be unknown in one poll.
+     */
+    private static long hash(ConnectionTable table, int row) {
+        long h = table.getProto(row) * 2 + (table.isV6(row) ? 1 : 0);
+
+        h = h * 31 + table.getLocalHi(row);
+        h = h * 31 + table.getLocalLo(row);
+        h = h * 31 + table.getLocalPort(row);
+        h = h * 31 + table.getRemoteHi(row);
+        h = h * 31 + table.getRemoteLo(row);
+        h = h * 31 + table.getRemotePort(row);
+
+        return h;
+    }
+
+    private static int mix(long h) {
+        h *= 0x9e3779b97f4a7c15L;
+
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -75,6 +75,8 @@ public interface Constants {
     String PREF_KEY_PERSISTENT_ICON = "persistent_icon"; //$NON-NLS-1$
     String PREF_KEY_DISABLE_ALL_ICON = "disable_all_icon"; //$NON-NLS-1$
     String PREF_KEY_USE_LEGACY_ICON = "use_legacy_icon"; //$NON-NLS-1$
+    String PREF_KEY_ADAPTIVE_REFRESH = "adaptive_refresh"; //$NON-NLS-1$
+    String PREF_KEY_ADAPTIVE_THRESHOLD = "adaptive_threshold"; //$NON-NLS-1$
     String PREF_KEY_SHOW_INFO_ICON = "show_info_icon"; //$NON-NLS-1$
     String PREF_KEY_SHOW_TASK_ICON = "show_task_icon"; //$NON-NLS-1$
     String PREF_KEY_SHOW_MEM_MONITOR = "show_mem_monitor"; //$NON-NLS-1$
@@ -85,6 +87,7 @@ public interface Constants {
     String PREF_KEY_HIGH_PRIORITY = "high_priority"; //$NON-NLS-1$
     String PREF_KEY_SHOW_WIFI_ACTIVITY = "show_wifi_activity"; //$NON-NLS-1$
     String PREF_KEY_SHOW_WIFI_RATES = "show_wifi_rates"; //$NON-NLS-1$
+    String PREF_KEY_SHOW_TOP_APP = "show_top_app"; //$NON-NLS-1$
     String PREF_KEY_SHOW_WIFI_SSID = "show_wifi_ssid"; //$NON-NLS-1$
     String PREF_KEY_SHOW_BAR_ICON_INFO = "show_bar_icon_info"; //$NON-NLS-1$
     String PREF_KEY_SHOW_BAR_ICON_TASK = "show_bar_icon_task"; //$NON-NLS-1$
@@ -135,6 +138,8 @@ public interface Constants {
     int MI_TO_SYSTEM = 115;
     int MI_CLEAR_HISTORY = 116;
     int MI_PRIVACY = 117;
+    int MI_CLOSED_CONNECTIONS = 118;
+    int MI_TOP_TALKERS = 119;
 
     // message
     int MSG_INIT_OK = 1;
@@ -0,0 +1,382 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * CpuFreqSampler <br>
+ * <br>
+ * Samples the cpufreq statistics once per policy instead of once per core. The frequencies of
+ * time_in_state are kept at fixed indices of primitive tables, so a sample does not box or
+ * allocate per line. The average frequency covers the window between two samples.
+ */
+final class CpuFreqSampler {
+
+    private static final String POLICY_DIR = "/sys/devices/system/cpu/cpufreq/policy"; //$NON-NLS-1$
+    private static final String CPU_DIR = "/sys/devices/system/cpu/cpu"; //$NON-NLS-1$
+
+    private static final String F_TIME_IN_STATE = "stats/time_in_state"; //$NON-NLS-1$
+    private static final String F_CUR_FREQ = "scaling_cur_freq"; //$NON-NLS-1$
+    private static final String F_MIN_FREQ = "scaling_min_freq"; //$NON-NLS-1$
+    private static final String F_MAX_FREQ = "scaling_max_freq"; //$NON-NLS-1$
+    private static final String F_GOVERNOR = "scaling_governor"; //$NON-NLS-1$
+
+    /**
+     * Policy
+     */
+    private static final class Policy {
+
+        /**
+         * cpufreq directory with a trailing slash
+         */
+        final String dir;
+
+        final String timeInStatePath;
+        final String curFreqPath;
+
+        /**
+         * whether dir belongs to a single core and goes away with it
+         */
+        final boolean perCore;
+
+        /**
+         * frequency in kHz of each time_in_state line, in file order
+         */
+        long[] freqs = new long[16];
+
+        /**
+         * time in 10ms units spent at freqs[i], as of the last sample
+         */
+        long[] times = new long[16];
+
+        int count;
+
+        /**
+         * average frequency in kHz over the last window, -1 if unknown
+         */
+        long average = -1;
+
+        Policy(String dir) {
+            this.dir = dir;
+            this.timeInStatePath = dir + F_TIME_IN_STATE;
+            this.curFreqPath = dir + F_CUR_FREQ;
+            this.perCore = dir.startsWith(CPU_DIR);
+        }
+    }
+
+    /**
+     * indexed by the first core of the policy
+     */
+    private Policy[] policies = new Policy[0];
+
+    /**
+     * round in which each policy was last sampled
+     */
+    private int[] sampled = new int[0];
+    private int round;
+
+    private byte[] buf = new byte[1024];
+    private ByteBuffer bb = ByteBuffer.wrap(buf);
+
+    private static CpuFreqSampler instance;
+
+    private CpuFreqSampler() {
+    }
+
+    /**
+     * @return the sampler shared by all the CPU state readers, the averages cover the window since
+     * the last sample of any of them
+     */
+    static synchronized CpuFreqSampler getInstance() {
+        if (instance == null) {
+            instance = new CpuFreqSampler();
+        }
+        return instance;
+    }
+
+    /**
+     * Reads time_in_state of each policy with an online core and updates the averages.
+     *
+     * @return false if the statistics are not available for any policy
+     */
+    synchronized boolean sample(CpuTopology topology) {
+        int pc = topology.getCoreCount();
+
+        ensureCapacity(pc);
+
+        round++;
+
+        boolean available = false;
+
+        for (int i = 0; i < pc; i++) {
+            if (!topology.isOnline(i)) {
+                continue;
+            }
+
+            // cores without a known policy are sampled on their own
+            int first = topology.getPolicyOf(i);
+            int key = first < 0 ? i : first;
+
+            if (sampled[key] == round) {
+                continue;
+            }
+
+            sampled[key] = round;
+
+            Policy p = obtainPolicy(key, i);
+
+            if (read(p)) {
+                available = true;
+            } else if (p.perCore) {
+                // the core went offline, retry through another member next time
+                policies[key] = null;
+            }
+        }
+
+        return available;
+    }
+
+    /**
+     * @return the average frequency in kHz of the core over the last window, or -1 if unknown
+     */
+    synchronized long getAverageFreq(CpuTopology topology, int core) {
+        Policy p = getPolicy(topology, core);
+
+        return p == null ? -1 : p.average;
+    }
+
+    /**
+     * @return the current frequency in kHz of the policy of the core, or -1 if not available
+     */
+    long getCurrentFreq(CpuTopology topology, int core) {
+        int first = topology.getPolicyOf(core);
+        int key = first < 0 ? core : first;
+
+        Policy p;
+
+        synchronized (this) {
+            ensureCapacity(Math.max(topology.getCoreCount(), key + 1));
+
+            p = obtainPolicy(key, core);
+        }
+
+        long freq = FileHandlePool.readLong(p.curFreqPath);
+
+        if (freq < 0 && p.perCore) {
+            synchronized (this) {
+                // the core went offline, retry through another member next time
+                if (policies[key] == p) {
+                    policies[key] = null;
+                }
+            }
+        }
+
+        return freq;
+    }
+
+    /**
+     * @return the scaling minimum frequency in kHz of the core, or -1 if not available
+     */
+    long getMinFreq(CpuTopology topology, int core) {
+        return FileHandlePool.readLong(getDir(topology, core) + F_MIN_FREQ);
+    }
+
+    /**
+     * @return the scaling maximum frequency in kHz of the core, or -1 if not available
+     */
+    long getMaxFreq(CpuTopology topology, int core) {
+        return FileHandlePool.readLong(getDir(topology, core) + F_MAX_FREQ);
+    }
+
+    String getGovernor(CpuTopology topology, int core) {
+        return Util.readFileFirstLine(getDir(topology, core) + F_GOVERNOR, 32);
+    }
+
+    private Policy getPolicy(CpuTopology topology, int core) {
+        int first = topology.getPolicyOf(core);
+
+        if (first < 0) {
+            first = core;
+        }
+
+        return first < policies.length ? policies[first] : null;
+    }
+
+    private void ensureCapacity(int size) {
+        if (policies.length < size) {
+            Policy[] npolicies = new Policy[size];
+            System.arraycopy(policies, 0, npolicies, 0, policies.length);
+            policies = npolicies;
+        }
+
+        if (sampled.length < size) {
+            int[] nsampled = new int[size];
+            System.arraycopy(sampled, 0, nsampled, 0, sampled.length);
+            sampled = nsampled;
+        }
+    }
+
+    /**
+     * @param key  first core of the policy
+     * @param core an online member, whose directory is used when there is no policy directory
+     */
+    private Policy obtainPolicy(int key, int core) {
+        Policy p = policies[key];
+
+        if (p == null) {
+            p = policies[key] = new Policy(getPolicyDir(key, core));
+        }
+
+        return p;
+    }
+
+    private String getDir(CpuTopology topology, int core) {
+        int first = topology.getPolicyOf(core);
+
+        synchronized (this) {
+            if (first >= 0 && first < policies.length && policies[first] != null) {
+                return policies[first].dir;
+            }
+        }
+
+        return CPU_DIR + core + "/cpufreq/"; //$NON-NLS-1$
+    }
+
+    /**
+     * Newer kernels have a policy directory that stays while its cores go offline, older ones only
+     * have the per core directory.
+     */
+    private static String getPolicyDir(int first, int core) {
+        String dir = POLICY_DIR + first + '/';
+
+        if (new File(dir).isDirectory()) {
+            return dir;
+        }
+
+        return CPU_DIR + core + "/cpufreq/"; //$NON-NLS-1$
+    }
+
+    private boolean read(Policy p) {
+        int len = fill(p);
+
+        if (len <= 0) {
+            p.average = -1;
+            return false;
+        }
+
+        long accumLoad = 0;
+        long accumTime = 0;
+
+        int idx = 0;
+        int pos = 0;
+
+        while (pos < len) {
+            int end = pos;
+
+            while (end < len && buf[end] != '\n') {
+                end++;
+            }
+
+            int sp = pos;
+
+            while (sp < end && buf[sp] != ' ') {
+                sp++;
+            }
+
+            if (sp < end) {
+                long freq = FileHandlePool.parseLong(buf, pos, sp - pos);
+                long time = FileHandlePool.parseLong(buf, sp + 1, end - sp - 1);
+
+                int slot = findSlot(p, idx, freq);
+
+                if (slot < p.count) {
+                    long delta = time - p.times[slot];
+
+                    if (delta > 0) {
+                        accumTime += delta;
+                        accumLoad += freq * delta;
+                    }
+                } else {
+                    addSlot(p, freq);
+                }
+
+                p.times[slot] = time;
+
+                idx = slot + 1;
+            }
+
+            pos = end + 1;
+        }
+
+        // nothing to average on the first sample
+        p.average = accumTime > 0 ? accumLoad / accumTime : -1;
+
+        return true;
+    }
+
+    /**
+     * @return the slot of the frequency, or p.count if it is new. The lines come in the same order
+     * every time, so the expected slot is checked first.
+     */
+    private static int findSlot(Policy p, int expected, long freq) {
+        if (expected < p.count && p.freqs[expected] == freq) {
+            return expected;
+        }
+
+        for (int i = 0; i < p.count; i++) {
+            if (p.freqs[i] == freq) {
+                return i;
+            }
+        }
+
+        return p.count;
+    }
+
+    private static void addSlot(Policy p, long freq) {
+        if (p.count == p.freqs.length) {
+            long[] nfreqs = new long[p.count * 2];
+            long[] ntimes = new long[p.count * 2];
+
+            System.arraycopy(p.freqs, 0, nfreqs, 0, p.count);
+            System.arraycopy(p.times, 0, ntimes, 0, p.count);
+
+            p.freqs = nfreqs;
+            p.times = ntimes;
+        }
+
+        p.freqs[p.count++] = freq;
+    }
+
+    /**
+     * Reads through the kept handle of the pool, which is dropped when the per core directory goes
+     * away with the core.
+     */
+    private int fill(Policy p) {
+        int len = FileHandlePool.read(p.timeInStatePath, bb);
+
+        while (len == buf.length) {
+            // the table did not fit, grow and read again
+            buf = new byte[buf.length * 2];
+            bb = ByteBuffer.wrap(buf);
+
+            len = FileHandlePool.read(p.timeInStatePath, bb);
+        }
+
+        return len;
+    }
+}
@@ -175,7 +175,10 @@ public final class CpuInfoActivity extends PopActivity {
             }
         }
 
-        int pc = Runtime.getRuntime().availableProcessors();
+        CpuTopology topology = CpuTopology.get();
+        CpuFreqSampler freqSampler = CpuFreqSampler.getInstance();
+
+        int pc = topology.getCoreCount();
 
         String cpuMin = readFreq("/sys/devices/system/cpu/cpu0/cpufreq/cpuinfo_min_freq"); //$NON-NLS-1$
         String cpuMax = readFreq("/sys/devices/system/cpu/cpu0/cpufreq/cpuinfo_max_freq"); //$NON-NLS-1$
@@ -210,8 +213,8 @@ public final class CpuInfoActivity extends PopActivity {
             }
         }
 
-        String scaleMin = readFreq("/sys/devices/system/cpu/cpu0/cpufreq/scaling_min_freq"); //$NON-NLS-1$
-        String scaleMax = readFreq("/sys/devices/system/cpu/cpu0/cpufreq/scaling_max_freq"); //$NON-NLS-1$
+        String scaleMin = formatFreq(freqSampler.getMinFreq(topology, 0));
+        String scaleMax = formatFreq(freqSampler.getMaxFreq(topology, 0));
 
         if (scaleMin != null && scaleMax != null) {
             if (pc == 1) {
@@ -226,8 +229,12 @@ public final class CpuInfoActivity extends PopActivity {
                         .append(scaleMax);
 
                 for (int i = 1; i < pc; i++) {
-                    scaleMin = readFreq("/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_min_freq"); //$NON-NLS-1$ //$NON-NLS-2$
-                    scaleMax = readFreq("/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_max_freq"); //$NON-NLS-1$ //$NON-NLS-2$
+                    if (topology.isOnline(i)) {
+                        scaleMin = formatFreq(freqSampler.getMinFreq(topology, i));
+                        scaleMax = formatFreq(freqSampler.getMaxFreq(topology, i));
+                    } else {
+                        scaleMin = scaleMax = null;
+                    }
 
                     if (scaleMin != null && scaleMax != null) {
                         freq.append('\n').append(i).append(": ") //$NON-NLS-1$
@@ -243,9 +250,7 @@ public final class CpuInfoActivity extends PopActivity {
             }
         }
 
-        String governor =
-                Util.readFileFirstLine("/sys/devices/system/cpu/cpu0/cpufreq/scaling_governor", //$NON-NLS-1$
-                        32);
+        String governor = freqSampler.getGovernor(topology, 0);
 
         if (governor != null) {
             if (pc == 1) {
@@ -323,8 +328,10 @@ public final class CpuInfoActivity extends PopActivity {
     }
 
     private static String readFreq(String fname) {
-        long freq = Util.readFileLong(fname, true);
+        return formatFreq(Util.readFileLong(fname, true));
+    }
 
+    private static String formatFreq(long freq) {
         if (freq != -1) {
             return String.valueOf(freq / 1000) + "MHz"; //$NON-NLS-1$;
         }
@@ -0,0 +1,306 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CpuLoadReader <br>
+ * <br>
+ * Scans the cpu section of /proc/stat at byte level and fills caller-owned arrays with the
+ * aggregate and per-core load in a single pass. Each load array has the layout [worktime,
+ * idletime, usertime, nicetime, systime, iowtime, irqtime]; an all-zero array means the
+ * corresponding line was not present.
+ */
+final class CpuLoadReader {
+
+    static final int WORK = 0;
+    static final int IDLE = 1;
+    static final int USER = 2;
+    static final int NICE = 3;
+    static final int SYS = 4;
+    static final int IOW = 5;
+    static final int IRQ = 6;
+
+    static final int FIELD_COUNT = 7;
+
+    private static final String F_STAT = "/proc/stat"; //$NON-NLS-1$
+
+    private byte[] buf = new byte[2048];
+
+    private RandomAccessFile raf;
+
+    /**
+     * @param total  array to receive the aggregate load, can be null
+     * @param cores  arrays to receive the load of each core indexed by core id, can be null
+     * @return number of core lines seen (highest core id + 1), or -1 if /proc/stat is not readable
+     */
+    synchronized int read(long[] total, long[][] cores) {
+        if (total != null) {
+            Arrays.fill(total, 0);
+        }
+
+        clear(cores);
+
+        int len = fill();
+
+        if (len < 0) {
+            return -1;
+        }
+
+        return parse(len, total, cores);
+    }
+
+    synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                Log.e(CpuLoadReader.class.getName(), e.getLocalizedMessage(), e);
+            }
+            raf = null;
+        }
+    }
+
+    static void clear(long[][] loads) {
+        if (loads != null) {
+            for (long[] ld : loads) {
+                if (ld != null) {
+                    Arrays.fill(ld, 0);
+                }
+            }
+        }
+    }
+
+    static boolean isPresent(long[] load) {
+        return load != null && (load[WORK] != 0 || load[IDLE] != 0);
+    }
+
+    /**
+     * @return the busy percentage in [0, 100] between two samples, or -1 if either sample is
+     * absent
+     */
+    static int getLoadPercent(long[] load, long[] lastLoad) {
+        if (!isPresent(load) || !isPresent(lastLoad)) {
+            return -1;
+        }
+
+        long totaldelta = load[WORK] + load[IDLE] - (lastLoad[WORK] + lastLoad[IDLE]);
+
+        if (totaldelta == 0) {
+            return 0;
+        }
+
+        long percent = (load[WORK] - lastLoad[WORK]) * 100 / totaldelta;
+
+        if (percent < 0) {
+            return 0;
+        }
+
+        if (percent > 100) {
+            return 100;
+        }
+
+        return (int) percent;
+    }
+
+    /**
+     * Reads from the start of the file until the first line after the cpu section, so the
+     * large interrupt lines following it are normally not copied at all.
+     */
+    private int fill() {
+        switch (CapabilityRegistry.getAccess(CapabilityRegistry.SRC_PROC_STAT)) {
+            case CapabilityRegistry.ACCESS_ROOT:
+                return fillByRoot();
+            case CapabilityRegistry.ACCESS_NONE:
+                return -1;
+        }
+
+        try {
+            if (raf == null) {
+                raf = new RandomAccessFile(F_STAT, "r"); //$NON-NLS-1$
+            }
+
+            raf.seek(0);
+
+            int len = 0;
+            int scanned = 0;
+            int n;
+
+            while ((n = raf.read(buf, len, buf.length - len)) > 0) {
+                len += n;
+
+                // check line starts for the end of the cpu section
+                for (; scanned < len; scanned++) {
+                    if (buf[scanned] == '\n') {
+                        if (scanned + 3 >= len) {
+                            break;
+                        }
+
+                        if (buf[scanned + 1] != 'c' || buf[scanned + 2] != 'p'
+                                || buf[scanned + 3] != 'u') {
+                            return scanned + 1;
+                        }
+                    }
+                }
+
+                if (len == buf.length) {
+                    grow(len, buf.length * 2);
+                }
+            }
+
+            return len;
+        } catch (IOException e) {
+            Log.e(CpuLoadReader.class.getName(), e.getLocalizedMessage(), e);
+
+            close();
+        }
+
+        return -1;
+    }
+
+    private int fillByRoot() {
+        List<String> output = RootUtil.readFileRoot(F_STAT);
+        if (output != null && output.size() > 0) {
+            int len = 0;
+
+            for (String line : output) {
+                if (!line.startsWith("cpu")) { //$NON-NLS-1$
+                    continue;
+                }
+
+                int size = line.length();
+
+                if (len + size + 1 > buf.length) {
+                    grow(len, Math.max(buf.length * 2, len + size + 1));
+                }
+
+                for (int i = 0; i < size; i++) {
+                    buf[len++] = (byte) line.charAt(i);
+                }
+
+                buf[len++] = '\n';
+            }
+
+            return len;
+        }
+
+        return -1;
+    }
+
+    private void grow(int len, int size) {
+        byte[] nbuf = new byte[size];
+        System.arraycopy(buf, 0, nbuf, 0, len);
+        buf = nbuf;
+    }
+
+    private int parse(int len, long[] total, long[][] cores) {
+        int coreCount = 0;
+        int pos = 0;
+
+        while (pos + 3 < len) {
+            if (buf[pos] != 'c' || buf[pos + 1] != 'p' || buf[pos + 2] != 'u') {
+                break;
+            }
+
+            pos += 3;
+
+            long[] target = null;
+
+            if (buf[pos] == ' ') {
+                target = total;
+            } else {
+                int idx = 0;
+
+                while (pos < len && buf[pos] >= '0' && buf[pos] <= '9') {
+                    idx = idx * 10 + (buf[pos++] - '0');
+                }
+
+                if (idx + 1 > coreCount) {
+                    coreCount = idx + 1;
+                }
+
+                if (cores != null && idx < cores.length) {
+                    target = cores[idx];
+                }
+            }
+
+            // fields: user, nice, system, idle, iowait, irq, softirq, ...
+            long totaltime = 0;
+            int field = 0;
+
+            while (pos < len && buf[pos] != '\n') {
+                byte b = buf[pos];
+
+                if (b < '0' || b > '9') {
+                    pos++;
+                    continue;
+                }
+
+                long value = 0;
+
+                while (pos < len && (b = buf[pos]) >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    pos++;
+                }
+
+                if (target != null && field < 7) {
+                    switch (field) {
+                        case 0:
+                            target[USER] = value;
+                            break;
+                        case 1:
+                            target[NICE] = value;
+                            break;
+                        case 2:
+                            target[SYS] = value;
+                            break;
+                        case 3:
+                            target[IDLE] = value;
+                            break;
+                        case 4:
+                            target[IOW] = value;
+                            break;
+                        case 5:
+                        case 6:
+                            target[IRQ] += value;
+                            break;
+                    }
+
+                    if (field != 3) {
+                        totaltime += value;
+                    }
+                }
+
+                field++;
+            }
+
+            if (target != null) {
+                target[WORK] = totaltime;
+            }
+
+            // skip the line break
+            pos++;
+        }
+
+        return coreCount;
+    }
+}
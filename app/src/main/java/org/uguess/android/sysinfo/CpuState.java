@@ -15,6 +15,8 @@
 
 package org.uguess.android.sysinfo;
 
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.util.Log;
 
@@ -24,11 +26,7 @@ import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
@@ -41,17 +39,34 @@ final class CpuState {
 
     private static final String[] EMPTY_ARRAY = new String[0];
 
+    private static final String STORE_NAME = "CpuModel"; //$NON-NLS-1$
+    private static final String KEY_BUILD = "build"; //$NON-NLS-1$
+    private static final String KEY_MODEL = "model"; //$NON-NLS-1$
+
+    private static Context appContext;
+
+    private static boolean modelLoaded;
+
     private static volatile String cpuModelName;
 
     static volatile String gpuVendor;
     static volatile String gpuRenderer;
 
-    private List<Map<Long, Long>> mipTable;
     private String[] bogoArray;
 
+    /**
+     * last average frequency label per core, reused while the frequency stays the same
+     */
+    private long[] avgMhz;
+    private String[] avgLabels;
+    private String[] avgMips;
+
     private boolean scaleAvailable = true;
     private boolean avgAvailable = true;
 
+    /**
+     * @return the frequency label per core, the array may be reused by the next call
+     */
     String[] getMips() {
         String[] mips = null;
 
@@ -67,17 +82,12 @@ final class CpuState {
 
         if (mips == null) {
             if (avgAvailable) {
-                if (mipTable == null) {
-                    mipTable = new ArrayList<Map<Long, Long>>();
-                }
-
-                mips = getAverageMIPS(mipTable);
+                mips = getAverageMIPS();
 
                 if (mips == null) {
                     Log.d(CpuState.class.getName(), "Avg Mips not available");
 
                     avgAvailable = false;
-                    mipTable = null;
                 }
             }
 
@@ -99,7 +109,17 @@ final class CpuState {
         return mips;
     }
 
+    /**
+     * Sets the context used to load the SoC rules and to persist the resolved model, should be
+     * called once at startup.
+     */
+    static synchronized void init(Context ctx) {
+        appContext = ctx.getApplicationContext();
+    }
+
     static synchronized boolean needGpuInfo() {
+        loadModel();
+
         if (gpuRenderer != null || gpuVendor != null) {
             return false;
         }
@@ -109,11 +129,15 @@ final class CpuState {
         return abi != null && (abi.contains("armeabi") || abi.contains("arm64"));
     }
 
-    static String getGpuVendor() {
+    static synchronized String getGpuVendor() {
+        loadModel();
+
         return gpuVendor;
     }
 
-    static String getGpuRenderer() {
+    static synchronized String getGpuRenderer() {
+        loadModel();
+
         return gpuRenderer;
     }
 
@@ -121,29 +145,79 @@ final class CpuState {
         gpuVendor = vendor;
         gpuRenderer = renderer;
 
+        if (appContext != null) {
+            DeviceFacts.put(appContext, DeviceFacts.FACT_GL_VENDOR, vendor);
+            DeviceFacts.put(appContext, DeviceFacts.FACT_GL_RENDERER, renderer);
+        }
+
         cpuModelName = getModel().getModelName();
+
+        saveModel();
     }
 
     static synchronized String getProcessor() {
+        loadModel();
+
         if (cpuModelName == null) {
             cpuModelName = getModel().getModelName();
+
+            saveModel();
         }
 
         return cpuModelName;
     }
 
-    boolean needSecondRun() {
-        return mipTable != null;
-    }
+    /**
+     * The model only changes with the system build or with new SoC rules, so it is resolved once
+     * and reused by all processes. The gpu info is kept with the other GL facts in
+     * {@link DeviceFacts}.
+     */
+    private static void loadModel() {
+        if (modelLoaded || appContext == null) {
+            return;
+        }
 
-    void reset() {
-        if (mipTable != null) {
-            for (Map<Long, Long> mp : mipTable) {
-                if (mp != null) {
-                    mp.clear();
-                }
+        modelLoaded = true;
+
+        SharedPreferences sp = appContext.getSharedPreferences(STORE_NAME, Context.MODE_PRIVATE);
+
+        if (getBuildKey().equals(sp.getString(KEY_BUILD, null))) {
+            if (cpuModelName == null) {
+                cpuModelName = sp.getString(KEY_MODEL, null);
             }
         }
+
+        if (gpuVendor == null && gpuRenderer == null) {
+            gpuVendor = DeviceFacts.get(appContext, DeviceFacts.FACT_GL_VENDOR);
+            gpuRenderer = DeviceFacts.get(appContext, DeviceFacts.FACT_GL_RENDERER);
+        }
+    }
+
+    private static void saveModel() {
+        if (appContext == null) {
+            return;
+        }
+
+        SharedPreferences.Editor et =
+                appContext.getSharedPreferences(STORE_NAME, Context.MODE_PRIVATE).edit().clear()
+                        .putString(KEY_BUILD, getBuildKey()).putString(KEY_MODEL, cpuModelName);
+
+        if (Util.SDK_VER >= 9) {
+            // not to block the caller on the disk write
+            et.apply();
+        } else {
+            et.commit();
+        }
+    }
+
+    private static String getBuildKey() {
+        // the rules ship with the app
+        return Build.FINGERPRINT + '#' + BuildConfig.VERSION_CODE;
+    }
+
+    boolean needSecondRun() {
+        // the average frequencies need two samples
+        return !scaleAvailable && avgAvailable;
     }
 
     /**
@@ -175,7 +249,7 @@ final class CpuState {
             File[] fs = new File("/sys/devices/system/cpu/").listFiles(new FileFilter() {
 
                 public boolean accept(File paramFile) {
-                    return Pattern.matches("cpu[0-9]", paramFile.getName());
+                    return Pattern.matches("cpu[0-9]+", paramFile.getName()); //$NON-NLS-1$
                 }
             });
 
@@ -189,119 +263,92 @@ final class CpuState {
         return Runtime.getRuntime().availableProcessors();
     }
 
-    private static String[] getAverageMIPS(List<Map<Long, Long>> mipTable) {
-        String[] result = null;
+    private String[] getAverageMIPS() {
+        if (!CapabilityRegistry.isReadable(CapabilityRegistry.SRC_TIME_IN_STATE)) {
+            return null;
+        }
 
         try {
-            int pc = Runtime.getRuntime().availableProcessors();
-
-            for (int i = 0; i < pc; i++) {
-                File f = new File("/sys/devices/system/cpu/cpu"
-                        + i + "/cpufreq/stats/time_in_state");
-                ;
-
-                if (!f.exists() || !f.isFile() || !f.canRead()) {
-                    continue;
-                }
-
-                if (result == null) {
-                    result = new String[pc];
-                }
+            CpuTopology topology = CpuTopology.get();
+            CpuFreqSampler freqSampler = CpuFreqSampler.getInstance();
 
-                Map<Long, Long> freqMap = null;
-
-                if (mipTable.size() <= i) {
-                    freqMap = new HashMap<Long, Long>();
-                    mipTable.add(freqMap);
-                } else {
-                    freqMap = mipTable.get(i);
-                }
-
-                BufferedReader reader = null;
-
-                try {
-                    reader = new BufferedReader(new InputStreamReader(new FileInputStream(f)), 512);
-
-                    String line;
-
-                    long accumLoad = 0;
-                    long accumTime = 0;
-
-                    while ((line = reader.readLine()) != null) {
-                        line = line.trim();
-
-                        int idx = line.indexOf(' ');
+            if (!freqSampler.sample(topology)) {
+                return null;
+            }
 
-                        if (idx != -1) {
-                            try {
-                                long freq = Long.parseLong(line.substring(0, idx).trim());
-                                long time = Long.parseLong(line.substring(idx).trim());
+            int pc = topology.getCoreCount();
 
-                                Long lastTime = freqMap.get(freq);
+            if (avgLabels == null || avgLabels.length != pc) {
+                avgLabels = new String[pc];
+                avgMhz = new long[pc];
+                avgMips = new String[pc];
+            }
 
-                                freqMap.put(freq, time);
+            String[] result = avgMips;
 
-                                if (lastTime != null) {
-                                    long deltaTime = time - lastTime.longValue();
+            // if all mips are null, return an empty array
+            boolean emptyExtra = true;
 
-                                    accumTime += deltaTime;
-                                    accumLoad += freq * deltaTime;
-                                }
-                            } catch (Exception e) {
-                                Log.e(CpuState.class.getName(), e.getLocalizedMessage(), e);
-                            }
-                        }
-                    }
+            for (int i = 0; i < pc; i++) {
+                long freq = topology.isOnline(i) ? freqSampler.getAverageFreq(topology, i) : -1;
 
-                    if (accumTime != 0) {
-                        result[i] = getMipsLabel(accumLoad / accumTime / 1000);
-                    }
-                } catch (Exception e) {
-                    Log.e(CpuState.class.getName(), e.getLocalizedMessage(), e);
-                } finally {
-                    if (reader != null) {
-                        try {
-                            reader.close();
-                        } catch (IOException ie) {
-                            Log.e(CpuState.class.getName(), ie.getLocalizedMessage(), ie);
-                        }
-                    }
+                if (freq < 0) {
+                    result[i] = null;
+                    continue;
                 }
-            }
 
-            if (result != null) {
-                // if all mips are null, reset the array to null
-                boolean emptyExtra = true;
+                long mhz = freq / 1000;
 
-                for (String s : result) {
-                    if (s != null) {
-                        emptyExtra = false;
-                        break;
-                    }
+                if (avgLabels[i] == null || avgMhz[i] != mhz) {
+                    avgLabels[i] = getMipsLabel(mhz);
+                    avgMhz[i] = mhz;
                 }
 
-                if (emptyExtra) {
-                    result = EMPTY_ARRAY;
-                }
+                result[i] = avgLabels[i];
+                emptyExtra = false;
             }
+
+            return emptyExtra ? EMPTY_ARRAY : result;
         } catch (Exception e) {
             Log.e(CpuState.class.getName(), e.getLocalizedMessage(), e);
         }
 
-        return result;
+        return null;
     }
 
     private static String[] getScaleMIPS() {
         try {
-            int pc = Runtime.getRuntime().availableProcessors();
+            CpuTopology topology = CpuTopology.get();
+            CpuFreqSampler freqSampler = CpuFreqSampler.getInstance();
+
+            int pc = topology.getCoreCount();
 
             String[] allMips = new String[pc];
 
             for (int i = 0; i < pc; i++) {
+                if (!topology.isOnline(i)) {
+                    // offline cores keep their slot and show as idle
+                    continue;
+                }
+
+                int first = topology.getPolicyOf(i);
+
+                if (first >= 0 && first < i) {
+                    // cores of one policy run at the same frequency
+                    for (int k = first; k < i; k++) {
+                        if (allMips[k] != null && topology.getPolicyOf(k) == first) {
+                            allMips[i] = allMips[k];
+                            break;
+                        }
+                    }
+
+                    if (allMips[i] != null) {
+                        continue;
+                    }
+                }
+
                 try {
-                    long freq = Util.readFileLong("/sys/devices/system/cpu/cpu"
-                                    + i + "/cpufreq/scaling_cur_freq",
-                            true);
+                    long freq = freqSampler.getCurrentFreq(topology, i);
 
                     if (freq != -1) {
                         allMips[i] = getMipsLabel(freq / 1000);
@@ -761,212 +808,22 @@ final class CpuState {
             return baseModel;
         }
 
-        private boolean devHardwareContains(String name) {
-            return devHardware != null && devHardware.contains(name);
-        }
+        private String refineArmModel(String originName, String arch) {
+            String name = null;
 
-        private boolean hardwareContains(String name) {
-            return hardware != null && hardware.contains(name);
-        }
+            SocMatcher matcher = appContext == null ? null : SocMatcher.getInstance(appContext);
 
-        private boolean anyHardwareContains(String name) {
-            return devHardwareContains(name) || hardwareContains(name);
-        }
+            if (matcher != null) {
+                String[] soc = matcher.match(new String[]{devHardware, hardware, board, model},
+                        cores, part);
 
-        private String refineArmModel(String originName, String arch) {
-            String name = null;
+                if (soc != null) {
+                    name = soc[0];
 
-            // samsung
-            if (board.contains("herring") || board.contains("aries")) {
-                name = "Samsung Exynos 3110";
-            } else if (anyHardwareContains("universal3475")) {
-                name = "Samsung Exynos 3475";
-            } else if (devHardwareContains("smdkc210")
-                    || devHardwareContains("smdk4210")) {
-                name = "Samsung Exynos 4210";
-            } else if (devHardwareContains("smdk4x12")) {
-                if (cores == 2) {
-                    name = "Samsung Exynos 4212";
-                } else if (cores == 4) {
-                    name = "Samsung Exynos 4412";
-                }
-            } else if (board.contains("manta")) {
-                name = "Samsung Exynos 5250";
-            } else if (devHardwareContains("universal5260")) {
-                name = "Samsung Exynos Hexa 5260";
-            } else if (anyHardwareContains("universal5410")) {
-                name = "Samsung Exynos Octa 5410";
-                arch = "ARM Cortex-A15 + ARM Cortex-A7";
-            } else if (anyHardwareContains("universal5420")) {
-                name = "Samsung Exynos Octa 5420";
-                arch = "ARM Cortex-A15 + ARM Cortex-A7";
-            } else if (devHardwareContains("universal5422")) {
-                name = "Samsung Exynos Octa 5422";
-            } else if (anyHardwareContains("universal5430")) {
-                name = "Samsung Exynos Octa 5430";
-            } else if (devHardwareContains("universal5433")) {
-                name = "Samsung Exynos Octa 5433";
-            } else if (devHardwareContains("samsungexynos7420")) {
-                name = "Samsung Exynos Octa 7420";
-            } else if (devHardwareContains("samsungexynos7580")) {
-                name = "Samsung Exynos Octa 7580";
-            } else if (devHardwareContains("samsungexynos7870")) {
-                name = "Samsung Exynos Octa 7870";
-            } else if (devHardwareContains("samsungexynos8890")) {
-                name = "Samsung Exynos Octa 8890";
-
-                // allwinner
-            } else if (devHardwareContains("sun4i")) {
-                name = "Allwinner A10";
-            } else if (devHardwareContains("sun5i")) {
-                name = "Allwinner A13";
-            } else if (devHardwareContains("sun6i")) {
-                name = "Allwinner A31/A31s";
-            } else if (devHardwareContains("sun7i")) {
-                name = "Allwinner A20";
-            } else if (devHardwareContains("sun8i")) {
-                name = "Allwinner A23";
-            } else if (devHardwareContains("sun9i")) {
-                name = "Allwinner A80";
-
-                // mediatek
-            } else if (devHardwareContains("mt6517")) {
-                name = "MediaTek MT6517";
-            } else if (devHardwareContains("mt6572")) {
-                name = "MediaTek MT6572";
-            } else if (devHardwareContains("mt6575")) {
-                name = "MediaTek MT6575";
-            } else if (devHardwareContains("mt6577")) {
-                name = "MediaTek MT6577";
-            } else if (devHardwareContains("mt6580")) {
-                name = "MediaTek MT6580";
-            } else if (devHardwareContains("mt6582")) {
-                name = "MediaTek MT6582";
-            } else if (devHardwareContains("mt6588")) {
-                name = "MediaTek MT6588";
-            } else if (devHardwareContains("mt6589")) {
-                name = "MediaTek MT6589";
-            } else if (devHardwareContains("mt6591")) {
-                name = "MediaTek MT6591";
-            } else if (devHardwareContains("mt6592")) {
-                name = "MediaTek MT6592";
-            } else if (devHardwareContains("mt6595")) {
-                name = "MediaTek MT6595";
-            } else if (devHardwareContains("mt6732")) {
-                name = "MediaTek MT6732";
-            } else if (devHardwareContains("mt6735")) {
-                name = "MediaTek MT6735";
-            } else if (devHardwareContains("mt6750")) {
-                name = "MediaTek MT6750";
-            } else if (devHardwareContains("mt6752")) {
-                name = "MediaTek MT6752";
-            } else if (devHardwareContains("mt6753")) {
-                name = "MediaTek MT6753";
-            } else if (devHardwareContains("mt6755")) {
-                name = "MediaTek MT6755";
-            } else if (devHardwareContains("mt6757")) {
-                name = "MediaTek MT6757";
-            } else if (devHardwareContains("mt6795")) {
-                name = "MediaTek MT6795";
-            } else if (devHardwareContains("mt6797d")) {
-                name = "MediaTek Helio X23";
-            } else if (devHardwareContains("mt6797t")) {
-                name = "MediaTek Helio X25";
-            } else if (devHardwareContains("mt6797x")) {
-                name = "MediaTek Helio X27";
-            } else if (devHardwareContains("mt6797")) {
-                name = "MediaTek Helio X20";
-            } else if (devHardwareContains("mt6799")) {
-                name = "MediaTek MT6799";
-            } else if (devHardwareContains("mt8377")) {
-                name = "MediaTek MT8377";
-            } else if (devHardwareContains("mt8382")) {
-                name = "MediaTek MT8382";
-            } else if (devHardwareContains("mt8127")) {
-                name = "MediaTek MT8127";
-
-                // broadcom
-            } else if (devHardwareContains("bcm21553")) {
-                name = "Broadcom BCM21553";
-            } else if (board.contains("rhea")) {
-                name = "Broadcom BCM21654/G";
-            } else if (board.contains("hawaii")) {
-                name = "Broadcom BCM21664";
-            } else if (board.contains("capri")) {
-                name = "Broadcom BCM28155";
-
-                // marvell
-            } else if (devHardwareContains("pxa1088")) {
-                name = "Marvell PXA1088";
-
-                // hisilicon
-            } else if (hardwareContains("hi6210")) {
-                name = "HiSilicon Kirin 620";
-            } else if (hardwareContains("hi6250")) {
-                name = "HiSilicon Kirin 650";
-            } else if (hardwareContains("hi6620")) {
-                name = "HiSilicon Kirin 910";
-            } else if (hardwareContains("kirin92")
-                    || hardwareContains("kirin920")
-                    || devHardwareContains("hi3630")
-                    || board.contains("hi3630")) {
-                name = "HiSilicon Kirin 920";
-            } else if (devHardwareContains("hi3635")) {
-                if (hardwareContains("kirin 935")) {
-                    name = "HiSilicon Kirin 935";
-                } else if (hardwareContains("kirin 930")) {
-                    name = "HiSilicon Kirin 930";
-                }
-            } else if (hardwareContains("kirin 940")) {
-                name = "HiSilicon Kirin 940";
-            } else if (hardwareContains("kirin 950")) {
-                name = "HiSilicon Kirin 950";
-            } else if (hardwareContains("kirin 955")
-                    || devHardwareContains("hi3650")) {
-                name = "HiSilicon Kirin 955";
-            } else if (devHardwareContains("hi3660")) {
-                name = "HiSilicon Kirin 960";
-
-                // ti
-            } else if (model.contains("gt-i9100g")
-                    || model.contains("xt910")
-                    || board.contains("piranha")) {
-                name = "TI OMAP 4430";
-            } else if (board.contains("tuna")) {
-                name = "TI OMAP 4460";
-
-                // ste
-            } else if (model.contains("gt-i8190l")) {
-                name = "STE NovaThor U8420";
-            } else if (model.contains("gt-i8190")
-                    || model.contains("gt-i9070p")
-                    || model.contains("st25i")
-                    || board.contains("montblanc")) {
-                name = "STE NovaThor U8500";
-
-                // rockchip
-            } else if (board.contains("rk32sdk")) {
-                name = "Rockchip RK3288";
-            } else if (board.contains("rk31sdk")) {
-                name = "Rockchip RK31";
-                if (cores == 4) {
-                    name = "Rockchip RK3188";
-                } else if (cores == 2) {
-                    name = "Rockchip RK3168";
-                }
-            } else if (board.contains("rk30sdk")) {
-                name = "Rockchip RK3066";
-            } else if (board.contains("rk29sdk")) {
-                name = "Rockchip RK29";
-                if (part == 0xc08) {
-                    name = "Rockchip RK2928";
-                } else if (part == 0xc09) {
-                    name = "Rockchip RK2918";
+                    if (soc[1] != null) {
+                        arch = soc[1];
+                    }
                 }
-            } else if (board.contains("rk2928sdk")) {
-                name = "Rockchip RK2928";
-            } else if (board.contains("rk28sdk")) {
-                name = "Rockchip RK28";
             }
 
             // check by gpu
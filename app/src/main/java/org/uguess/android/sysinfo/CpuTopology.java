@@ -0,0 +1,377 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.os.SystemClock;
+
+/**
+ * CpuTopology <br>
+ * <br>
+ * Immutable snapshot of the present and online cores and of the clusters they belong to. Core ids
+ * are the kernel ids, so a core keeps its index when other cores go offline. The clusters come from
+ * the cpufreq related_cpus policies and are ordered from little to big by their maximal frequency.
+ * A new snapshot is only built when the online or present lists change.
+ */
+final class CpuTopology {
+
+    static final int TYPE_LITTLE = 0;
+    static final int TYPE_MID = 1;
+    static final int TYPE_BIG = 2;
+
+    private static final String F_ONLINE = "/sys/devices/system/cpu/online"; //$NON-NLS-1$
+    private static final String F_PRESENT = "/sys/devices/system/cpu/present"; //$NON-NLS-1$
+
+    private static final String CPU_DIR = "/sys/devices/system/cpu/cpu"; //$NON-NLS-1$
+
+    /**
+     * minimal interval in milliseconds between two checks of the online list
+     */
+    private static final long CHECK_INTERVAL = 1000;
+
+    private static CpuTopology current;
+    private static String lastOnline, lastPresent;
+    private static long lastCheck;
+
+    /**
+     * first core of the cpufreq policy of each core, -1 if not known yet. The cpufreq directory of
+     * a core may disappear while it is offline, so what was once read is kept.
+     */
+    private static int[] policyOf = new int[0];
+
+    /**
+     * cpuinfo_max_freq of each policy, indexed by the first core of the policy
+     */
+    private static long[] policyMaxFreq = new long[0];
+
+    private final int coreCount;
+
+    private final boolean[] online;
+
+    private final int[] clusterOf;
+
+    /**
+     * first core of the cpufreq policy of each core, -1 if unknown
+     */
+    private final int[] policy;
+
+    private final int clusterCount;
+
+    private final int[] clusterSize;
+
+    private CpuTopology(int coreCount, boolean[] online, int[] clusterOf, int[] policy,
+                        int clusterCount) {
+        this.coreCount = coreCount;
+        this.online = online;
+        this.clusterOf = clusterOf;
+        this.policy = policy;
+        this.clusterCount = clusterCount;
+
+        clusterSize = new int[clusterCount];
+
+        for (int i = 0; i < coreCount; i++) {
+            clusterSize[clusterOf[i]]++;
+        }
+    }
+
+    /**
+     * @return the current topology, re-read at most once per second
+     */
+    static synchronized CpuTopology get() {
+        long now = SystemClock.elapsedRealtime();
+
+        if (current != null && now - lastCheck < CHECK_INTERVAL && now >= lastCheck) {
+            return current;
+        }
+
+        lastCheck = now;
+
+        String onlineList = Util.readFileFirstLine(F_ONLINE, 64);
+        String presentList = Util.readFileFirstLine(F_PRESENT, 64);
+
+        if (current == null || !equals(onlineList, lastOnline)
+                || !equals(presentList, lastPresent)) {
+            lastOnline = onlineList;
+            lastPresent = presentList;
+
+            current = build(onlineList, presentList);
+        }
+
+        return current;
+    }
+
+    /**
+     * @return number of present cores, i.e. the highest present core id + 1
+     */
+    int getCoreCount() {
+        return coreCount;
+    }
+
+    boolean isOnline(int core) {
+        return core >= 0 && core < coreCount && online[core];
+    }
+
+    int getOnlineCount() {
+        int count = 0;
+
+        for (int i = 0; i < coreCount; i++) {
+            if (online[i]) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * @return the cluster index of the core, clusters are ordered from little to big
+     */
+    int getClusterOf(int core) {
+        return clusterOf[core];
+    }
+
+    /**
+     * @return the first core of the cpufreq policy of the core, or -1 if the core has no known
+     * policy. Cores of one policy share the frequency and its statistics.
+     */
+    int getPolicyOf(int core) {
+        return core >= 0 && core < coreCount ? policy[core] : -1;
+    }
+
+    int getClusterSize(int cluster) {
+        return clusterSize[cluster];
+    }
+
+    /**
+     * @return one of the TYPE_* constants, a single cluster is reported as big
+     */
+    int getClusterType(int cluster) {
+        if (cluster == clusterCount - 1) {
+            return TYPE_BIG;
+        }
+
+        return cluster == 0 ? TYPE_LITTLE : TYPE_MID;
+    }
+
+    /**
+     * Averages per core values by cluster.
+     *
+     * @param coreValues values indexed by core id, negative values (e.g. offline cores) are skipped
+     * @param out        receives one value per cluster, 0 for clusters without values
+     */
+    void aggregate(int[] coreValues, int[] out) {
+        for (int c = 0; c < clusterCount; c++) {
+            int sum = 0, count = 0;
+
+            for (int i = 0, size = Math.min(coreCount, coreValues.length); i < size; i++) {
+                if (clusterOf[i] == c && coreValues[i] >= 0) {
+                    sum += coreValues[i];
+                    count++;
+                }
+            }
+
+            out[c] = count > 0 ? sum / count : 0;
+        }
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    private static CpuTopology build(String onlineList, String presentList) {
+        int coreCount = getMaxId(presentList) + 1;
+
+        if (coreCount <= 0) {
+            coreCount = Math.max(getMaxId(onlineList) + 1, Runtime.getRuntime()
+                    .availableProcessors());
+        }
+
+        boolean[] online = new boolean[coreCount];
+
+        if (onlineList != null) {
+            parseList(onlineList, online);
+        } else {
+            // no hotplug info, assume all present cores are online
+            for (int i = 0; i < coreCount; i++) {
+                online[i] = true;
+            }
+        }
+
+        if (policyOf.length < coreCount) {
+            int[] npolicy = new int[coreCount];
+            long[] nfreq = new long[coreCount];
+
+            System.arraycopy(policyOf, 0, npolicy, 0, policyOf.length);
+            System.arraycopy(policyMaxFreq, 0, nfreq, 0, policyMaxFreq.length);
+
+            for (int i = policyOf.length; i < coreCount; i++) {
+                npolicy[i] = -1;
+            }
+
+            policyOf = npolicy;
+            policyMaxFreq = nfreq;
+        }
+
+        boolean[] related = new boolean[coreCount];
+
+        for (int i = 0; i < coreCount; i++) {
+            if (policyOf[i] >= 0) {
+                continue;
+            }
+
+            String rl = Util.readFileFirstLine(CPU_DIR + i + "/cpufreq/related_cpus", 128); //$NON-NLS-1$
+
+            if (rl == null) {
+                continue;
+            }
+
+            for (int k = 0; k < coreCount; k++) {
+                related[k] = false;
+            }
+
+            parseList(rl, related);
+
+            int first = i;
+
+            for (int k = 0; k < coreCount; k++) {
+                if (related[k]) {
+                    first = Math.min(first, k);
+                }
+            }
+
+            for (int k = 0; k < coreCount; k++) {
+                if (related[k] || k == i) {
+                    policyOf[k] = first;
+                }
+            }
+
+            policyMaxFreq[first] = Util.readFileLong(CPU_DIR + i + "/cpufreq/cpuinfo_max_freq", //$NON-NLS-1$
+                    true);
+        }
+
+        // collect the distinct policies, cores without a known policy share one cluster
+        int[] keys = new int[coreCount];
+        long[] freqs = new long[coreCount];
+        int clusterCount = 0;
+
+        for (int i = 0; i < coreCount; i++) {
+            int key = policyOf[i];
+            boolean found = false;
+
+            for (int c = 0; c < clusterCount; c++) {
+                if (keys[c] == key) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found) {
+                keys[clusterCount] = key;
+                freqs[clusterCount] = key < 0 ? 0 : policyMaxFreq[key];
+                clusterCount++;
+            }
+        }
+
+        // order by max frequency, then by first core
+        for (int i = 1; i < clusterCount; i++) {
+            for (int k = i; k > 0 && (freqs[k] < freqs[k - 1]
+                    || (freqs[k] == freqs[k - 1] && keys[k] < keys[k - 1])); k--) {
+                int key = keys[k];
+                keys[k] = keys[k - 1];
+                keys[k - 1] = key;
+
+                long freq = freqs[k];
+                freqs[k] = freqs[k - 1];
+                freqs[k - 1] = freq;
+            }
+        }
+
+        int[] clusterOf = new int[coreCount];
+
+        for (int i = 0; i < coreCount; i++) {
+            for (int c = 0; c < clusterCount; c++) {
+                if (keys[c] == policyOf[i]) {
+                    clusterOf[i] = c;
+                    break;
+                }
+            }
+        }
+
+        int[] policy = new int[coreCount];
+
+        System.arraycopy(policyOf, 0, policy, 0, coreCount);
+
+        return new CpuTopology(coreCount, online, clusterOf, policy, Math.max(1, clusterCount));
+    }
+
+    /**
+     * @return the highest id in a kernel cpu list like "0-3,6,8-9", or -1 if none
+     */
+    private static int getMaxId(String list) {
+        if (list == null) {
+            return -1;
+        }
+
+        int max = -1;
+        int value = -1;
+
+        for (int i = 0, len = list.length(); i <= len; i++) {
+            char c = i < len ? list.charAt(i) : ',';
+
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+            } else {
+                max = Math.max(max, value);
+                value = -1;
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Marks the ids of a kernel cpu list like "0-3,6,8-9", ids out of range are ignored.
+     */
+    private static void parseList(String list, boolean[] out) {
+        int start = -1;
+        int value = -1;
+
+        for (int i = 0, len = list.length(); i <= len; i++) {
+            char c = i < len ? list.charAt(i) : ',';
+
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+            } else if (c == '-') {
+                start = value;
+                value = -1;
+            } else if (c == ',' || c == ' ' || c == '\n') {
+                if (value >= 0) {
+                    int from = start >= 0 ? start : value;
+
+                    for (int k = Math.max(0, from); k <= value && k < out.length; k++) {
+                        out[k] = true;
+                    }
+                }
+
+                start = -1;
+                value = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+/**
+ * DeviceFacts <br>
+ * <br>
+ * Cache of the device facts that cannot change until the next boot, e.g. the GL strings or the
+ * system features. The facts live in one small file keyed by the boot id and the build
+ * fingerprint, it is loaded lazily with a single read and dropped as soon as the key changes.
+ */
+final class DeviceFacts {
+
+    static final String FACT_GL_VENDOR = "gl.vendor"; //$NON-NLS-1$
+    static final String FACT_GL_RENDERER = "gl.renderer"; //$NON-NLS-1$
+    static final String FACT_GL_PROPS = "gl.props"; //$NON-NLS-1$
+    static final String FACT_FEATURES = "features"; //$NON-NLS-1$
+    static final String FACT_SENSOR_COUNT = "sensor.count"; //$NON-NLS-1$
+    static final String FACT_KERNEL = "kernel"; //$NON-NLS-1$
+
+    private static final String FILE_NAME = "device.facts"; //$NON-NLS-1$
+
+    private static final int MAGIC = 0x51534446; // QSDF
+    private static final int VERSION = 1;
+
+    private static HashMap<String, String> facts;
+
+    private static String key;
+
+    private DeviceFacts() {
+    }
+
+    /**
+     * @return the cached fact, or null if not known in this boot
+     */
+    static synchronized String get(Context ctx, String name) {
+        return load(ctx).get(name);
+    }
+
+    static synchronized void put(Context ctx, String name, String value) {
+        HashMap<String, String> map = load(ctx);
+
+        if (value == null) {
+            if (map.remove(name) == null) {
+                return;
+            }
+        } else if (value.equals(map.put(name, value))) {
+            return;
+        }
+
+        save(ctx);
+    }
+
+    /**
+     * @return the content of /proc/version
+     */
+    static String getKernelVersion(Context ctx) {
+        String kver = get(ctx, FACT_KERNEL);
+
+        if (kver == null) {
+            kver = Util.readFileFirstLine(Constants.F_VERSION, 1024);
+
+            if (kver != null) {
+                put(ctx, FACT_KERNEL, kver);
+            }
+        }
+
+        return kver;
+    }
+
+    private static String getKey() {
+        return CapabilityRegistry.getBootId() + '#' + Build.FINGERPRINT;
+    }
+
+    /**
+     * @return true if the stored key is of this boot and build
+     */
+    private static boolean isSameKey(String stored) {
+        int sep = stored.indexOf('#');
+
+        if (sep == -1 || !stored.substring(sep).equals(key.substring(key.indexOf('#')))) {
+            return false;
+        }
+
+        if (CapabilityRegistry.isSameBoot(stored.substring(0, sep),
+                key.substring(0, key.indexOf('#')))) {
+            // keep the stored one, the fallback boot id may drift a little
+            key = stored;
+            return true;
+        }
+
+        return false;
+    }
+
+    private static HashMap<String, String> load(Context ctx) {
+        if (facts != null) {
+            return facts;
+        }
+
+        facts = new HashMap<String, String>();
+        key = getKey();
+
+        File f = new File(ctx.getFilesDir(), FILE_NAME);
+
+        if (!f.isFile()) {
+            return facts;
+        }
+
+        FileInputStream fis = null;
+
+        try {
+            fis = new FileInputStream(f);
+
+            byte[] data = new byte[(int) f.length()];
+
+            int len = 0;
+            int n;
+
+            while (len < data.length && (n = fis.read(data, len, data.length - len)) > 0) {
+                len += n;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, len));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !isSameKey(in.readUTF())) {
+                // from an old version or a previous boot
+                return facts;
+            }
+
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                String name = in.readUTF();
+
+                facts.put(name, readString(in));
+            }
+        } catch (Exception e) {
+            Log.e(DeviceFacts.class.getName(), e.getLocalizedMessage(), e);
+
+            facts.clear();
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(DeviceFacts.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        return facts;
+    }
+
+    private static void save(Context ctx) {
+        File f = new File(ctx.getFilesDir(), FILE_NAME);
+        File tmp = new File(ctx.getFilesDir(), FILE_NAME + ".tmp"); //$NON-NLS-1$
+
+        FileOutputStream fos = null;
+
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+            DataOutputStream out = new DataOutputStream(bos);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(facts.size());
+
+            for (Entry<String, String> entry : facts.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeString(out, entry.getValue());
+            }
+
+            out.flush();
+
+            fos = new FileOutputStream(tmp);
+            bos.writeTo(fos);
+            fos.close();
+            fos = null;
+
+            if (!tmp.renameTo(f)) {
+                Log.e(DeviceFacts.class.getName(), "Cannot write " + f); //$NON-NLS-1$
+            }
+        } catch (Exception e) {
+            Log.e(DeviceFacts.class.getName(), e.getLocalizedMessage(), e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    Log.e(DeviceFacts.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * writeUTF() is limited to 64K, which the GL extensions may exceed
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8"); //$NON-NLS-1$
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+
+        in.readFully(bytes);
+
+        return new String(bytes, "UTF-8"); //$NON-NLS-1$
+    }
+}
@@ -16,14 +16,12 @@
 package org.uguess.android.sysinfo;
 
 import android.app.ActivityManager;
-import android.app.ActivityManager.MemoryInfo;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.IBinder;
-import android.util.Log;
 
 import org.uguess.android.sysinfo.ProcessManager.ProcessInfo;
 
@@ -69,7 +67,7 @@ public final class EndTaskService extends Service {
 
         final ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
 
-        final long oldMem = getAvailableMem(am);
+        final long oldMem = getAvailableMem(this);
 
         for (int i = 0, size = raps.size(); i < size; i++) {
             ProcessInfo rap = raps.get(i);
@@ -107,7 +105,7 @@ public final class EndTaskService extends Service {
                 long gain = 0;
 
                 if (oldMem != -1) {
-                    long newMem = getAvailableMem(am);
+                    long newMem = getAvailableMem(EndTaskService.this);
 
                     if (newMem != -1) {
                         gain = newMem - oldMem;
@@ -127,17 +125,13 @@ public final class EndTaskService extends Service {
         }, 300);
     }
 
-    static long getAvailableMem(ActivityManager am) {
-        long mem = -1;
+    static long getAvailableMem(Context ctx) {
+        MemSnapshot snapshot = MemSnapshot.getShared();
 
-        try {
-            MemoryInfo mi = new MemoryInfo();
-            am.getMemoryInfo(mi);
-            mem = mi.availMem;
-        } catch (Exception e) {
-            Log.d(EndTaskService.class.getName(), e.getLocalizedMessage(), e);
-        }
+        synchronized (snapshot) {
+            snapshot.read();
 
-        return mem;
+            return snapshot.getAvailable(ctx);
+        }
     }
 }
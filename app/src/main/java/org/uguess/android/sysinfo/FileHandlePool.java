@@ -0,0 +1,174 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FileHandlePool <br>
+ * <br>
+ * Keeps the small sysfs/procfs counter files that are polled on every tick open, and re-reads
+ * them with a positional read from offset 0 into a shared buffer. Handles are evicted when the
+ * underlying file goes away or the pool grows beyond its limit.
+ */
+final class FileHandlePool {
+
+    private static final int MAX_HANDLES = 48;
+
+    private static final byte[] buf = new byte[128];
+    private static final ByteBuffer bb = ByteBuffer.wrap(buf);
+
+    private static final LinkedHashMap<String, FileChannel> handles =
+            new LinkedHashMap<String, FileChannel>(16, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FileChannel> eldest) {
+                    if (size() > MAX_HANDLES) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private FileHandlePool() {
+    }
+
+    /**
+     * Reads the leading number of the file. If the file is not accessible, returns -1; if the
+     * content is not a number, returns 0.
+     */
+    static synchronized long readLong(String fname) {
+        int len = read(fname, bb);
+
+        if (len < 0) {
+            return -1;
+        }
+
+        return parseLong(buf, 0, len);
+    }
+
+    /**
+     * Drops the cached handle for the given file, if any.
+     */
+    static synchronized void evict(String fname) {
+        FileChannel fc = handles.remove(fname);
+
+        if (fc != null) {
+            closeQuietly(fc);
+        }
+    }
+
+    static synchronized void clear() {
+        for (FileChannel fc : handles.values()) {
+            closeQuietly(fc);
+        }
+
+        handles.clear();
+    }
+
+    static long parseLong(byte[] data, int offset, int len) {
+        int pos = offset;
+        int end = offset + len;
+
+        while (pos < end && (data[pos] == ' ' || data[pos] == '\t')) {
+            pos++;
+        }
+
+        boolean negative = false;
+
+        if (pos < end && data[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+
+        long value = 0;
+        byte b;
+
+        while (pos < end && (b = data[pos]) >= '0' && b <= '9') {
+            value = value * 10 + (b - '0');
+            pos++;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads the file from offset 0 into the given buffer, which is cleared first.
+     *
+     * @return number of bytes read, or -1 if the file is not accessible. If the buffer is full,
+     * the file may be longer.
+     */
+    static synchronized int read(String fname, ByteBuffer dst) {
+        FileChannel fc = handles.get(fname);
+        boolean reopened = false;
+
+        while (true) {
+            if (fc == null) {
+                try {
+                    fc = new RandomAccessFile(fname, "r").getChannel(); //$NON-NLS-1$
+                } catch (FileNotFoundException e) {
+                    // not existing or not readable
+                    return -1;
+                }
+
+                handles.put(fname, fc);
+                reopened = true;
+            }
+
+            try {
+                dst.clear();
+
+                int len = 0;
+                int n;
+
+                while (dst.hasRemaining() && (n = fc.read(dst, len)) > 0) {
+                    len += n;
+                }
+
+                return len;
+            } catch (IOException e) {
+                // the file has been removed or replaced, e.g. the net interface went down
+                handles.remove(fname);
+                closeQuietly(fc);
+                fc = null;
+
+                if (reopened) {
+                    Log.d(FileHandlePool.class.getName(), "Cannot read " + fname //$NON-NLS-1$
+                            + ": " + e.getLocalizedMessage()); //$NON-NLS-1$
+
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel fc) {
+        try {
+            fc.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
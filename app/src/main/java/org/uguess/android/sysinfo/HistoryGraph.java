@@ -0,0 +1,300 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.util.DisplayMetrics;
+
+/**
+ * HistoryGraph <br>
+ * <br>
+ * Bar history graph with one or more lanes (e.g. one per core) drawn side by side in a single
+ * bitmap. The samples are kept in a ring buffer and the bars are redrawn from it on each update,
+ * so the bitmap never needs to be scrolled onto itself. Frames are drawn only once.
+ */
+final class HistoryGraph {
+
+    private static final int BORDER_DARK = 0xff696969;
+    private static final int BORDER_LIGHT = 0xffe3e3e3;
+
+    /**
+     * space between two lanes in dp
+     */
+    private static final int LANE_GAP = 3;
+
+    /**
+     * value of a slot that is left empty, e.g. a bucket without samples
+     */
+    private static final int GAP = -1;
+
+    Bitmap bmp;
+
+    /**
+     * increased whenever the bitmap content changes
+     */
+    int revision;
+
+    private final int lanes, laneWidth, height, bar, space, border, gap;
+
+    /**
+     * number of bars visible in one lane
+     */
+    private final int count;
+
+    /**
+     * x offset of the newest bar inside a lane
+     */
+    private final int lastPos;
+
+    /**
+     * lane i uses values[i * count .. (i + 1) * count - 1], head is the slot of the newest sample
+     */
+    private final int[] values;
+    private int head = -1, filled;
+
+    private int lastColor;
+    private int repeat;
+
+    private Canvas canv;
+    private Paint pt;
+
+    /**
+     * @param lanes  number of lanes
+     * @param config bitmap config. RGB_565 halves the memory and the size of the bitmap passed to
+     *               remote views, but the gaps between lanes are then black instead of transparent.
+     */
+    HistoryGraph(int laneWidth, int height, int bar, int space, int border, int gap, int lanes,
+                 Config config) {
+        this.lanes = lanes;
+        this.laneWidth = laneWidth;
+        this.height = height;
+        this.bar = bar;
+        this.space = space;
+        this.border = border;
+        this.gap = gap;
+
+        count = Math.max(1, (laneWidth - 2 - 2 * border) / (bar + space));
+        lastPos = (count - 1) * (bar + space) + border + 1;
+
+        values = new int[lanes * count];
+
+        int width = lanes * laneWidth + (lanes - 1) * gap;
+
+        bmp = Bitmap.createBitmap(width, height, config);
+        canv = new Canvas(bmp);
+
+        pt = new Paint();
+        pt.setAntiAlias(false);
+
+        drawFrames();
+    }
+
+    /**
+     * Creates a graph sized for the notification and popup layouts. Single lane graphs have no
+     * transparent area and use the lower depth config.
+     *
+     * @param usableWidth available width in dp
+     */
+    static HistoryGraph create(DisplayMetrics dm, int usableWidth, int lanes) {
+        float scale = dm.density;
+
+        int gap = (int) (LANE_GAP * scale);
+        int laneWidth = (int) ((usableWidth * scale - (lanes - 1) * gap) / lanes);
+        int bar = lanes > 4 ? StatusUpdaterService.GRAPH_BAR_SMALL : StatusUpdaterService.GRAPH_BAR;
+
+        return new HistoryGraph(laneWidth, (int) (StatusUpdaterService.GRAPH_HEIGHT * scale),
+                (int) (bar * scale), (int) (StatusUpdaterService.GRAPH_SPACE * scale),
+                (int) (StatusUpdaterService.GRAPH_BORDER * scale), gap, lanes,
+                lanes > 1 ? Config.ARGB_8888 : Config.RGB_565);
+    }
+
+    int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return number of bars visible in one lane
+     */
+    int getBarCount() {
+        return count;
+    }
+
+    /**
+     * Appends one sample to the first lane, the others get 0.
+     */
+    void update(int data, int color) {
+        append(null, data, color);
+    }
+
+    /**
+     * Appends one sample per lane and redraws the bars.
+     */
+    void update(int[] data, int color) {
+        append(data, 0, color);
+    }
+
+    /**
+     * @param data  values per lane, or null to use value for the first lane
+     * @param value the value of the first lane if data is null
+     */
+    private void append(int[] data, int value, int color) {
+        if (bmp == null || bmp.isRecycled()) {
+            return;
+        }
+
+        int next = (head + 1) % count;
+
+        boolean same = filled > 0 && color == lastColor;
+
+        for (int i = 0; i < lanes; i++) {
+            int v = data == null ? (i == 0 ? value : 0) : (i < data.length ? data[i] : 0);
+
+            v = Math.max(0, Math.min(100, v));
+
+            same = same && values[i * count + head] == v;
+
+            values[i * count + next] = v;
+        }
+
+        head = next;
+
+        if (filled < count) {
+            filled++;
+        }
+
+        repeat = same ? repeat + 1 : 1;
+        lastColor = color;
+
+        if (repeat > count) {
+            // all visible bars have the same value, scrolling changes nothing
+            return;
+        }
+
+        redraw(color);
+    }
+
+    /**
+     * Replaces the whole history, e.g. with aggregated values.
+     *
+     * @param data   values per lane, oldest first, negative values (e.g. {@link MetricsRollup#EMPTY})
+     *               are drawn as gaps
+     * @param length number of values to use from each lane, only the newest ones that fit are
+     *               shown
+     */
+    void set(int[][] data, int length, int color) {
+        if (bmp == null || bmp.isRecycled()) {
+            return;
+        }
+
+        filled = Math.min(length, count);
+        head = filled - 1;
+
+        for (int i = 0; i < lanes; i++) {
+            int[] src = i < data.length ? data[i] : null;
+
+            for (int k = 0; k < filled; k++) {
+                int v = src == null ? GAP : src[length - filled + k];
+
+                values[i * count + k] = v < 0 ? GAP : Math.min(100, v);
+            }
+        }
+
+        repeat = 0;
+        lastColor = color;
+
+        redraw(color);
+    }
+
+    /**
+     * Drops all the values.
+     */
+    void clear() {
+        if (bmp == null || bmp.isRecycled()) {
+            return;
+        }
+
+        head = -1;
+        filled = 0;
+        repeat = 0;
+
+        redraw(lastColor);
+    }
+
+    private void redraw(int color) {
+        revision++;
+
+        pt.setStyle(Style.FILL);
+
+        for (int i = 0; i < lanes; i++) {
+            int left = i * (laneWidth + gap);
+            int base = i * count;
+
+            pt.setColor(android.graphics.Color.BLACK);
+            canv.drawRect(left + 1, 1, left + laneWidth - 1, height - 1, pt);
+
+            pt.setColor(color);
+
+            int slot = head;
+
+            for (int k = 0; k < filled; k++) {
+                int v = values[base + slot];
+
+                if (v != GAP) {
+                    int x = left + lastPos - k * (bar + space);
+                    int top = (100 - v) * (height - border * 2 - 2) / 100 + border + 1;
+
+                    canv.drawRect(x, top, x + bar, height - border - 1, pt);
+                }
+
+                slot = slot == 0 ? count - 1 : slot - 1;
+            }
+        }
+    }
+
+    void release() {
+        if (bmp != null && !bmp.isRecycled()) {
+            bmp.recycle();
+            bmp = null;
+        }
+    }
+
+    private void drawFrames() {
+        bmp.eraseColor(android.graphics.Color.TRANSPARENT);
+
+        for (int i = 0; i < lanes; i++) {
+            int left = i * (laneWidth + gap);
+            int right = left + laneWidth - 1;
+
+            pt.setStyle(Style.FILL);
+            pt.setColor(android.graphics.Color.BLACK);
+            canv.drawRect(left, 0, left + laneWidth, height, pt);
+
+            pt.setStyle(Style.STROKE);
+
+            pt.setColor(BORDER_DARK);
+            canv.drawLine(left, 0, right + 1, 0, pt);
+            canv.drawLine(left, 0, left, height, pt);
+
+            pt.setColor(BORDER_LIGHT);
+            canv.drawLine(right, 0, right, height, pt);
+            canv.drawLine(left, height - 1, right + 1, height - 1, pt);
+        }
+    }
+}
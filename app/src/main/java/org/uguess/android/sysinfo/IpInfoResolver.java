@@ -0,0 +1,646 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.uguess.android.sysinfo.NetStateManager.IpInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IpInfoResolver <br>
+ * <br>
+ * App wide resolver of the location and host name of IP addresses. Lookups run on a small bounded
+ * pool, concurrent requests for the same address share one lookup, and the results are kept in an
+ * LRU cache with expiry. The cache is loaded and saved on its own io thread, so neither waits for
+ * the lookups nor blocks the caller. Host names alone can be prefetched for the addresses on
+ * screen, the location needs the remote query.
+ */
+final class IpInfoResolver {
+
+    /**
+     * Callback
+     */
+    interface Callback {
+
+        /**
+         * Called in the main thread.
+         */
+        void onResolved(IpInfo info);
+    }
+
+    /**
+     * Lookup. The blocking lookups, run on the lookup threads.
+     */
+    interface Lookup {
+
+        /**
+         * @return the location and host name, the location is left null if the query failed
+         */
+        IpInfo getInfo(String ip);
+
+        /**
+         * @return the host name, or null if there is no other name than the address
+         */
+        String getHost(String ip);
+    }
+
+    private static final String FILE_NAME = "ipinfo.cache"; //$NON-NLS-1$
+    private static final String THREAD_NAME = "IpInfoResolver"; //$NON-NLS-1$
+
+    private static final int MAGIC = 0x51534950; // QSIP
+    private static final int VERSION = 1;
+
+    static final int MAX_ENTRIES = 256;
+
+    /**
+     * pending lookups beyond this are dropped, they are asked again while still on screen
+     */
+    private static final int MAX_QUEUED = 64;
+
+    static final long HOST_TTL = 24 * 3600 * 1000L;
+    static final long NO_HOST_TTL = 3600 * 1000L;
+    static final long INFO_TTL = 7 * 24 * 3600 * 1000L;
+
+    private static final int KIND_HOST = 0;
+    private static final int KIND_INFO = 1;
+
+    private static final Lookup NET_LOOKUP = new Lookup() {
+
+        public IpInfo getInfo(String ip) {
+            IpInfo info = new IpInfo();
+            info.ip = ip;
+
+            return NetStateManager.getIpInfoDirect(info);
+        }
+
+        public String getHost(String ip) {
+            return resolveHost(ip);
+        }
+    };
+
+    private static IpInfoResolver instance;
+
+    /**
+     * CacheEntry
+     */
+    static final class CacheEntry {
+
+        /**
+         * never changed once published, updates replace it
+         */
+        IpInfo info;
+
+        /**
+         * wall clock of the reverse lookup and of the location query, 0 if not done
+         */
+        long hostTime, infoTime;
+    }
+
+    /**
+     * Request
+     */
+    private final class Request implements Runnable {
+
+        final String ip;
+        final int kind;
+
+        final ArrayList<Callback> callbacks = new ArrayList<Callback>(1);
+
+        Request(String ip, int kind) {
+            this.ip = ip;
+            this.kind = kind;
+        }
+
+        public void run() {
+            IpInfo info;
+
+            if (kind == KIND_INFO) {
+                info = lookup.getInfo(ip);
+            } else {
+                info = new IpInfo();
+                info.ip = ip;
+                info.host = lookup.getHost(ip);
+            }
+
+            complete(this, info);
+        }
+    }
+
+    private final File dir;
+
+    private final Executor lookups, io, main;
+
+    private final Lookup lookup;
+
+    private final LinkedHashMap<String, CacheEntry> cache =
+            new LinkedHashMap<String, CacheEntry>(64, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(Entry<String, CacheEntry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private final HashMap<String, Request> inFlight = new HashMap<String, Request>();
+
+    private boolean dirty, flushPending;
+
+    private IpInfoResolver(Context ctx) {
+        this(ctx.getApplicationContext().getFilesDir(),
+                createPool(2, new LinkedBlockingQueue<Runnable>(MAX_QUEUED), THREAD_NAME),
+                createPool(1, new LinkedBlockingQueue<Runnable>(), THREAD_NAME + "-io"), //$NON-NLS-1$
+                createMainExecutor(), NET_LOOKUP);
+    }
+
+    /**
+     * @param lookups runs the lookups, may reject them when busy
+     * @param io      loads and saves the cache, must run the tasks in order
+     * @param main    delivers the results
+     */
+    IpInfoResolver(File dir, Executor lookups, Executor io, Executor main, Lookup lookup) {
+        this.dir = dir;
+        this.lookups = lookups;
+        this.io = io;
+        this.main = main;
+        this.lookup = lookup;
+
+        io.execute(new Runnable() {
+
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    private static ThreadPoolExecutor createPool(int threads, BlockingQueue<Runnable> queue,
+                                                 final String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                queue, new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        if (Util.SDK_VER >= 9) {
+            pool.allowCoreThreadTimeOut(true);
+        }
+
+        return pool;
+    }
+
+    private static Executor createMainExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+
+        return new Executor() {
+
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    static synchronized IpInfoResolver getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new IpInfoResolver(ctx);
+        }
+        return instance;
+    }
+
+    /**
+     * @param full whether the location is needed, otherwise the host name is enough
+     * @return the cached info that has not expired, or null, also while the cache is loading
+     */
+    synchronized IpInfo getCached(String ip, boolean full) {
+        CacheEntry ent = cache.get(ip);
+
+        if (ent == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (full ? isValid(ent.infoTime, now, INFO_TTL) : isHostValid(ent, now)) {
+            return ent.info;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the cached host name, or null if not known yet
+     */
+    synchronized String getCachedHost(String ip) {
+        IpInfo info = getCached(ip, false);
+
+        return info == null ? null : info.host;
+    }
+
+    /**
+     * Looks up the location and host name of the address.
+     *
+     * @param ip the address, or null for the own public address, which is not cached
+     */
+    void query(String ip, Callback callback) {
+        if (ip == null) {
+            Request req = new Request(null, KIND_INFO);
+            req.callbacks.add(callback);
+
+            execute(req);
+            return;
+        }
+
+        IpInfo info = getCached(ip, true);
+
+        if (info != null) {
+            deliver(callback, info);
+            return;
+        }
+
+        submit(ip, KIND_INFO, callback);
+    }
+
+    /**
+     * Looks up the host name of the address if not cached.
+     *
+     * @param callback called when the name is resolved, can be null
+     */
+    void prefetchHost(String ip, Callback callback) {
+        if (getCached(ip, false) == null) {
+            submit(ip, KIND_HOST, callback);
+        }
+    }
+
+    /**
+     * Saves the cache if changed, in the background. The io thread is not shared with the lookups,
+     * so a full lookup queue cannot drop the save.
+     */
+    void flush() {
+        synchronized (this) {
+            if (!dirty || flushPending) {
+                return;
+            }
+
+            flushPending = true;
+        }
+
+        io.execute(new Runnable() {
+
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    private void submit(String ip, int kind, Callback callback) {
+        Request req;
+
+        synchronized (this) {
+            String key = kind + ip;
+
+            req = inFlight.get(key);
+
+            if (req != null) {
+                if (callback != null) {
+                    req.callbacks.add(callback);
+                }
+
+                return;
+            }
+
+            req = new Request(ip, kind);
+
+            if (callback != null) {
+                req.callbacks.add(callback);
+            }
+
+            inFlight.put(key, req);
+        }
+
+        execute(req);
+    }
+
+    private void execute(Request req) {
+        try {
+            lookups.execute(req);
+        } catch (RejectedExecutionException e) {
+            ArrayList<Callback> callbacks;
+
+            synchronized (this) {
+                inFlight.remove(req.kind + req.ip);
+
+                callbacks = new ArrayList<Callback>(req.callbacks);
+            }
+
+            // a dropped prefetch is asked again while on screen, but a query must end
+            if (req.kind == KIND_INFO) {
+                IpInfo info = new IpInfo();
+                info.ip = req.ip;
+
+                for (int i = 0, size = callbacks.size(); i < size; i++) {
+                    deliver(callbacks.get(i), info);
+                }
+            }
+        }
+    }
+
+    private void complete(Request req, IpInfo info) {
+        ArrayList<Callback> callbacks;
+
+        synchronized (this) {
+            if (req.ip != null) {
+                inFlight.remove(req.kind + req.ip);
+
+                CacheEntry ent = cache.get(req.ip);
+
+                if (ent == null) {
+                    ent = new CacheEntry();
+                    cache.put(req.ip, ent);
+                }
+
+                long now = System.currentTimeMillis();
+
+                if (req.kind == KIND_INFO) {
+                    ent.info = info;
+
+                    // failed queries are not kept
+                    ent.infoTime = info.country != null || info.latitude != null ? now : 0;
+                } else {
+                    IpInfo merged = new IpInfo();
+
+                    if (ent.info != null) {
+                        copy(ent.info, merged);
+                    }
+
+                    merged.ip = req.ip;
+                    merged.host = info.host;
+
+                    ent.info = merged;
+                    info = merged;
+                }
+
+                ent.hostTime = now;
+
+                dirty = true;
+            }
+
+            callbacks = new ArrayList<Callback>(req.callbacks);
+        }
+
+        for (int i = 0, size = callbacks.size(); i < size; i++) {
+            deliver(callbacks.get(i), info);
+        }
+    }
+
+    private void deliver(final Callback callback, final IpInfo info) {
+        main.execute(new Runnable() {
+
+            public void run() {
+                callback.onResolved(info);
+            }
+        });
+    }
+
+    static boolean isValid(long time, long now, long ttl) {
+        return time > 0 && now - time < ttl && now >= time;
+    }
+
+    static boolean isHostValid(CacheEntry ent, long now) {
+        return isValid(ent.hostTime, now, ent.info != null && ent.info.host != null ? HOST_TTL
+                : NO_HOST_TTL);
+    }
+
+    private static void copy(IpInfo src, IpInfo dst) {
+        dst.ip = src.ip;
+        dst.host = src.host;
+        dst.country = src.country;
+        dst.region = src.region;
+        dst.city = src.city;
+        dst.latitude = src.latitude;
+        dst.longitude = src.longitude;
+    }
+
+    /**
+     * @return the host name, or null if there is no other name than the address
+     */
+    static String resolveHost(String ip) {
+        try {
+            String host = InetAddress.getByName(ip).getHostName();
+
+            if (!ip.equals(host)) {
+                return host;
+            }
+        } catch (Exception e) {
+            Log.d(IpInfoResolver.class.getName(), "Cannot resolve " + ip //$NON-NLS-1$
+                    + ": " + e.getLocalizedMessage()); //$NON-NLS-1$
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the saved entries without holding the lock, the entries looked up meanwhile are kept
+     * as the most recent.
+     */
+    private void load() {
+        File f = new File(dir, FILE_NAME);
+
+        if (!f.isFile()) {
+            return;
+        }
+
+        LinkedHashMap<String, CacheEntry> saved = new LinkedHashMap<String, CacheEntry>();
+
+        FileInputStream fis = null;
+
+        try {
+            fis = new FileInputStream(f);
+
+            byte[] data = new byte[(int) f.length()];
+
+            int len = 0;
+            int n;
+
+            while (len < data.length && (n = fis.read(data, len, data.length - len)) > 0) {
+                len += n;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, len));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+
+            // stored least recent first, which keeps the lru order
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                CacheEntry ent = new CacheEntry();
+
+                ent.hostTime = in.readLong();
+                ent.infoTime = in.readLong();
+
+                IpInfo info = new IpInfo();
+                info.ip = readString(in);
+                info.host = readString(in);
+                info.country = readString(in);
+                info.region = readString(in);
+                info.city = readString(in);
+                info.latitude = readString(in);
+                info.longitude = readString(in);
+
+                ent.info = info;
+
+                if (info.ip != null && (isHostValid(ent, now)
+                        || isValid(ent.infoTime, now, INFO_TTL))) {
+                    saved.put(info.ip, ent);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(IpInfoResolver.class.getName(), e.getLocalizedMessage(), e);
+
+            saved.clear();
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(IpInfoResolver.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        synchronized (this) {
+            // copying keeps the lru order of the access ordered cache
+            LinkedHashMap<String, CacheEntry> fresh = new LinkedHashMap<String, CacheEntry>(cache);
+
+            cache.clear();
+            cache.putAll(saved);
+            cache.putAll(fresh);
+        }
+    }
+
+    private void save() {
+        byte[] data;
+
+        synchronized (this) {
+            flushPending = false;
+
+            if (!dirty) {
+                return;
+            }
+
+            dirty = false;
+
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+                DataOutputStream out = new DataOutputStream(bos);
+
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(cache.size());
+
+                for (Map.Entry<String, CacheEntry> entry : cache.entrySet()) {
+                    CacheEntry ent = entry.getValue();
+                    IpInfo info = ent.info;
+
+                    out.writeLong(ent.hostTime);
+                    out.writeLong(ent.infoTime);
+
+                    writeString(out, entry.getKey());
+                    writeString(out, info.host);
+                    writeString(out, info.country);
+                    writeString(out, info.region);
+                    writeString(out, info.city);
+                    writeString(out, info.latitude);
+                    writeString(out, info.longitude);
+                }
+
+                out.flush();
+
+                data = bos.toByteArray();
+            } catch (IOException e) {
+                Log.e(IpInfoResolver.class.getName(), e.getLocalizedMessage(), e);
+                return;
+            }
+        }
+
+        File f = new File(dir, FILE_NAME);
+        File tmp = new File(dir, FILE_NAME + ".tmp"); //$NON-NLS-1$
+
+        FileOutputStream fos = null;
+
+        try {
+            fos = new FileOutputStream(tmp);
+            fos.write(data);
+            fos.close();
+            fos = null;
+
+            if (!tmp.renameTo(f)) {
+                Log.e(IpInfoResolver.class.getName(), "Cannot write " + f); //$NON-NLS-1$
+            }
+        } catch (Exception e) {
+            Log.e(IpInfoResolver.class.getName(), e.getLocalizedMessage(), e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    Log.e(IpInfoResolver.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -26,11 +26,7 @@ import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
 
@@ -104,62 +100,36 @@ public final class MemInfoActivity extends PopActivity {
     private static ArrayList<String[]> collectMemInfo(Context ctx) {
         ArrayList<String[]> data = new ArrayList<String[]>();
 
-        BufferedReader reader = null;
+        MemSnapshot snapshot = MemSnapshot.getShared();
 
         try {
-            reader =
-                    new BufferedReader(new InputStreamReader(new FileInputStream(new File("/proc/meminfo"))), //$NON-NLS-1$
-                            1024);
-
-            String line;
-            String totalMsg = null;
-            String freeMsg = null;
-            String buffersMsg = null;
-            String cachedMsg = null;
-            String swapTotalMsg = null;
-            String swapFreeMsg = null;
-
-            while ((line = reader.readLine()) != null) {
-                if (totalMsg == null && line.startsWith("MemTotal")) //$NON-NLS-1$
-                {
-                    totalMsg = line;
-                } else if (freeMsg == null && line.startsWith("MemFree")) //$NON-NLS-1$
-                {
-                    freeMsg = line;
-                } else if (buffersMsg == null && line.startsWith("Buffers")) //$NON-NLS-1$
-                {
-                    buffersMsg = line;
-                } else if (cachedMsg == null && line.startsWith("Cached")) //$NON-NLS-1$
-                {
-                    cachedMsg = line;
-                } else if (swapTotalMsg == null && line.startsWith("SwapTotal")) //$NON-NLS-1$
-                {
-                    swapTotalMsg = line;
-                } else if (swapFreeMsg == null && line.startsWith("SwapFree")) //$NON-NLS-1$
-                {
-                    swapFreeMsg = line;
-                }
+            String rawText = null;
+
+            long total, free, available, buffers, cached, swapTotal, swapFree;
+
+            synchronized (snapshot) {
+                snapshot.read();
 
-                if (totalMsg != null && freeMsg != null && buffersMsg != null && cachedMsg != null
-                        && swapTotalMsg != null && swapFreeMsg != null) {
-                    break;
+                total = snapshot.get(MemSnapshot.MEM_TOTAL);
+                free = snapshot.get(MemSnapshot.MEM_FREE);
+                available = snapshot.get(MemSnapshot.MEM_AVAILABLE);
+                buffers = snapshot.get(MemSnapshot.BUFFERS);
+                cached = snapshot.get(MemSnapshot.CACHED);
+                swapTotal = snapshot.get(MemSnapshot.SWAP_TOTAL);
+                swapFree = snapshot.get(MemSnapshot.SWAP_FREE);
+
+                if (total != -1) {
+                    rawText = snapshot.getRawText();
                 }
             }
 
-            long total = Util.extractMemCount(totalMsg);
-            long free = Util.extractMemCount(freeMsg);
-            long buffers = Util.extractMemCount(buffersMsg);
-            long cached = Util.extractMemCount(cachedMsg);
-            long swapTotal = Util.extractMemCount(swapTotalMsg);
-            long swapFree = Util.extractMemCount(swapFreeMsg);
-
             ActivityManager am = (ActivityManager) ctx.getSystemService(Context.ACTIVITY_SERVICE);
             MemoryInfo mi = new MemoryInfo();
             am.getMemoryInfo(mi);
 
             data.add(new String[]{ResUtil.getString(ctx, R.string.total), formatSize(total, ctx)});
             data.add(new String[]{ResUtil.getString(ctx, R.string.free) + ":", //$NON-NLS-1$
-                    formatSize(mi.availMem, ctx)});
+                    formatSize(available != -1 ? available : mi.availMem, ctx)});
             data.add(new String[]{ResUtil.getString(ctx, R.string.idle), formatSize(free, ctx)});
             data.add(new String[]{ResUtil.getString(ctx, R.string.threshold),
                     formatSize(mi.threshold, ctx)});
@@ -241,26 +211,12 @@ public final class MemInfoActivity extends PopActivity {
                 }
             }
 
-            File rawMem = new File("/proc/meminfo"); //$NON-NLS-1$
-
-            if (rawMem.exists()) {
-                StringBuffer sb = new StringBuffer();
-
-                Util.readRawText(sb, new FileInputStream(rawMem), 512);
-
-                data.add(new String[]{ResUtil.getString(ctx, R.string.more_info), sb.toString(), "raw" //$NON-NLS-1$
+            if (rawText != null) {
+                data.add(new String[]{ResUtil.getString(ctx, R.string.more_info), rawText, "raw" //$NON-NLS-1$
                 });
             }
         } catch (Exception e) {
             Log.e(MemInfoActivity.class.getName(), e.getLocalizedMessage(), e);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException ie) {
-                    Log.e(MemInfoActivity.class.getName(), ie.getLocalizedMessage(), ie);
-                }
-            }
         }
 
         return data;
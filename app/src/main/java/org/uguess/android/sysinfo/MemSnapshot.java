@@ -0,0 +1,282 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * MemSnapshot <br>
+ * <br>
+ * Parses all the interesting /proc/meminfo fields in one pass into a primitive array indexed by
+ * the field constants below. Values are in bytes, or -1 if the kernel does not report the field.
+ * The file handle and the read buffer are reused across reads.
+ */
+final class MemSnapshot implements Constants {
+
+    static final int MEM_TOTAL = 0;
+    static final int MEM_FREE = 1;
+    static final int MEM_AVAILABLE = 2;
+    static final int BUFFERS = 3;
+    static final int CACHED = 4;
+    static final int SWAP_CACHED = 5;
+    static final int ACTIVE = 6;
+    static final int INACTIVE = 7;
+    static final int SWAP_TOTAL = 8;
+    static final int SWAP_FREE = 9;
+    static final int DIRTY = 10;
+    static final int ANON_PAGES = 11;
+    static final int MAPPED = 12;
+    static final int SHMEM = 13;
+    static final int SLAB = 14;
+    static final int S_RECLAIMABLE = 15;
+    static final int KERNEL_STACK = 16;
+    static final int PAGE_TABLES = 17;
+    static final int VMALLOC_USED = 18;
+
+    static final int FIELD_COUNT = 19;
+
+    private static final byte[][] FIELD_KEYS = new byte[][]{toBytes("MemTotal"), //$NON-NLS-1$
+            toBytes("MemFree"), //$NON-NLS-1$
+            toBytes("MemAvailable"), //$NON-NLS-1$
+            toBytes("Buffers"), //$NON-NLS-1$
+            toBytes("Cached"), //$NON-NLS-1$
+            toBytes("SwapCached"), //$NON-NLS-1$
+            toBytes("Active"), //$NON-NLS-1$
+            toBytes("Inactive"), //$NON-NLS-1$
+            toBytes("SwapTotal"), //$NON-NLS-1$
+            toBytes("SwapFree"), //$NON-NLS-1$
+            toBytes("Dirty"), //$NON-NLS-1$
+            toBytes("AnonPages"), //$NON-NLS-1$
+            toBytes("Mapped"), //$NON-NLS-1$
+            toBytes("Shmem"), //$NON-NLS-1$
+            toBytes("Slab"), //$NON-NLS-1$
+            toBytes("SReclaimable"), //$NON-NLS-1$
+            toBytes("KernelStack"), //$NON-NLS-1$
+            toBytes("PageTables"), //$NON-NLS-1$
+            toBytes("VmallocUsed"), //$NON-NLS-1$
+    };
+
+    private static MemSnapshot shared;
+
+    private final long[] values = new long[FIELD_COUNT];
+
+    private byte[] buf = new byte[4096];
+    private int length;
+
+    private RandomAccessFile raf;
+
+    private ActivityManager.MemoryInfo memInfo;
+
+    /**
+     * Returns the process wide instance, callers must synchronize on it across read() and
+     * get() calls.
+     */
+    static synchronized MemSnapshot getShared() {
+        if (shared == null) {
+            shared = new MemSnapshot();
+        }
+        return shared;
+    }
+
+    /**
+     * @return false if /proc/meminfo cannot be read, in which case all fields are -1
+     */
+    synchronized boolean read() {
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            values[i] = -1;
+        }
+
+        length = 0;
+
+        try {
+            if (raf == null) {
+                raf = new RandomAccessFile(F_MEM_INFO, "r"); //$NON-NLS-1$
+            }
+
+            raf.seek(0);
+
+            int n;
+
+            while ((n = raf.read(buf, length, buf.length - length)) > 0) {
+                length += n;
+
+                if (length == buf.length) {
+                    byte[] nbuf = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, nbuf, 0, length);
+                    buf = nbuf;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(MemSnapshot.class.getName(), e.getLocalizedMessage(), e);
+
+            close();
+            return false;
+        }
+
+        parse();
+
+        return true;
+    }
+
+    synchronized long get(int field) {
+        return values[field];
+    }
+
+    synchronized boolean has(int field) {
+        return values[field] != -1;
+    }
+
+    /**
+     * @return MemAvailable if the kernel provides it, otherwise falls back to the available
+     * memory reported by the activity manager.
+     */
+    synchronized long getAvailable(Context ctx) {
+        if (values[MEM_AVAILABLE] != -1) {
+            return values[MEM_AVAILABLE];
+        }
+
+        try {
+            ActivityManager am = (ActivityManager) ctx.getSystemService(Context.ACTIVITY_SERVICE);
+
+            if (memInfo == null) {
+                memInfo = new ActivityManager.MemoryInfo();
+            }
+
+            am.getMemoryInfo(memInfo);
+
+            return memInfo.availMem;
+        } catch (Exception e) {
+            Log.e(MemSnapshot.class.getName(), e.getLocalizedMessage(), e);
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the raw content of the last read
+     */
+    synchronized String getRawText() {
+        return new String(buf, 0, length);
+    }
+
+    synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                Log.e(MemSnapshot.class.getName(), e.getLocalizedMessage(), e);
+            }
+            raf = null;
+        }
+    }
+
+    private void parse() {
+        int pos = 0;
+        int len = length;
+
+        while (pos < len) {
+            int keyStart = pos;
+
+            while (pos < len && buf[pos] != ':' && buf[pos] != '\n') {
+                pos++;
+            }
+
+            if (pos < len && buf[pos] == ':') {
+                int field = findField(keyStart, pos - keyStart);
+
+                pos++;
+
+                if (field != -1) {
+                    while (pos < len && buf[pos] == ' ') {
+                        pos++;
+                    }
+
+                    long value = 0;
+                    byte b;
+
+                    while (pos < len && (b = buf[pos]) >= '0' && b <= '9') {
+                        value = value * 10 + (b - '0');
+                        pos++;
+                    }
+
+                    while (pos < len && buf[pos] == ' ') {
+                        pos++;
+                    }
+
+                    if (pos < len) {
+                        switch (buf[pos]) {
+                            case 'k':
+                            case 'K':
+                                value *= 1024;
+                                break;
+                            case 'm':
+                            case 'M':
+                                value *= 1024 * 1024;
+                                break;
+                            case 'g':
+                            case 'G':
+                                value *= 1024 * 1024 * 1024;
+                                break;
+                        }
+                    }
+
+                    values[field] = value;
+                }
+            }
+
+            while (pos < len && buf[pos] != '\n') {
+                pos++;
+            }
+
+            pos++;
+        }
+    }
+
+    private int findField(int offset, int len) {
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            byte[] key = FIELD_KEYS[i];
+
+            if (key.length == len && values[i] == -1) {
+                int j = 0;
+
+                while (j < len && key[j] == buf[offset + j]) {
+                    j++;
+                }
+
+                if (j == len) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private static byte[] toBytes(String key) {
+        byte[] bs = new byte[key.length()];
+
+        for (int i = 0; i < bs.length; i++) {
+            bs[i] = (byte) key.charAt(i);
+        }
+
+        return bs;
+    }
+}
@@ -0,0 +1,665 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * MetricsHistory <br>
+ * <br>
+ * Persistent metrics history kept in a memory mapped ring file. Each record has a fixed width and
+ * holds the CPU, per core and memory usage plus the network bytes transferred since the previous
+ * record. Time is stored as an offset to the epoch of the file and counters as deltas, so a
+ * record fits in 40 bytes and one day of 1s samples takes about 3.4MB.
+ * <p>
+ * The file starts with two header slots which are written alternately, each carrying a sequence
+ * number and a CRC. A record is written before the header that makes it visible, so a crash
+ * leaves at worst the last record unreferenced.
+ */
+final class MetricsHistory {
+
+    static final int MAX_CORES = 16;
+
+    /**
+     * 24 hours at the highest sampling rate of 1s
+     */
+    static final int CAPACITY = 86400;
+
+    /**
+     * column names of the exported records
+     */
+    static final String[] COLUMNS = {"time", "cpu", "mem", "mem_used", "rx", "tx", "cores"}; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+
+    private static final String FILE_NAME = "metrics.hist"; //$NON-NLS-1$
+
+    private static final int MAGIC = 0x51534d48; // QSMH
+    private static final int VERSION = 1;
+
+    /**
+     * time unit of the record timestamps in milliseconds
+     */
+    private static final int TIME_UNIT = 100;
+
+    private static final int HEADER_SLOT_SIZE = 64;
+    private static final int HEADER_SIZE = HEADER_SLOT_SIZE * 2;
+
+    // header slot layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SEQUENCE = 8;
+    private static final int H_EPOCH = 16;
+    private static final int H_CAPACITY = 24;
+    private static final int H_RECORD_SIZE = 28;
+    private static final int H_HEAD = 32;
+    private static final int H_COUNT = 36;
+    private static final int H_LAST_TIME = 40;
+    private static final int H_CRC = 44;
+
+    // record layout
+    private static final int R_TIME = 0;
+    private static final int R_METRICS = 4;
+    private static final int R_CPU = 5;
+    private static final int R_MEM = 6;
+    private static final int R_CORES = 7;
+    private static final int R_CORE_LOAD = 8;
+    private static final int R_MEM_USED = 24;
+    private static final int R_RX = 28;
+    private static final int R_TX = 32;
+
+    private static final int RECORD_SIZE = 40;
+
+    private static MetricsHistory instance;
+
+    private final File file;
+
+    private MappedByteBuffer buffer;
+
+    private final CRC32 crc = new CRC32();
+
+    private long sequence, epoch;
+
+    /**
+     * slot of the next record, and number of valid records
+     */
+    private int head, count;
+
+    private int lastTime;
+
+    private boolean broken;
+
+    /**
+     * Cursor. Reads the records straight from the mapped file; records near the oldest end may be
+     * overwritten by new ones while iterating.
+     */
+    static final class Cursor {
+
+        private final ByteBuffer buf;
+        private final long epoch;
+        private final int start, size;
+
+        private int pos = -1, offset;
+
+        Cursor(ByteBuffer buf, long epoch, int start, int size) {
+            this.buf = buf;
+            this.epoch = epoch;
+            this.start = start;
+            this.size = size;
+        }
+
+        int getCount() {
+            return size;
+        }
+
+        boolean moveToNext() {
+            if (pos + 1 >= size) {
+                return false;
+            }
+
+            pos++;
+            offset = HEADER_SIZE + ((start + pos) % CAPACITY) * RECORD_SIZE;
+
+            return true;
+        }
+
+        /**
+         * @return the wall clock time of the record in milliseconds
+         */
+        long getTime() {
+            return epoch + (long) buf.getInt(offset + R_TIME) * TIME_UNIT;
+        }
+
+        /**
+         * @return combination of the SamplerHub.METRIC_* constants present in the record
+         */
+        int getMetrics() {
+            return buf.get(offset + R_METRICS) & 0xff;
+        }
+
+        int getCpu() {
+            return buf.get(offset + R_CPU);
+        }
+
+        int getMem() {
+            return buf.get(offset + R_MEM);
+        }
+
+        int getCoreCount() {
+            return buf.get(offset + R_CORES);
+        }
+
+        int getCore(int idx) {
+            return buf.get(offset + R_CORE_LOAD + idx);
+        }
+
+        /**
+         * @return used memory in bytes
+         */
+        long getMemUsed() {
+            return (buf.getInt(offset + R_MEM_USED) & 0xffffffffL) * 1024;
+        }
+
+        /**
+         * @return bytes received since the previous record
+         */
+        long getRx() {
+            return buf.getInt(offset + R_RX) & 0xffffffffL;
+        }
+
+        /**
+         * @return bytes sent since the previous record
+         */
+        long getTx() {
+            return buf.getInt(offset + R_TX) & 0xffffffffL;
+        }
+    }
+
+    /**
+     * Recorder. Turns the cumulative counters of consecutive samples into records. Meant to be
+     * called on the sampler thread, with a new recorder for each subscription.
+     */
+    static final class Recorder implements SamplerHub.Listener {
+
+        private final MetricsHistory history;
+
+        private SamplerHub.Sample last;
+
+        private int[] cores;
+
+        Recorder(Context ctx) {
+            history = getInstance(ctx);
+        }
+
+        public void onSample(SamplerHub.Sample sample) {
+            SamplerHub.Sample prev = last;
+            last = sample;
+
+            if (prev == null) {
+                // nothing to compute the deltas against
+                return;
+            }
+
+            int metrics = 0;
+
+            int cpu = CpuLoadReader.getLoadPercent(sample.cpuLoad, prev.cpuLoad);
+
+            if (cpu >= 0) {
+                metrics |= SamplerHub.METRIC_CPU;
+            }
+
+            int[] coreValues = null;
+
+            if (sample.coreLoads != null && prev.coreLoads != null
+                    && sample.coreLoads.length == prev.coreLoads.length) {
+                int pc = sample.coreLoads.length;
+
+                if (cores == null || cores.length != pc) {
+                    cores = new int[pc];
+                }
+
+                for (int i = 0; i < pc; i++) {
+                    int percent = CpuLoadReader.getLoadPercent(sample.coreLoads[i], prev.coreLoads[i]);
+                    cores[i] = percent < 0 ? 0 : percent;
+                }
+
+                coreValues = cores;
+                metrics |= SamplerHub.METRIC_CPU_CORES;
+            }
+
+            int mem = sample.getMemPercent();
+
+            if (mem >= 0) {
+                metrics |= SamplerHub.METRIC_MEM;
+            }
+
+            long rx = 0, tx = 0;
+
+            if (sample.has(SamplerHub.METRIC_NET)) {
+                metrics |= SamplerHub.METRIC_NET;
+
+                rx = delta(sample.wifiRx, prev.wifiRx) + delta(sample.cellRx, prev.cellRx);
+                tx = delta(sample.wifiTx, prev.wifiTx) + delta(sample.cellTx, prev.cellTx);
+            }
+
+            // sample time is elapsed realtime, the records use wall clock
+            long time = System.currentTimeMillis()
+                    - (SystemClock.elapsedRealtime() - sample.time);
+
+            history.append(time, metrics, Math.max(cpu, 0), coreValues, Math.max(mem, 0),
+                    sample.getMemUsed(), rx, tx);
+        }
+
+        private static long delta(long value, long lastValue) {
+            // counters are reset when the interface goes down
+            return (lastValue > 0 && value > lastValue) ? value - lastValue : 0;
+        }
+    }
+
+    private MetricsHistory(Context ctx) {
+        file = new File(ctx.getFilesDir(), FILE_NAME);
+    }
+
+    static synchronized MetricsHistory getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new MetricsHistory(ctx.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Appends one record.
+     *
+     * @param time    wall clock time in milliseconds
+     * @param metrics the SamplerHub.METRIC_* constants that have valid values
+     * @param cpu     CPU usage percentage
+     * @param cores   per core usage percentages, may be null
+     * @param mem     memory usage percentage
+     * @param memUsed used memory in bytes
+     * @param rx      bytes received since the previous record
+     * @param tx      bytes sent since the previous record
+     */
+    synchronized void append(long time, int metrics, int cpu, int[] cores, int mem, long memUsed,
+                             long rx, long tx) {
+        if (!ensureOpen()) {
+            return;
+        }
+
+        long offset = (time - epoch) / TIME_UNIT;
+
+        if (offset > Integer.MAX_VALUE) {
+            // the file is older than the time range of the records
+            reset(time);
+            offset = 0;
+        }
+
+        // keep the times non-decreasing for the range queries, even if the clock goes back
+        int t = (int) Math.max(offset, lastTime);
+
+        int pos = HEADER_SIZE + head * RECORD_SIZE;
+
+        buffer.putInt(pos + R_TIME, t);
+        buffer.put(pos + R_METRICS, (byte) metrics);
+        buffer.put(pos + R_CPU, (byte) cpu);
+        buffer.put(pos + R_MEM, (byte) mem);
+
+        int coreCount = cores == null ? 0 : Math.min(cores.length, MAX_CORES);
+
+        buffer.put(pos + R_CORES, (byte) coreCount);
+
+        for (int i = 0; i < MAX_CORES; i++) {
+            buffer.put(pos + R_CORE_LOAD + i, (byte) (i < coreCount ? cores[i] : 0));
+        }
+
+        buffer.putInt(pos + R_MEM_USED, (int) Math.min(memUsed / 1024, 0xffffffffL));
+        buffer.putInt(pos + R_RX, (int) Math.max(0, Math.min(rx, 0xffffffffL)));
+        buffer.putInt(pos + R_TX, (int) Math.max(0, Math.min(tx, 0xffffffffL)));
+
+        head = (head + 1) % CAPACITY;
+
+        if (count < CAPACITY) {
+            count++;
+        }
+
+        lastTime = t;
+
+        writeHeader();
+    }
+
+    /**
+     * @param from inclusive start time in milliseconds
+     * @param to   exclusive end time in milliseconds
+     * @return cursor over the records in the range, oldest first, or null if the history is not
+     * available
+     */
+    synchronized Cursor query(long from, long to) {
+        if (!ensureOpen()) {
+            return null;
+        }
+
+        int first = lowerBound(from);
+        int last = lowerBound(to);
+
+        return new Cursor(buffer.duplicate(), epoch, (head - count + CAPACITY + first) % CAPACITY,
+                Math.max(0, last - first));
+    }
+
+    /**
+     * @return time of the newest record in milliseconds, or -1 if empty
+     */
+    synchronized long getLastTime() {
+        if (!ensureOpen() || count == 0) {
+            return -1;
+        }
+        return epoch + (long) lastTime * TIME_UNIT;
+    }
+
+    /**
+     * Writes the records in the range as CSV, for sending with the system report.
+     */
+    void writeCsv(Writer writer, long from, long to) throws IOException {
+        Cursor cursor = query(from, to);
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(COLUMNS[i]);
+        }
+
+        sb.append('\n');
+
+        writer.write(sb.toString());
+
+        if (cursor == null) {
+            return;
+        }
+
+        while (cursor.moveToNext()) {
+            sb.setLength(0);
+
+            sb.append(cursor.getTime()).append(',').append(cursor.getCpu()).append(',')
+                    .append(cursor.getMem()).append(',').append(cursor.getMemUsed()).append(',')
+                    .append(cursor.getRx()).append(',').append(cursor.getTx()).append(',');
+
+            for (int i = 0, cores = cursor.getCoreCount(); i < cores; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(cursor.getCore(i));
+            }
+
+            sb.append('\n');
+
+            writer.write(sb.toString());
+        }
+    }
+
+    /**
+     * Averages one MetricsRollup series over consecutive buckets, so the views can show what was
+     * recorded before the service or the device restarted. The network series are averaged as
+     * rates in bytes per second, like the rollup keeps them.
+     *
+     * @param series one of the MetricsRollup.SERIES_* constants
+     * @param from   wall clock start of the first bucket in milliseconds
+     * @param width  bucket width in milliseconds
+     * @param out    receives the averages, MetricsRollup.EMPTY for buckets without records
+     * @param length number of buckets
+     */
+    void readAverages(int series, long from, long width, int[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            out[i] = MetricsRollup.EMPTY;
+        }
+
+        // the first record only gives the time the rates of the next one are computed from
+        boolean rate = series == MetricsRollup.SERIES_RX || series == MetricsRollup.SERIES_TX;
+
+        Cursor cursor = query(rate ? from - width : from, from + width * length);
+
+        if (cursor == null) {
+            return;
+        }
+
+        int metric = series == MetricsRollup.SERIES_CPU ? SamplerHub.METRIC_CPU
+                : (series == MetricsRollup.SERIES_MEM ? SamplerHub.METRIC_MEM
+                : (rate ? SamplerHub.METRIC_NET : SamplerHub.METRIC_CPU_CORES));
+        int core = series - MetricsRollup.SERIES_CORE;
+
+        int bucket = -1;
+        long sum = 0, weight = 0, lastTime = -1;
+
+        while (cursor.moveToNext()) {
+            long time = cursor.getTime();
+            long prevTime = lastTime;
+
+            lastTime = time;
+
+            if ((cursor.getMetrics() & metric) == 0 || time < from) {
+                continue;
+            }
+
+            long value, w = 1;
+
+            if (rate) {
+                if (prevTime < 0 || time <= prevTime || time - prevTime > width) {
+                    // no previous record close enough to tell the duration
+                    continue;
+                }
+
+                value = series == MetricsRollup.SERIES_RX ? cursor.getRx() : cursor.getTx();
+                w = time - prevTime;
+            } else if (metric == SamplerHub.METRIC_CPU_CORES) {
+                if (core >= cursor.getCoreCount()) {
+                    continue;
+                }
+
+                value = cursor.getCore(core);
+            } else {
+                value = metric == SamplerHub.METRIC_CPU ? cursor.getCpu() : cursor.getMem();
+            }
+
+            int idx = (int) ((time - from) / width);
+
+            if (idx != bucket) {
+                if (bucket >= 0 && weight > 0) {
+                    out[bucket] = average(sum, weight, rate);
+                }
+
+                bucket = idx;
+                sum = 0;
+                weight = 0;
+            }
+
+            sum += value;
+            weight += w;
+        }
+
+        if (bucket >= 0 && bucket < length && weight > 0) {
+            out[bucket] = average(sum, weight, rate);
+        }
+    }
+
+    private static int average(long sum, long weight, boolean rate) {
+        return (int) Math.min(rate ? sum * 1000 / weight : sum / weight, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Flushes the mapped file to disk and releases it.
+     */
+    synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+    }
+
+    /**
+     * @return logical index (0 is the oldest) of the first record not older than the given time
+     */
+    private int lowerBound(long time) {
+        long offset = (time - epoch + TIME_UNIT - 1) / TIME_UNIT;
+
+        int low = 0, high = count;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            int pos = HEADER_SIZE + ((head - count + CAPACITY + mid) % CAPACITY) * RECORD_SIZE;
+
+            if (buffer.getInt(pos + R_TIME) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private boolean ensureOpen() {
+        if (buffer != null) {
+            return true;
+        }
+
+        if (broken) {
+            return false;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+
+            long size = HEADER_SIZE + (long) CAPACITY * RECORD_SIZE;
+
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            if (!readHeader()) {
+                reset(System.currentTimeMillis());
+            }
+
+            return true;
+        } catch (IOException e) {
+            Log.e(MetricsHistory.class.getName(), e.getLocalizedMessage(), e);
+
+            // do not retry on every sample
+            broken = true;
+            buffer = null;
+        } finally {
+            if (raf != null) {
+                try {
+                    // the mapping stays valid after the file is closed
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(MetricsHistory.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Loads the newest valid header slot.
+     */
+    private boolean readHeader() {
+        int best = -1;
+        long bestSeq = -1;
+
+        for (int slot = 0; slot < 2; slot++) {
+            int base = slot * HEADER_SLOT_SIZE;
+
+            if (buffer.getInt(base + H_MAGIC) == MAGIC && buffer.getInt(base + H_VERSION) == VERSION
+                    && buffer.getInt(base + H_CAPACITY) == CAPACITY
+                    && buffer.getInt(base + H_RECORD_SIZE) == RECORD_SIZE
+                    && buffer.getInt(base + H_CRC) == computeCrc(base)) {
+                long seq = buffer.getLong(base + H_SEQUENCE);
+
+                if (seq > bestSeq) {
+                    best = base;
+                    bestSeq = seq;
+                }
+            }
+        }
+
+        if (best < 0) {
+            return false;
+        }
+
+        sequence = bestSeq;
+        epoch = buffer.getLong(best + H_EPOCH);
+        head = buffer.getInt(best + H_HEAD);
+        count = buffer.getInt(best + H_COUNT);
+        lastTime = buffer.getInt(best + H_LAST_TIME);
+
+        if (head < 0 || head >= CAPACITY || count < 0 || count > CAPACITY) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private void writeHeader() {
+        sequence++;
+
+        // alternate the slots, so the previous header survives a torn write
+        int base = (int) (sequence & 1) * HEADER_SLOT_SIZE;
+
+        buffer.putInt(base + H_MAGIC, MAGIC);
+        buffer.putInt(base + H_VERSION, VERSION);
+        buffer.putLong(base + H_SEQUENCE, sequence);
+        buffer.putLong(base + H_EPOCH, epoch);
+        buffer.putInt(base + H_CAPACITY, CAPACITY);
+        buffer.putInt(base + H_RECORD_SIZE, RECORD_SIZE);
+        buffer.putInt(base + H_HEAD, head);
+        buffer.putInt(base + H_COUNT, count);
+        buffer.putInt(base + H_LAST_TIME, lastTime);
+        buffer.putInt(base + H_CRC, computeCrc(base));
+    }
+
+    private int computeCrc(int base) {
+        crc.reset();
+
+        for (int i = base; i < base + H_CRC; i++) {
+            crc.update(buffer.get(i));
+        }
+
+        return (int) crc.getValue();
+    }
+
+    private void reset(long time) {
+        epoch = time;
+        head = 0;
+        count = 0;
+        lastTime = 0;
+
+        writeHeader();
+    }
+}
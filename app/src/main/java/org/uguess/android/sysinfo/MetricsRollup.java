@@ -0,0 +1,194 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+/**
+ * MetricsRollup <br>
+ * <br>
+ * Rolling min/max/avg aggregates of the metrics at several resolutions. Every level keeps a fixed
+ * ring of buckets in primitive arrays, a new sample only updates the current bucket of each level,
+ * so the memory stays constant no matter how long the history is.
+ */
+final class MetricsRollup {
+
+    static final int SERIES_CPU = 0;
+    static final int SERIES_MEM = 1;
+    static final int SERIES_RX = 2;
+    static final int SERIES_TX = 3;
+    static final int SERIES_CORE = 4;
+
+    static final int SERIES_COUNT = SERIES_CORE + MetricsHistory.MAX_CORES;
+
+    static final int LEVEL_1S = 0;
+    static final int LEVEL_10S = 1;
+    static final int LEVEL_1MIN = 2;
+    static final int LEVEL_10MIN = 3;
+
+    static final int LEVEL_COUNT = 4;
+
+    static final int KIND_MIN = 0;
+    static final int KIND_MAX = 1;
+    static final int KIND_AVG = 2;
+
+    /**
+     * buckets per level, the levels cover 1 minute, 10 minutes, 1 hour and 10 hours
+     */
+    static final int BUCKETS = 60;
+
+    /**
+     * value of a bucket without samples
+     */
+    static final int EMPTY = -1;
+
+    private static final long[] LEVEL_WIDTH = {1000, 10 * 1000, 60 * 1000, 10 * 60 * 1000};
+
+    private static MetricsRollup shared;
+
+    /**
+     * series s, level l, bucket b is at index (s * LEVEL_COUNT + l) * BUCKETS + b
+     */
+    private final int[] min, max, count;
+    private final long[] sum;
+
+    /**
+     * absolute number of the newest bucket per series and level, -1 if none
+     */
+    private final long[] lastBucket;
+
+    MetricsRollup() {
+        int size = SERIES_COUNT * LEVEL_COUNT * BUCKETS;
+
+        min = new int[size];
+        max = new int[size];
+        count = new int[size];
+        sum = new long[size];
+
+        lastBucket = new long[SERIES_COUNT * LEVEL_COUNT];
+
+        for (int i = 0; i < lastBucket.length; i++) {
+            lastBucket[i] = -1;
+        }
+    }
+
+    /**
+     * @return the rollup fed by the sampler hub
+     */
+    static synchronized MetricsRollup getShared() {
+        if (shared == null) {
+            shared = new MetricsRollup();
+        }
+        return shared;
+    }
+
+    /**
+     * @param time  SystemClock.elapsedRealtime() of the sample
+     * @param value non-negative value
+     */
+    synchronized void add(int series, long time, int value) {
+        for (int level = 0; level < LEVEL_COUNT; level++) {
+            int key = series * LEVEL_COUNT + level;
+            int base = key * BUCKETS;
+
+            long bucket = time / LEVEL_WIDTH[level];
+            long last = lastBucket[key];
+
+            if (bucket < last) {
+                // out of order, ignore
+                continue;
+            }
+
+            if (bucket > last) {
+                // clear the buckets skipped since the last sample
+                long from = last < 0 ? bucket - BUCKETS + 1 : Math.max(last + 1, bucket - BUCKETS + 1);
+
+                for (long b = from; b <= bucket; b++) {
+                    count[base + (int) (b % BUCKETS)] = 0;
+                }
+
+                lastBucket[key] = bucket;
+            }
+
+            int idx = base + (int) (bucket % BUCKETS);
+
+            if (count[idx] == 0) {
+                min[idx] = value;
+                max[idx] = value;
+                sum[idx] = value;
+            } else {
+                if (value < min[idx]) {
+                    min[idx] = value;
+                }
+                if (value > max[idx]) {
+                    max[idx] = value;
+                }
+                sum[idx] += value;
+            }
+
+            count[idx]++;
+        }
+    }
+
+    /**
+     * Reads the aggregates of the buckets up to the given time, oldest first. Buckets without
+     * samples are set to EMPTY.
+     *
+     * @param now    SystemClock.elapsedRealtime()
+     * @param kind   one of the KIND_* constants
+     * @param out    receives the values
+     * @param length number of buckets to read, at most BUCKETS
+     */
+    synchronized void read(int series, int level, int kind, long now, int[] out, int length) {
+        int key = series * LEVEL_COUNT + level;
+        int base = key * BUCKETS;
+
+        long current = now / LEVEL_WIDTH[level];
+        long last = lastBucket[key];
+
+        length = Math.min(length, BUCKETS);
+
+        for (int i = 0; i < length; i++) {
+            long bucket = current - length + 1 + i;
+
+            if (last < 0 || bucket > last || bucket <= last - BUCKETS) {
+                out[i] = EMPTY;
+                continue;
+            }
+
+            int idx = base + (int) (bucket % BUCKETS);
+
+            if (count[idx] == 0) {
+                out[i] = EMPTY;
+            } else if (kind == KIND_MIN) {
+                out[i] = min[idx];
+            } else if (kind == KIND_MAX) {
+                out[i] = max[idx];
+            } else {
+                out[i] = (int) (sum[idx] / count[idx]);
+            }
+        }
+    }
+
+    /**
+     * @return true if the series has received any sample
+     */
+    synchronized boolean hasData(int series) {
+        return lastBucket[series * LEVEL_COUNT] >= 0;
+    }
+
+    static long getLevelWidth(int level) {
+        return LEVEL_WIDTH[level];
+    }
+}
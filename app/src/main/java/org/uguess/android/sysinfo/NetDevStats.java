@@ -0,0 +1,378 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * NetDevStats <br>
+ * <br>
+ * Reads the counters of all network interfaces from /proc/net/dev in one pass and computes the
+ * rates against the measured time between two reads, so a late tick does not show as a burst.
+ * Interfaces may come and go between reads, e.g. tun for a VPN, rmnet_data* for mobile data or
+ * rndis for USB tethering; a new or re-created interface has no rate until its second read. Not
+ * thread safe, each instance should be read from one worker thread.
+ */
+final class NetDevStats {
+
+    private static final String NET_DEV_PATH = "/proc/net/dev"; //$NON-NLS-1$
+
+    private static final String LOOPBACK = "lo"; //$NON-NLS-1$
+
+    /**
+     * Iface. Counters and rates of one interface, not changed after it is made.
+     */
+    static final class Iface {
+
+        final String name;
+
+        final long rx, tx;
+
+        /**
+         * bytes per second since the previous read, 0 if not known
+         */
+        final long rxRate, txRate;
+
+        Iface(String name, long rx, long tx, long rxRate, long txRate) {
+            this.name = name;
+            this.rx = rx;
+            this.tx = tx;
+            this.rxRate = rxRate;
+            this.txRate = txRate;
+        }
+
+        boolean isLoopback() {
+            return LOOPBACK.equals(name);
+        }
+    }
+
+    private String[] names = new String[8];
+    private long[] rx = new long[8], tx = new long[8];
+    private long[] rxRate = new long[8], txRate = new long[8];
+
+    /**
+     * read in which the interface was last seen
+     */
+    private int[] seen = new int[8];
+
+    private int count;
+
+    private int generation;
+
+    private long lastTime;
+
+    private byte[] buf = new byte[4096];
+
+    /**
+     * @return the current time for {@link #update(long, String[])} in nanoseconds, with millisecond
+     * precision only before Android 4.2
+     */
+    static long now() {
+        if (Util.SDK_VER >= 17) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        return SystemClock.elapsedRealtime() * 1000000L;
+    }
+
+    /**
+     * @param nanos    time of the read from {@link #now()}
+     * @param fallback interfaces to read from sysfs if /proc/net/dev is not readable, null
+     *                 elements are skipped
+     * @return false if no counters could be read
+     */
+    boolean update(long nanos, String[] fallback) {
+        // not readable for apps on newer releases, probed once per boot
+        int len = CapabilityRegistry.getAccess(CapabilityRegistry.SRC_NET_DEV)
+                == CapabilityRegistry.ACCESS_DIRECT ? readFile() : -1;
+
+        if (len <= 0 && fallback == null) {
+            return false;
+        }
+
+        generation++;
+
+        long elapsed = lastTime == 0 ? 0 : nanos - lastTime;
+
+        lastTime = nanos;
+
+        if (len > 0) {
+            // skip the two header lines
+            int pos = 0;
+
+            for (int i = 0; i < 2 && pos < len; i++) {
+                while (pos < len && buf[pos] != '\n') {
+                    pos++;
+                }
+
+                pos++;
+            }
+
+            while (pos < len) {
+                int end = pos;
+
+                while (end < len && buf[end] != '\n') {
+                    end++;
+                }
+
+                parseLine(pos, end, elapsed);
+
+                pos = end + 1;
+            }
+        } else {
+            for (String name : fallback) {
+                if (name != null) {
+                    record(find(name), name, Util.getRxBytes(name), Util.getTxBytes(name),
+                            elapsed);
+                }
+            }
+        }
+
+        // drop the interfaces that have gone
+        int n = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (seen[i] == generation) {
+                if (n != i) {
+                    names[n] = names[i];
+                    rx[n] = rx[i];
+                    tx[n] = tx[i];
+                    rxRate[n] = rxRate[i];
+                    txRate[n] = txRate[i];
+                    seen[n] = seen[i];
+                }
+
+                n++;
+            }
+        }
+
+        for (int i = n; i < count; i++) {
+            names[i] = null;
+        }
+
+        count = n;
+
+        return true;
+    }
+
+    /**
+     * @return the interfaces as of the last read, in the order of the kernel
+     */
+    Iface[] getInterfaces() {
+        Iface[] result = new Iface[count];
+
+        for (int i = 0; i < count; i++) {
+            result[i] = new Iface(names[i], rx[i], tx[i], rxRate[i], txRate[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * The lines are the interface name and a colon, which may not be followed by a space, then
+     * the receive columns bytes, packets, errs, drop, fifo, frame, compressed, multicast and the
+     * transmit columns starting with bytes.
+     */
+    private void parseLine(int pos, int end, long elapsed) {
+        while (pos < end && buf[pos] == ' ') {
+            pos++;
+        }
+
+        int nameStart = pos;
+
+        while (pos < end && buf[pos] != ':') {
+            pos++;
+        }
+
+        if (pos == end) {
+            return;
+        }
+
+        int nameEnd = pos++;
+
+        long rxBytes = -1, txBytes = -1;
+
+        for (int column = 0; column < 9; column++) {
+            while (pos < end && buf[pos] == ' ') {
+                pos++;
+            }
+
+            if (pos == end) {
+                return;
+            }
+
+            int start = pos;
+
+            while (pos < end && buf[pos] != ' ') {
+                pos++;
+            }
+
+            if (column == 0) {
+                rxBytes = FileHandlePool.parseLong(buf, start, pos - start);
+            } else if (column == 8) {
+                txBytes = FileHandlePool.parseLong(buf, start, pos - start);
+            }
+        }
+
+        int i = find(nameStart, nameEnd);
+
+        record(i, i == -1 ? new String(buf, nameStart, nameEnd - nameStart) : null, rxBytes,
+                txBytes, elapsed);
+    }
+
+    /**
+     * @param i    index of the known interface, or -1 to add it
+     * @param name name of the interface, used if it is added
+     */
+    private void record(int i, String name, long rxBytes, long txBytes, long elapsed) {
+        if (i == -1) {
+            i = add(name);
+
+            rxRate[i] = 0;
+            txRate[i] = 0;
+        } else if (seen[i] != generation) {
+            rxRate[i] = rate(rx[i], rxBytes, elapsed);
+            txRate[i] = rate(tx[i], txBytes, elapsed);
+        } else {
+            // listed twice
+            return;
+        }
+
+        rx[i] = rxBytes;
+        tx[i] = txBytes;
+        seen[i] = generation;
+    }
+
+    /**
+     * @return bytes per second, 0 if the counter went back as the interface was re-created
+     */
+    private static long rate(long last, long current, long elapsed) {
+        // in microseconds, so the product cannot overflow
+        long micros = elapsed / 1000;
+
+        if (micros <= 0 || current < last) {
+            return 0;
+        }
+
+        return (current - last) * 1000000L / micros;
+    }
+
+    private int find(String name) {
+        for (int i = 0; i < count; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int find(int start, int end) {
+        int len = end - start;
+
+        for (int i = 0; i < count; i++) {
+            String name = names[i];
+
+            if (name.length() == len) {
+                int k = 0;
+
+                while (k < len && name.charAt(k) == buf[start + k]) {
+                    k++;
+                }
+
+                if (k == len) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private int add(String name) {
+        if (count == names.length) {
+            int cap = count * 2;
+
+            String[] nnames = new String[cap];
+            System.arraycopy(names, 0, nnames, 0, count);
+            names = nnames;
+
+            rx = grow(rx, cap);
+            tx = grow(tx, cap);
+            rxRate = grow(rxRate, cap);
+            txRate = grow(txRate, cap);
+
+            int[] nseen = new int[cap];
+            System.arraycopy(seen, 0, nseen, 0, count);
+            seen = nseen;
+        }
+
+        names[count] = name;
+
+        return count++;
+    }
+
+    private long[] grow(long[] arr, int cap) {
+        long[] narr = new long[cap];
+        System.arraycopy(arr, 0, narr, 0, count);
+        return narr;
+    }
+
+    /**
+     * @return the bytes read into buf, or -1
+     */
+    private int readFile() {
+        FileInputStream fis = null;
+
+        try {
+            fis = new FileInputStream(NET_DEV_PATH);
+
+            int len = 0;
+            int n;
+
+            while ((n = fis.read(buf, len, buf.length - len)) > 0) {
+                len += n;
+
+                if (len == buf.length) {
+                    byte[] nbuf = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, nbuf, 0, len);
+                    buf = nbuf;
+                }
+            }
+
+            return len;
+        } catch (FileNotFoundException fe) {
+            Log.d(NetDevStats.class.getName(), "File not found: " + fe.getLocalizedMessage()); //$NON-NLS-1$
+        } catch (IOException e) {
+            Log.e(NetDevStats.class.getName(), e.getLocalizedMessage(), e);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(NetDevStats.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        return -1;
+    }
+}
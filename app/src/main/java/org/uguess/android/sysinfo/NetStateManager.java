@@ -16,6 +16,7 @@
 package org.uguess.android.sysinfo;
 
 import android.app.ActivityManager;
+import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.app.ProgressDialog;
 import android.content.Context;
@@ -23,14 +24,14 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
@@ -39,6 +40,8 @@ import android.preference.PreferenceScreen;
 import android.text.ClipboardManager;
 import android.text.Html;
 import android.text.TextUtils;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
 import android.text.method.LinkMovementMethod;
 import android.util.Log;
 import android.util.SparseArray;
@@ -51,9 +54,10 @@ import android.view.Window;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
 
+import org.uguess.android.sysinfo.ConnectionTracker.Connection;
 import org.uguess.android.sysinfo.ToolMenuDialog.ActionHint;
 import org.uguess.android.sysinfo.ToolMenuDialog.IActionMenuProvider;
 import org.uguess.android.sysinfo.ToolMenuDialog.ISortMenuProvider;
@@ -64,20 +68,13 @@ import org.uguess.android.sysinfo.Util.EditorState;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserFactory;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
-import java.net.InetAddress;
 import java.net.URL;
-import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -98,23 +95,21 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
     private static final int ORDER_TYPE_STATE = 3;
     private static final int ORDER_TYPE_SOURCE = 4;
 
+    private static final int MSG_CONNECTIONS = MSG_PRIVATE + 1;
+    private static final int MSG_NAMES_READY = MSG_PRIVATE + 2;
+    private static final int MSG_TALKERS = MSG_PRIVATE + 3;
+
+    /**
+     * number of apps in the top talkers
+     */
+    static final int TOP_TALKERS = 10;
+
+    private static final long TALKER_INTERVAL = 1000;
+
     private static final int ENABLED = 0;
     private static final int DISABLED = 1;
     private static final int WIFI_ONLY = 2;
 
-    private static final String[] SOCKET_STATES = new String[]{"ESTABLISHED", //$NON-NLS-1$
-            "SYN_SENT", //$NON-NLS-1$
-            "SYN_RECV", //$NON-NLS-1$
-            "FIN_WAIT1", //$NON-NLS-1$
-            "FIN_WAIT2", //$NON-NLS-1$
-            "TIME_WAIT", //$NON-NLS-1$
-            "CLOSE", //$NON-NLS-1$
-            "CLOSE_WAIT", //$NON-NLS-1$
-            "LAST_ACK", //$NON-NLS-1$
-            "LISTEN", //$NON-NLS-1$
-            "CLOSING" //$NON-NLS-1$
-    };
-
     static final SparseArray<String> USER_MAP = new SparseArray<String>();
 
     static {
@@ -160,9 +155,45 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
         USER_MAP.put(9999, "nobody"); //$NON-NLS-1$
     }
 
-    HashMap<String, IpInfo> queryCache;
+    IpInfoResolver resolver;
+
+    ConnectionAdapter connAdapter;
+
+    private HandlerThread pollThread;
+
+    volatile Handler pollHandler;
+
+    /**
+     * only used in the poll thread
+     */
+    final ConnectionTable connTable = new ConnectionTable();
+    final ConnectionTracker tracker = new ConnectionTracker();
+    final ConnectionTracker.Delta delta = new ConnectionTracker.Delta();
+
+    /**
+     * the connections as last sent to the list, in display order
+     */
+    Connection[] sorted;
+
+    final UidTraffic uidTraffic = new UidTraffic();
 
-    HashMap<String, String> nameCache;
+    /**
+     * reads all uids for the top talkers, only used in the poll thread
+     */
+    final UidTraffic talkerTraffic = new UidTraffic();
+    SparseArray<String> talkerLabels = new SparseArray<String>();
+
+    /**
+     * the top talkers while shown, only used in the main thread
+     */
+    AlertDialog talkerDialog;
+    UidIndex uidIndex;
+
+    /**
+     * whether the list must be sorted and shown again even without changes, e.g. after the sort
+     * order or the display options changed
+     */
+    volatile boolean relayout = true;
 
     ProgressDialog progress;
 
@@ -193,8 +224,42 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
 
                     showIpInfo((IpInfo) msg.obj, host);
 
-                    this.removeCallbacks(host.task);
-                    this.post(host.task);
+                    // show the new remote name
+                    host.connAdapter.notifyDataSetChanged();
+
+                    break;
+                case MSG_CONNECTIONS:
+
+                    if (host.aborted) {
+                        return;
+                    }
+
+                    PollResult result = (PollResult) msg.obj;
+
+                    host.connAdapter.setItems(result.items, result.uids);
+
+                    ((TextView) host.findViewById(R.id.txt_ip_header)).setText(ResUtil.getString(
+                            host, host.connAdapter.showLocal ? R.string.local_remote_addr
+                                    : R.string.remote_address));
+
+                    if (host.connAdapter.getCount() <= 1) {
+                        Log.d(NetStateManager.class.getName(), "No network traffic detected"); //$NON-NLS-1$
+                    }
+
+                    break;
+                case MSG_TALKERS:
+
+                    if (host.aborted || host.talkerDialog == null) {
+                        return;
+                    }
+
+                    host.talkerDialog.setMessage(msg.obj == null ? ResUtil.getString(host,
+                            R.string.info_not_available) : (String) msg.obj);
+
+                    break;
+                case MSG_NAMES_READY:
+
+                    host.connAdapter.notifyDataSetChanged();
 
                     break;
                 case MSG_DISMISS_PROGRESS:
@@ -208,25 +273,38 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
         }
     }
 
+    /**
+     * polls the connection tables in the poll thread
+     */
     Runnable task = new Runnable() {
 
         public void run() {
-            refresh();
+            poll();
 
-            int interval =
-                    Util.getIntOption(NetStateManager.this, NETSTATE_MANAGER_STORE_NAME,
-                            PREF_KEY_REFRESH_INTERVAL, REFRESH_LOW);
+            long delay =
+                    StatusUpdaterService.getDelay(getSharedPreferences(NETSTATE_MANAGER_STORE_NAME,
+                            Context.MODE_PRIVATE), PREF_KEY_REFRESH_INTERVAL);
 
-            switch (interval) {
-                case REFRESH_HIGH:
-                    handler.postDelayed(this, 1000);
-                    break;
-                case REFRESH_NORMAL:
-                    handler.postDelayed(this, 2000);
-                    break;
-                case REFRESH_LOW:
-                    handler.postDelayed(this, 4000);
-                    break;
+            Handler h = pollHandler;
+
+            if (h != null && delay > 0) {
+                h.postDelayed(this, delay);
+            }
+        }
+    };
+
+    /**
+     * refreshes the top talkers in the poll thread while they are shown
+     */
+    Runnable talkerTask = new Runnable() {
+
+        public void run() {
+            handler.sendMessage(handler.obtainMessage(MSG_TALKERS, readTopTalkers()));
+
+            Handler h = pollHandler;
+
+            if (h != null) {
+                h.postDelayed(this, TALKER_INTERVAL);
             }
         }
     };
@@ -237,6 +315,11 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
 
         setContentView(R.layout.net_lst_view);
 
+        // find out once per boot how the connection tables can be read
+        CapabilityRegistry.probeInBackground(CapabilityRegistry.SRC_NET_TCP,
+                CapabilityRegistry.SRC_NET_UDP, CapabilityRegistry.SRC_NET_TCP6,
+                CapabilityRegistry.SRC_NET_UDP6, CapabilityRegistry.SRC_UID_STAT);
+
         // now show ad in parent activity
         // ProUtil.toggleAD(this);
 
@@ -247,8 +330,7 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
         ((TextView) findViewById(R.id.txt_state_header)).setText(ResUtil
                 .getString(this, R.string.state));
 
-        queryCache = new HashMap<String, IpInfo>();
-        nameCache = new HashMap<String, String>();
+        resolver = IpInfoResolver.getInstance(this);
 
         registerForContextMenu(getListView());
 
@@ -272,9 +354,7 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
                     }
                 }
 
-                ConnectionItem itm = (ConnectionItem) parent.getItemAtPosition(position);
-
-                String ip = getValidIP(itm.remote);
+                String ip = connAdapter.getItem(position).getRemoteIP();
 
                 if (!TextUtils.isEmpty(ip)) {
                     queryIPInfo(ip);
@@ -284,181 +364,14 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
             }
         });
 
-        ArrayAdapter<ConnectionItem> adapter =
-                new ArrayAdapter<ConnectionItem>(this, R.layout.net_item) {
-
-                    public View getView(int position, View convertView,
-                                        android.view.ViewGroup parent) {
-                        View view;
-
-                        if (convertView == null) {
-                            view =
-                                    NetStateManager.this.getLayoutInflater()
-                                            .inflate(R.layout.net_item, parent, false);
-                        } else {
-                            view = convertView;
-                        }
-
-                        if (position >= getCount()) {
-                            return view;
-                        }
-
-                        if (view.getTag() == null) {
-                            view.setTag(new ConnectionViewHolder(view));
-                        }
-
-                        ConnectionViewHolder viewHolder = (ConnectionViewHolder) view.getTag();
+        connAdapter = new ConnectionAdapter();
 
-                        ConnectionItem itm = getItem(position);
-
-                        viewHolder.txt_proto.setText(itm.proto);
-                        viewHolder.txt_state.setText(itm.state);
-
-                        boolean showLocal =
-                                Util.getBooleanOption(NetStateManager.this, NETSTATE_MANAGER_STORE_NAME,
-                                        PREF_KEY_SHOW_LOCAL_ADDRESS);
-
-                        viewHolder.txt_proto.setBackgroundResource("TCP".equals(itm.proto) ? R.drawable.bg_tcp //$NON-NLS-1$
-                                : R.drawable.bg_udp);
-
-                        if (showLocal) {
-                            viewHolder.txt_ip.setText(itm.local + '\n'
-                                    + (itm.remoteName == null ? itm.remote : itm.remoteName));
-                        } else {
-                            viewHolder.txt_ip.setText(itm.remoteName == null ? itm.remote : itm.remoteName);
-                        }
-
-                        boolean showSource =
-                                Util.getBooleanOption(NetStateManager.this, NETSTATE_MANAGER_STORE_NAME,
-                                        PREF_KEY_SHOW_CONNECTION_SOURCE);
-
-                        if (!showSource || itm.uid < 0) {
-                            viewHolder.procView.setVisibility(View.GONE);
-                            viewHolder.procView2.setVisibility(View.GONE);
-                        } else {
-                            boolean sourcePrimary =
-                                    Util.getIntOption(NetStateManager.this, NETSTATE_MANAGER_STORE_NAME,
-                                            PREF_KEY_SORT_ORDER_TYPE, ORDER_TYPE_SOURCE) == ORDER_TYPE_SOURCE;
-
-                            StringBuilder sb = new StringBuilder();
-
-                            PackageManager pm = getPackageManager();
-
-                            String[] pkgs = pm.getPackagesForUid(itm.uid);
-
-                            if (pkgs != null && pkgs.length > 0) {
-                                for (String pkg : pkgs) {
-                                    String s = nameCache.get(pkg);
-
-                                    if (s == null) {
-                                        s = pkg;
-
-                                        try {
-                                            ApplicationInfo appInfo = pm.getApplicationInfo(pkg, 0);
-
-                                            if (appInfo != null) {
-                                                CharSequence label = pm.getApplicationLabel(appInfo);
-
-                                                if (label != null) {
-                                                    s = label.toString();
-
-                                                    nameCache.put(pkg, s);
-                                                }
-                                            }
-                                        } catch (NameNotFoundException e) {
-                                            // ignore
-                                        }
-                                    }
-
-                                    if (sb.length() > 0) {
-                                        sb.append(", "); //$NON-NLS-1$
-                                    }
-
-                                    sb.append(s);
-                                }
-                            }
-
-                            if (sb.length() == 0) {
-                                String uname = USER_MAP.get(itm.uid);
-
-                                sb.append(itm.uid).append('(').append(uname == null ? "?" : uname) //$NON-NLS-1$
-                                        .append(')');
-                            }
-
-                            if (sourcePrimary) {
-                                boolean showTraffic =
-                                        Util.getBooleanOption(NetStateManager.this, NETSTATE_MANAGER_STORE_NAME,
-                                                PREF_KEY_SHOW_SOURCE_TRAFFIC);
-
-                                if (showTraffic) {
-                                    long tcpSnd = Util.readFileLong("/proc/uid_stat/" //$NON-NLS-1$
-                                                    + itm.uid + "/tcp_snd", //$NON-NLS-1$
-                                            true);
-                                    long udpSnd = Util.readFileLong("/proc/uid_stat/" //$NON-NLS-1$
-                                                    + itm.uid + "/udp_snd", //$NON-NLS-1$
-                                            true);
-
-                                    long tx = 0;
-                                    if (tcpSnd > 0) {
-                                        tx += tcpSnd;
-                                    }
-                                    if (udpSnd > 0) {
-                                        tx += udpSnd;
-                                    }
-
-                                    long tcpRcv = Util.readFileLong("/proc/uid_stat/" //$NON-NLS-1$
-                                                    + itm.uid + "/tcp_rcv", //$NON-NLS-1$
-                                            true);
-                                    long udpRcv = Util.readFileLong("/proc/uid_stat/" //$NON-NLS-1$
-                                                    + itm.uid + "/udp_rcv", //$NON-NLS-1$
-                                            true);
-
-                                    long rx = 0;
-                                    if (tcpRcv > 0) {
-                                        rx += tcpRcv;
-                                    }
-                                    if (udpRcv > 0) {
-                                        rx += udpRcv;
-                                    }
-
-                                    if (tx > 0 || rx > 0) {
-                                        viewHolder.txtTraffic.setText("Tx: " //$NON-NLS-1$
-                                                + Util.safeFormatFileSize(NetStateManager.this, tx) + ", Rx: " //$NON-NLS-1$
-                                                + Util.safeFormatFileSize(NetStateManager.this, rx));
-
-                                        viewHolder.txtTraffic.setVisibility(View.VISIBLE);
-                                    } else {
-                                        viewHolder.txtTraffic.setVisibility(View.GONE);
-                                    }
-                                } else {
-                                    viewHolder.txtTraffic.setVisibility(View.GONE);
-                                }
-
-                                viewHolder.txtProc.setText(sb.toString());
-                                viewHolder.procView.setVisibility(View.VISIBLE);
-
-                                viewHolder.procView2.setVisibility(View.GONE);
-                            } else {
-                                viewHolder.procView.setVisibility(View.GONE);
-
-                                viewHolder.txtSrc.setText(sb.toString());
-                                viewHolder.procView2.setVisibility(View.VISIBLE);
-                            }
-                        }
-
-                        return view;
-                    }
-                };
-
-        getListView().setAdapter(adapter);
+        getListView().setAdapter(connAdapter);
     }
 
     @Override
     protected void onDestroy() {
-        ((ArrayAdapter<ConnectionItem>) getListView().getAdapter()).clear();
-
-        queryCache.clear();
-        nameCache.clear();
+        tracker.clear();
 
         super.onDestroy();
     }
@@ -489,15 +402,42 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
 
         super.onResume();
 
-        handler.post(task);
+        pollThread = new HandlerThread("Connection Poller"); //$NON-NLS-1$
+        pollThread.start();
+
+        pollHandler = new Handler(pollThread.getLooper());
+
+        if (talkerDialog != null) {
+            pollHandler.post(talkerTask);
+        }
+
+        refresh();
     }
 
     @Override
     protected void onPause() {
         aborted = true;
 
-        handler.removeCallbacks(task);
+        Handler h = pollHandler;
+
+        pollHandler = null;
+        pollThread = null;
+
+        h.removeCallbacks(task);
+        h.removeCallbacks(talkerTask);
+        h.post(new Runnable() {
+
+            public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+
         handler.removeMessages(MSG_CONTENT_READY);
+        handler.removeMessages(MSG_CONNECTIONS);
+        handler.removeMessages(MSG_NAMES_READY);
+        handler.removeMessages(MSG_TALKERS);
+
+        resolver.flush();
 
         super.onPause();
     }
@@ -520,6 +460,16 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
                         ResUtil.getString(this, R.string.live_monitor));
         mi.setIcon(android.R.drawable.ic_menu_share);
 
+        mi =
+                menu.add(Menu.NONE, MI_CLOSED_CONNECTIONS, Menu.NONE,
+                        ResUtil.getString(this, R.string.closed_connections));
+        mi.setIcon(android.R.drawable.ic_menu_recent_history);
+
+        mi =
+                menu.add(Menu.NONE, MI_TOP_TALKERS, Menu.NONE,
+                        ResUtil.getString(this, R.string.top_talkers));
+        mi.setIcon(android.R.drawable.ic_menu_sort_by_size);
+
         mi =
                 menu.add(Menu.NONE, MI_PREFERENCE, Menu.NONE, ResUtil.getString(this, R.string.preference));
         mi.setIcon(android.R.drawable.ic_menu_preferences);
@@ -545,6 +495,11 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
             hints.add(new ActionHint(ResUtil.getString(this, R.string.live_monitor), MI_LIVE_MONITOR));
         }
 
+        hints.add(new ActionHint(ResUtil.getString(this, R.string.closed_connections),
+                MI_CLOSED_CONNECTIONS));
+
+        hints.add(new ActionHint(ResUtil.getString(this, R.string.top_talkers), MI_TOP_TALKERS));
+
         hints.add(new ActionHint(ResUtil.getString(this, R.string.preference), MI_PREFERENCE));
 
         hints.add(new ActionHint(ResUtil.getString(this, R.string.exit), MI_EXIT));
@@ -555,8 +510,7 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
     @Override
     public boolean onActionSelected(int action) {
         if (action == MI_REFRESH) {
-            handler.removeCallbacks(task);
-            handler.post(task);
+            refresh();
 
             return true;
         } else if (action == MI_LIVE_MONITOR) {
@@ -565,6 +519,14 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
                     Uri.parse("target://" //$NON-NLS-1$
                             + StatusUpdaterService.TARGET_WIFI)));
 
+            return true;
+        } else if (action == MI_CLOSED_CONNECTIONS) {
+            showClosedConnections();
+
+            return true;
+        } else if (action == MI_TOP_TALKERS) {
+            showTopTalkers();
+
             return true;
         } else if (action == MI_PREFERENCE) {
             Intent it = new Intent(this, Util.getIntentProxyClz(NetStateSettings.class));
@@ -620,6 +582,7 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
     public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
         menu.setHeaderTitle(ResUtil.getString(this, R.string.actions));
         menu.add(ResUtil.getString(this, R.string.copy_ip));
+        menu.add(Menu.NONE, MI_DETAILS, Menu.NONE, ResUtil.getString(this, R.string.state_history));
     }
 
     @Override
@@ -627,16 +590,18 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
         int pos = ((AdapterContextMenuInfo) item.getMenuInfo()).position;
 
         if (pos < getListView().getCount()) {
-            ConnectionItem itm = (ConnectionItem) getListView().getItemAtPosition(pos);
+            if (item.getItemId() == MI_DETAILS) {
+                showStateHistory(connAdapter.getItem(pos));
 
-            if (itm != null && !TextUtils.isEmpty(itm.remote)) {
-                ClipboardManager cm = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+                return true;
+            }
 
-                if (cm != null) {
-                    cm.setText(itm.remoteName == null ? itm.remote : itm.remoteName);
+            ClipboardManager cm = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
 
-                    Util.shortToast(this, R.string.copied_hint);
-                }
+            if (cm != null) {
+                cm.setText(connAdapter.getRemoteDisplay(connAdapter.getItem(pos)));
+
+                Util.shortToast(this, R.string.copied_hint);
             }
 
             return true;
@@ -645,6 +610,174 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
         return false;
     }
 
+    /**
+     * Lists the recently closed connections, newest first. Selecting one shows its state history.
+     */
+    void showClosedConnections() {
+        final Connection[] closed = tracker.getHistory();
+
+        if (closed.length == 0) {
+            Util.shortToast(this, R.string.no_closed_connections);
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+
+        CharSequence[] labels = new CharSequence[closed.length];
+
+        for (int i = 0; i < closed.length; i++) {
+            Connection c = closed[i];
+
+            labels[i] = c.getProtoName() + ' ' + connAdapter.getRemoteDisplay(c) + '\n'
+                    + ResUtil.getString(this, R.string.closed_conn_sum, c.getStateName(),
+                    formatAge(c.closedAt - c.firstSeen), formatAge(now - c.closedAt));
+        }
+
+        OnClickListener listener = new OnClickListener() {
+
+            public void onClick(DialogInterface dialog, int which) {
+                showStateHistory(closed[which]);
+            }
+        };
+
+        Util.newAlertDialogBuilder(this).setTitle(ResUtil.getString(this, R.string.closed_connections))
+                .setItems(labels, listener)
+                .setNegativeButton(ResUtil.getString(this, R.string.close), null).create().show();
+    }
+
+    /**
+     * Shows the apps with the highest transfer rates, refreshed while the dialog is open.
+     */
+    void showTopTalkers() {
+        if (talkerDialog != null) {
+            return;
+        }
+
+        talkerDialog = Util.newAlertDialogBuilder(this)
+                .setTitle(ResUtil.getString(this, R.string.top_talkers))
+                .setMessage(ResUtil.getString(this, R.string.loading))
+                .setNegativeButton(ResUtil.getString(this, R.string.close), null).create();
+
+        talkerDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+
+            public void onDismiss(DialogInterface dialog) {
+                talkerDialog = null;
+
+                Handler h = pollHandler;
+
+                if (h != null) {
+                    h.removeCallbacks(talkerTask);
+                }
+
+                handler.removeMessages(MSG_TALKERS);
+            }
+        });
+
+        talkerDialog.show();
+
+        Handler h = pollHandler;
+
+        if (h != null) {
+            h.removeCallbacks(talkerTask);
+            h.post(talkerTask);
+        }
+    }
+
+    /**
+     * Called in the poll thread.
+     *
+     * @return the text of the top talkers, or null if the traffic per uid is not available
+     */
+    String readTopTalkers() {
+        if (!talkerTraffic.update(SystemClock.elapsedRealtime(), null)) {
+            return null;
+        }
+
+        UidTraffic.Talker[] top = talkerTraffic.getTop(TOP_TALKERS);
+
+        if (top.length == 0) {
+            talkerLabels.clear();
+
+            return ResUtil.getString(this, R.string.no_talkers);
+        }
+
+        // only keep the labels of the current talkers
+        SparseArray<String> labels = new SparseArray<String>();
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < top.length; i++) {
+            UidTraffic.Talker t = top[i];
+
+            String label = talkerLabels.get(t.uid);
+
+            if (label == null) {
+                label = UidIndex.loadLabel(getPackageManager(), t.uid);
+            }
+
+            labels.put(t.uid, label);
+
+            if (i > 0) {
+                sb.append("\n\n"); //$NON-NLS-1$
+            }
+
+            sb.append(i + 1).append(". ").append(label) //$NON-NLS-1$
+                    .append("\nTx: ") //$NON-NLS-1$
+                    .append(Util.safeFormatFileSize(this, t.txRate)).append("/s, Rx: ") //$NON-NLS-1$
+                    .append(Util.safeFormatFileSize(this, t.rxRate)).append("/s"); //$NON-NLS-1$
+
+            if (t.iface != null) {
+                sb.append(" (").append(t.iface).append(')'); //$NON-NLS-1$
+            }
+        }
+
+        talkerLabels = labels;
+
+        return sb.toString();
+    }
+
+    /**
+     * Shows when the connection went through each state since it was first seen.
+     */
+    void showStateHistory(Connection conn) {
+        int[] states = new int[ConnectionTracker.MAX_TRANSITIONS];
+        long[] times = new long[ConnectionTracker.MAX_TRANSITIONS];
+
+        int count = conn.getTransitions(states, times);
+
+        // the log is in elapsed realtime
+        long offset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+
+        java.text.DateFormat format = DateFormat.getTimeFormat(this);
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            sb.append(format.format(times[i] + offset)).append("  ") //$NON-NLS-1$
+                    .append(ConnectionTable.getStateName(states[i])).append('\n');
+        }
+
+        long closedAt = conn.closedAt;
+
+        if (closedAt != 0) {
+            sb.append(format.format(closedAt + offset)).append("  ") //$NON-NLS-1$
+                    .append(ResUtil.getString(this, R.string.conn_closed)).append('\n');
+        }
+
+        sb.append('\n').append(ResUtil.getString(this, R.string.conn_age,
+                formatAge((closedAt != 0 ? closedAt : SystemClock.elapsedRealtime())
+                        - conn.firstSeen)));
+
+        Util.newAlertDialogBuilder(this)
+                .setTitle(conn.getProtoName() + ' ' + connAdapter.getRemoteDisplay(conn))
+                .setMessage(sb.toString())
+                .setNegativeButton(ResUtil.getString(this, R.string.close), null).create().show();
+    }
+
+    static String formatAge(long millis) {
+        return DateUtils.formatElapsedTime(Math.max(0, millis) / 1000);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == REQUEST_PREFERENCES && data != null) {
@@ -752,10 +885,9 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
 
         Util.endEditOption(es);
 
-        handler.removeCallbacks(task);
         handler.removeMessages(MSG_CONTENT_READY);
 
-        handler.post(task);
+        refresh();
     }
 
     private boolean hasNetConnection() {
@@ -772,25 +904,20 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
         return false;
     }
 
-    static String getValidIP(String ip) {
-        if (ip != null) {
-            int idx = ip.lastIndexOf(':');
-
-            if (idx != -1) {
-                ip = ip.substring(0, idx).trim();
-            }
+    /**
+     * redraws the list when prefetched host names come in, at most once per message loop
+     */
+    IpInfoResolver.Callback nameCallback = new IpInfoResolver.Callback() {
 
-            if (!"0.0.0.0".equals(ip) && !"127.0.0.1".equals(ip)) //$NON-NLS-1$ //$NON-NLS-2$
-            {
-                return ip;
+        public void onResolved(IpInfo info) {
+            if (info.host != null && !aborted && !handler.hasMessages(MSG_NAMES_READY)) {
+                handler.sendEmptyMessage(MSG_NAMES_READY);
             }
         }
-
-        return null;
-    }
+    };
 
     void queryIPInfo(final String ip) {
-        IpInfo info = queryCache.get(ip);
+        IpInfo info = resolver.getCached(ip, true);
 
         if (info != null) {
             handler.sendMessage(handler.obtainMessage(MSG_CONTENT_READY, info));
@@ -805,25 +932,14 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
         progress.setIndeterminate(true);
         progress.show();
 
-        new Thread(new Runnable() {
-
-            public void run() {
-                IpInfo info = new IpInfo();
-                info.ip = ip;
-
-                info = getIpInfo(info);
-
-                queryCache.put(ip, info);
+        resolver.query(ip, new IpInfoResolver.Callback() {
 
+            public void onResolved(IpInfo info) {
                 handler.sendEmptyMessage(MSG_DISMISS_PROGRESS);
 
                 handler.sendMessage(handler.obtainMessage(MSG_CONTENT_READY, info));
             }
-        }).start();
-    }
-
-    protected IpInfo getIpInfo(IpInfo info) {
-        return getIpInfoDirect(info);
+        });
     }
 
     static boolean isProxiedNetwork(Context ctx) {
@@ -833,185 +949,113 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
         return ani != null && "PROXY".equals(ani.getTypeName());
     }
 
+    /**
+     * Polls again right away and shows the result even if nothing changed.
+     */
     void refresh() {
-        boolean showLocal =
-                Util.getBooleanOption(NetStateManager.this, NETSTATE_MANAGER_STORE_NAME,
-                        PREF_KEY_SHOW_LOCAL_ADDRESS);
+        relayout = true;
 
-        ((TextView) findViewById(R.id.txt_ip_header)).setText(ResUtil.getString(NetStateManager.this,
-                showLocal ? R.string.local_remote_addr : R.string.remote_address));
+        Handler h = pollHandler;
 
-        ArrayList<ConnectionItem> items = readStatesRaw();
-
-        if (items != null) {
-            SharedPreferences prefStore =
-                    getSharedPreferences(NETSTATE_MANAGER_STORE_NAME, Context.MODE_PRIVATE);
-
-            int primarySort = Util.getIntOption(prefStore, PREF_KEY_SORT_ORDER_TYPE, ORDER_TYPE_SOURCE);
-
-            Collections.sort(
-                    items,
-                    new ConnectionComparator(primarySort, Util.getIntOption(prefStore,
-                            PREF_KEY_SORT_DIRECTION, ORDER_ASC), Util.getIntOption(prefStore,
-                            PREF_KEY_SECONDARY_SORT_ORDER_TYPE, ORDER_TYPE_PROTO), Util.getIntOption(prefStore,
-                            PREF_KEY_SECONDARY_SORT_DIRECTION, ORDER_ASC)));
-
-            if (primarySort == ORDER_TYPE_SOURCE) {
-                // group items by source
-                int lastUid = -1;
-
-                for (ConnectionItem ci : items) {
-                    if (ci.uid == lastUid) {
-                        ci.uid = -1;
-                    } else {
-                        lastUid = ci.uid;
-                    }
-                }
-            }
-        }
-
-        ArrayAdapter<ConnectionItem> adapter =
-                (ArrayAdapter<ConnectionItem>) getListView().getAdapter();
-
-        adapter.setNotifyOnChange(false);
-
-        adapter.clear();
-
-        if (items != null) {
-            for (int i = 0, size = items.size(); i < size; i++) {
-                adapter.add(items.get(i));
-            }
-        }
-
-        adapter.notifyDataSetChanged();
-
-        if (adapter.getCount() <= 1) {
-            Log.d(NetStateManager.class.getName(), "No network traffic detected"); //$NON-NLS-1$
+        if (h != null) {
+            h.removeCallbacks(task);
+            h.post(task);
         }
     }
 
-    private ArrayList<ConnectionItem> readStatesRaw() {
-        ArrayList<ConnectionItem> items = new ArrayList<ConnectionItem>();
+    /**
+     * Reads the connection tables and sends the sorted connections to the list if anything changed.
+     */
+    void poll() {
+        connTable.clear();
+        connTable.parse(CapabilityRegistry.SRC_NET_TCP, ConnectionTable.PROTO_TCP, true);
+        connTable.parse(CapabilityRegistry.SRC_NET_UDP, ConnectionTable.PROTO_UDP, false);
+        connTable.parse(CapabilityRegistry.SRC_NET_TCP6, ConnectionTable.PROTO_TCP, true);
+        connTable.parse(CapabilityRegistry.SRC_NET_UDP6, ConnectionTable.PROTO_UDP, false);
 
-        parseRawData(items, this, queryCache, "TCP", "/proc/net/tcp", false); //$NON-NLS-1$ //$NON-NLS-2$
-        parseRawData(items, this, queryCache, "UDP", "/proc/net/udp", true); //$NON-NLS-1$ //$NON-NLS-2$
-        parseRawData(items, this, queryCache, "TCP", "/proc/net/tcp6", false); //$NON-NLS-1$ //$NON-NLS-2$
-        parseRawData(items, this, queryCache, "UDP", "/proc/net/udp6", true); //$NON-NLS-1$ //$NON-NLS-2$
+        tracker.update(connTable, SystemClock.elapsedRealtime(), delta);
 
-        return items;
-    }
+        SharedPreferences prefStore =
+                getSharedPreferences(NETSTATE_MANAGER_STORE_NAME, Context.MODE_PRIVATE);
 
-    private static void parseRawData(final ArrayList<ConnectionItem> items, Context ctx,
-                                     HashMap<String, IpInfo> queryCache, String proto, String source, boolean ignoreState) {
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream(source)), 2048);
-
-            boolean first = true;
-            int localOffset = -1, remOffset = -1, stateOffset = -1, stateEndOffset = -1, uidEndOffset =
-                    -1;
-            String line;
-
-            boolean showRemoteName =
-                    Util.getBooleanOption(ctx, NETSTATE_MANAGER_STORE_NAME, PREF_KEY_SHOW_REMOTE_NAME);
-            boolean showSource =
-                    Util.getBooleanOption(ctx, NETSTATE_MANAGER_STORE_NAME, PREF_KEY_SHOW_CONNECTION_SOURCE);
-
-            String remoteIp;
-            int portIdx;
-            IpInfo remoteInfo;
-
-            while ((line = reader.readLine()) != null) {
-                if (first) {
-                    localOffset = line.indexOf("local_address"); //$NON-NLS-1$
-                    remOffset = line.indexOf("rem_address"); //$NON-NLS-1$
-                    if (remOffset == -1) {
-                        remOffset = line.indexOf("remote_address"); //$NON-NLS-1$
-                    }
-                    stateOffset = line.indexOf("st", remOffset); //$NON-NLS-1$
-                    stateEndOffset = line.indexOf(' ', stateOffset);
+        // the traffic totals change without any change of the connections
+        boolean traffic = Util.getBooleanOption(prefStore, PREF_KEY_SHOW_CONNECTION_SOURCE)
+                && Util.getBooleanOption(prefStore, PREF_KEY_SHOW_SOURCE_TRAFFIC)
+                && Util.getIntOption(prefStore, PREF_KEY_SORT_ORDER_TYPE, ORDER_TYPE_SOURCE)
+                == ORDER_TYPE_SOURCE;
 
-                    uidEndOffset = line.indexOf("uid", stateOffset); //$NON-NLS-1$
-                    if (uidEndOffset != -1) {
-                        uidEndOffset += 2;
-                    }
+        if (delta.isEmpty() && !relayout && !traffic) {
+            return;
+        }
 
-                    if (localOffset == -1 || remOffset == -1 || stateOffset == -1 || stateEndOffset == -1) {
-                        Log.e(NetStateManager.class.getName(), "Unexpected " //$NON-NLS-1$
-                                + proto + " header format: " //$NON-NLS-1$
-                                + line);
+        int type = Util.getIntOption(prefStore, PREF_KEY_SORT_ORDER_TYPE, ORDER_TYPE_SOURCE);
+        int secondType =
+                Util.getIntOption(prefStore, PREF_KEY_SECONDARY_SORT_ORDER_TYPE, ORDER_TYPE_PROTO);
 
-                        break;
-                    }
+        // only new connections and, if sorted by it, the state can change the order
+        boolean resort = relayout || sorted == null || !delta.inserted.isEmpty()
+                || (!delta.updated.isEmpty()
+                && (type == ORDER_TYPE_STATE || secondType == ORDER_TYPE_STATE));
 
-                    first = false;
-                } else {
-                    ConnectionItem ci = new ConnectionItem();
+        relayout = false;
 
-                    ci.proto = proto;
+        Connection[] items;
 
-                    ci.local = parseRawIP(line.substring(localOffset, remOffset).trim());
+        if (resort) {
+            items = tracker.getConnections();
 
-                    ci.remote = parseRawIP(line.substring(remOffset, stateOffset).trim());
+            Arrays.sort(items, new ConnectionComparator(type, Util.getIntOption(prefStore,
+                    PREF_KEY_SORT_DIRECTION, ORDER_ASC), secondType, Util.getIntOption(prefStore,
+                    PREF_KEY_SECONDARY_SORT_DIRECTION, ORDER_ASC)));
+        } else if (!delta.removed.isEmpty()) {
+            items = dropClosed(sorted, delta.removed.size());
+        } else {
+            items = sorted;
+        }
 
-                    if (showRemoteName) {
-                        remoteIp = getValidIP(ci.remote);
+        sorted = items;
 
-                        if (remoteIp != null) {
-                            remoteInfo = queryCache.get(remoteIp);
+        if (traffic && !uidTraffic.update(SystemClock.elapsedRealtime(), getUids(items))) {
+            traffic = false;
+        }
 
-                            if (remoteInfo != null && !TextUtils.isEmpty(remoteInfo.host)) {
-                                portIdx = ci.remote.lastIndexOf(':');
+        uidIndex = UidIndex.build(getPackageManager(), items, uidIndex, traffic ? uidTraffic
+                : null);
 
-                                if (portIdx != -1) {
-                                    ci.remoteName = remoteInfo.host + ci.remote.substring(portIdx);
-                                } else {
-                                    ci.remoteName = remoteInfo.host;
-                                }
-                            }
-                        }
-                    }
+        handler.sendMessage(handler.obtainMessage(MSG_CONNECTIONS, new PollResult(items,
+                uidIndex)));
+    }
 
-                    if (!ignoreState) {
-                        int st = Integer.parseInt(line.substring(stateOffset, stateEndOffset).trim(), 16);
+    /**
+     * @return the uids of the connections in ascending order, with duplicates
+     */
+    private static int[] getUids(Connection[] items) {
+        int[] uids = new int[items.length];
 
-                        ci.state = "Unknown"; //$NON-NLS-1$
+        for (int i = 0; i < items.length; i++) {
+            uids[i] = items[i].uid;
+        }
 
-                        if (st > 0 && st <= SOCKET_STATES.length) {
-                            ci.state = SOCKET_STATES[st - 1];
-                        }
-                    }
+        Arrays.sort(uids);
 
-                    if (showSource && uidEndOffset != -1) {
-                        int start = line.lastIndexOf(' ', uidEndOffset);
+        return uids;
+    }
 
-                        if (start != -1) {
-                            try {
-                                ci.uid = Integer.parseInt(line.substring(start + 1, uidEndOffset + 1));
-                            } catch (Exception e) {
-                                ci.uid = -1;
+    /**
+     * @return the connections that are still open, in the same order
+     */
+    private static Connection[] dropClosed(Connection[] items, int removed) {
+        Connection[] result = new Connection[Math.max(0, items.length - removed)];
 
-                                Log.e(NetStateManager.class.getName(), "Parsing UID error: " + line); //$NON-NLS-1$
-                            }
-                        }
-                    }
+        int n = 0;
 
-                    items.add(ci);
-                }
-            }
-        } catch (FileNotFoundException fe) {
-            Log.d(NetStateManager.class.getName(), "File not found: " + fe.getLocalizedMessage()); //$NON-NLS-1$
-        } catch (Exception e) {
-            Log.e(NetStateManager.class.getName(), e.getLocalizedMessage(), e);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(NetStateManager.class.getName(), e.getLocalizedMessage(), e);
-                }
+        for (Connection c : items) {
+            if (c.closedAt == 0 && n < result.length) {
+                result[n++] = c;
             }
         }
+
+        return result;
     }
 
     static String parseRawIP(String raw) {
@@ -1198,11 +1242,7 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
             }
 
             if (info.ip != null) {
-                String host = InetAddress.getByName(info.ip).getHostName();
-
-                if (!info.ip.equals(host)) {
-                    info.host = host;
-                }
+                info.host = IpInfoResolver.resolveHost(info.ip);
             }
         } catch (Exception e) {
             Log.e(NetStateManager.class.getName(), e.getLocalizedMessage(), e);
@@ -1338,6 +1378,9 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
 
             int labelId = R.string.normal;
             switch (interval) {
+                case REFRESH_HIGHER:
+                    labelId = R.string.higher;
+                    break;
                 case REFRESH_HIGH:
                     labelId = R.string.high;
                     break;
@@ -1415,10 +1458,12 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
             final String prefKey = preference.getKey();
 
             if (PREF_KEY_REFRESH_INTERVAL.equals(prefKey)) {
+                int interval = it.getIntExtra(PREF_KEY_REFRESH_INTERVAL, REFRESH_NORMAL);
+
                 OnClickListener listener = new OnClickListener() {
 
                     public void onClick(DialogInterface dialog, int which) {
-                        it.putExtra(PREF_KEY_REFRESH_INTERVAL, which);
+                        it.putExtra(PREF_KEY_REFRESH_INTERVAL, which == 0 ? REFRESH_HIGHER : (which - 1));
 
                         dialog.dismiss();
 
@@ -1430,11 +1475,12 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
                         .setTitle(ResUtil.getString(this, R.string.update_speed))
                         //.setNeutralButton(ResUtil.getString(this, R.string.close), null)
                         .setSingleChoiceItems(
-                                new CharSequence[]{ResUtil.getString(this, R.string.high),
+                                new CharSequence[]{ResUtil.getString(this, R.string.higher),
+                                        ResUtil.getString(this, R.string.high),
                                         ResUtil.getString(this, R.string.normal),
                                         ResUtil.getString(this, R.string.low),
                                         ResUtil.getString(this, R.string.paused),},
-                                it.getIntExtra(PREF_KEY_REFRESH_INTERVAL, REFRESH_NORMAL), listener).create()
+                                interval == REFRESH_HIGHER ? 0 : (interval + 1), listener).create()
                         .show();
 
                 return true;
@@ -1540,6 +1586,20 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
         }
     }
 
+    /**
+     * PollResult
+     */
+    private static final class PollResult {
+
+        final Connection[] items;
+        final UidIndex uids;
+
+        PollResult(Connection[] items, UidIndex uids) {
+            this.items = items;
+            this.uids = uids;
+        }
+    }
+
     /**
      * ConnectionViewHolder
      */
@@ -1561,31 +1621,170 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
     }
 
     /**
-     * ConnectionItem
+     * ConnectionAdapter
      */
-    private static final class ConnectionItem {
+    private final class ConnectionAdapter extends BaseAdapter {
+
+        /**
+         * connections in display order
+         */
+        Connection[] items = new Connection[0];
 
-        String proto;
-        String local;
-        String remote;
-        String remoteName;
-        String state;
-        int uid = -1;
+        /**
+         * owners of the items
+         */
+        UidIndex uids = UidIndex.EMPTY;
 
-        ConnectionItem() {
+        boolean showLocal, showRemoteName, showSource, sourcePrimary, showTraffic;
+
+        void setItems(Connection[] items, UidIndex uids) {
+            SharedPreferences prefStore =
+                    getSharedPreferences(NETSTATE_MANAGER_STORE_NAME, Context.MODE_PRIVATE);
 
+            showLocal = Util.getBooleanOption(prefStore, PREF_KEY_SHOW_LOCAL_ADDRESS);
+            showRemoteName = Util.getBooleanOption(prefStore, PREF_KEY_SHOW_REMOTE_NAME);
+            showSource = Util.getBooleanOption(prefStore, PREF_KEY_SHOW_CONNECTION_SOURCE);
+            showTraffic = Util.getBooleanOption(prefStore, PREF_KEY_SHOW_SOURCE_TRAFFIC);
+            sourcePrimary = Util.getIntOption(prefStore, PREF_KEY_SORT_ORDER_TYPE, ORDER_TYPE_SOURCE)
+                    == ORDER_TYPE_SOURCE;
+
+            this.items = items;
+            this.uids = uids;
+
+            notifyDataSetChanged();
+        }
+
+        /**
+         * @return the remote endpoint, with the host name if known and enabled
+         */
+        String getRemoteDisplay(Connection conn) {
+            String remote = conn.getRemote();
+
+            if (showRemoteName) {
+                String ip = conn.getRemoteIP();
+
+                if (ip != null) {
+                    String host = resolver.getCachedHost(ip);
+
+                    if (host != null) {
+                        return host + remote.substring(remote.lastIndexOf(':'));
+                    }
+
+                    // only asked for the rows on screen
+                    resolver.prefetchHost(ip, nameCallback);
+                }
+            }
+
+            return remote;
+        }
+
+        private String formatTraffic(long total, long rate) {
+            String s = Util.safeFormatFileSize(NetStateManager.this, total);
+
+            if (rate > 0) {
+                s += " (" + Util.safeFormatFileSize(NetStateManager.this, rate) + "/s)"; //$NON-NLS-1$ //$NON-NLS-2$
+            }
+
+            return s;
+        }
+
+        public int getCount() {
+            return items.length;
+        }
+
+        public Connection getItem(int position) {
+            return items[position];
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(int position, View convertView, android.view.ViewGroup parent) {
+            View view;
+
+            if (convertView == null) {
+                view = getLayoutInflater().inflate(R.layout.net_item, parent, false);
+            } else {
+                view = convertView;
+            }
+
+            if (position >= getCount()) {
+                return view;
+            }
+
+            if (view.getTag() == null) {
+                view.setTag(new ConnectionViewHolder(view));
+            }
+
+            ConnectionViewHolder viewHolder = (ConnectionViewHolder) view.getTag();
+
+            Connection conn = items[position];
+            int uid = conn.uid;
+
+            viewHolder.txt_proto.setText(conn.getProtoName());
+            // time since the connection was first seen in this list
+            viewHolder.txt_state.setText(conn.getStateName() + '\n'
+                    + formatAge(SystemClock.elapsedRealtime() - conn.firstSeen));
+
+            viewHolder.txt_proto.setBackgroundResource(
+                    conn.proto == ConnectionTable.PROTO_TCP ? R.drawable.bg_tcp : R.drawable.bg_udp);
+
+            if (showLocal) {
+                viewHolder.txt_ip.setText(conn.getLocal() + '\n' + getRemoteDisplay(conn));
+            } else {
+                viewHolder.txt_ip.setText(getRemoteDisplay(conn));
+            }
+
+            // rows sorted by source only show it on the first row of each source
+            if (!showSource || uid < 0
+                    || (sourcePrimary && position > 0 && items[position - 1].uid == uid)) {
+                viewHolder.procView.setVisibility(View.GONE);
+                viewHolder.procView2.setVisibility(View.GONE);
+            } else {
+                String label = uids.getLabel(uid);
+
+                if (label == null) {
+                    label = String.valueOf(uid);
+                }
+
+                if (sourcePrimary) {
+                    long tx = uids.getTx(uid);
+                    long rx = uids.getRx(uid);
+
+                    if (showTraffic && (tx > 0 || rx > 0)) {
+                        viewHolder.txtTraffic.setText("Tx: " //$NON-NLS-1$
+                                + formatTraffic(tx, uids.getTxRate(uid)) + ", Rx: " //$NON-NLS-1$
+                                + formatTraffic(rx, uids.getRxRate(uid)));
+
+                        viewHolder.txtTraffic.setVisibility(View.VISIBLE);
+                    } else {
+                        viewHolder.txtTraffic.setVisibility(View.GONE);
+                    }
+
+                    viewHolder.txtProc.setText(label);
+                    viewHolder.procView.setVisibility(View.VISIBLE);
+
+                    viewHolder.procView2.setVisibility(View.GONE);
+                } else {
+                    viewHolder.procView.setVisibility(View.GONE);
+
+                    viewHolder.txtSrc.setText(label);
+                    viewHolder.procView2.setVisibility(View.VISIBLE);
+                }
+            }
+
+            return view;
         }
     }
 
     /**
      * ConnectionComparator
      */
-    private static final class ConnectionComparator implements Comparator<ConnectionItem> {
+    private static final class ConnectionComparator implements Comparator<Connection> {
 
         int type, direction, secondType, secondDirection;
 
-        Collator clt = Collator.getInstance();
-
         ConnectionComparator(int type, int direction, int secondType, int secondDirection) {
             this.type = type;
             this.direction = direction;
@@ -1593,37 +1792,37 @@ public class NetStateManager extends ListActivity implements Constants, IActionM
             this.secondDirection = secondDirection;
         }
 
-        public int compare(ConnectionItem obj1, ConnectionItem obj2) {
-            int rlt = compare(clt, type, direction, obj1, obj2);
+        public int compare(Connection obj1, Connection obj2) {
+            int rlt = compare(type, direction, obj1, obj2);
 
             if (rlt == 0) {
-                rlt = compare(clt, secondType, secondDirection, obj1, obj2);
+                rlt = compare(secondType, secondDirection, obj1, obj2);
             }
 
             return rlt;
         }
 
-        private static int compare(Collator clt, int type, int direction, ConnectionItem obj1,
-                                   ConnectionItem obj2) {
+        private static int compare(int type, int direction, Connection obj1, Connection obj2) {
             switch (type) {
                 case ORDER_TYPE_PROTO:
 
-                    return clt.compare(obj1.proto, obj2.proto) * direction;
+                    return (obj1.proto - obj2.proto) * direction;
 
                 case ORDER_TYPE_LOCAL:
 
-                    return clt.compare(obj1.local, obj2.local) * direction;
+                    return obj1.compareLocal(obj2) * direction;
 
                 case ORDER_TYPE_REMOTE:
 
-                    return clt.compare(obj1.remoteName == null ? obj1.remote : obj1.remoteName,
-                            obj2.remoteName == null ? obj2.remote : obj2.remoteName) * direction;
+                    return obj1.compareRemote(obj2) * direction;
 
                 case ORDER_TYPE_STATE:
 
-                    return clt.compare(obj1.state == null ? "" //$NON-NLS-1$
-                            : obj1.state, obj2.state == null ? "" //$NON-NLS-1$
-                            : obj2.state) * direction;
+                    String st1 = obj1.getStateName();
+                    String st2 = obj2.getStateName();
+
+                    return (st1 == null ? "" : st1).compareTo(st2 == null ? "" : st2) //$NON-NLS-1$ //$NON-NLS-2$
+                            * direction;
 
                 case ORDER_TYPE_SOURCE:
 
@@ -136,14 +136,11 @@ public final class NetworkInfoActivity extends PopActivity {
                                 progress.setIndeterminate(true);
                                 progress.show();
 
-                                new Thread(new Runnable() {
+                                // the own address is looked up each time, it is not cached
+                                IpInfoResolver.getInstance(NetworkInfoActivity.this).query(null,
+                                        new IpInfoResolver.Callback() {
 
-                                    public void run() {
-                                        final IpInfo info = NetStateManager.getIpInfoDirect(null);
-
-                                        contentView.post(new Runnable() {
-
-                                            public void run() {
+                                            public void onResolved(IpInfo info) {
                                                 Util.safeDismissDialog(progress);
 
                                                 NetStateManager.showIpInfo(info, NetworkInfoActivity.this);
@@ -164,8 +161,6 @@ public final class NetworkInfoActivity extends PopActivity {
                                                 ((ArrayAdapter<String[]>) contentView.getAdapter()).notifyDataSetChanged();
                                             }
                                         });
-                                    }
-                                }, "IpInfoRequester").start(); //$NON-NLS-1$
                             }
                         });
                     }
@@ -29,6 +29,7 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.text.Html;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
@@ -44,9 +45,6 @@ import android.view.WindowManager.LayoutParams;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import org.uguess.android.sysinfo.StatusUpdaterService.Graph;
-
-
 /**
  * PopService
  */
@@ -250,7 +248,7 @@ public class PopService extends Service {
     }
 
     static void updateView(Context ctx, View contentView, int viewIcon, CharSequence title,
-                           int titleColor, CharSequence text, int textColor, Graph[] graph, int[] percent, int color) {
+                           int titleColor, CharSequence text, int textColor, HistoryGraph graph, int[] percent, int color) {
         if (viewIcon != 0) {
             ((ImageView) contentView.findViewById(R.id.icon)).setImageResource(viewIcon);
         }
@@ -268,22 +266,17 @@ public class PopService extends Service {
             contentView.findViewById(R.id.text).setVisibility(View.GONE);
         }
 
-        updateGraph(contentView, graph, percent, color, 0, R.id.graph);
-        updateGraph(contentView, graph, percent, color, 1, R.id.graph1);
-        updateGraph(contentView, graph, percent, color, 2, R.id.graph2);
-        updateGraph(contentView, graph, percent, color, 3, R.id.graph3);
-        updateGraph(contentView, graph, percent, color, 4, R.id.graph4);
-        updateGraph(contentView, graph, percent, color, 5, R.id.graph5);
-        updateGraph(contentView, graph, percent, color, 6, R.id.graph6);
-        updateGraph(contentView, graph, percent, color, 7, R.id.graph7);
+        updateGraph(contentView, graph, percent, color, R.id.graph);
     }
 
-    static void updateGraph(View contentView, Graph[] graph, int[] percent, int color, int idx,
+    static void updateGraph(View contentView, HistoryGraph graph, int[] percent, int color,
                             int viewId) {
-        if (graph != null && graph.length > idx && graph[idx] != null) {
-            graph[idx].update(percent[idx], color);
+        if (graph != null) {
+            if (percent != null) {
+                graph.update(percent, color);
+            }
             contentView.findViewById(viewId).setVisibility(View.VISIBLE);
-            ((ImageView) contentView.findViewById(viewId)).setImageBitmap(graph[idx].bmp);
+            ((ImageView) contentView.findViewById(viewId)).setImageBitmap(graph.bmp);
         } else {
             contentView.findViewById(viewId).setVisibility(View.GONE);
             ((ImageView) contentView.findViewById(viewId)).setImageBitmap(null);
@@ -293,7 +286,7 @@ public class PopService extends Service {
     /**
      * BaseUpdater
      */
-    static abstract class BaseUpdater implements Runnable {
+    static abstract class BaseUpdater implements Runnable, SamplerHub.Listener {
 
         Context ctx;
         Handler handler;
@@ -303,6 +296,25 @@ public class PopService extends Service {
 
         boolean cancelled;
 
+        /**
+         * whether the graph shows the last hour from the shared rollup and the persistent history
+         * instead of the live samples
+         */
+        boolean hourView;
+
+        int[][] hourData;
+
+        /**
+         * averages read from the persistent history, for the buckets the rollup has no samples for
+         */
+        int[][] storedData;
+
+        long storedBucket = -1;
+
+        int storedSeries = -1;
+
+        SamplerHub.Subscription subscription;
+
         BaseUpdater(Context ctx, View contentView, Handler handler, long delay) {
             this.ctx = ctx;
             this.contentView = contentView;
@@ -317,6 +329,11 @@ public class PopService extends Service {
 
                                 public void onClick(DialogInterface dialog, int which) {
                                     BaseUpdater.this.delay = which == 0 ? 500 : (which == 3 ? 4000 : (which * 1000));
+
+                                    if (subscription != null) {
+                                        SamplerHub.getInstance(BaseUpdater.this.ctx).setPeriod(subscription,
+                                                BaseUpdater.this.delay);
+                                    }
                                 }
                             };
 
@@ -354,24 +371,171 @@ public class PopService extends Service {
             };
 
             contentView.findViewById(R.id.icon).setOnLongClickListener(listener);
+
+            contentView.findViewById(R.id.graph).setOnClickListener(new OnClickListener() {
+
+                public void onClick(View v) {
+                    hourView = !hourView;
+
+                    onViewChanged();
+                }
+            });
+        }
+
+        /**
+         * Called when switched between the live and the last hour view.
+         */
+        void onViewChanged() {
+            // nothing by default
+        }
+
+        /**
+         * Fills the graph with the per minute averages of the last hour.
+         *
+         * @param firstSeries the MetricsRollup series of the first lane
+         */
+        void loadHourView(HistoryGraph graph, int firstSeries, int color) {
+            int lanes = graph.getLanes();
+            int bars = Math.min(graph.getBarCount(), MetricsRollup.BUCKETS);
+
+            if (hourData == null || hourData.length != lanes || hourData[0].length != bars) {
+                hourData = new int[lanes][bars];
+            }
+
+            MetricsRollup rollup = MetricsRollup.getShared();
+            long now = SystemClock.elapsedRealtime();
+
+            for (int i = 0; i < lanes; i++) {
+                rollup.read(firstSeries + i, MetricsRollup.LEVEL_1MIN, MetricsRollup.KIND_AVG, now,
+                        hourData[i], bars);
+            }
+
+            fillFromHistory(firstSeries, hourData, lanes, bars, now);
+
+            graph.set(hourData, bars, color);
+        }
+
+        /**
+         * Fills the empty buckets from the persistent history, which reaches back across service
+         * and device restarts. The history is read again only when a new bucket starts.
+         *
+         * @param count number of consecutive series from the first one
+         */
+        void fillFromHistory(int firstSeries, int[][] data, int count, int bars, long now) {
+            long width = MetricsRollup.getLevelWidth(MetricsRollup.LEVEL_1MIN);
+            long bucket = now / width;
+
+            if (storedData == null || storedData.length != count || storedData[0].length != bars) {
+                storedData = new int[count][bars];
+                storedBucket = -1;
+            }
+
+            if (storedBucket != bucket || storedSeries != firstSeries) {
+                // wall clock start of the oldest bucket
+                long from = (bucket - bars + 1) * width + System.currentTimeMillis() - now;
+
+                MetricsHistory history = MetricsHistory.getInstance(ctx);
+
+                for (int i = 0; i < count; i++) {
+                    history.readAverages(firstSeries + i, from, width, storedData[i], bars);
+                }
+
+                storedBucket = bucket;
+                storedSeries = firstSeries;
+            }
+
+            for (int i = 0; i < count; i++) {
+                int[] values = data[i];
+                int[] stored = storedData[i];
+
+                for (int k = 0; k < bars; k++) {
+                    if (values[k] == MetricsRollup.EMPTY) {
+                        values[k] = stored[k];
+                    }
+                }
+            }
         }
 
-        abstract void update();
+        /**
+         * Shows the last hour of the per core series averaged by cluster.
+         */
+        void loadClusterHourView(HistoryGraph graph, CpuTopology topology, int color) {
+            int lanes = graph.getLanes();
+            int bars = Math.min(graph.getBarCount(), MetricsRollup.BUCKETS);
+            int cores = Math.min(topology.getCoreCount(), MetricsHistory.MAX_CORES);
+
+            if (hourData == null || hourData.length != lanes || hourData[0].length != bars) {
+                hourData = new int[lanes][bars];
+            }
+
+            int[][] coreData = new int[cores][bars];
+            int[] coreValues = new int[cores];
+            int[] clusterValues = new int[topology.getClusterCount()];
+
+            MetricsRollup rollup = MetricsRollup.getShared();
+            long now = SystemClock.elapsedRealtime();
+
+            for (int i = 0; i < cores; i++) {
+                rollup.read(MetricsRollup.SERIES_CORE + i, MetricsRollup.LEVEL_1MIN,
+                        MetricsRollup.KIND_AVG, now, coreData[i], bars);
+            }
+
+            fillFromHistory(MetricsRollup.SERIES_CORE, coreData, cores, bars, now);
+
+            for (int k = 0; k < bars; k++) {
+                boolean empty = true;
+
+                for (int i = 0; i < cores; i++) {
+                    coreValues[i] = coreData[i][k];
+
+                    empty = empty && coreValues[i] == MetricsRollup.EMPTY;
+                }
+
+                if (empty) {
+                    // no samples in this minute, keep it as a gap
+                    for (int c = 0; c < lanes; c++) {
+                        hourData[c][k] = MetricsRollup.EMPTY;
+                    }
+                    continue;
+                }
+
+                // empty buckets are negative and skipped
+                topology.aggregate(coreValues, clusterValues);
+
+                for (int c = 0; c < lanes && c < clusterValues.length; c++) {
+                    hourData[c][k] = clusterValues[c];
+                }
+            }
+
+            graph.set(hourData, bars, color);
+        }
+
+        /**
+         * @return the sampler hub metrics this updater needs
+         */
+        abstract int getMetrics();
+
+        abstract void update(SamplerHub.Sample sample);
 
         int getRealGraphWidth(DisplayMetrics dm) {
             int usable = (int) (dm.widthPixels / dm.density - 8);
             return Math.min(StatusUpdaterService.GRAPH_WIDTH, usable);
         }
 
+        /**
+         * Starts receiving samples from the sampler hub.
+         */
         public void run() {
-            if (cancelled) {
+            if (cancelled || subscription != null || delay <= 0) {
                 return;
             }
 
-            update();
+            subscription = SamplerHub.getInstance(ctx).subscribe(getMetrics(), delay, handler, this);
+        }
 
-            if (delay > 0 && !cancelled) {
-                handler.postDelayed(this, delay);
+        public void onSample(SamplerHub.Sample sample) {
+            if (!cancelled) {
+                update(sample);
             }
         }
 
@@ -379,14 +543,10 @@ public class PopService extends Service {
             cancelled = true;
             handler.removeCallbacks(this);
 
+            SamplerHub.getInstance(ctx).unsubscribe(subscription);
+            subscription = null;
+
             ((ImageView) contentView.findViewById(R.id.graph)).setImageBitmap(null);
-            ((ImageView) contentView.findViewById(R.id.graph1)).setImageBitmap(null);
-            ((ImageView) contentView.findViewById(R.id.graph2)).setImageBitmap(null);
-            ((ImageView) contentView.findViewById(R.id.graph3)).setImageBitmap(null);
-            ((ImageView) contentView.findViewById(R.id.graph4)).setImageBitmap(null);
-            ((ImageView) contentView.findViewById(R.id.graph5)).setImageBitmap(null);
-            ((ImageView) contentView.findViewById(R.id.graph6)).setImageBitmap(null);
-            ((ImageView) contentView.findViewById(R.id.graph7)).setImageBitmap(null);
         }
     }
 
@@ -395,55 +555,52 @@ public class PopService extends Service {
      */
     static final class CpuUpdater extends BaseUpdater {
 
-        long[] lastLoad;
-        long[][] lastAllLoad;
+        int[] percents, clusterPercents;
 
-        CpuState cpuObj = new CpuState();
+        SamplerHub.Sample lastSample;
 
-        Graph infoGraph;
-        Graph[] extraInfoGraph;
+        HistoryGraph infoGraph;
 
         CpuUpdater(Context ctx, View contentView, Handler handler, long delay) {
             super(ctx, contentView, handler, delay);
         }
 
         @Override
-        void update() {
-            int cl = 1;
-            int pl = 0;
+        int getMetrics() {
+            int metrics = SamplerHub.METRIC_CPU | SamplerHub.METRIC_CPU_FREQ;
 
-            long[] load = ProcessManager.readCpuLoad();
+            if (CpuTopology.get().getCoreCount() > 1) {
+                metrics |= SamplerHub.METRIC_CPU_CORES;
+            }
 
-            if (lastLoad != null && load != null) {
-                long totaldelta = load[0] + load[1] - (lastLoad[0] + lastLoad[1]);
+            return metrics;
+        }
 
-                if (totaldelta != 0) {
-                    long workdelta = load[0] - lastLoad[0];
+        @Override
+        void update(SamplerHub.Sample sample) {
+            int cl = 1;
+            int pl = 0;
 
-                    cl = (int) (workdelta * 100 / totaldelta);
+            SamplerHub.Sample last = lastSample;
+            lastSample = sample;
 
-                    if (cl < 0) {
-                        cl = 0;
-                    }
+            int pc = sample.coreLoads != null ? sample.coreLoads.length : 1;
 
-                    if (cl > 100) {
-                        cl = 100;
-                    }
+            int percent = CpuLoadReader.getLoadPercent(sample.cpuLoad, last == null ? null
+                    : last.cpuLoad);
 
-                    pl = cl;
+            if (percent >= 0) {
+                pl = percent;
 
-                    cl = (cl / 15) + 1;
-                }
+                cl = (percent / 15) + 1;
             }
 
-            lastLoad = load;
-
             StringBuilder cpuState = new StringBuilder();
 
             cpuState.append(ResUtil.getString(ctx, R.string.cpu_usage));
             cpuState.append(": ").append(pl).append('%'); //$NON-NLS-1$
 
-            String[] cs = cpuObj.getMips();
+            String[] cs = sample.mips;
             if (cs != null && cs.length > 0) {
                 if (cs.length == 1) {
                     if (cs[0] != null) {
@@ -466,83 +623,71 @@ public class PopService extends Service {
 
             // if ( showCpuHistory )
             {
-                int pc = Runtime.getRuntime().availableProcessors();
+                if (percents == null || percents.length != pc) {
+                    percents = new int[pc];
+                }
 
                 if (pc > 1) {
-                    long[][] allLoad = ProcessManager.readAllCpuLoad(pc);
-
-                    int[] percents = new int[pc];
-
-                    if (lastAllLoad != null && allLoad != null) {
-                        for (int i = 0; i < pc; i++) {
-                            if (allLoad[i] == null || i >= lastAllLoad.length || lastAllLoad[i] == null) {
-                                continue;
-                            }
-
-                            long totaldelta =
-                                    allLoad[i][0] + allLoad[i][1] - (lastAllLoad[i][0] + lastAllLoad[i][1]);
-
-                            if (totaldelta != 0) {
-                                long workdelta = allLoad[i][0] - lastAllLoad[i][0];
+                    long[][] lastCores = last == null ? null : last.coreLoads;
 
-                                percents[i] = (int) (workdelta * 100 / totaldelta);
+                    // offline cores stay negative and are drawn empty
+                    for (int i = 0; i < pc; i++) {
+                        percents[i] = CpuLoadReader.getLoadPercent(sample.coreLoads[i],
+                                lastCores != null && i < lastCores.length ? lastCores[i] : null);
+                    }
+                } else {
+                    percents[0] = pl;
+                }
 
-                                if (percents[i] < 0) {
-                                    percents[i] = 0;
-                                }
+                int lanes = StatusUpdaterService.getCoreLanes(sample.topology, pc);
+                int[] laneData = percents;
 
-                                if (percents[i] > 100) {
-                                    percents[i] = 100;
-                                }
-                            }
-                        }
+                if (lanes != pc) {
+                    if (clusterPercents == null || clusterPercents.length != lanes) {
+                        clusterPercents = new int[lanes];
                     }
 
-                    lastAllLoad = allLoad;
+                    sample.topology.aggregate(percents, clusterPercents);
 
-                    if (extraInfoGraph == null || extraInfoGraph.length != pc) {
-                        if (extraInfoGraph != null) {
-                            for (Graph g : extraInfoGraph) {
-                                g.release();
-                            }
-                        }
+                    laneData = clusterPercents;
+                }
 
-                        extraInfoGraph = new Graph[pc];
+                if (infoGraph == null || infoGraph.getLanes() != lanes) {
+                    if (infoGraph != null) {
+                        infoGraph.release();
+                    }
 
-                        DisplayMetrics dm = ctx.getResources().getDisplayMetrics();
-                        float scale = dm.density;
+                    DisplayMetrics dm = ctx.getResources().getDisplayMetrics();
 
-                        int width = (int) ((getRealGraphWidth(dm) - pc * 2 - 2) * scale / pc);
+                    infoGraph = HistoryGraph.create(dm, getRealGraphWidth(dm), lanes);
+                }
 
-                        for (int i = 0; i < pc; i++) {
-                            extraInfoGraph[i] =
-                                    new Graph(width, (int) (StatusUpdaterService.GRAPH_HEIGHT * scale),
-                                            (int) (StatusUpdaterService.GRAPH_BAR * scale),
-                                            (int) (StatusUpdaterService.GRAPH_SPACE * scale),
-                                            (int) (StatusUpdaterService.GRAPH_BORDER * scale));
-                        }
+                if (hourView) {
+                    if (lanes != pc) {
+                        loadClusterHourView(infoGraph, sample.topology, 0xff52b652);
+                    } else {
+                        loadHourView(infoGraph, pc > 1 ? MetricsRollup.SERIES_CORE
+                                : MetricsRollup.SERIES_CPU, 0xff52b652);
                     }
 
-                    updateView(ctx, contentView, R.drawable.icon, cpuState, TEXT_COLOR_PRIMARY, null, 0,
-                            extraInfoGraph, percents, 0xff52b652);
+                    updateView(ctx, contentView, R.drawable.icon, cpuState, TEXT_COLOR_PRIMARY,
+                            ResUtil.getString(ctx, R.string.last_hour_hint), TEXT_COLOR_SECONDARY,
+                            infoGraph, null, 0xff52b652);
                 } else {
-                    if (infoGraph == null) {
-                        DisplayMetrics dm = ctx.getResources().getDisplayMetrics();
-                        float scale = dm.density;
-                        infoGraph =
-                                new Graph((int) (getRealGraphWidth(dm) * scale),
-                                        (int) (StatusUpdaterService.GRAPH_HEIGHT * scale),
-                                        (int) (StatusUpdaterService.GRAPH_BAR * scale),
-                                        (int) (StatusUpdaterService.GRAPH_SPACE * scale),
-                                        (int) (StatusUpdaterService.GRAPH_BORDER * scale));
-                    }
-
                     updateView(ctx, contentView, R.drawable.icon, cpuState, TEXT_COLOR_PRIMARY, null, 0,
-                            new Graph[]{infoGraph}, new int[]{pl}, 0xff52b652);
+                            infoGraph, laneData, 0xff52b652);
                 }
             }
         }
 
+        @Override
+        void onViewChanged() {
+            // the live view starts over
+            if (infoGraph != null) {
+                infoGraph.clear();
+            }
+        }
+
         @Override
         public void dispose() {
             super.dispose();
@@ -551,16 +696,6 @@ public class PopService extends Service {
                 infoGraph.release();
                 infoGraph = null;
             }
-
-            if (extraInfoGraph != null) {
-                for (Graph g : extraInfoGraph) {
-                    if (g != null) {
-                        g.release();
-                    }
-                }
-
-                extraInfoGraph = null;
-            }
         }
     }
 
@@ -569,63 +704,61 @@ public class PopService extends Service {
      */
     static final class MemUpdater extends BaseUpdater {
 
-        Graph taskGraph;
+        HistoryGraph taskGraph;
 
         MemUpdater(Context ctx, View contentView, Handler handler, long delay) {
             super(ctx, contentView, handler, delay);
         }
 
         @Override
-        void update() {
+        int getMetrics() {
+            return SamplerHub.METRIC_MEM;
+        }
+
+        @Override
+        void update(SamplerHub.Sample sample) {
 
-            int cl = 1;
             int pl = 0;
             String size = ResUtil.getString(ctx, R.string.unknown);
 
-            long[] mem = Util.getMemState(ctx);
-
-            if (mem != null && mem[0] > 0) {
-                long used = mem[0] - mem[2];
-
-                if (used < 0) {
-                    used = 0;
-                }
-
-                size = Util.safeFormatFileSize(ctx, used);
-
-                cl = (int) (used * 100 / mem[0]);
+            int percent = sample.getMemPercent();
 
-                if (cl < 0) {
-                    cl = 0;
-                }
-
-                if (cl > 100) {
-                    cl = 100;
-                }
+            if (percent >= 0) {
+                size = Util.safeFormatFileSize(ctx, sample.getMemUsed());
 
-                pl = cl;
-
-                cl = (cl / 15) + 1;
+                pl = percent;
             }
 
             // if ( showMemHistory )
             {
                 if (taskGraph == null) {
                     DisplayMetrics dm = ctx.getResources().getDisplayMetrics();
-                    float scale = dm.density;
-                    taskGraph =
-                            new Graph((int) (getRealGraphWidth(dm) * scale),
-                                    (int) (StatusUpdaterService.GRAPH_HEIGHT * scale),
-                                    (int) (StatusUpdaterService.GRAPH_BAR * scale),
-                                    (int) (StatusUpdaterService.GRAPH_SPACE * scale),
-                                    (int) (StatusUpdaterService.GRAPH_BORDER * scale));
+
+                    taskGraph = HistoryGraph.create(dm, getRealGraphWidth(dm), 1);
                 }
 
-                updateView(ctx, contentView, R.drawable.end, ResUtil.getString(ctx, R.string.memory_usage)
-                                + ": " //$NON-NLS-1$
-                                + pl + "% (" //$NON-NLS-1$
-                                + size + ')', TEXT_COLOR_PRIMARY, null, 0, new Graph[]{taskGraph}, new int[]{pl},
-                        0xff5275c6);
+                String title = ResUtil.getString(ctx, R.string.memory_usage) + ": " //$NON-NLS-1$
+                        + pl + "% (" //$NON-NLS-1$
+                        + size + ')';
+
+                if (hourView) {
+                    loadHourView(taskGraph, MetricsRollup.SERIES_MEM, 0xff5275c6);
+
+                    updateView(ctx, contentView, R.drawable.end, title, TEXT_COLOR_PRIMARY,
+                            ResUtil.getString(ctx, R.string.last_hour_hint), TEXT_COLOR_SECONDARY,
+                            taskGraph, null, 0xff5275c6);
+                } else {
+                    updateView(ctx, contentView, R.drawable.end, title, TEXT_COLOR_PRIMARY, null, 0,
+                            taskGraph, new int[]{pl}, 0xff5275c6);
+                }
+            }
+        }
+
+        @Override
+        void onViewChanged() {
+            // the live view starts over
+            if (taskGraph != null) {
+                taskGraph.clear();
             }
         }
 
@@ -652,7 +785,12 @@ public class PopService extends Service {
         }
 
         @Override
-        void update() {
+        int getMetrics() {
+            return SamplerHub.METRIC_NET;
+        }
+
+        @Override
+        void update(SamplerHub.Sample sample) {
             ConnectivityManager cm =
                     (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
 
@@ -663,11 +801,14 @@ public class PopService extends Service {
                     String netDev = null;
                     String netType = nif.getSubtypeName();
                     boolean forceHideIcon = false;
+                    long rx = 0, tx = 0;
 
                     nif = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
 
                     if (nif != null && nif.isConnected()) {
-                        netDev = Util.getActiveWifiDevice();
+                        netDev = sample.wifiDev;
+                        rx = sample.wifiRx;
+                        tx = sample.wifiTx;
                         netType = "Wi-Fi"; //$NON-NLS-1$
 
                         // if ( showSsid )
@@ -681,37 +822,22 @@ public class PopService extends Service {
                             }
                         }
                     } else {
-                        netDev = Util.getActiveCellDevice();
+                        netDev = sample.cellDev;
+                        rx = sample.cellRx;
+                        tx = sample.cellTx;
                         forceHideIcon = true;
                     }
 
                     if (netDev != null) {
-                        long rx = Util.getRxBytes(netDev);
-                        long tx = Util.getTxBytes(netDev);
-
                         long drx = 0;
                         long dtx = 0;
 
-                        if (delay > 0) {
-                            if (lastRx != 0) {
-                                drx = rx - lastRx;
-
-                                if (drx > 0) {
-                                    drx = drx * 1000 / delay;
-                                } else {
-                                    drx = 0;
-                                }
-                            }
-
-                            if (lastTx != 0) {
-                                dtx = tx - lastTx;
+                        // rates are measured by the sampler against the real interval
+                        NetDevStats.Iface itf = sample.getIface(netDev);
 
-                                if (dtx > 0) {
-                                    dtx = dtx * 1000 / delay;
-                                } else {
-                                    dtx = 0;
-                                }
-                            }
+                        if (itf != null) {
+                            drx = itf.rxRate;
+                            dtx = itf.txRate;
                         }
 
                         lastRx = rx;
@@ -0,0 +1,417 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ProcScanner <br>
+ * <br>
+ * Lists the processes under /proc with their names. A process is identified by pid and start
+ * time, so a reused pid is seen as a new process. The name is read from cmdline only for new
+ * processes, and once more on the next scan as it changes right after a fork from zygote; for
+ * known processes only the stat file is read. The pids are read by a few threads that take
+ * chunks from a shared cursor, each with its own buffer. Results are kept as parallel arrays
+ * where row i belongs to the i-th pid in ascending order.
+ */
+final class ProcScanner {
+
+    /**
+     * pids taken by a thread at a time
+     */
+    private static final int CHUNK = 16;
+
+    private static final int MAX_THREADS = 4;
+
+    // field index after the ")" that closes the comm field
+    private static final int STAT_STARTTIME = 19;
+
+    private static ProcScanner instance;
+
+    int size;
+
+    int[] pid = new int[0];
+
+    /**
+     * start time in clock ticks after boot, or -1 if the process has gone while scanning
+     */
+    long[] starttime = new long[0];
+
+    /**
+     * the first argument of cmdline, or empty for kernel threads and zombies
+     */
+    String[] name = new String[0];
+
+    /**
+     * whether the name was read in an earlier scan with the same value
+     */
+    private boolean[] settled = new boolean[0];
+
+    /**
+     * the rows of the last scan, looked up while the next scan runs
+     */
+    private int cacheSize;
+    private int[] cachePid = new int[0];
+    private long[] cacheStart = new long[0];
+    private String[] cacheName = new String[0];
+    private boolean[] cacheSettled = new boolean[0];
+
+    private final Reader[] readers;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Reader. Reads the rows of the chunks it takes with its own buffer.
+     */
+    private final class Reader implements Runnable {
+
+        private byte[] buf = new byte[512];
+
+        AtomicInteger cursor;
+        CountDownLatch done;
+
+        public void run() {
+            try {
+                int start;
+
+                while ((start = cursor.getAndAdd(CHUNK)) < size) {
+                    int end = Math.min(start + CHUNK, size);
+
+                    for (int i = start; i < end; i++) {
+                        readRow(i);
+                    }
+                }
+            } finally {
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        }
+
+        private void readRow(int row) {
+            int p = pid[row];
+
+            int len = fill("/proc/" + p + "/stat"); //$NON-NLS-1$ //$NON-NLS-2$
+
+            long st = len > 0 ? parseStartTime(len) : -1;
+
+            starttime[row] = st;
+
+            if (st == -1) {
+                name[row] = ""; //$NON-NLS-1$
+                settled[row] = false;
+                return;
+            }
+
+            int idx = Arrays.binarySearch(cachePid, 0, cacheSize, p);
+
+            if (idx >= 0 && cacheStart[idx] == st && cacheSettled[idx]) {
+                name[row] = cacheName[idx];
+                settled[row] = true;
+                return;
+            }
+
+            len = fill("/proc/" + p + "/cmdline"); //$NON-NLS-1$ //$NON-NLS-2$
+
+            String nm = len > 0 ? parseCmdline(len) : ""; //$NON-NLS-1$
+
+            name[row] = nm;
+
+            // same process and the name has not changed since the last scan
+            settled[row] = idx >= 0 && cacheStart[idx] == st && cacheName[idx].equals(nm);
+        }
+
+        private long parseStartTime(int len) {
+            // the comm field may contain spaces and parentheses, so start after the last ')'
+            int pos = len - 1;
+
+            while (pos >= 0 && buf[pos] != ')') {
+                pos--;
+            }
+
+            if (pos < 0) {
+                return -1;
+            }
+
+            pos++;
+
+            for (int field = 0; pos < len; field++) {
+                while (pos < len && buf[pos] == ' ') {
+                    pos++;
+                }
+
+                int start = pos;
+
+                while (pos < len && buf[pos] != ' ' && buf[pos] != '\n') {
+                    pos++;
+                }
+
+                if (field == STAT_STARTTIME) {
+                    return FileHandlePool.parseLong(buf, start, pos - start);
+                }
+            }
+
+            return -1;
+        }
+
+        private String parseCmdline(int len) {
+            int end = 0;
+
+            while (end < len && buf[end] != 0) {
+                end++;
+            }
+
+            // the arguments may be rewritten to a single string padded with spaces
+            while (end > 0 && buf[end - 1] <= ' ') {
+                end--;
+            }
+
+            if (end == 0) {
+                return ""; //$NON-NLS-1$
+            }
+
+            try {
+                return new String(buf, 0, end, "UTF-8"); //$NON-NLS-1$
+            } catch (IOException e) {
+                return new String(buf, 0, end);
+            }
+        }
+
+        /**
+         * @return number of bytes read into the buffer, or -1 if the file is not accessible
+         */
+        private int fill(String fname) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(fname, "r"); //$NON-NLS-1$
+
+                int len = 0;
+                int n;
+
+                while ((n = raf.read(buf, len, buf.length - len)) > 0) {
+                    len += n;
+
+                    if (len == buf.length) {
+                        byte[] nbuf = new byte[buf.length * 2];
+                        System.arraycopy(buf, 0, nbuf, 0, len);
+                        buf = nbuf;
+                    }
+                }
+
+                return len;
+            } catch (FileNotFoundException fe) {
+                // process is gone or not accessible
+            } catch (IOException e) {
+                // e.g. ESRCH when the process exits while reading
+                Log.d(ProcScanner.class.getName(), "Read fail: " + fname); //$NON-NLS-1$
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                        Log.e(ProcScanner.class.getName(), e.getLocalizedMessage(), e);
+                    }
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    private ProcScanner() {
+        int threads = Math.max(1, Math.min(MAX_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+
+        readers = new Reader[threads];
+
+        for (int i = 0; i < threads; i++) {
+            readers[i] = new Reader();
+        }
+
+        // the calling thread reads as well
+        int helpers = Math.max(1, threads - 1);
+
+        executor = new ThreadPoolExecutor(helpers, helpers, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ProcScanner-" + count.incrementAndGet()); //$NON-NLS-1$
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        if (Util.SDK_VER >= 9) {
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    static synchronized ProcScanner getInstance() {
+        if (instance == null) {
+            instance = new ProcScanner();
+        }
+        return instance;
+    }
+
+    /**
+     * Lists the processes, callers should hold the lock of the scanner while reading the rows.
+     *
+     * @return number of rows
+     */
+    synchronized int scan() {
+        String[] files = new File("/proc").list(); //$NON-NLS-1$
+
+        if (files == null) {
+            size = 0;
+            return 0;
+        }
+
+        ensureCapacity(files.length);
+
+        int n = 0;
+
+        for (String f : files) {
+            int p = parsePid(f);
+
+            if (p > 0) {
+                pid[n++] = p;
+            }
+        }
+
+        Arrays.sort(pid, 0, n);
+
+        size = n;
+
+        AtomicInteger cursor = new AtomicInteger();
+
+        int helpers = n > CHUNK ? readers.length - 1 : 0;
+
+        CountDownLatch done = new CountDownLatch(helpers);
+
+        for (int i = 1; i <= helpers; i++) {
+            Reader r = readers[i];
+
+            r.cursor = cursor;
+            r.done = done;
+
+            try {
+                executor.execute(r);
+            } catch (RejectedExecutionException e) {
+                done.countDown();
+            }
+        }
+
+        Reader self = readers[0];
+
+        self.cursor = cursor;
+        self.done = null;
+        self.run();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Log.e(ProcScanner.class.getName(), e.getLocalizedMessage(), e);
+
+            Thread.currentThread().interrupt();
+        }
+
+        updateCache();
+
+        return n;
+    }
+
+    /**
+     * Keeps the rows of this scan for the next one, processes that have gone are dropped.
+     */
+    private void updateCache() {
+        if (cachePid.length < size) {
+            int cap = pid.length;
+
+            cachePid = new int[cap];
+            cacheStart = new long[cap];
+            cacheName = new String[cap];
+            cacheSettled = new boolean[cap];
+        }
+
+        int n = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (starttime[i] != -1) {
+                cachePid[n] = pid[i];
+                cacheStart[n] = starttime[i];
+                cacheName[n] = name[i];
+                cacheSettled[n] = settled[i];
+                n++;
+            }
+        }
+
+        for (int i = n; i < cacheSize; i++) {
+            cacheName[i] = null;
+        }
+
+        cacheSize = n;
+    }
+
+    private void ensureCapacity(int count) {
+        if (pid.length >= count) {
+            return;
+        }
+
+        int cap = Math.max(count, pid.length * 2);
+
+        pid = new int[cap];
+        starttime = new long[cap];
+        name = new String[cap];
+        settled = new boolean[cap];
+    }
+
+    private static int parsePid(String f) {
+        int len = f.length();
+
+        if (len == 0 || len > 9) {
+            return -1;
+        }
+
+        int value = 0;
+
+        for (int i = 0; i < len; i++) {
+            char c = f.charAt(i);
+
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+}
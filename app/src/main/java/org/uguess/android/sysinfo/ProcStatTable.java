@@ -0,0 +1,406 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * ProcStatTable <br>
+ * <br>
+ * Collects /proc/&lt;pid&gt;/stat, status and oom_score_adj for a set of pids in one pass, using a
+ * single reusable buffer and parsing the numbers straight from the bytes. Results are kept as
+ * parallel arrays where row i belongs to the i-th pid of the last collect() call.
+ */
+final class ProcStatTable {
+
+    static final int FLAG_STAT = 1;
+    static final int FLAG_STATUS = 2;
+    static final int FLAG_OOM = 4;
+    static final int FLAG_ROOT_FALLBACK = 8;
+
+    static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private static final int OOM_DISABLE = -17;
+    private static final int OOM_ADJUST_MAX = 15;
+    private static final int OOM_SCORE_ADJ_MAX = 1000;
+
+    // field index after the ")" that closes the comm field
+    private static final int STAT_STATE = 0;
+    private static final int STAT_MAJFLT = 9;
+    private static final int STAT_UTIME = 11;
+    private static final int STAT_STIME = 12;
+    private static final int STAT_THREADS = 17;
+    private static final int STAT_STARTTIME = 19;
+    private static final int STAT_RSS = 21;
+
+    private static final byte[] KEY_UID = {'U', 'i', 'd', ':'};
+    private static final byte[] KEY_GID = {'G', 'i', 'd', ':'};
+
+    int size;
+
+    int[] pid;
+
+    /**
+     * true if the stat file of the row was read successfully
+     */
+    boolean[] valid;
+
+    char[] state;
+    int[] threads;
+
+    long[] utime;
+    long[] stime;
+    long[] majflt;
+    long[] starttime;
+
+    /**
+     * in pages
+     */
+    long[] rss;
+
+    int[] uid;
+    int[] gid;
+
+    /**
+     * oom_score_adj, or UNKNOWN
+     */
+    int[] oomScoreAdj;
+
+    private byte[] buf = new byte[1024];
+
+    ProcStatTable() {
+        ensureCapacity(64);
+    }
+
+    /**
+     * @param pids  pids to collect, values &lt;= 0 produce invalid rows
+     * @param count number of pids to use from the array
+     * @param flags combination of the FLAG_* constants. FLAG_ROOT_FALLBACK only takes effect if
+     *              other processes are known to be readable through root.
+     */
+    synchronized void collect(int[] pids, int count, int flags) {
+        ensureCapacity(count);
+
+        size = count;
+
+        boolean root = (flags & FLAG_ROOT_FALLBACK) != 0
+                && CapabilityRegistry.getAccess(CapabilityRegistry.SRC_PROC_PID)
+                == CapabilityRegistry.ACCESS_ROOT;
+
+        for (int i = 0; i < count; i++) {
+            int p = pids[i];
+
+            pid[i] = p;
+            valid[i] = false;
+            state[i] = '?';
+            threads[i] = 0;
+            utime[i] = 0;
+            stime[i] = 0;
+            majflt[i] = 0;
+            starttime[i] = 0;
+            rss[i] = 0;
+            uid[i] = UNKNOWN;
+            gid[i] = UNKNOWN;
+            oomScoreAdj[i] = UNKNOWN;
+
+            if (p <= 0) {
+                continue;
+            }
+
+            if ((flags & FLAG_STAT) != 0) {
+                int len = fill("/proc/" + p + "/stat", root); //$NON-NLS-1$ //$NON-NLS-2$
+
+                if (len > 0) {
+                    parseStat(i, len);
+                }
+            }
+
+            if ((flags & FLAG_STATUS) != 0) {
+                int len = fill("/proc/" + p + "/status", root); //$NON-NLS-1$ //$NON-NLS-2$
+
+                if (len > 0) {
+                    parseStatus(i, len);
+                }
+            }
+
+            if ((flags & FLAG_OOM) != 0) {
+                int len = fill("/proc/" + p + "/oom_score_adj", root); //$NON-NLS-1$ //$NON-NLS-2$
+
+                if (len > 0) {
+                    oomScoreAdj[i] = (int) FileHandlePool.parseLong(buf, 0, len);
+                } else {
+                    // kernels before 2.6.36 only have the legacy oom_adj
+                    len = fill("/proc/" + p + "/oom_adj", root); //$NON-NLS-1$ //$NON-NLS-2$
+
+                    if (len > 0) {
+                        oomScoreAdj[i] = toOomScoreAdj((int) FileHandlePool.parseLong(buf, 0, len));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the row of the given pid in the last collect() call, or -1
+     */
+    synchronized int indexOf(int p) {
+        for (int i = 0; i < size; i++) {
+            if (pid[i] == p) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Converts oom_score_adj to the legacy oom_adj scale, same as the kernel does for
+     * /proc/&lt;pid&gt;/oom_adj.
+     */
+    static int toOomAdj(int scoreAdj) {
+        if (scoreAdj == UNKNOWN) {
+            return UNKNOWN;
+        }
+
+        if (scoreAdj == OOM_SCORE_ADJ_MAX) {
+            return OOM_ADJUST_MAX;
+        }
+
+        return scoreAdj * -OOM_DISABLE / OOM_SCORE_ADJ_MAX;
+    }
+
+    private static int toOomScoreAdj(int adj) {
+        if (adj == OOM_ADJUST_MAX) {
+            return OOM_SCORE_ADJ_MAX;
+        }
+
+        return adj * OOM_SCORE_ADJ_MAX / -OOM_DISABLE;
+    }
+
+    private void ensureCapacity(int count) {
+        if (pid != null && pid.length >= count) {
+            return;
+        }
+
+        int cap = pid == null ? count : Math.max(count, pid.length * 2);
+
+        pid = new int[cap];
+        valid = new boolean[cap];
+        state = new char[cap];
+        threads = new int[cap];
+        utime = new long[cap];
+        stime = new long[cap];
+        majflt = new long[cap];
+        starttime = new long[cap];
+        rss = new long[cap];
+        uid = new int[cap];
+        gid = new int[cap];
+        oomScoreAdj = new int[cap];
+    }
+
+    /**
+     * @return number of bytes read into the buffer, or -1 if the file is not accessible
+     */
+    private int fill(String fname, boolean root) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(fname, "r"); //$NON-NLS-1$
+
+            int len = 0;
+            int n;
+
+            while ((n = raf.read(buf, len, buf.length - len)) > 0) {
+                len += n;
+
+                if (len == buf.length) {
+                    byte[] nbuf = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, nbuf, 0, len);
+                    buf = nbuf;
+                }
+            }
+
+            return len;
+        } catch (FileNotFoundException fe) {
+            // process is gone or not accessible
+            if (root) {
+                return fillByRoot(fname);
+            }
+        } catch (IOException e) {
+            Log.e(ProcStatTable.class.getName(), e.getLocalizedMessage(), e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(ProcStatTable.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private int fillByRoot(String fname) {
+        List<String> output = RootUtil.readFileRoot(fname);
+        if (output != null && output.size() > 0) {
+            int len = 0;
+
+            for (String line : output) {
+                int lineLen = line.length();
+
+                if (len + lineLen + 1 > buf.length) {
+                    byte[] nbuf = new byte[Math.max(buf.length * 2, len + lineLen + 1)];
+                    System.arraycopy(buf, 0, nbuf, 0, len);
+                    buf = nbuf;
+                }
+
+                for (int i = 0; i < lineLen; i++) {
+                    buf[len++] = (byte) line.charAt(i);
+                }
+
+                buf[len++] = '\n';
+            }
+
+            return len;
+        }
+
+        return -1;
+    }
+
+    private void parseStat(int row, int len) {
+        // the comm field may contain spaces and parentheses, so start after the last ')'
+        int pos = len - 1;
+
+        while (pos >= 0 && buf[pos] != ')') {
+            pos--;
+        }
+
+        if (pos < 0) {
+            return;
+        }
+
+        pos++;
+
+        int field = 0;
+
+        while (pos < len && field <= STAT_RSS) {
+            while (pos < len && (buf[pos] == ' ' || buf[pos] == '\n')) {
+                pos++;
+            }
+
+            if (pos >= len) {
+                break;
+            }
+
+            if (field == STAT_STATE) {
+                state[row] = (char) buf[pos];
+
+                while (pos < len && buf[pos] != ' ') {
+                    pos++;
+                }
+            } else {
+                boolean negative = false;
+
+                if (buf[pos] == '-') {
+                    negative = true;
+                    pos++;
+                }
+
+                long value = 0;
+                byte b;
+
+                while (pos < len && (b = buf[pos]) >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    pos++;
+                }
+
+                while (pos < len && buf[pos] != ' ' && buf[pos] != '\n') {
+                    pos++;
+                }
+
+                if (negative) {
+                    value = -value;
+                }
+
+                switch (field) {
+                    case STAT_MAJFLT:
+                        majflt[row] = value;
+                        break;
+                    case STAT_UTIME:
+                        utime[row] = value;
+                        break;
+                    case STAT_STIME:
+                        stime[row] = value;
+                        break;
+                    case STAT_THREADS:
+                        threads[row] = (int) value;
+                        break;
+                    case STAT_STARTTIME:
+                        starttime[row] = value;
+                        break;
+                    case STAT_RSS:
+                        rss[row] = value;
+                        break;
+                }
+            }
+
+            field++;
+        }
+
+        valid[row] = field > STAT_RSS;
+    }
+
+    private void parseStatus(int row, int len) {
+        int pos = 0;
+
+        while (pos < len) {
+            if (startsWith(pos, len, KEY_UID)) {
+                uid[row] = (int) FileHandlePool.parseLong(buf, pos + KEY_UID.length,
+                        skipLine(pos, len) - pos - KEY_UID.length);
+            } else if (startsWith(pos, len, KEY_GID)) {
+                gid[row] = (int) FileHandlePool.parseLong(buf, pos + KEY_GID.length,
+                        skipLine(pos, len) - pos - KEY_GID.length);
+            }
+
+            pos = skipLine(pos, len) + 1;
+        }
+    }
+
+    private boolean startsWith(int pos, int len, byte[] key) {
+        if (pos + key.length > len) {
+            return false;
+        }
+
+        for (int i = 0; i < key.length; i++) {
+            if (buf[pos + i] != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int skipLine(int pos, int len) {
+        while (pos < len && buf[pos] != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+}
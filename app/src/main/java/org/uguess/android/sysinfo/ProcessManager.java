@@ -69,15 +69,6 @@ import org.uguess.android.sysinfo.ToolMenuDialog.SortHint;
 import org.uguess.android.sysinfo.ToolMenuDialog.ToggleHint;
 import org.uguess.android.sysinfo.Util.EditorState;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
@@ -140,30 +131,6 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
             "getProcessMemoryInfo", //$NON-NLS-1$
             int[].class);
 
-    private static final FileFilter procFileFilter = new FileFilter() {
-
-        @Override
-        public boolean accept(File f) {
-            if (f.isDirectory()) {
-                String fname = f.getName();
-                if (fname.length() > 0) {
-                    char first = fname.charAt(0);
-                    if (first >= '0' && first <= '9') {
-                        try {
-                            int pid = Integer.parseInt(fname);
-                            if (pid >= 0) {
-                                return true;
-                            }
-                        } catch (Exception e) {
-                            // ignore
-                        }
-                    }
-                }
-            }
-            return false;
-        }
-    };
-
     ProcessCache procCache;
 
     long totalLoad, totalDelta, totalWork, workDelta;
@@ -175,7 +142,13 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
 
     ResourceUpdaterThread resUpdater;
 
-    private byte[] buf = new byte[512];
+    private ProcStatTable statTable = new ProcStatTable();
+
+    private int[] statPids = new int[64];
+
+    private CpuLoadReader cpuReader = new CpuLoadReader();
+
+    private long[] cpuLoad = new long[CpuLoadReader.FIELD_COUNT];
 
     Handler handler = new ProcessHandler(this);
 
@@ -543,8 +516,7 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
                 if (showCpu) {
                     viewHolder.txt_cpu.setVisibility(View.VISIBLE);
 
-                    long delta = itm.lastcputime == 0 ? 0 : (itm.cputime - itm.lastcputime);
-                    long cu = getPercentage(delta, totalDelta);
+                    long cu = getPercentage(itm.cpuDelta, totalDelta);
 
                     if (itm.procInfo.cpuPercent != -1) {
                         cu = itm.procInfo.cpuPercent;
@@ -580,6 +552,8 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
 
         procCache.clear();
 
+        cpuReader.close();
+
         super.onDestroy();
     }
 
@@ -1148,9 +1122,17 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
                 break;
             case ACTION_DETAILS:
 
-                String[] status = readProcStatus(rap.procInfo.pid);
+                ProcStatTable tb = new ProcStatTable();
+
+                tb.collect(new int[]{rap.procInfo.pid}, 1, ProcStatTable.FLAG_STAT
+                        | ProcStatTable.FLAG_STATUS | ProcStatTable.FLAG_OOM
+                        | ProcStatTable.FLAG_ROOT_FALLBACK);
 
-                int oom = readProcessOOM(rap.procInfo.pid);
+                int oom = ProcStatTable.toOomAdj(tb.oomScoreAdj[0]);
+
+                if (oom == ProcStatTable.UNKNOWN) {
+                    oom = UNKNOWN_OOM;
+                }
 
                 StringBuffer sb =
                         new StringBuffer()
@@ -1165,23 +1147,24 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
                                 .append("<br>") //$NON-NLS-1$
                                 .append(ResUtil.getString(this, R.string.uid))
                                 .append(": ") //$NON-NLS-1$
-                                .append(status == null ? "" : status[1]) //$NON-NLS-1$
+                                .append(tb.uid[0] == ProcStatTable.UNKNOWN ? "" : String.valueOf(tb.uid[0])) //$NON-NLS-1$
                                 .append("<br>") //$NON-NLS-1$
                                 .append(ResUtil.getString(this, R.string.gid))
                                 .append(": ") //$NON-NLS-1$
-                                .append(status == null ? "" : status[2]) //$NON-NLS-1$
+                                .append(tb.gid[0] == ProcStatTable.UNKNOWN ? "" : String.valueOf(tb.gid[0])) //$NON-NLS-1$
                                 .append("<br>") //$NON-NLS-1$
                                 .append(ResUtil.getString(this, R.string.state))
                                 .append(": ") //$NON-NLS-1$
-                                .append(status == null ? "" : status[0]) //$NON-NLS-1$
+                                .append(tb.valid[0] ? getStateDesc(tb.state[0]) : "") //$NON-NLS-1$
                                 .append("<br>") //$NON-NLS-1$
                                 .append(ResUtil.getString(this, R.string.threads))
                                 .append(": ") //$NON-NLS-1$
-                                .append(status == null ? "" : status[3]) //$NON-NLS-1$
+                                .append(tb.valid[0] ? String.valueOf(tb.threads[0]) : "") //$NON-NLS-1$
                                 .append("<br>") //$NON-NLS-1$
                                 .append(ResUtil.getString(this, R.string.started_time))
                                 .append(": ") //$NON-NLS-1$
-                                .append(readProcessStartedTime(this, rap.procInfo.pid, buf))
+                                .append(tb.valid[0] ? formatStartedTime(this, tb.starttime[0])
+                                        : ResUtil.getString(this, R.string.unknown))
                                 .append("<br>") //$NON-NLS-1$
                                 .append(ResUtil.getString(this, R.string.oom_priority))
                                 .append(": ") //$NON-NLS-1$
@@ -1495,45 +1478,47 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
         boolean showCpu = Util.getBooleanOption(prefStore, PREF_KEY_SHOW_CPU);
 
         if (showCpu) {
-            long[] loads = readCpuLoad();
+            long[] loads = cpuLoad;
+
+            cpuReader.read(loads, null);
 
-            long newload = loads == null ? 0 : (loads[0] + loads[1]);
+            long newload = loads[CpuLoadReader.WORK] + loads[CpuLoadReader.IDLE];
             if (totalLoad != 0) {
                 totalDelta = newload - totalLoad;
             }
             totalLoad = newload;
 
-            long newWork = loads == null ? 0 : loads[0];
+            long newWork = loads[CpuLoadReader.WORK];
             if (totalWork != 0) {
                 workDelta = newWork - totalWork;
             }
             totalWork = newWork;
 
-            long newUser = loads == null ? 0 : loads[2];
+            long newUser = loads[CpuLoadReader.USER];
             if (totalUser != 0) {
                 userDelta = newUser - totalUser;
             }
             totalUser = newUser;
 
-            long newNice = loads == null ? 0 : loads[3];
+            long newNice = loads[CpuLoadReader.NICE];
             if (totalNice != 0) {
                 niceDelta = newNice - totalNice;
             }
             totalNice = newNice;
 
-            long newSys = loads == null ? 0 : loads[4];
+            long newSys = loads[CpuLoadReader.SYS];
             if (totalSys != 0) {
                 sysDelta = newSys - totalSys;
             }
             totalSys = newSys;
 
-            long newIow = loads == null ? 0 : loads[5];
+            long newIow = loads[CpuLoadReader.IOW];
             if (totalIow != 0) {
                 iowDelta = newIow - totalIow;
             }
             totalIow = newIow;
 
-            long newIrq = loads == null ? 0 : loads[6];
+            long newIrq = loads[CpuLoadReader.IRQ];
             if (totalIrq != 0) {
                 irqDelta = newIrq - totalIrq;
             }
@@ -1543,6 +1528,10 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
         synchronized (procCache) {
             procCache.procList.clear();
 
+            ProcessTable table = procCache.table;
+
+            table.beginScan();
+
             if (list != null) {
                 int ignoreAction =
                         Util.getIntOption(prefStore, PREF_KEY_IGNORE_ACTION, IGNORE_ACTION_HIDDEN);
@@ -1567,18 +1556,22 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
                         continue;
                     }
 
-                    ProcessItem pi = procCache.getCache(name, rap.pid);
+                    int row = table.find(rap.pid, name);
+                    ProcessItem pi;
 
-                    if (pi == null) {
+                    if (row == ProcessTable.EMPTY) {
                         pi = new ProcessItem();
-                        pi.procInfo = rap;
-                        pi.sys = isSys;
+                        pi.row = table.add(rap.pid, name, pi);
                     } else {
-                        pi.procInfo = rap;
-                        pi.sys = isSys;
-                        pi.lastcputime = pi.cputime;
+                        pi = table.get(row);
+                        table.touch(row);
+                        table.lastcputime[row] = table.cputime[row];
                     }
 
+                    pi.procInfo = rap;
+                    pi.sys = isSys;
+                    pi.cpuDelta = 0;
+
                     if (serviceMap != null) {
                         pi.services = serviceMap.get(rap.pid);
                     } else {
@@ -1591,13 +1584,13 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
 
                     pi.servicesLabel = null;
 
-                    if (rap.pid != 0 && (showMem || showCpu)) {
-                        readProcessStat(this, buf, pi, showMem, showCpu);
-                    }
-
                     procCache.procList.add(pi);
                 }
 
+                if (showMem || showCpu) {
+                    readProcessStat(this, procCache.procList, showMem, showCpu);
+                }
+
                 if (showMem && usePss) {
                     final int[] pids = new int[procCache.procList.size()];
                     final String[] names = new String[pids.length];
@@ -1622,9 +1615,11 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
 
                                     synchronized (procCache) {
                                         for (int i = 0, size = Array.getLength(result); i < size; i++) {
-                                            ProcessItem pi = procCache.getCache(names[i], pids[i]);
+                                            int row = procCache.table.find(pids[i], names[i]);
+
+                                            if (row != ProcessTable.EMPTY) {
+                                                ProcessItem pi = procCache.table.get(row);
 
-                                            if (pi != null) {
                                                 Debug.MemoryInfo mi = (Debug.MemoryInfo) Array.get(result, i);
 
                                                 long npss = mi.dalvikPss + mi.nativePss + mi.otherPss;
@@ -1657,6 +1652,9 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
 
                 procCache.reOrder(this);
             }
+
+            // processes that have gone or are no longer listed
+            table.endScan();
         }
     }
 
@@ -1750,42 +1748,42 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
     }
 
     static List<ProcessInfo> getLocalProcessInfo() {
-        File procFolder = new File("/proc"); //$NON-NLS-1$
-        File[] procs = procFolder.listFiles(procFileFilter);
-        if (procs != null) {
+        ProcScanner scanner = ProcScanner.getInstance();
+
+        synchronized (scanner) {
+            int count = scanner.scan();
+
             List<ProcessInfo> pis = new ArrayList<ProcessInfo>();
 
-            for (File f : procs) {
-                try {
-                    File cmdline = new File(f, "cmdline"); //$NON-NLS-1$
-                    String pname = Util.readFileFirstLine(cmdline, 64);
-                    if (!TextUtils.isEmpty(pname) && pname.charAt(0) != '/') {
-                        int pid = Integer.parseInt(f.getName());
+            for (int i = 0; i < count; i++) {
+                String pname = scanner.name[i];
 
-                        ProcessInfo pi = new ProcessInfo();
-                        pi.pid = pid;
-                        pi.processName = pname;
-                        pi.pkgList = new String[]{pname};
-                        pis.add(pi);
-                    }
-                } catch (Exception e) {
-                    // continue
+                // skip kernel threads and native daemons
+                if (pname.length() > 0 && pname.charAt(0) != '/') {
+                    ProcessInfo pi = new ProcessInfo();
+                    pi.pid = scanner.pid[i];
+                    pi.processName = pname;
+                    pi.pkgList = new String[]{pname};
+                    pis.add(pi);
                 }
             }
 
             return pis.size() == 0 ? null : pis;
         }
-        return null;
     }
 
     static List<ProcessInfo> getLocalProcessInfoRoot(Context ctx) {
         PackageManager pm = ctx.getPackageManager();
 
-        List<String> output = RootUtil.runRoot("ps -Ao PID,NAME");
+        // submit both commands to the root shell at once
+        List<List<String>> results = RootUtil.runRootPipelined(RootUtil.DEFAULT_TIMEOUT,
+                new String[]{"ps -Ao PID,NAME"}, new String[]{"top -q -n 1 -o PID,%CPU"});
+
+        List<String> output = results.get(0);
         if (output != null && output.size() > 0) {
 
             Map<Integer, Integer> cpuUsage = new HashMap<Integer, Integer>();
-            List<String> cpuOutput = RootUtil.runRoot("top -q -n 1 -o PID,%CPU");
+            List<String> cpuOutput = results.get(1);
             if (cpuOutput != null && cpuOutput.size() > 0) {
                 for (String line : cpuOutput) {
                     line = line.trim();
@@ -1909,461 +1907,93 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
         return null;
     }
 
-    /**
-     * @return [[worktime, idletime],...]
-     */
-    static long[][] readAllCpuLoad(int count) {
-        long[][] loads = new long[count][];
-
-        List<String> loadLines = readCpuLoadLines();
-        for (int i = 0; i < count; i++) {
-            loads[i] = readCpuLoad("cpu" + i + ' ', loadLines); //$NON-NLS-1$
-        }
-
-        return loads;
-    }
-
-    /**
-     * @return [worktime, idletime, usertime, nicetime, systime, iowtime, irqtime]
-     */
-    static long[] readCpuLoad() {
-        return readCpuLoad("cpu ", readCpuLoadLines()); //$NON-NLS-1$
-    }
-
-    /**
-     * @return [worktime, idletime, usertime, nicetime, systime, iowtime, irqtime]
-     */
-    private static long[] readCpuLoad(String magic, List<String> loadLines) {
-        if (loadLines == null) {
-            return null;
-        }
-
-        try {
-            for (String line : loadLines) {
-                if (line.startsWith(magic)) {
-                    line = line.substring(magic.length()).trim();
-
-                    StringTokenizer tokens = new StringTokenizer(line);
-
-                    long totaltime = 0, idletime = 0;
-                    long usertime = 0, nicetime = 0, systime = 0, iotime = 0, irqtime = 0;
-                    int i = 0;
-                    String tk;
-
-                    while (tokens.hasMoreTokens() && i < 7) {
-                        tk = tokens.nextToken();
-
-                        if (i == 3) {
-                            idletime = Long.parseLong(tk);
-                        } else {
-                            if (i == 0) {
-                                usertime = Long.parseLong(tk);
-                            } else if (i == 1) {
-                                nicetime = Long.parseLong(tk);
-                            } else if (i == 2) {
-                                systime = Long.parseLong(tk);
-                            } else if (i == 4) {
-                                iotime = Long.parseLong(tk);
-                            } else if (i == 5) {
-                                irqtime = Long.parseLong(tk);
-                            } else if (i == 6) {
-                                irqtime += Long.parseLong(tk);
-                            }
-
-                            totaltime += Long.parseLong(tk);
-                        }
-                        i++;
-                    }
-
-                    return new long[]{totaltime, idletime, usertime, nicetime, systime, iotime, irqtime};
-                }
-            }
-        } catch (Exception e) {
-            Log.e(ProcessManager.class.getName(), e.getLocalizedMessage());
-        }
-
-        return null;
-    }
-
-    private static List<String> readCpuLoadLines() {
-        List<String> lines = new ArrayList<String>();
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream("/proc/stat")), //$NON-NLS-1$
-                    128);
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("cpu")) {
-                    lines.add(line);
-                }
-            }
-        } catch (FileNotFoundException fe) {
-            Log.e(ProcessManager.class.getName(), fe.getLocalizedMessage());
+    private void readProcessStat(Context ctx, List<ProcessItem> items, boolean showMem,
+                                 boolean showCpu) {
+        int count = items.size();
 
-            if (RootUtil.rootAvailable()) {
-                // try root read
-                List<String> output = RootUtil.runRoot("cat /proc/stat");
-                if (output != null && output.size() > 0) {
-                    for (String line : output) {
-                        if (line.startsWith("cpu")) {
-                            lines.add(line);
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-                }
-            }
+        if (statPids.length < count) {
+            statPids = new int[Math.max(count, statPids.length * 2)];
         }
 
-        return lines;
-    }
-
-    private static void readProcessStat(Context ctx, byte[] buf, ProcessItem pi, boolean showMem,
-                                        boolean showCpu) {
-        if (pi.procInfo.pid < 0) {
-            return;
+        for (int i = 0; i < count; i++) {
+            statPids[i] = items.get(i).procInfo.pid;
         }
 
-        InputStream is = null;
-        try {
-            is = new FileInputStream("/proc/" + pi.procInfo.pid + "/stat"); //$NON-NLS-1$
+        ProcStatTable tb = statTable;
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
+        synchronized (tb) {
+            tb.collect(statPids, count, ProcStatTable.FLAG_STAT);
 
-            int len;
-
-            while ((len = is.read(buf)) != -1) {
-                output.write(buf, 0, len);
-            }
-
-            output.close();
-
-            String line = output.toString();
-
-            if (line != null) {
-                line = line.trim();
-
-                int idx = line.lastIndexOf(')');
-
-                if (idx != -1) {
-                    line = line.substring(idx + 1).trim();
-
-                    StringTokenizer tokens = new StringTokenizer(line);
-
-                    String rss = null;
-                    String utime = null;
-                    String stime = null;
-
-                    long nrss;
-                    int i = 0;
-                    String tk;
-
-                    // [11,12,21] for [utime,stime,rss]
-                    while (tokens.hasMoreTokens()) {
-                        tk = tokens.nextToken();
-
-                        if (i == 11) {
-                            utime = tk;
-                        } else if (i == 12) {
-                            stime = tk;
-                        } else if (i == 21) {
-                            rss = tk;
-                        }
-
-                        if (rss != null) {
-                            break;
-                        }
-
-                        i++;
-                    }
-
-                    if (showCpu) {
-                        if (utime != null) {
-                            pi.cputime = Long.parseLong(utime);
-                        }
-
-                        if (stime != null) {
-                            pi.cputime += Long.parseLong(stime);
-                        }
-                    }
-
-                    if (showMem && rss != null && pi.pss == 0) {
-                        // only when we don't have pss, we use rss
-
-                        // rss value is in 4kb unit
-                        nrss = Long.parseLong(rss);
-
-                        if (pi.rss != nrss || pi.mem == null || pi.pss == 0) {
-                            pi.rss = nrss;
-
-                            pi.mem = Util.safeFormatFileSize(ctx, pi.rss * 4 * 1024);
-                        }
-                    }
-                }
-            }
-        } catch (FileNotFoundException fe) {
-            Log.e(ProcessManager.class.getName(), fe.getLocalizedMessage());
-        } catch (Exception e) {
-            Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
+            for (int i = 0; i < count; i++) {
+                if (!tb.valid[i]) {
+                    continue;
                 }
-            }
-        }
-    }
-
-    private static String readProcessStartedTime(Context ctx, int pid, byte[] buf) {
-        if (pid < 0) {
-            return ResUtil.getString(ctx, R.string.unknown);
-        }
-
-        String line = null;
-        InputStream is = null;
-        try {
-            is = new FileInputStream("/proc/" + pid + "/stat"); //$NON-NLS-1$
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
+                ProcessItem pi = items.get(i);
 
-            int len;
-
-            while ((len = is.read(buf)) != -1) {
-                output.write(buf, 0, len);
-            }
+                if (showCpu) {
+                    ProcessTable table = procCache.table;
 
-            output.close();
+                    long cputime = tb.utime[i] + tb.stime[i];
+                    long lastcputime = table.lastcputime[pi.row];
 
-            line = output.toString();
-        } catch (FileNotFoundException fe) {
-            Log.e(ProcessManager.class.getName(), fe.getLocalizedMessage());
+                    table.cputime[pi.row] = cputime;
 
-            if (RootUtil.rootAvailable()) {
-                // try root read
-                List<String> output = RootUtil.runRoot("cat /proc/" + pid + "/stat");
-                if (output != null && output.size() > 0) {
-                    line = output.get(0);
+                    pi.cpuDelta = lastcputime == 0 ? 0 : (cputime - lastcputime);
                 }
-            }
-        } catch (Exception e) {
-            Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-                }
-            }
-        }
-
-        if (line != null) {
-            try {
-                line = line.trim();
-
-                int idx = line.lastIndexOf(')');
 
-                if (idx != -1) {
-                    line = line.substring(idx + 1).trim();
+                if (showMem && pi.pss == 0) {
+                    // only when we don't have pss, we use rss
 
-                    StringTokenizer tokens = new StringTokenizer(line);
+                    // rss value is in 4kb unit
+                    long nrss = tb.rss[i];
 
-                    String starttime = null;
+                    if (pi.rss != nrss || pi.mem == null) {
+                        pi.rss = nrss;
 
-                    int i = 0;
-                    String tk;
-
-                    // [19] for [starttime]
-                    while (tokens.hasMoreTokens()) {
-                        tk = tokens.nextToken();
-
-                        if (i == 19) {
-                            starttime = tk;
-                            break;
-                        }
-
-                        i++;
-                    }
-
-                    if (starttime != null) {
-                        long sTime = Long.parseLong(starttime);
-
-                        double upTime = Util.readFileDoubleFirstSection("/proc/uptime", //$NON-NLS-1$
-                                false);
-
-                        StringBuilder sb = new StringBuilder();
-
-                        PropertiesViewer.formatElapsedTime(ctx, sb, (long) (upTime * 100 - sTime) / 100);
-
-                        return sb.toString();
+                        pi.mem = Util.safeFormatFileSize(ctx, pi.rss * 4 * 1024);
                     }
                 }
-            } catch (Exception e) {
-                Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
             }
         }
-
-        return ResUtil.getString(ctx, R.string.unknown);
     }
 
-    private static int readProcessOOM(int pid) {
-        if (pid < 0) {
-            return UNKNOWN_OOM;
-        }
-
-        BufferedReader reader = null;
+    private static String formatStartedTime(Context ctx, long sTime) {
         try {
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream("/proc/" //$NON-NLS-1$
-                    + pid + "/oom_adj")), //$NON-NLS-1$
-                    8);
-
-            String line = reader.readLine();
+            double upTime = Util.readFileDoubleFirstSection("/proc/uptime", //$NON-NLS-1$
+                    false);
 
-            if (line != null) {
-                line = line.trim();
+            StringBuilder sb = new StringBuilder();
 
-                return Integer.parseInt(line);
-            }
-        } catch (FileNotFoundException fe) {
-            Log.e(ProcessManager.class.getName(), fe.getLocalizedMessage());
+            PropertiesViewer.formatElapsedTime(ctx, sb, (long) (upTime * 100 - sTime) / 100);
 
-            if (RootUtil.rootAvailable()) {
-                // try root read
-                List<String> lines = RootUtil.runRoot("cat /proc/" + pid + "/oom_adj");
-                if (lines != null && lines.size() > 0) {
-                    try {
-                        String line = lines.get(0).trim();
-                        return Integer.parseInt(line);
-                    } catch (Exception e) {
-                        Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-                    }
-                }
-            }
+            return sb.toString();
         } catch (Exception e) {
             Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-                }
-            }
         }
 
-        return UNKNOWN_OOM;
+        return ResUtil.getString(ctx, R.string.unknown);
     }
 
-    /**
-     * @return [State, UID, GID, Threads]
-     */
-    private static String[] readProcStatus(int pid) {
-        if (pid < 0) {
-            return null;
-        }
-
-        try {
-            List<String> lines = new ArrayList<String>();
-
-            BufferedReader reader = null;
-            try {
-                reader = new BufferedReader(new InputStreamReader(new FileInputStream("/proc/" //$NON-NLS-1$
-                        + pid + "/status")), //$NON-NLS-1$
-                        1024);
-
-                String ln;
-                while ((ln = reader.readLine()) != null) {
-                    lines.add(ln);
-                }
-            } catch (FileNotFoundException fe) {
-                Log.e(ProcessManager.class.getName(), fe.getLocalizedMessage());
-
-                if (RootUtil.rootAvailable()) {
-                    // try root read
-                    lines = RootUtil.runRoot("cat /proc/" + pid + "/status");
-                }
-            } catch (Exception e) {
-                Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-            } finally {
-                if (reader != null) {
-                    try {
-                        reader.close();
-                    } catch (IOException ie) {
-                        Log.e(ProcessManager.class.getName(), ie.getLocalizedMessage(), ie);
-                    }
-                }
-            }
-
-            if (lines == null || lines.size() == 0) {
-                return null;
-            }
-
-            String stateMsg = ""; //$NON-NLS-1$
-            String uidMsg = ""; //$NON-NLS-1$
-            String gidMsg = ""; //$NON-NLS-1$
-            String threadsMsg = ""; //$NON-NLS-1$
-
-            for (String line : lines) {
-                if (line.startsWith("State:")) //$NON-NLS-1$
-                {
-                    if (line.length() > 6) {
-                        stateMsg = line.substring(6).trim();
-                    }
-                } else if (line.startsWith("Uid:")) //$NON-NLS-1$
-                {
-                    if (line.length() > 4) {
-                        uidMsg = line.substring(4).trim();
-
-                        int idx = uidMsg.indexOf('\t');
-                        if (idx != -1) {
-                            uidMsg = uidMsg.substring(0, idx);
-                        } else {
-                            idx = uidMsg.indexOf(' ');
-                            if (idx != -1) {
-                                uidMsg = uidMsg.substring(0, idx);
-                            }
-                        }
-                    }
-                } else if (line.startsWith("Gid:")) //$NON-NLS-1$
-                {
-                    if (line.length() > 4) {
-                        gidMsg = line.substring(4).trim();
-
-                        int idx = gidMsg.indexOf('\t');
-                        if (idx != -1) {
-                            gidMsg = gidMsg.substring(0, idx);
-                        } else {
-                            idx = gidMsg.indexOf(' ');
-                            if (idx != -1) {
-                                gidMsg = gidMsg.substring(0, idx);
-                            }
-                        }
-                    }
-                } else if (line.startsWith("Threads:")) //$NON-NLS-1$
-                {
-                    if (line.length() > 8) {
-                        threadsMsg = line.substring(8).trim();
-                    }
-                }
-            }
-
-            return new String[]{stateMsg, uidMsg, gidMsg, threadsMsg};
-        } catch (Exception e) {
-            Log.e(ProcessManager.class.getName(), e.getLocalizedMessage(), e);
-        }
-
-        return null;
+    private static String getStateDesc(char state) {
+        switch (state) {
+            case 'R':
+                return "R (running)"; //$NON-NLS-1$
+            case 'S':
+                return "S (sleeping)"; //$NON-NLS-1$
+            case 'D':
+                return "D (disk sleep)"; //$NON-NLS-1$
+            case 'T':
+                return "T (stopped)"; //$NON-NLS-1$
+            case 't':
+                return "t (tracing stop)"; //$NON-NLS-1$
+            case 'Z':
+                return "Z (zombie)"; //$NON-NLS-1$
+            case 'X':
+                return "X (dead)"; //$NON-NLS-1$
+        }
+
+        return String.valueOf(state);
     }
 
     /**
@@ -2476,9 +2106,7 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
                 ProcessItem proc = localList.get(i);
 
                 String pname = proc.procInfo.processName;
-                int pid = proc.procInfo.pid;
-
-                if (procCache.getCache(pname, pid) != null) {
+                if (proc.resolved) {
                     continue;
                 }
 
@@ -2518,7 +2146,7 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
                     }
                 }
 
-                procCache.putCache(pname, pid, proc);
+                proc.resolved = true;
             }
 
             if (changed) {
@@ -3277,9 +2905,20 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
 
         String mem;
 
-        long cputime;
+        /**
+         * row in the process table
+         */
+        int row;
+
+        /**
+         * cpu time used since the last refresh, in clock ticks
+         */
+        long cpuDelta;
 
-        long lastcputime;
+        /**
+         * whether label and icon have been looked up
+         */
+        volatile boolean resolved;
 
         List<RunningServiceInfo> services;
 
@@ -3328,8 +2967,10 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
 
         static final int NONE = -2;
 
-        /* value could be ProcessItem or SparseArray<ProcessItem> */
-        private HashMap<String, Object> resCache;
+        /**
+         * items of the listed processes, guarded by the cache lock
+         */
+        final ProcessTable table;
 
         private HashMap<ComponentName, String> serviceLabelCache;
 
@@ -3338,7 +2979,7 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
         int transientOrderType, transientOrderDirection;
 
         ProcessCache() {
-            resCache = new HashMap<String, Object>();
+            table = new ProcessTable();
             serviceLabelCache = new HashMap<ComponentName, String>();
             procList = new ArrayList<ProcessItem>();
             transientOrderType = NONE;
@@ -3353,36 +2994,8 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
             serviceLabelCache.put(cn, label);
         }
 
-        ProcessItem getCache(String name, int pid) {
-            Object cache = resCache.get(name);
-            if (cache instanceof ProcessItem) {
-                ProcessItem pi = (ProcessItem) cache;
-                return pi.procInfo.pid == pid ? pi : null;
-            } else if (cache instanceof SparseArray) {
-                return ((SparseArray<ProcessItem>) cache).get(pid);
-            }
-            return null;
-        }
-
-        void putCache(String name, int pid, ProcessItem pi) {
-            Object cache = resCache.get(name);
-
-            if (cache == null) {
-                resCache.put(name, pi);
-            } else if (cache instanceof ProcessItem) {
-                SparseArray<ProcessItem> buck = new SparseArray<ProcessItem>();
-                resCache.put(name, buck);
-
-                buck.put(((ProcessItem) cache).procInfo.pid, (ProcessItem) cache);
-                buck.put(pid, pi);
-            } else if (cache instanceof SparseArray) {
-                SparseArray<ProcessItem> buck = (SparseArray<ProcessItem>) cache;
-                buck.put(pid, pi);
-            }
-        }
-
         synchronized void clear() {
-            resCache.clear();
+            table.clear();
             serviceLabelCache.clear();
             procList.clear();
             transientOrderType = NONE;
@@ -3419,6 +3032,246 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
         }
     }
 
+    /**
+     * ProcessTable. Open addressing table of the listed processes keyed by pid, with the name to
+     * tell a reused pid apart; processes without a pid are keyed by name. Each refresh is a scan:
+     * rows not touched in the scan are dropped and put on a free list for reuse, so the table only
+     * grows with the number of processes listed at a time. Dropped rows leave the slots by
+     * backward shift, so no tombstones build up. The cpu times of a row are kept in parallel
+     * arrays.
+     */
+    private static final class ProcessTable {
+
+        /**
+         * no row, for a free slot, the end of the free list and a process not found
+         */
+        static final int EMPTY = -1;
+
+        private int[] rowPid = new int[0];
+        private String[] rowName = new String[0];
+        private ProcessItem[] rowItem = new ProcessItem[0];
+        private int[] rowStamp = new int[0];
+
+        /**
+         * next row on the free list, or EMPTY
+         */
+        private int[] rowNext = new int[0];
+
+        /**
+         * cpu time of the current and the previous scan in clock ticks, 0 if not known
+         */
+        long[] cputime = new long[0];
+        long[] lastcputime = new long[0];
+
+        /**
+         * rows ever used, and the ones in use
+         */
+        private int rowCount, liveCount;
+
+        private int freeHead = EMPTY;
+
+        /**
+         * index into the rows, EMPTY for a free slot
+         */
+        private int[] slots = newSlots(64);
+
+        private int generation;
+
+        void beginScan() {
+            generation++;
+        }
+
+        /**
+         * Drops the rows not touched since {@link #beginScan()}.
+         */
+        void endScan() {
+            for (int row = 0; row < rowCount; row++) {
+                if (rowItem[row] != null && rowStamp[row] != generation) {
+                    remove(row);
+
+                    rowItem[row] = null;
+                    rowName[row] = null;
+                    rowNext[row] = freeHead;
+                    freeHead = row;
+                    liveCount--;
+                }
+            }
+        }
+
+        /**
+         * @return the row of the process, or EMPTY
+         */
+        int find(int pid, String name) {
+            int mask = slots.length - 1;
+
+            for (int i = slot(pid, name) & mask; ; i = (i + 1) & mask) {
+                int row = slots[i];
+
+                if (row == EMPTY) {
+                    return EMPTY;
+                }
+
+                if (rowPid[row] == pid && rowName[row].equals(name)) {
+                    return row;
+                }
+            }
+        }
+
+        ProcessItem get(int row) {
+            return rowItem[row];
+        }
+
+        /**
+         * Keeps the row in the current scan.
+         */
+        void touch(int row) {
+            rowStamp[row] = generation;
+        }
+
+        /**
+         * Adds a process not in the table, touched in the current scan.
+         *
+         * @return the row
+         */
+        int add(int pid, String name, ProcessItem item) {
+            // keep the load factor at most a half
+            if ((liveCount + 1) * 2 > slots.length) {
+                rebuild(slots.length * 2);
+            }
+
+            int row;
+
+            if (freeHead != EMPTY) {
+                row = freeHead;
+                freeHead = rowNext[row];
+            } else {
+                if (rowCount == rowPid.length) {
+                    grow(Math.max(64, rowCount * 2));
+                }
+
+                row = rowCount++;
+            }
+
+            rowPid[row] = pid;
+            rowName[row] = name;
+            rowItem[row] = item;
+            rowStamp[row] = generation;
+            cputime[row] = 0;
+            lastcputime[row] = 0;
+
+            liveCount++;
+
+            insert(row);
+
+            return row;
+        }
+
+        void clear() {
+            rowPid = new int[0];
+            rowName = new String[0];
+            rowItem = new ProcessItem[0];
+            rowStamp = new int[0];
+            rowNext = new int[0];
+            cputime = new long[0];
+            lastcputime = new long[0];
+
+            rowCount = 0;
+            liveCount = 0;
+            freeHead = EMPTY;
+
+            slots = newSlots(64);
+        }
+
+        private void insert(int row) {
+            int mask = slots.length - 1;
+            int i = slot(rowPid[row], rowName[row]) & mask;
+
+            while (slots[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+
+            slots[i] = row;
+        }
+
+        /**
+         * Takes the row out of its probe chain. The rows after it that may sit in its slot are
+         * moved back, so the lookups still find them without a rebuild.
+         */
+        private void remove(int row) {
+            int mask = slots.length - 1;
+            int i = slot(rowPid[row], rowName[row]) & mask;
+
+            while (slots[i] != row) {
+                i = (i + 1) & mask;
+            }
+
+            for (int j = (i + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+                int next = slots[j];
+                int home = slot(rowPid[next], rowName[next]) & mask;
+
+                // move the row into the hole if the hole lies between its home slot and j
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    slots[i] = next;
+                    i = j;
+                }
+            }
+
+            slots[i] = EMPTY;
+        }
+
+        private void rebuild(int capacity) {
+            slots = newSlots(capacity);
+
+            for (int row = 0; row < rowCount; row++) {
+                if (rowItem[row] != null) {
+                    insert(row);
+                }
+            }
+        }
+
+        private void grow(int capacity) {
+            int[] npid = new int[capacity];
+            String[] nname = new String[capacity];
+            ProcessItem[] nitem = new ProcessItem[capacity];
+            int[] nstamp = new int[capacity];
+            int[] nnext = new int[capacity];
+            long[] ncpu = new long[capacity];
+            long[] nlastcpu = new long[capacity];
+
+            System.arraycopy(rowPid, 0, npid, 0, rowCount);
+            System.arraycopy(rowName, 0, nname, 0, rowCount);
+            System.arraycopy(rowItem, 0, nitem, 0, rowCount);
+            System.arraycopy(rowStamp, 0, nstamp, 0, rowCount);
+            System.arraycopy(rowNext, 0, nnext, 0, rowCount);
+            System.arraycopy(cputime, 0, ncpu, 0, rowCount);
+            System.arraycopy(lastcputime, 0, nlastcpu, 0, rowCount);
+
+            rowPid = npid;
+            rowName = nname;
+            rowItem = nitem;
+            rowStamp = nstamp;
+            rowNext = nnext;
+            cputime = ncpu;
+            lastcputime = nlastcpu;
+        }
+
+        private static int[] newSlots(int capacity) {
+            int[] arr = new int[capacity];
+
+            Arrays.fill(arr, EMPTY);
+
+            return arr;
+        }
+
+        private static int slot(int pid, String name) {
+            int h = pid > 0 ? pid : name.hashCode();
+
+            h *= 0x9e3779b9;
+
+            return h ^ (h >>> 16);
+        }
+    }
+
     /**
      * ProcessComparator
      */
@@ -3472,8 +3325,8 @@ public class ProcessManager extends ListActivity implements Constants, IActionMe
 
                 case ORDER_TYPE_CPU:
 
-                    long c1 = obj1.lastcputime == 0 ? 0 : (obj1.cputime - obj1.lastcputime);
-                    long c2 = obj2.lastcputime == 0 ? 0 : (obj2.cputime - obj2.lastcputime);
+                    long c1 = obj1.cpuDelta;
+                    long c2 = obj2.cpuDelta;
                     return (c1 == c2 ? 0 : (c1 < c2 ? -1 : 1)) * direction;
             }
 
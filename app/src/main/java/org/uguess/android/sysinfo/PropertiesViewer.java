@@ -19,15 +19,12 @@ import android.app.Activity;
 import android.app.ActivityManager;
 import android.app.ExpandableListActivity;
 import android.app.ProgressDialog;
-import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.DialogInterface.OnMultiChoiceClickListener;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.ConfigurationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
@@ -41,7 +38,6 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.IBinder;
 import android.os.Process;
 import android.os.SystemClock;
 import android.provider.Settings;
@@ -69,12 +65,10 @@ import android.widget.TextView;
 
 import org.uguess.android.sysinfo.ToolMenuDialog.IActionMenuProvider;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
@@ -108,8 +102,6 @@ import javax.microedition.khronos.opengles.GL11ExtensionPack;
  */
 public class PropertiesViewer extends ExpandableListActivity implements Constants, IActionMenuProvider {
 
-    private static final String ACTION_GETPROPS = "org.uguess.android.sysinfo.pro.action.GETPROPS"; //$NON-NLS-1$
-
     private static Method mtdGetSystemAvailableFeatures = null;
     private static Method mtdOverridePendingTransition = null;
     private static Field fdDensityDpi = null;
@@ -257,6 +249,12 @@ public class PropertiesViewer extends ExpandableListActivity implements Constant
     }
 
     static String getFeatures(Context ctx) {
+        String features = DeviceFacts.get(ctx, DeviceFacts.FACT_FEATURES);
+
+        if (features != null) {
+            return features;
+        }
+
         if (mtdGetSystemAvailableFeatures != null) {
             PackageManager pm = ctx.getPackageManager();
 
@@ -290,7 +288,11 @@ public class PropertiesViewer extends ExpandableListActivity implements Constant
                             }
                         }
 
-                        return sb.toString();
+                        features = sb.toString();
+
+                        DeviceFacts.put(ctx, DeviceFacts.FACT_FEATURES, features);
+
+                        return features;
                     }
                 }
             } catch (Exception e) {
@@ -444,90 +446,6 @@ public class PropertiesViewer extends ExpandableListActivity implements Constant
         return codeName == null ? String.valueOf(sdk) : (String.valueOf(sdk) + " (" + codeName + ')'); //$NON-NLS-1$
     }
 
-    static void parseProp(String line, Bundle props) {
-        if (line == null) {
-            return;
-        }
-
-        int idx = line.indexOf(':');
-
-        if (idx != -1) {
-            String key = line.substring(0, idx).trim();
-            String val = line.substring(idx + 1).trim();
-
-            if (key.length() > 2 && val.length() > 1) {
-                if (key.charAt(0) == '[' && key.charAt(key.length() - 1) == ']' && val.charAt(0) == '['
-                        && val.charAt(val.length() - 1) == ']') {
-                    key = key.substring(1, key.length() - 1);
-
-                    if (val.length() > 2) {
-                        val = val.substring(1, val.length() - 1);
-                    } else {
-                        val = null;
-                    }
-
-                    props.putString(key, val);
-                }
-            }
-        }
-    }
-
-    static Map<String, String> parseGetprops(final Context ctx) {
-        final Map<String, String> result = new HashMap<String, String>();
-
-        final boolean[] unregFlag = new boolean[]{false};
-
-        BroadcastReceiver receiver = new BroadcastReceiver() {
-
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if (ACTION_GETPROPS.equals(intent.getAction())) {
-                    Bundle bd = intent.getBundleExtra("result"); //$NON-NLS-1$
-
-                    if (bd != null) {
-                        for (String key : bd.keySet()) {
-                            result.put(key, bd.getString(key));
-                        }
-                    }
-
-                    ctx.unregisterReceiver(this);
-                    unregFlag[0] = true;
-
-                    Util.finishStub(ctx, intent.getIntExtra(EXTRA_PID, 0));
-
-                    synchronized (result) {
-                        result.notify();
-                    }
-                }
-            }
-        };
-
-        ctx.registerReceiver(receiver, new IntentFilter(ACTION_GETPROPS));
-
-        ctx.startService(new Intent(ctx, GetPropsService.class));
-
-        try {
-            synchronized (result) {
-                result.wait(5000);
-            }
-        } catch (InterruptedException e) {
-            Log.e(PropertiesViewer.class.getName(), e.getLocalizedMessage(), e);
-        }
-
-        if (!unregFlag[0]) {
-            try {
-                // in case the receiver is not unregistered
-                ctx.unregisterReceiver(receiver);
-            } catch (Exception e) {
-                Log.e(PropertiesViewer.class.getName(), e.getLocalizedMessage(), e);
-            }
-        }
-
-        ctx.stopService(new Intent(ctx, GetPropsService.class));
-
-        return result;
-    }
-
     static void formatElapsedTime(Context ctx, StringBuilder sb, long elapsedSeconds) {
         long days = 0;
         long hours = 0;
@@ -606,7 +524,7 @@ public class PropertiesViewer extends ExpandableListActivity implements Constant
 
             sb.delete(0, sb.length());
 
-            String kver = Util.readFileFirstLine("/proc/version", 1024); //$NON-NLS-1$
+            String kver = DeviceFacts.getKernelVersion(PropertiesViewer.this);
 
             sb.append(ResUtil.getString(PropertiesViewer.this, R.string.kernel)).append(": ") //$NON-NLS-1$
                     .append(kver == null ? ResUtil.getString(PropertiesViewer.this, R.string.unknown) : kver)
@@ -1189,7 +1107,7 @@ public class PropertiesViewer extends ExpandableListActivity implements Constant
 
             sb.delete(0, sb.length());
 
-            Map<String, String> getprops = parseGetprops(PropertiesViewer.this);
+            Map<String, String> getprops = PropertyReader.readAll();
 
             if (getprops.size() > 0) {
                 addProps(sb, getprops.entrySet());
@@ -1274,10 +1192,22 @@ public class PropertiesViewer extends ExpandableListActivity implements Constant
 
         setListAdapter(new PropertiesAdapter(this));
 
-        Intent it = new Intent(this, GLPropertiesViewerStub.class);
-        startActivityForResult(it, REQUEST_GPU_INFO);
+        String glProps = DeviceFacts.get(this, DeviceFacts.FACT_GL_PROPS);
+
+        if (glProps != null) {
+            // the gl probe needs two surfaces, only run it once per boot
+            Intent it = getIntent();
+            it.putExtra(EXTRA_GLVENDOR, DeviceFacts.get(this, DeviceFacts.FACT_GL_VENDOR));
+            it.putExtra(EXTRA_GLRENDERER, DeviceFacts.get(this, DeviceFacts.FACT_GL_RENDERER));
+            it.putExtra(EXTRA_GLPROPS, glProps);
 
-        overridePendingTransition(this, 0, 0);
+            refresh();
+        } else {
+            Intent it = new Intent(this, GLPropertiesViewerStub.class);
+            startActivityForResult(it, REQUEST_GPU_INFO);
+
+            overridePendingTransition(this, 0, 0);
+        }
     }
 
     @Override
@@ -1468,6 +1398,16 @@ public class PropertiesViewer extends ExpandableListActivity implements Constant
                 }
 
                 Util.finishStub(this, data.getIntExtra(EXTRA_PID, 0));
+
+                String glProps = data.getStringExtra(EXTRA_GLPROPS);
+
+                if (glProps != null) {
+                    DeviceFacts.put(this, DeviceFacts.FACT_GL_VENDOR,
+                            data.getStringExtra(EXTRA_GLVENDOR));
+                    DeviceFacts.put(this, DeviceFacts.FACT_GL_RENDERER,
+                            data.getStringExtra(EXTRA_GLRENDERER));
+                    DeviceFacts.put(this, DeviceFacts.FACT_GL_PROPS, glProps);
+                }
             }
 
             refresh();
@@ -2374,62 +2314,6 @@ public class PropertiesViewer extends ExpandableListActivity implements Constant
 
     }
 
-    /**
-     * GetPropsService
-     */
-    public static final class GetPropsService extends Service {
-
-        @Override
-        public IBinder onBind(Intent intent) {
-            return null;
-        }
-
-        @Override
-        public void onStart(Intent intent, final int startId) {
-            super.onStart(intent, startId);
-
-            new Thread("GetPropsStub") { //$NON-NLS-1$
-
-                public void run() {
-                    Bundle result = new Bundle();
-
-                    BufferedReader reader = null;
-
-                    try {
-                        java.lang.Process proc = Runtime.getRuntime().exec("getprop"); //$NON-NLS-1$
-
-                        reader = new BufferedReader(new InputStreamReader(proc.getInputStream()), 2048);
-
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            parseProp(line, result);
-                        }
-                    } catch (Exception e) {
-                        Log.e(PropertiesViewer.class.getName(), e.getLocalizedMessage(), e);
-                    } finally {
-                        if (reader != null) {
-                            try {
-                                reader.close();
-                            } catch (IOException e) {
-                                Log.e(PropertiesViewer.class.getName(), e.getLocalizedMessage(), e);
-                            }
-                        }
-                    }
-
-                    Intent it = new Intent(ACTION_GETPROPS);
-                    it.putExtra("result", result); //$NON-NLS-1$
-                    it.putExtra(EXTRA_PID, Process.myPid());
-
-                    sendBroadcast(it);
-
-                    stopSelfResult(startId);
-                }
-
-                ;
-            }.start();
-        }
-    }
-
     /**
      * GLPropertiesViewerStub
      */
@@ -0,0 +1,447 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * PropertyReader <br>
+ * <br>
+ * Reads the system properties in process from the property areas under /dev/__properties__, which
+ * is a single file up to Android 6 and a directory with one area per SELinux context after. Both
+ * the trie layout (Android 4.4+) and the older table layout are understood. If no area can be
+ * read, the output of getprop is parsed instead. The global serial of the areas changes with any
+ * property, so the last full read is reused until it does.
+ */
+final class PropertyReader {
+
+    private static final String PROP_PATH = "/dev/__properties__"; //$NON-NLS-1$
+    private static final String SERIAL_AREA = "properties_serial"; //$NON-NLS-1$
+
+    private static final int AREA_MAGIC = 0x504f5250;
+    private static final int AREA_VERSION = 0xfc6ed0ab;
+    private static final int AREA_VERSION_COMPAT = 0x45434f76;
+
+    /**
+     * area header: bytes_used or count, serial, magic, version, then reserved words
+     */
+    private static final int OFF_SERIAL = 4;
+    private static final int OFF_MAGIC = 8;
+    private static final int OFF_VERSION = 12;
+
+    /**
+     * start of the trie nodes in the trie layout
+     */
+    private static final int TRIE_DATA = 128;
+
+    /**
+     * trie node: namelen, prop, left, right, children, name
+     */
+    private static final int NODE_PROP = 4;
+    private static final int NODE_LEFT = 8;
+    private static final int NODE_RIGHT = 12;
+    private static final int NODE_CHILDREN = 16;
+    private static final int NODE_NAME = 20;
+
+    /**
+     * trie prop info: serial, value[92], name
+     */
+    private static final int INFO_VALUE = 4;
+    private static final int INFO_NAME = 96;
+    private static final int INFO_LONG_OFFSET = 4 + 56;
+    private static final int LONG_FLAG = 1 << 16;
+
+    /**
+     * table layout: toc at 32, prop info is name[32], serial, value[92]
+     */
+    private static final int COMPAT_TOC = 32;
+    private static final int COMPAT_INFO_VALUE = 36;
+    private static final int COMPAT_NAME_MAX = 32;
+
+    private static final int VALUE_MAX = 92;
+
+    private static TreeMap<String, String> cache;
+    private static int cacheSerial = -1;
+
+    private PropertyReader() {
+    }
+
+    /**
+     * @return all readable properties sorted by name
+     */
+    static synchronized Map<String, String> readAll() {
+        int serial = getSerial();
+
+        if (cache == null || serial == -1 || serial != cacheSerial) {
+            cache = read(""); //$NON-NLS-1$
+            cacheSerial = serial;
+        }
+
+        return new TreeMap<String, String>(cache);
+    }
+
+    /**
+     * @param prefix name prefix, e.g. "ro.build." or "" for all properties
+     * @return the matching properties sorted by name
+     */
+    static TreeMap<String, String> read(String prefix) {
+        TreeMap<String, String> result = new TreeMap<String, String>();
+
+        if (!readAreas(prefix, result)) {
+            readGetprop(prefix, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the property value, or null if not set or not readable
+     */
+    static String get(String name) {
+        return read(name).get(name);
+    }
+
+    /**
+     * @return the global serial of the property areas, which changes whenever a property is set;
+     * or -1 if not available
+     */
+    static int getSerial() {
+        File f = new File(PROP_PATH);
+
+        if (f.isDirectory()) {
+            f = new File(f, SERIAL_AREA);
+        }
+
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(f, "r"); //$NON-NLS-1$
+
+            byte[] header = new byte[16];
+            raf.readFully(header);
+
+            ByteBuffer bb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (bb.getInt(OFF_MAGIC) == AREA_MAGIC) {
+                return bb.getInt(OFF_SERIAL);
+            }
+        } catch (IOException e) {
+            // not existing or not readable
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(PropertyReader.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return false if no property area could be read
+     */
+    private static boolean readAreas(String prefix, Map<String, String> out) {
+        File f = new File(PROP_PATH);
+
+        if (f.isDirectory()) {
+            File[] areas = f.listFiles();
+            boolean any = false;
+
+            if (areas != null) {
+                for (File area : areas) {
+                    // areas of contexts denied by the policy cannot be opened, skip them
+                    if (!SERIAL_AREA.equals(area.getName()) && readArea(area, prefix, out)) {
+                        any = true;
+                    }
+                }
+            }
+
+            return any;
+        }
+
+        return readArea(f, prefix, out);
+    }
+
+    private static boolean readArea(File f, String prefix, Map<String, String> out) {
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(f, "r"); //$NON-NLS-1$
+
+            FileChannel fc = raf.getChannel();
+
+            ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+
+            return readArea(bb, prefix, out);
+        } catch (IOException e) {
+            // not existing or not readable
+        } catch (IndexOutOfBoundsException e) {
+            // the area is being written
+            Log.d(PropertyReader.class.getName(), "Inconsistent property area: " + f); //$NON-NLS-1$
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(PropertyReader.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param bb the content of one property area
+     * @return false if the content is not a property area
+     */
+    static boolean readArea(ByteBuffer bb, String prefix, Map<String, String> out) {
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (bb.limit() < TRIE_DATA || bb.getInt(OFF_MAGIC) != AREA_MAGIC) {
+            // e.g. the property_info context table
+            return false;
+        }
+
+        int version = bb.getInt(OFF_VERSION);
+
+        if (version == AREA_VERSION) {
+            readTrie(bb, prefix, out);
+            return true;
+        } else if (version == AREA_VERSION_COMPAT) {
+            readTable(bb, prefix, out);
+            return true;
+        }
+
+        return false;
+    }
+
+    private static void readTrie(ByteBuffer bb, String prefix, Map<String, String> out) {
+        int node = 0;
+
+        // descend along the complete segments of the prefix, the names are split at dots
+        int start = 0;
+        int dot;
+
+        while ((dot = prefix.indexOf('.', start)) != -1) {
+            node = findChild(bb, node, prefix, start, dot);
+
+            if (node == -1) {
+                return;
+            }
+
+            start = dot + 1;
+        }
+
+        int[] stack = new int[64];
+        int top = 0;
+
+        // the node itself, but not its siblings
+        int prop = bb.getInt(TRIE_DATA + node + NODE_PROP);
+
+        if (prop != 0) {
+            addTrieProp(bb, prop, prefix, out);
+        }
+
+        int children = bb.getInt(TRIE_DATA + node + NODE_CHILDREN);
+
+        if (children != 0) {
+            stack[top++] = children;
+        }
+
+        while (top > 0) {
+            int off = TRIE_DATA + stack[--top];
+
+            prop = bb.getInt(off + NODE_PROP);
+
+            if (prop != 0) {
+                addTrieProp(bb, prop, prefix, out);
+            }
+
+            if (top + 3 > stack.length) {
+                int[] nstack = new int[stack.length * 2];
+                System.arraycopy(stack, 0, nstack, 0, top);
+                stack = nstack;
+            }
+
+            int next = bb.getInt(off + NODE_LEFT);
+
+            if (next != 0) {
+                stack[top++] = next;
+            }
+
+            next = bb.getInt(off + NODE_RIGHT);
+
+            if (next != 0) {
+                stack[top++] = next;
+            }
+
+            next = bb.getInt(off + NODE_CHILDREN);
+
+            if (next != 0) {
+                stack[top++] = next;
+            }
+        }
+    }
+
+    /**
+     * The children of a node form a binary tree ordered by name length first, then by bytes.
+     *
+     * @return the child named prefix[start, end), or -1
+     */
+    private static int findChild(ByteBuffer bb, int node, String prefix, int start, int end) {
+        int len = end - start;
+        int current = bb.getInt(TRIE_DATA + node + NODE_CHILDREN);
+
+        while (current != 0) {
+            int off = TRIE_DATA + current;
+            int nameLen = bb.getInt(off);
+
+            int cmp = len - nameLen;
+
+            for (int i = 0; cmp == 0 && i < len; i++) {
+                cmp = (prefix.charAt(start + i) & 0xff) - (bb.get(off + NODE_NAME + i) & 0xff);
+            }
+
+            if (cmp == 0) {
+                return current;
+            }
+
+            current = bb.getInt(off + (cmp < 0 ? NODE_LEFT : NODE_RIGHT));
+        }
+
+        return -1;
+    }
+
+    private static void addTrieProp(ByteBuffer bb, int prop, String prefix,
+                                    Map<String, String> out) {
+        int off = TRIE_DATA + prop;
+
+        String name = readString(bb, off + INFO_NAME, bb.limit() - off - INFO_NAME);
+
+        if (!name.startsWith(prefix)) {
+            return;
+        }
+
+        int serial = bb.getInt(off);
+
+        String value;
+
+        if ((serial & LONG_FLAG) != 0) {
+            // long read-only values are stored after the name, the value field holds an error
+            int valueOff = off + bb.getInt(off + INFO_LONG_OFFSET);
+
+            value = readString(bb, valueOff, bb.limit() - valueOff);
+        } else {
+            value = readString(bb, off + INFO_VALUE, VALUE_MAX);
+        }
+
+        out.put(name, value);
+    }
+
+    private static void readTable(ByteBuffer bb, String prefix, Map<String, String> out) {
+        int count = bb.getInt(0);
+
+        for (int i = 0; i < count; i++) {
+            int off = bb.getInt(COMPAT_TOC + i * 4) & 0xffffff;
+
+            String name = readString(bb, off, COMPAT_NAME_MAX);
+
+            if (name.startsWith(prefix)) {
+                out.put(name, readString(bb, off + COMPAT_INFO_VALUE, VALUE_MAX));
+            }
+        }
+    }
+
+    /**
+     * @return the nul terminated string at the offset, at most max bytes long
+     */
+    private static String readString(ByteBuffer bb, int off, int max) {
+        int len = 0;
+
+        while (len < max && bb.get(off + len) != 0) {
+            len++;
+        }
+
+        byte[] bytes = new byte[len];
+
+        for (int i = 0; i < len; i++) {
+            bytes[i] = bb.get(off + i);
+        }
+
+        try {
+            return new String(bytes, "UTF-8"); //$NON-NLS-1$
+        } catch (IOException e) {
+            return new String(bytes);
+        }
+    }
+
+    /**
+     * Parses the "[name]: [value]" lines of getprop as they are streamed.
+     */
+    private static void readGetprop(String prefix, Map<String, String> out) {
+        BufferedReader reader = null;
+        java.lang.Process proc = null;
+
+        try {
+            proc = Runtime.getRuntime().exec("getprop"); //$NON-NLS-1$
+
+            reader = new BufferedReader(new InputStreamReader(proc.getInputStream()), 2048);
+
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                int idx = line.indexOf("]: ["); //$NON-NLS-1$
+
+                if (idx > 1 && line.charAt(0) == '[' && line.endsWith("]")) { //$NON-NLS-1$
+                    String name = line.substring(1, idx);
+
+                    if (name.startsWith(prefix)) {
+                        out.put(name, line.substring(idx + 4, line.length() - 1));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(PropertyReader.class.getName(), e.getLocalizedMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(PropertyReader.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+
+            if (proc != null) {
+                proc.destroy();
+            }
+        }
+    }
+}
@@ -71,6 +71,8 @@ public final class QSystemInfo extends TabActivity {
 
         Util.hookExceptionHandler(getApplicationContext());
 
+        RootUtil.acquireSession();
+
         ResUtil.checkResources(this, new ResourceListener() {
 
             @Override
@@ -296,6 +298,8 @@ public final class QSystemInfo extends TabActivity {
         gestureDetector = null;
         getTabHost().clearAllTabs();
 
+        RootUtil.releaseSession();
+
         super.onDestroy();
     }
 
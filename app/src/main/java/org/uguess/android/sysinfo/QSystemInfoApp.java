@@ -28,6 +28,10 @@ public final class QSystemInfoApp extends Application {
         super.onCreate();
 
         ResUtil.initResources(this);
+
+        CapabilityRegistry.init(this);
+
+        CpuState.init(this);
     }
 
     @Override
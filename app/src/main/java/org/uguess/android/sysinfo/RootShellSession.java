@@ -0,0 +1,325 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * RootShellSession <br>
+ * <br>
+ * Keeps one shell process open and runs commands through it. Each submitted command is framed by
+ * unique begin/end marker lines, the end marker carries the exit code. Commands can be submitted
+ * back to back and are answered in order. If the shell dies or a command times out, the session
+ * is closed and all pending commands fail; the owner is expected to start a new session.
+ */
+final class RootShellSession {
+
+    static final long NO_TIMEOUT = 0;
+
+    private static final String MARKER_BEGIN = "-QSI-BEGIN-"; //$NON-NLS-1$
+    private static final String MARKER_END = "-QSI-END-"; //$NON-NLS-1$
+
+    /**
+     * Command
+     */
+    static final class Command {
+
+        static final int STATE_PENDING = 0;
+        static final int STATE_RUNNING = 1;
+        static final int STATE_DONE = 2;
+        static final int STATE_FAILED = 3;
+
+        final int id;
+
+        final String[] commands;
+
+        final List<String> output = new ArrayList<String>();
+
+        int exitCode = -1;
+
+        private int state = STATE_PENDING;
+
+        private boolean started;
+
+        Command(int id, String[] commands) {
+            this.id = id;
+            this.commands = commands;
+        }
+
+        /**
+         * @param timeout in milliseconds, or NO_TIMEOUT
+         * @return the output lines, or null if the command failed or timed out
+         */
+        synchronized List<String> waitFor(long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+
+            try {
+                while (state == STATE_PENDING || state == STATE_RUNNING) {
+                    if (timeout == NO_TIMEOUT) {
+                        wait();
+                    } else {
+                        long remain = deadline - System.currentTimeMillis();
+
+                        if (remain <= 0) {
+                            return null;
+                        }
+
+                        wait(remain);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return null;
+            }
+
+            return state == STATE_DONE ? output : null;
+        }
+
+        /**
+         * @return true if the shell has begun to run the command
+         */
+        synchronized boolean isStarted() {
+            return started;
+        }
+
+        synchronized boolean isFinished() {
+            return state == STATE_DONE || state == STATE_FAILED;
+        }
+
+        synchronized void finish(int newState) {
+            state = newState;
+            notifyAll();
+        }
+    }
+
+    private final String shell;
+
+    private final String token;
+
+    private Process process;
+
+    private OutputStream stdin;
+
+    private final LinkedList<Command> pending = new LinkedList<Command>();
+
+    private int nextId;
+
+    private boolean closed;
+
+    RootShellSession(String shell) {
+        this.shell = shell;
+        this.token = Long.toHexString(System.nanoTime()) + '-'
+                + Integer.toHexString(System.identityHashCode(this));
+    }
+
+    /**
+     * Writes the commands to the shell without waiting, so several commands can be in flight.
+     */
+    synchronized Command submit(String... commands) {
+        Command cmd = new Command(nextId++, commands);
+
+        if (closed || !ensureStarted()) {
+            cmd.finish(Command.STATE_FAILED);
+            return cmd;
+        }
+
+        pending.add(cmd);
+
+        try {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("echo ").append(MARKER_BEGIN).append(token).append('-') //$NON-NLS-1$
+                    .append(cmd.id).append('\n');
+
+            for (String line : commands) {
+                sb.append(line).append('\n');
+            }
+
+            // a leading newline in case the output does not end with one
+            sb.append("echo \"\n").append(MARKER_END).append(token).append('-') //$NON-NLS-1$
+                    .append(cmd.id).append(" $?\"\n"); //$NON-NLS-1$
+
+            stdin.write(sb.toString().getBytes("UTF-8")); //$NON-NLS-1$
+            stdin.flush();
+        } catch (IOException e) {
+            Log.e(RootShellSession.class.getName(), e.getLocalizedMessage(), e);
+
+            close();
+        }
+
+        return cmd;
+    }
+
+    synchronized boolean isAlive() {
+        return !closed && process != null;
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (stdin != null) {
+            try {
+                stdin.write("exit\n".getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+                stdin.flush();
+                stdin.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            stdin = null;
+        }
+
+        if (process != null) {
+            process.destroy();
+            process = null;
+        }
+
+        failPending();
+    }
+
+    private boolean ensureStarted() {
+        if (process != null) {
+            return true;
+        }
+
+        try {
+            process = Runtime.getRuntime().exec(shell);
+            stdin = process.getOutputStream();
+
+            new OutputReader(process.getInputStream(), true).start();
+            new OutputReader(process.getErrorStream(), false).start();
+
+            return true;
+        } catch (IOException e) {
+            Log.d(RootShellSession.class.getName(), "Cannot start shell: " //$NON-NLS-1$
+                    + e.getLocalizedMessage());
+
+            process = null;
+            closed = true;
+        }
+
+        return false;
+    }
+
+    private void failPending() {
+        while (!pending.isEmpty()) {
+            pending.removeFirst().finish(Command.STATE_FAILED);
+        }
+    }
+
+    private synchronized void onLine(String line) {
+        Command cmd = pending.peek();
+
+        if (cmd == null) {
+            return;
+        }
+
+        if (cmd.state == Command.STATE_PENDING) {
+            if (line.equals(MARKER_BEGIN + token + '-' + cmd.id)) {
+                synchronized (cmd) {
+                    cmd.state = Command.STATE_RUNNING;
+                    cmd.started = true;
+                }
+            }
+            return;
+        }
+
+        String end = MARKER_END + token + '-' + cmd.id;
+
+        if (line.startsWith(end)) {
+            // drop the empty line produced by the leading newline of the end marker
+            int size = cmd.output.size();
+
+            if (size > 0 && cmd.output.get(size - 1).length() == 0) {
+                cmd.output.remove(size - 1);
+            }
+
+            cmd.exitCode = (int) FileHandlePool.parseLong(line.getBytes(), end.length(),
+                    line.length() - end.length());
+
+            pending.removeFirst();
+            cmd.finish(Command.STATE_DONE);
+        } else {
+            cmd.output.add(line);
+        }
+    }
+
+    private synchronized void onEnd() {
+        if (!closed) {
+            Log.d(RootShellSession.class.getName(), "Shell terminated"); //$NON-NLS-1$
+        }
+
+        closed = true;
+        process = null;
+        stdin = null;
+
+        failPending();
+    }
+
+    /**
+     * OutputReader
+     */
+    private final class OutputReader extends Thread {
+
+        private final BufferedReader reader;
+
+        private final boolean stdout;
+
+        OutputReader(InputStream inputStream, boolean stdout) {
+            super(stdout ? "Root Shell Reader" : "Root Shell Error Reader"); //$NON-NLS-1$ //$NON-NLS-2$
+
+            this.reader = new BufferedReader(new InputStreamReader(inputStream));
+            this.stdout = stdout;
+
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (stdout) {
+                        onLine(line);
+                    }
+                }
+            } catch (IOException e) {
+                // ignore
+            }
+
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // ignore
+            }
+
+            if (stdout) {
+                onEnd();
+            }
+        }
+    }
+}
@@ -15,20 +15,20 @@
 
 package org.uguess.android.sysinfo;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import android.os.SystemClock;
+import android.util.Log;
+
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * RootUtil <br>
  * <br>
+ * Root commands are run through one persistent su session, which is restarted on demand if it
+ * dies or a command times out. Components that keep using root hold a reference to the session
+ * between {@link #acquireSession()} and {@link #releaseSession()}, it is closed when the last one
+ * lets go.<br>
+ * <br>
  * <b>Methods in this class should be called in worker thread!</b>
  */
 public final class RootUtil {
@@ -37,133 +37,258 @@ public final class RootUtil {
             "id" //$NON-NLS-1$
     };
 
+    /**
+     * Default timeout for root commands, in milliseconds
+     */
+    static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+    /**
+     * Interval to wait before asking for root again after a failure, in milliseconds
+     */
+    private static final long RETRY_INTERVAL = 60 * 1000;
+
+    private static RootShellSession session;
+
+    /**
+     * session being tested for root and its test command, the result is published by the first
+     * caller done waiting for it
+     */
+    private static RootShellSession probeSession;
+    private static RootShellSession.Command probe;
+
+    private static long lastFailTime;
+
+    /**
+     * components holding the session
+     */
+    private static int sessionRefs;
+
     public static boolean rootAvailable() {
-        List<String> ret = run("su", rootTestCommands, null, false); //$NON-NLS-1$
-        return parseAvailableResult(ret, true);
+        return getSession() != null;
+    }
+
+    /**
+     * @return true if a root session is up, without asking for root
+     */
+    static synchronized boolean hasSession() {
+        return session != null && session.isAlive();
     }
 
     public static List<String> runRoot(String... commands) {
-        return run("su", commands, null, false); //$NON-NLS-1$
+        return runRoot(DEFAULT_TIMEOUT, commands);
     }
 
-    private static boolean parseAvailableResult(List<String> ret, boolean checkForRoot) {
-        if (ret == null)
-            return false;
+    /**
+     * @param timeout in milliseconds, or {@link RootShellSession#NO_TIMEOUT}
+     * @return the output, also if the commands exited with non-zero status, or null if they could
+     * not be run
+     */
+    public static List<String> runRoot(long timeout, String... commands) {
+        RootShellSession.Command cmd = execRoot(timeout, commands);
 
-        // this is only one of many ways this can be done
-        boolean echo_seen = false;
+        return cmd == null ? null : cmd.output;
+    }
 
-        for (String line : ret) {
-            if (line.contains("uid=")) //$NON-NLS-1$
-            {
-                // id command is working, let's see if we are actually root
-                return !checkForRoot || line.contains("uid=0"); //$NON-NLS-1$
-            } else if (line.contains("-BOC-")) //$NON-NLS-1$
-            {
-                // if we end up here, at least the su command starts some kind
-                // of shell,
-                // let's hope it has root privileges - no way to know without
-                // additional
-                // native binaries
-                echo_seen = true;
+    /**
+     * @param timeout in milliseconds, or {@link RootShellSession#NO_TIMEOUT}
+     * @return the finished command with its output and exit code, or null if root is not
+     * available, the command timed out or the shell died
+     */
+    static RootShellSession.Command execRoot(long timeout, String... commands) {
+        for (int i = 0; i < 2; i++) {
+            RootShellSession rs = getSession();
+
+            if (rs == null) {
+                return null;
+            }
+
+            RootShellSession.Command cmd = rs.submit(commands);
+
+            if (waitFor(rs, cmd, timeout)) {
+                return cmd;
+            }
+
+            // retry once only if the shell was already dead before the command got in
+            if (cmd.isStarted() || !cmd.isFinished() || rs.isAlive()) {
+                return null;
             }
         }
 
-        return echo_seen;
+        return null;
     }
 
-    private static List<String> run(String shell, String[] commands, String[] environment,
-                                    boolean wantSTDERR) {
-        List<String> res = Collections.synchronizedList(new ArrayList<String>());
-
-        try {
-            if (environment != null) {
-                Map<String, String> newEnvironment = new HashMap<String, String>();
-                newEnvironment.putAll(System.getenv());
-                int split;
-                for (String entry : environment) {
-                    if ((split = entry.indexOf("=")) >= 0) //$NON-NLS-1$
-                    {
-                        newEnvironment.put(entry.substring(0, split), entry.substring(split + 1));
-                    }
-                }
-                int i = 0;
-                environment = new String[newEnvironment.size()];
-                for (Map.Entry<String, String> entry : newEnvironment.entrySet()) {
-                    environment[i] = entry.getKey() + "=" + entry.getValue(); //$NON-NLS-1$
-                    i++;
-                }
-            }
+    /**
+     * @return the lines of the file read through root, or null if it could not be read
+     */
+    static List<String> readFileRoot(String path) {
+        RootShellSession.Command cmd = execRoot(DEFAULT_TIMEOUT, "cat " + path); //$NON-NLS-1$
 
-            Process process = Runtime.getRuntime().exec(shell, environment);
-            DataOutputStream STDIN = new DataOutputStream(process.getOutputStream());
-            StreamHandler STDOUT = new StreamHandler(process.getInputStream(), res);
-            StreamHandler STDERR = new StreamHandler(process.getErrorStream(), wantSTDERR ? res : null);
+        return cmd == null || cmd.exitCode != 0 ? null : cmd.output;
+    }
 
-            STDOUT.start();
-            STDERR.start();
-            for (String write : commands) {
-                STDIN.write((write + "\n").getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
-                STDIN.flush();
-            }
-            STDIN.write("exit\n".getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
-            STDIN.flush();
+    /**
+     * Submits all the command groups to the shell in one go and waits for each of them.
+     *
+     * @return results in the same order, an element is null if that command could not be run
+     */
+    public static List<List<String>> runRootPipelined(long timeout, String[]... commandGroups) {
+        List<List<String>> results = new ArrayList<List<String>>(commandGroups.length);
 
-            process.waitFor();
+        RootShellSession rs = getSession();
 
-            try {
-                STDIN.close();
-            } catch (IOException e) {
+        if (rs == null) {
+            for (int i = 0; i < commandGroups.length; i++) {
+                results.add(null);
             }
-            STDOUT.join();
-            STDERR.join();
-            process.destroy();
+            return results;
+        }
 
-            // in case of su, 255 usually indicates access denied
-            if (shell.equals("su") && (process.exitValue() == 255)) //$NON-NLS-1$
-            {
-                res = null;
+        RootShellSession.Command[] cmds = new RootShellSession.Command[commandGroups.length];
+
+        for (int i = 0; i < commandGroups.length; i++) {
+            cmds[i] = rs.submit(commandGroups[i]);
+        }
+
+        for (RootShellSession.Command cmd : cmds) {
+            results.add(waitFor(rs, cmd, timeout) ? cmd.output : null);
+        }
+
+        return results;
+    }
+
+    /**
+     * Holds the root shell open until the matching {@link #releaseSession()}.
+     */
+    public static synchronized void acquireSession() {
+        sessionRefs++;
+    }
+
+    /**
+     * Closes the root shell when no other component holds it, the pending commands fail then. A
+     * new one will be started on next demand.
+     */
+    public static synchronized void releaseSession() {
+        if (sessionRefs > 0 && --sessionRefs > 0) {
+            return;
+        }
+
+        closeSession();
+    }
+
+    private static void closeSession() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+
+        if (probeSession != null) {
+            // fails the test command, the callers waiting for it get no session
+            probeSession.close();
+            probeSession = null;
+            probe = null;
+        }
+    }
+
+    /**
+     * @return true if the command finished, its exit code is left to the caller
+     */
+    private static boolean waitFor(RootShellSession rs, RootShellSession.Command cmd,
+                                   long timeout) {
+        if (cmd.waitFor(timeout) == null) {
+            if (!cmd.isFinished()) {
+                // the shell is in unknown state after a timeout, restart it on next demand
+                rs.close();
             }
-        } catch (IOException e) {
-            res = null;
-        } catch (InterruptedException e) {
-            res = null;
+
+            return false;
+        }
+
+        if (cmd.exitCode != 0) {
+            Log.d(RootUtil.class.getName(), "Command exited with " + cmd.exitCode + ": " //$NON-NLS-1$ //$NON-NLS-2$
+                    + cmd.commands[0]);
         }
 
-        return res;
+        return true;
     }
 
     /**
-     * StreamHandler
+     * Callers arriving while the permission is asked for wait on the same test command, the class
+     * lock is not held while waiting.
+     *
+     * @return a live root shell session, or null if root is not available
      */
-    static final class StreamHandler extends Thread {
+    private static RootShellSession getSession() {
+        RootShellSession rs;
+        RootShellSession.Command cmd;
 
-        private BufferedReader reader = null;
-        private List<String> writer = null;
+        synchronized (RootUtil.class) {
+            if (session != null) {
+                if (session.isAlive()) {
+                    return session;
+                }
+                session = null;
+            }
+
+            if (probe == null) {
+                if (lastFailTime != 0
+                        && SystemClock.elapsedRealtime() - lastFailTime < RETRY_INTERVAL) {
+                    return null;
+                }
 
-        StreamHandler(InputStream inputStream, List<String> outputList) {
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-            writer = outputList;
+                probeSession = new RootShellSession("su"); //$NON-NLS-1$
+                probe = probeSession.submit(rootTestCommands);
+            }
+
+            rs = probeSession;
+            cmd = probe;
         }
 
-        @Override
-        public void run() {
-            try {
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    if (writer != null) {
-                        writer.add(line);
-                    }
+        // the first command may wait for the user to grant the permission
+        List<String> ret = cmd.waitFor(DEFAULT_TIMEOUT);
+
+        boolean granted = ret != null && cmd.exitCode == 0 && parseAvailableResult(ret, true);
+
+        synchronized (RootUtil.class) {
+            if (probe == cmd) {
+                probe = null;
+                probeSession = null;
+
+                if (granted) {
+                    session = rs;
+                    lastFailTime = 0;
+                } else {
+                    rs.close();
+                    lastFailTime = SystemClock.elapsedRealtime();
                 }
-            } catch (IOException e) {
-                // ignore
             }
 
-            try {
-                reader.close();
-            } catch (IOException e) {
-                // ignore
+            return granted ? session : null;
+        }
+    }
+
+    private static boolean parseAvailableResult(List<String> ret, boolean checkForRoot) {
+        if (ret == null)
+            return false;
+
+        // this is only one of many ways this can be done
+        boolean echo_seen = false;
+
+        for (String line : ret) {
+            if (line.contains("uid=")) //$NON-NLS-1$
+            {
+                // id command is working, let's see if we are actually root
+                return !checkForRoot || line.contains("uid=0"); //$NON-NLS-1$
+            } else if (line.contains("-BOC-")) //$NON-NLS-1$
+            {
+                // if we end up here, at least the su command starts some kind
+                // of shell,
+                // let's hope it has root privileges - no way to know without
+                // additional
+                // native binaries
+                echo_seen = true;
             }
         }
+
+        return echo_seen;
     }
 }
@@ -0,0 +1,681 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * SamplerHub <br>
+ * <br>
+ * Samples CPU, memory and network counters on one background thread for all the periodic
+ * consumers. Each consumer subscribes to a set of metrics with its own period; on every tick the
+ * hub reads each requested source once, including the cpu frequencies, and copies the values into
+ * the preallocated {@link Sample} buffers of all the subscriptions that are due, which are then
+ * passed on to their own handlers. The samples are not immutable snapshots: to keep the ticks free
+ * of allocations each subscription reuses two samples in turn, see {@link Listener#onSample}.
+ */
+final class SamplerHub {
+
+    static final int METRIC_CPU = 0x1;
+    static final int METRIC_CPU_CORES = 0x2;
+    static final int METRIC_CPU_FREQ = 0x4;
+    static final int METRIC_MEM = 0x8;
+    static final int METRIC_NET = 0x10;
+    static final int METRIC_NET_UID = 0x20;
+
+    /**
+     * talkers kept in a sample
+     */
+    static final int TOP_TALKERS = 5;
+
+    /**
+     * subscriptions due within this time are served by the current tick
+     */
+    private static final long TICK_SLACK = 50;
+
+    private static SamplerHub instance;
+
+    /**
+     * Listener
+     */
+    interface Listener {
+
+        /**
+         * Called on the handler given at subscription, or on the sampler thread. The sample is
+         * one of the two buffers of the subscription and is refilled after the listener returns
+         * from the next call. It can be kept until then, e.g. to compute the deltas against, but
+         * values needed for longer must be copied out. The listener must not modify it.
+         */
+        void onSample(Sample sample);
+    }
+
+    /**
+     * Sample. Each subscription owns two samples that are filled in turn, one is never refilled
+     * while the listener may still read it. A sample is valid from the call that delivers it until
+     * the listener returns from the next call, see {@link Listener#onSample}. Callers must not
+     * modify the fields or the arrays.
+     */
+    static final class Sample {
+
+        /**
+         * SystemClock.elapsedRealtime() when the sample was taken
+         */
+        long time;
+
+        int metrics;
+
+        /**
+         * aggregate CPU load in {@link CpuLoadReader} layout, or null
+         */
+        long[] cpuLoad;
+
+        /**
+         * per core CPU load in {@link CpuLoadReader} layout indexed by core id, or null. Offline
+         * cores have all-zero loads.
+         */
+        long[][] coreLoads;
+
+        /**
+         * cores and clusters at the time of the sample, set together with coreLoads
+         */
+        CpuTopology topology;
+
+        /**
+         * current frequency description per core, see {@link CpuState#getMips()}
+         */
+        String[] mips;
+
+        long memTotal, memAvailable;
+
+        String wifiDev, cellDev;
+
+        long wifiRx, wifiTx, cellRx, cellTx;
+
+        /**
+         * all interfaces with their rates, or null
+         */
+        NetDevStats.Iface[] ifaces;
+
+        /**
+         * rates summed over all interfaces but loopback, traffic through a VPN counts on both the
+         * tunnel and the underlying interface
+         */
+        long netRxRate, netTxRate;
+
+        /**
+         * uids with the most traffic in the last interval busiest first, or null
+         */
+        UidTraffic.Talker[] talkers;
+
+        private long[] cpuBuf;
+        private long[][] coreBuf;
+        private String[] mipsBuf;
+
+        boolean has(int metric) {
+            return (metrics & metric) != 0;
+        }
+
+        /**
+         * @return the used memory percentage in [0, 100], or -1 if unknown
+         */
+        int getMemPercent() {
+            return SamplerHub.getMemPercent(memTotal, memAvailable);
+        }
+
+        long getMemUsed() {
+            if (memTotal <= 0 || memAvailable < 0) {
+                return 0;
+            }
+
+            return Math.max(0, memTotal - memAvailable);
+        }
+
+        /**
+         * @return the interface of the given name, or null if not in the sample
+         */
+        NetDevStats.Iface getIface(String name) {
+            if (ifaces != null && name != null) {
+                for (NetDevStats.Iface itf : ifaces) {
+                    if (itf.name.equals(name)) {
+                        return itf;
+                    }
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Subscription
+     */
+    static final class Subscription {
+
+        final int metrics;
+
+        final Handler target;
+
+        final Listener listener;
+
+        volatile long period;
+
+        volatile boolean active = true;
+
+        long nextDue;
+
+        private final Sample[] samples = {new Sample(), new Sample()};
+
+        /**
+         * index of the sample to fill next
+         */
+        private int next;
+
+        private Sample pending;
+
+        /**
+         * whether a sample is posted and its listener has not returned yet
+         */
+        private volatile boolean busy;
+
+        private final Runnable deliver = new Runnable() {
+
+            public void run() {
+                try {
+                    if (active) {
+                        listener.onSample(pending);
+                    }
+                } finally {
+                    busy = false;
+                }
+            }
+        };
+
+        Subscription(int metrics, long period, Handler target, Listener listener) {
+            this.metrics = metrics;
+            this.period = period;
+            this.target = target;
+            this.listener = listener;
+        }
+    }
+
+    private final Context ctx;
+
+    private final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+
+    private HandlerThread thread;
+
+    private Handler handler;
+
+    private final CpuLoadReader cpuReader = new CpuLoadReader();
+
+    private final MemSnapshot memState = new MemSnapshot();
+
+    private final UidTraffic uidTraffic = new UidTraffic();
+
+    private final NetDevStats netStats = new NetDevStats();
+
+    /**
+     * one frequency tracker for all the subscribers, read once per tick
+     */
+    private CpuState cpuState;
+
+    /**
+     * the values of the current tick, only touched in the sampler thread
+     */
+    private final ArrayList<Subscription> due = new ArrayList<Subscription>();
+
+    private final long[] cpuLoad = new long[CpuLoadReader.FIELD_COUNT];
+    private long[][] coreLoads;
+    private boolean cpuValid;
+    private CpuTopology topology;
+    private String[] mips;
+    private long memTotal, memAvailable;
+    private String wifiDev, cellDev;
+    private long wifiRx, wifiTx, cellRx, cellTx;
+    private NetDevStats.Iface[] ifaces;
+    private long netRxRate, netTxRate;
+    private UidTraffic.Talker[] talkers;
+
+    private final String[] netDevs = new String[2];
+
+    /**
+     * the loads last fed to the rollup, to compute the deltas against
+     */
+    private final MetricsRollup rollup = MetricsRollup.getShared();
+    private final long[] lastCpuLoad = new long[CpuLoadReader.FIELD_COUNT];
+    private long[][] lastCoreLoads;
+    private boolean lastCpuValid;
+
+    private final Runnable tick = new Runnable() {
+
+        public void run() {
+            doTick();
+        }
+    };
+
+    /**
+     * the active devices are looked up again only when the connectivity changes
+     */
+    private final BroadcastReceiver netReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Util.resetActiveNetDevices();
+        }
+    };
+
+    private SamplerHub(Context ctx) {
+        this.ctx = ctx.getApplicationContext();
+    }
+
+    static synchronized SamplerHub getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new SamplerHub(ctx);
+        }
+        return instance;
+    }
+
+    /**
+     * @param metrics  combination of the METRIC_* constants
+     * @param period   requested interval in milliseconds
+     * @param target   handler to receive the samples, or null to call the listener right on the
+     *                 sampler thread, e.g. for recording without waking up the main thread
+     * @param listener the listener, gets reused samples that stay valid only until it returns
+     *                 from the next call
+     */
+    synchronized Subscription subscribe(int metrics, long period, Handler target,
+                                        Listener listener) {
+        Subscription sub = new Subscription(metrics, period, target, listener);
+
+        // first sample right away
+        sub.nextDue = SystemClock.elapsedRealtime();
+
+        subscriptions.add(sub);
+
+        if (thread == null) {
+            thread = new HandlerThread("Sampler Hub"); //$NON-NLS-1$
+            thread.start();
+
+            handler = new Handler(thread.getLooper());
+
+            Util.resetActiveNetDevices();
+
+            ctx.registerReceiver(netReceiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+
+        reschedule();
+
+        return sub;
+    }
+
+    synchronized void unsubscribe(Subscription sub) {
+        if (sub == null || !subscriptions.remove(sub)) {
+            return;
+        }
+
+        sub.active = false;
+
+        if (sub.target != null) {
+            sub.target.removeCallbacksAndMessages(sub);
+        }
+
+        if (subscriptions.isEmpty()) {
+            handler.removeCallbacks(tick);
+
+            ctx.unregisterReceiver(netReceiver);
+
+            // release the file handles in the sampler thread, then quit
+            handler.post(new Runnable() {
+
+                public void run() {
+                    cpuReader.close();
+                    memState.close();
+
+                    Looper.myLooper().quit();
+                }
+            });
+
+            thread = null;
+            handler = null;
+        } else {
+            reschedule();
+        }
+    }
+
+    synchronized void setPeriod(Subscription sub, long period) {
+        sub.period = period;
+
+        if (subscriptions.contains(sub)) {
+            sub.nextDue = Math.min(sub.nextDue, SystemClock.elapsedRealtime() + period);
+
+            reschedule();
+        }
+    }
+
+    private void reschedule() {
+        if (handler == null) {
+            return;
+        }
+
+        long next = Long.MAX_VALUE;
+
+        for (int i = 0, size = subscriptions.size(); i < size; i++) {
+            next = Math.min(next, subscriptions.get(i).nextDue);
+        }
+
+        handler.removeCallbacks(tick);
+
+        if (next != Long.MAX_VALUE) {
+            long delay = next - SystemClock.elapsedRealtime();
+
+            handler.postDelayed(tick, delay > 0 ? delay : 0);
+        }
+    }
+
+    private void doTick() {
+        int metrics = 0;
+
+        long now = SystemClock.elapsedRealtime();
+
+        synchronized (this) {
+            for (int i = 0, size = subscriptions.size(); i < size; i++) {
+                Subscription sub = subscriptions.get(i);
+
+                if (sub.nextDue - TICK_SLACK <= now) {
+                    // keep the cadence, but never fall behind by more than one period
+                    sub.nextDue = Math.max(sub.nextDue + sub.period, now);
+
+                    if (sub.busy) {
+                        // the listener has not got the last sample yet, skip this one
+                        continue;
+                    }
+
+                    due.add(sub);
+                    metrics |= sub.metrics;
+                }
+            }
+        }
+
+        if (!due.isEmpty()) {
+            read(metrics, now);
+
+            feedRollup(now);
+
+            for (int i = 0, size = due.size(); i < size; i++) {
+                Subscription sub = due.get(i);
+
+                Sample sample = sub.samples[sub.next];
+                sub.next ^= 1;
+
+                copy(sample, sub.metrics | (metrics & ~METRIC_CPU_FREQ), now);
+
+                sub.pending = sample;
+                sub.busy = true;
+
+                if (sub.target == null) {
+                    sub.deliver.run();
+                } else {
+                    sub.target.postAtTime(sub.deliver, sub, SystemClock.uptimeMillis());
+                }
+            }
+
+            due.clear();
+        }
+
+        synchronized (this) {
+            reschedule();
+        }
+    }
+
+    private void read(int metrics, long now) {
+        cpuValid = false;
+        topology = null;
+
+        if ((metrics & (METRIC_CPU | METRIC_CPU_CORES)) != 0) {
+            long[][] cores = null;
+
+            if ((metrics & METRIC_CPU_CORES) != 0) {
+                // sized by the present cores, so the indices stay stable across hotplug
+                topology = CpuTopology.get();
+
+                int pc = topology.getCoreCount();
+
+                if (coreLoads == null || coreLoads.length != pc) {
+                    coreLoads = new long[pc][CpuLoadReader.FIELD_COUNT];
+                }
+
+                cores = coreLoads;
+            }
+
+            cpuValid = cpuReader.read(cpuLoad, cores) >= 0;
+
+            if (!cpuValid) {
+                topology = null;
+            }
+        }
+
+        mips = null;
+
+        if ((metrics & METRIC_CPU_FREQ) != 0) {
+            if (cpuState == null) {
+                cpuState = new CpuState();
+            }
+
+            mips = cpuState.getMips();
+        }
+
+        memTotal = -1;
+        memAvailable = -1;
+
+        if ((metrics & METRIC_MEM) != 0) {
+            if (memState.read()) {
+                memTotal = memState.get(MemSnapshot.MEM_TOTAL);
+                memAvailable = memState.getAvailable(ctx);
+            }
+        }
+
+        wifiDev = null;
+        cellDev = null;
+        wifiRx = 0;
+        wifiTx = 0;
+        cellRx = 0;
+        cellTx = 0;
+        ifaces = null;
+        netRxRate = 0;
+        netTxRate = 0;
+
+        if ((metrics & METRIC_NET) != 0) {
+            wifiDev = Util.getActiveWifiDevice();
+            cellDev = Util.getActiveCellDevice();
+
+            netDevs[0] = wifiDev;
+            netDevs[1] = cellDev;
+
+            if (netStats.update(NetDevStats.now(), netDevs)) {
+                ifaces = netStats.getInterfaces();
+
+                for (NetDevStats.Iface itf : ifaces) {
+                    if (!itf.isLoopback()) {
+                        netRxRate += itf.rxRate;
+                        netTxRate += itf.txRate;
+                    }
+
+                    if (itf.name.equals(wifiDev)) {
+                        wifiRx = itf.rx;
+                        wifiTx = itf.tx;
+                    }
+
+                    if (itf.name.equals(cellDev)) {
+                        cellRx = itf.rx;
+                        cellTx = itf.tx;
+                    }
+                }
+            }
+        }
+
+        talkers = null;
+
+        if ((metrics & METRIC_NET_UID) != 0) {
+            // the busiest app can be any of them
+            if (uidTraffic.update(now, null)) {
+                talkers = uidTraffic.getTop(TOP_TALKERS);
+            }
+        }
+    }
+
+    /**
+     * Feeds the shared rollup with whatever was read in this tick, no matter which subscriber
+     * asked for it, so the hour views do not depend on the enabled monitors.
+     */
+    private void feedRollup(long now) {
+        if (cpuValid) {
+            if (lastCpuValid) {
+                int cpu = CpuLoadReader.getLoadPercent(cpuLoad, lastCpuLoad);
+
+                if (cpu >= 0) {
+                    rollup.add(MetricsRollup.SERIES_CPU, now, cpu);
+                }
+            }
+
+            System.arraycopy(cpuLoad, 0, lastCpuLoad, 0, CpuLoadReader.FIELD_COUNT);
+            lastCpuValid = true;
+
+            if (topology != null) {
+                int pc = coreLoads.length;
+
+                if (lastCoreLoads != null && lastCoreLoads.length == pc) {
+                    for (int i = 0; i < pc && i < MetricsHistory.MAX_CORES; i++) {
+                        int percent = CpuLoadReader.getLoadPercent(coreLoads[i], lastCoreLoads[i]);
+
+                        rollup.add(MetricsRollup.SERIES_CORE + i, now, percent < 0 ? 0 : percent);
+                    }
+                } else {
+                    lastCoreLoads = new long[pc][CpuLoadReader.FIELD_COUNT];
+                }
+
+                for (int i = 0; i < pc; i++) {
+                    System.arraycopy(coreLoads[i], 0, lastCoreLoads[i], 0,
+                            CpuLoadReader.FIELD_COUNT);
+                }
+            }
+        }
+
+        int mem = getMemPercent(memTotal, memAvailable);
+
+        if (mem >= 0) {
+            rollup.add(MetricsRollup.SERIES_MEM, now, mem);
+        }
+
+        if (ifaces != null) {
+            rollup.add(MetricsRollup.SERIES_RX, now,
+                    (int) Math.min(netRxRate, Integer.MAX_VALUE));
+            rollup.add(MetricsRollup.SERIES_TX, now,
+                    (int) Math.min(netTxRate, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * @return the used memory percentage in [0, 100], or -1 if unknown
+     */
+    static int getMemPercent(long memTotal, long memAvailable) {
+        if (memTotal <= 0 || memAvailable < 0) {
+            return -1;
+        }
+
+        long percent = Math.max(0, memTotal - memAvailable) * 100 / memTotal;
+
+        return (int) Math.max(0, Math.min(100, percent));
+    }
+
+    /**
+     * Copies the values of the current tick into the sample.
+     *
+     * @param metrics the metrics read in this tick, with METRIC_CPU_FREQ only if the subscription
+     *                asked for it
+     */
+    private void copy(Sample sample, int metrics, long now) {
+        sample.time = now;
+        sample.metrics = metrics;
+
+        sample.cpuLoad = null;
+        sample.coreLoads = null;
+        sample.topology = null;
+
+        if (cpuValid) {
+            if (sample.cpuBuf == null) {
+                sample.cpuBuf = new long[CpuLoadReader.FIELD_COUNT];
+            }
+
+            System.arraycopy(cpuLoad, 0, sample.cpuBuf, 0, CpuLoadReader.FIELD_COUNT);
+
+            sample.cpuLoad = sample.cpuBuf;
+
+            if (topology != null) {
+                int pc = coreLoads.length;
+
+                if (sample.coreBuf == null || sample.coreBuf.length != pc) {
+                    sample.coreBuf = new long[pc][CpuLoadReader.FIELD_COUNT];
+                }
+
+                for (int i = 0; i < pc; i++) {
+                    System.arraycopy(coreLoads[i], 0, sample.coreBuf[i], 0,
+                            CpuLoadReader.FIELD_COUNT);
+                }
+
+                sample.coreLoads = sample.coreBuf;
+                sample.topology = topology;
+            }
+        }
+
+        sample.mips = null;
+
+        if ((metrics & METRIC_CPU_FREQ) != 0 && mips != null) {
+            if (sample.mipsBuf == null || sample.mipsBuf.length != mips.length) {
+                sample.mipsBuf = new String[mips.length];
+            }
+
+            System.arraycopy(mips, 0, sample.mipsBuf, 0, mips.length);
+
+            sample.mips = sample.mipsBuf;
+        }
+
+        sample.memTotal = memTotal;
+        sample.memAvailable = memAvailable;
+
+        sample.wifiDev = wifiDev;
+        sample.cellDev = cellDev;
+        sample.wifiRx = wifiRx;
+        sample.wifiTx = wifiTx;
+        sample.cellRx = cellRx;
+        sample.cellTx = cellTx;
+
+        sample.ifaces = ifaces;
+        sample.netRxRate = netRxRate;
+        sample.netTxRate = netTxRate;
+        sample.talkers = talkers;
+    }
+}
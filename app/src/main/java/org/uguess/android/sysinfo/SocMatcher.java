@@ -0,0 +1,416 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * SocMatcher <br>
+ * <br>
+ * Identifies the SoC with the rule table in res/raw/soc_rules.txt, see the file for the format.
+ * All tokens are compiled into one Aho-Corasick automaton, so each of the hardware, board and
+ * model strings is scanned once no matter how many rules there are.
+ */
+final class SocMatcher {
+
+    static final int FIELD_DEV_HARDWARE = 0;
+    static final int FIELD_HARDWARE = 1;
+    static final int FIELD_BOARD = 2;
+    static final int FIELD_MODEL = 3;
+
+    private static final int NONE = -1;
+
+    /**
+     * field and group of each pattern, the group is NONE for patterns only used as condition
+     */
+    private int[] patField, patGroup;
+
+    /**
+     * next pattern with the same token, NONE at the end
+     */
+    private int[] patNext;
+    private int patternCount;
+
+    /**
+     * rules of group g are ruleStart[g] .. ruleStart[g + 1] - 1
+     */
+    private int[] ruleStart;
+    private int groupCount;
+
+    private int[] ruleCores, rulePart, ruleRequire;
+    private String[] ruleName, ruleArch;
+
+    /**
+     * maps ascii chars to the alphabet of the tokens, 0 for all others
+     */
+    private final int[] charClass = new int[128];
+    private int classCount;
+
+    /**
+     * dfa transitions, state s goes to delta[s * classCount + c]
+     */
+    private int[] delta;
+
+    /**
+     * first pattern ending at each state, and the nearest state along the failure links that has
+     * patterns
+     */
+    private int[] stateOut, dictLink;
+
+    private static SocMatcher instance;
+    private static boolean loaded;
+
+    private SocMatcher() {
+    }
+
+    /**
+     * @return the matcher compiled from the rule resource, or null if it cannot be loaded. The
+     * rules are parsed only once.
+     */
+    static synchronized SocMatcher getInstance(Context ctx) {
+        if (!loaded) {
+            instance = load(ctx);
+            loaded = true;
+        }
+        return instance;
+    }
+
+    private static SocMatcher load(Context ctx) {
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(ctx.getResources().openRawResource(
+                    R.raw.soc_rules)), 2048);
+
+            ArrayList<String> lines = new ArrayList<String>();
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.length() > 0 && line.charAt(0) != '#') {
+                    lines.add(line);
+                }
+            }
+
+            SocMatcher matcher = new SocMatcher();
+            matcher.compile(lines);
+
+            return matcher;
+        } catch (Exception e) {
+            Log.e(SocMatcher.class.getName(), e.getLocalizedMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(SocMatcher.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param fields the strings indexed by the FIELD_* constants, can contain null
+     * @return {name, arch} of the first matching rule, arch can be null; or null if no rule
+     * matches
+     */
+    String[] match(String[] fields, int cores, int part) {
+        boolean[] matched = new boolean[patternCount];
+
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null) {
+                scan(fields[i], i, matched);
+            }
+        }
+
+        int group = Integer.MAX_VALUE;
+
+        for (int p = 0; p < patternCount; p++) {
+            if (matched[p] && patGroup[p] != NONE && patGroup[p] < group) {
+                group = patGroup[p];
+            }
+        }
+
+        if (group == Integer.MAX_VALUE) {
+            return null;
+        }
+
+        for (int r = ruleStart[group]; r < ruleStart[group + 1]; r++) {
+            if (ruleCores[r] != NONE && ruleCores[r] != cores) {
+                continue;
+            }
+
+            if (rulePart[r] != NONE && rulePart[r] != part) {
+                continue;
+            }
+
+            if (ruleRequire[r] != NONE && !matched[ruleRequire[r]]) {
+                continue;
+            }
+
+            return new String[]{ruleName[r], ruleArch[r]};
+        }
+
+        return null;
+    }
+
+    private void scan(String text, int field, boolean[] matched) {
+        int state = 0;
+
+        for (int i = 0, len = text.length(); i < len; i++) {
+            char c = text.charAt(i);
+
+            state = delta[state * classCount + (c < 128 ? charClass[c] : 0)];
+
+            for (int s = stateOut[state] != NONE ? state : dictLink[state]; s != NONE;
+                 s = dictLink[s]) {
+                for (int p = stateOut[s]; p != NONE; p = patNext[p]) {
+                    if (patField[p] == field) {
+                        matched[p] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void compile(ArrayList<String> lines) {
+        int size = lines.size();
+
+        ArrayList<String> tokens = new ArrayList<String>();
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        ArrayList<Integer> groups = new ArrayList<Integer>();
+        HashMap<String, Integer> patterns = new HashMap<String, Integer>();
+
+        ruleCores = new int[size];
+        rulePart = new int[size];
+        ruleRequire = new int[size];
+        ruleName = new String[size];
+        ruleArch = new String[size];
+        ruleStart = new int[size + 1];
+
+        String lastTokens = null;
+
+        for (int r = 0; r < size; r++) {
+            String[] parts = lines.get(r).split("\\|", -1); //$NON-NLS-1$
+
+            if (parts.length < 3) {
+                throw new IllegalArgumentException("Invalid soc rule: " + lines.get(r)); //$NON-NLS-1$
+            }
+
+            if (!parts[0].equals(lastTokens)) {
+                lastTokens = parts[0];
+                ruleStart[groupCount++] = r;
+
+                for (String tk : parts[0].split(",")) { //$NON-NLS-1$
+                    char f = tk.charAt(0);
+
+                    if (f == 'a') {
+                        addPattern(FIELD_DEV_HARDWARE, tk.substring(2), groupCount - 1, tokens,
+                                fields, groups, patterns);
+                        addPattern(FIELD_HARDWARE, tk.substring(2), groupCount - 1, tokens, fields,
+                                groups, patterns);
+                    } else {
+                        addPattern(getField(f), tk.substring(2), groupCount - 1, tokens, fields,
+                                groups, patterns);
+                    }
+                }
+            }
+
+            ruleCores[r] = NONE;
+            rulePart[r] = NONE;
+            ruleRequire[r] = NONE;
+
+            if (parts[1].length() > 0) {
+                for (String cond : parts[1].split(",")) { //$NON-NLS-1$
+                    if (cond.startsWith("cores=")) { //$NON-NLS-1$
+                        ruleCores[r] = Integer.parseInt(cond.substring(6));
+                    } else if (cond.startsWith("part=")) { //$NON-NLS-1$
+                        rulePart[r] = Integer.decode(cond.substring(5));
+                    } else {
+                        ruleRequire[r] = addPattern(getField(cond.charAt(0)), cond.substring(2),
+                                NONE, tokens, fields, groups, patterns);
+                    }
+                }
+            }
+
+            ruleName[r] = parts[2];
+            ruleArch[r] = parts.length > 3 && parts[3].length() > 0 ? parts[3] : null;
+        }
+
+        ruleStart[groupCount] = size;
+
+        patternCount = tokens.size();
+        patField = new int[patternCount];
+        patGroup = new int[patternCount];
+        patNext = new int[patternCount];
+
+        for (int p = 0; p < patternCount; p++) {
+            patField[p] = fields.get(p);
+            patGroup[p] = groups.get(p);
+            patNext[p] = NONE;
+        }
+
+        buildAutomaton(tokens);
+    }
+
+    /**
+     * @return the pattern id, the same field and token always give the same pattern
+     */
+    private static int addPattern(int field, String token, int group, ArrayList<String> tokens,
+                                  ArrayList<Integer> fields, ArrayList<Integer> groups,
+                                  HashMap<String, Integer> patterns) {
+        String key = field + token;
+        Integer id = patterns.get(key);
+
+        if (id != null) {
+            // the earliest group wins anyway, a condition can still become a group token
+            if (group != NONE && groups.get(id) == NONE) {
+                groups.set(id, group);
+            }
+
+            return id;
+        }
+
+        id = tokens.size();
+
+        tokens.add(token);
+        fields.add(field);
+        groups.add(group);
+        patterns.put(key, id);
+
+        return id;
+    }
+
+    private static int getField(char f) {
+        switch (f) {
+            case 'd':
+                return FIELD_DEV_HARDWARE;
+            case 'h':
+                return FIELD_HARDWARE;
+            case 'b':
+                return FIELD_BOARD;
+            case 'm':
+                return FIELD_MODEL;
+        }
+
+        throw new IllegalArgumentException("Invalid soc rule field: " + f); //$NON-NLS-1$
+    }
+
+    private void buildAutomaton(ArrayList<String> tokens) {
+        int maxStates = 1;
+
+        classCount = 1;
+
+        for (int p = 0; p < patternCount; p++) {
+            String tk = tokens.get(p);
+
+            maxStates += tk.length();
+
+            for (int i = 0; i < tk.length(); i++) {
+                char c = tk.charAt(i);
+
+                if (c >= 128) {
+                    throw new IllegalArgumentException("Non-ascii soc rule token: " + tk); //$NON-NLS-1$
+                }
+
+                if (charClass[c] == 0) {
+                    charClass[c] = classCount++;
+                }
+            }
+        }
+
+        delta = new int[maxStates * classCount];
+        stateOut = new int[maxStates];
+        dictLink = new int[maxStates];
+
+        for (int i = 0; i < delta.length; i++) {
+            delta[i] = NONE;
+        }
+
+        for (int s = 0; s < maxStates; s++) {
+            stateOut[s] = NONE;
+            dictLink[s] = NONE;
+        }
+
+        // trie
+        int stateCount = 1;
+
+        for (int p = 0; p < patternCount; p++) {
+            String tk = tokens.get(p);
+            int state = 0;
+
+            for (int i = 0; i < tk.length(); i++) {
+                int idx = state * classCount + charClass[tk.charAt(i)];
+
+                if (delta[idx] == NONE) {
+                    delta[idx] = stateCount++;
+                }
+
+                state = delta[idx];
+            }
+
+            patNext[p] = stateOut[state];
+            stateOut[state] = p;
+        }
+
+        // failure links in breadth first order, missing transitions are taken from the failure
+        // state, which turns the trie into a dfa
+        int[] fail = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0, tail = 0;
+
+        for (int c = 0; c < classCount; c++) {
+            int next = delta[c];
+
+            if (next == NONE) {
+                delta[c] = 0;
+            } else {
+                fail[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+
+        while (head < tail) {
+            int state = queue[head++];
+
+            int f = fail[state];
+
+            dictLink[state] = stateOut[f] != NONE ? f : dictLink[f];
+
+            for (int c = 0; c < classCount; c++) {
+                int idx = state * classCount + c;
+                int next = delta[idx];
+
+                if (next == NONE) {
+                    delta[idx] = delta[f * classCount + c];
+                } else {
+                    fail[next] = delta[f * classCount + c];
+                    queue[tail++] = next;
+                }
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@
 
 package org.uguess.android.sysinfo;
 
+import android.app.KeyguardManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -24,11 +25,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
@@ -40,6 +36,7 @@ import android.os.IBinder;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.widget.RemoteViews;
 
@@ -57,6 +54,16 @@ public final class StatusUpdaterService extends Service implements Constants {
     static final int GRAPH_SPACE = 1;
     static final int GRAPH_BORDER = 2;
 
+    /**
+     * beyond this many cores the load graphs show one lane per cluster
+     */
+    static final int GRAPH_MAX_CORE_LANES = 8;
+
+    /**
+     * minimal interval of the persisted metrics history
+     */
+    static final long HISTORY_INTERVAL = 1000;
+
     static final String EXTRA_TARGET = "target"; //$NON-NLS-1$
     static final String EXTRA_STATE = "state"; //$NON-NLS-1$
     static final String EXTRA_MONITOR = "monitor"; //$NON-NLS-1$
@@ -105,25 +112,42 @@ public final class StatusUpdaterService extends Service implements Constants {
 
     Notification infoNotify, taskNotify, netNotify, battNotify;
 
-    Graph infoGraph, taskGraph;
-
-    Graph[] extraInfoGraph;
+    HistoryGraph infoGraph, taskGraph;
 
     Handler handler = new Handler();
 
     UpdaterRunnable updater = new UpdaterRunnable();
 
+    /**
+     * updater of the running service, only accessed on the main thread
+     */
+    private static UpdaterRunnable runningUpdater;
+
     private BroadcastReceiver receiver = new BroadcastReceiver() {
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+            String action = intent.getAction();
+
+            if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                updater.hidden = isKeyguardLocked(context);
+
                 if (updater.showCpu || updater.showMem || updater.showWifi) {
                     handler.post(updater);
                 }
-            } else {
-                updater.reset();
+            } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
                 handler.removeCallbacks(updater);
+                updater.stop();
+                updater.reset();
+            } else if (Intent.ACTION_USER_PRESENT.equals(action)) {
+                updater.setHidden(false);
+            } else if (Intent.ACTION_BATTERY_CHANGED.equals(action)) {
+                int level = intent.getIntExtra("level", 0); //$NON-NLS-1$
+                int scale = intent.getIntExtra("scale", 100); //$NON-NLS-1$
+                int plugged = intent.getIntExtra("plugged", 0); //$NON-NLS-1$
+
+                updater.setLowBattery(plugged == 0 && scale > 0
+                        && level * 100 / scale < AdaptiveScheduler.LOW_BATTERY_LEVEL);
             }
         }
     };
@@ -281,7 +305,7 @@ public final class StatusUpdaterService extends Service implements Constants {
                                 + vStr + ", " //$NON-NLS-1$
                                 + tpStr + ", " //$NON-NLS-1$
                                 + pStr,
-                        null, 0, 0, battNotify.contentIntent, 0, invTitleColor);
+                        null, battNotify.contentIntent, 0, invTitleColor);
 
                 try {
                     ((NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE)).notify(
@@ -303,11 +327,19 @@ public final class StatusUpdaterService extends Service implements Constants {
     public void onCreate() {
         Util.hookExceptionHandler(getApplicationContext());
 
+        RootUtil.acquireSession();
+
+        runningUpdater = updater;
+
         IntentFilter itf = new IntentFilter(Intent.ACTION_SCREEN_ON);
         itf.addAction(Intent.ACTION_SCREEN_OFF);
+        itf.addAction(Intent.ACTION_USER_PRESENT);
+        itf.addAction(Intent.ACTION_BATTERY_CHANGED);
 
         registerReceiver(receiver, itf);
 
+        updater.hidden = isKeyguardLocked(this);
+
         boolean useLegacyIcon = false;
         SharedPreferences sp = getSharedPreferences(SYSINFO_MANAGER_STORE_NAME, Context.MODE_PRIVATE);
         if (sp != null) {
@@ -324,8 +356,9 @@ public final class StatusUpdaterService extends Service implements Constants {
     public void onStart(Intent intent, int startId) {
         super.onStart(intent, startId);
 
-        updater.reset();
         handler.removeCallbacks(updater);
+        updater.stop();
+        updater.reset();
 
         SharedPreferences sp =
                 getSharedPreferences(SYSINFO_MANAGER_STORE_NAME, Context.MODE_PRIVATE);
@@ -346,6 +379,11 @@ public final class StatusUpdaterService extends Service implements Constants {
         boolean showBattery = sp.getBoolean(PREF_KEY_SHOW_BATTERY_INFO, true) && !disableAllIcon;
         boolean useLegacyIcon = sp.getBoolean(PREF_KEY_USE_LEGACY_ICON, false);
 
+        updater.showTopApp = sp.getBoolean(PREF_KEY_SHOW_TOP_APP, false);
+        updater.adaptive = sp.getBoolean(PREF_KEY_ADAPTIVE_REFRESH, true);
+        updater.adaptiveThreshold =
+                sp.getInt(PREF_KEY_ADAPTIVE_THRESHOLD, AdaptiveScheduler.DEFAULT_THRESHOLD);
+
         if (showBattery) {
             if (battReceiverRegistered) {
                 // re-register the receiver to honor the setting updates
@@ -436,6 +474,15 @@ public final class StatusUpdaterService extends Service implements Constants {
         }
 
         handler.removeCallbacks(updater);
+        updater.stop();
+
+        MetricsHistory.getInstance(this).close();
+
+        RootUtil.releaseSession();
+
+        if (runningUpdater == updater) {
+            runningUpdater = null;
+        }
 
         if (updater.lastHighPriority != 0) {
             updater.lastHighPriority = 0;
@@ -454,16 +501,6 @@ public final class StatusUpdaterService extends Service implements Constants {
             infoGraph = null;
         }
 
-        if (extraInfoGraph != null) {
-            for (Graph g : extraInfoGraph) {
-                if (g != null) {
-                    g.release();
-                }
-            }
-
-            extraInfoGraph = null;
-        }
-
         if (taskGraph != null) {
             taskGraph.release();
             taskGraph = null;
@@ -515,7 +552,7 @@ public final class StatusUpdaterService extends Service implements Constants {
                     updateEvent(infoNotify, StatusUpdaterService.this, R.drawable.icon,
                             ResUtil.getString(this, ProUtil.getId_appName()),
                             ResUtil.getString(this, R.string.info_icon_hint),
-                            null, 0, 0, infoNotify.contentIntent, 0, invTitleColor);
+                            null, infoNotify.contentIntent, 0, invTitleColor);
 
                     ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(
                             NOTIFY_INFO_UPDATE, infoNotify);
@@ -536,16 +573,6 @@ public final class StatusUpdaterService extends Service implements Constants {
                     infoGraph.release();
                     infoGraph = null;
                 }
-
-                if (extraInfoGraph != null) {
-                    for (Graph g : extraInfoGraph) {
-                        if (g != null) {
-                            g.release();
-                        }
-                    }
-
-                    extraInfoGraph = null;
-                }
             }
         }
 
@@ -583,7 +610,7 @@ public final class StatusUpdaterService extends Service implements Constants {
                     updateEvent(taskNotify, StatusUpdaterService.this, R.drawable.end,
                             ResUtil.getString(this, R.string.task_widget_name),
                             ResUtil.getString(this, R.string.task_icon_hint),
-                            null, 0, 0, taskNotify.contentIntent, 0, invTitleColor);
+                            null, taskNotify.contentIntent, 0, invTitleColor);
 
                     ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(
                             NOTIFY_TASK_UPDATE, taskNotify);
@@ -655,8 +682,6 @@ public final class StatusUpdaterService extends Service implements Constants {
                 Util.stopForeground(StatusUpdaterService.this);
             }
 
-            updater.prepare();
-
             handler.post(updater);
         } else if (target == (TARGET_INFO | TARGET_TASK | TARGET_WIFI)) {
             if (!showBattery) {
@@ -665,6 +690,25 @@ public final class StatusUpdaterService extends Service implements Constants {
         }
     }
 
+    /**
+     * Reads the adaptive refresh state of the running service. Must be called on the main thread.
+     *
+     * @return the current periods of the CPU, memory and network updates in milliseconds (0 if not
+     * running), the number of updates and the number of wakeups saved, or null if the service is
+     * not updating
+     */
+    static long[] getAdaptiveStats() {
+        UpdaterRunnable u = runningUpdater;
+
+        if (u == null || u.scheduler == null) {
+            return null;
+        }
+
+        return new long[]{u.getEffectivePeriod(TARGET_INFO), u.getEffectivePeriod(TARGET_TASK),
+                u.getEffectivePeriod(TARGET_WIFI), u.scheduler.getWakeups(),
+                u.scheduler.getWakeupsSaved()};
+    }
+
     static long getDelay(SharedPreferences sp, String prefKey) {
         long delay = 0;
 
@@ -688,6 +732,24 @@ public final class StatusUpdaterService extends Service implements Constants {
         return delay;
     }
 
+    /**
+     * @return the number of lanes of the per core load graph, one per cluster if there are too
+     * many cores for readable lanes
+     */
+    static int getCoreLanes(CpuTopology topology, int cores) {
+        if (topology != null && cores > GRAPH_MAX_CORE_LANES && topology.getClusterCount() > 1) {
+            return topology.getClusterCount();
+        }
+
+        return cores;
+    }
+
+    static boolean isKeyguardLocked(Context ctx) {
+        KeyguardManager km = (KeyguardManager) ctx.getSystemService(Context.KEYGUARD_SERVICE);
+
+        return km != null && km.inKeyguardRestrictedInputMode();
+    }
+
     static int getCpuIcon(boolean useLegacyIcon) {
         if (Util.SDK_VER >= 21) {
             return useLegacyIcon ? R.drawable.cpu : R.drawable.cpu_v21;
@@ -810,9 +872,12 @@ public final class StatusUpdaterService extends Service implements Constants {
         return nc;
     }
 
+    /**
+     * Builds the content views of the notification, the graph is expected to be updated already.
+     */
     static void updateEvent(Notification nc, Context ctx, int viewIcon, CharSequence title,
-                            CharSequence text, Graph[] graph, int[] percent, int color,
-                            PendingIntent contentIntent, int popTarget, boolean invTitleColor) {
+                            CharSequence text, HistoryGraph graph, PendingIntent contentIntent,
+                            int popTarget, boolean invTitleColor) {
         RemoteViews contentView = new RemoteViews(ctx.getPackageName(), invTitleColor ? R.layout.history_graph : R.layout.history_graph_light);
 
         if (viewIcon != 0) {
@@ -832,14 +897,7 @@ public final class StatusUpdaterService extends Service implements Constants {
             contentView.setViewVisibility(R.id.text, View.GONE);
         }
 
-        updateGraph(contentView, graph, percent, color, 0, R.id.graph);
-        updateGraph(contentView, graph, percent, color, 1, R.id.graph1);
-        updateGraph(contentView, graph, percent, color, 2, R.id.graph2);
-        updateGraph(contentView, graph, percent, color, 3, R.id.graph3);
-        updateGraph(contentView, graph, percent, color, 4, R.id.graph4);
-        updateGraph(contentView, graph, percent, color, 5, R.id.graph5);
-        updateGraph(contentView, graph, percent, color, 6, R.id.graph6);
-        updateGraph(contentView, graph, percent, color, 7, R.id.graph7);
+        updateGraph(contentView, graph, R.id.graph);
 
         if (popTarget != 0 && Util.SDK_VER >= 12) {
             contentView.setImageViewResource(R.id.pop, invTitleColor ? R.drawable.arrow_light : R.drawable.arrow);
@@ -861,12 +919,10 @@ public final class StatusUpdaterService extends Service implements Constants {
         nc.contentIntent = contentIntent;
     }
 
-    private static void updateGraph(RemoteViews contentView, Graph[] graph, int[] percent, int color,
-                                    int idx, int viewId) {
-        if (graph != null && graph.length > idx && graph[idx] != null) {
-            graph[idx].update(percent[idx], color);
+    private static void updateGraph(RemoteViews contentView, HistoryGraph graph, int viewId) {
+        if (graph != null) {
             contentView.setViewVisibility(viewId, View.VISIBLE);
-            contentView.setImageViewBitmap(viewId, graph[idx].bmp);
+            contentView.setImageViewBitmap(viewId, graph.bmp);
         } else {
             contentView.setViewVisibility(viewId, View.GONE);
             if (Util.SDK_VER >= 16) {
@@ -876,80 +932,53 @@ public final class StatusUpdaterService extends Service implements Constants {
         }
     }
 
-    static void updateEvent(Notification nc, Context ctx, int viewIcon, CharSequence title,
-                            CharSequence text, Graph graph, int percent, int color,
-                            PendingIntent contentIntent, int popTarget, boolean invTitleColor) {
-        updateEvent(nc, ctx, viewIcon, title, text, graph == null ? null
-                        : new Graph[]{graph}, graph == null ? null : new int[]{percent}, color, contentIntent,
-                popTarget, invTitleColor);
-    }
-
     /**
-     * Graph
+     * RenderState <br>
+     * <br>
+     * Fingerprint of the last content posted for one notification, so ticks that render exactly
+     * the same icon, texts and graphs can skip the notify call.
      */
-    static final class Graph {
-
-        Bitmap bmp;
-
-        private Canvas canv;
-        private Paint pt;
-        private int width, height, bar, space, border, lastPos;
-
-        Graph(int width, int height, int bar, int space, int border) {
-            this.width = width;
-            this.height = height;
-            this.bar = bar;
-            this.space = space;
-            this.border = border;
-
-            int count = (width - 2 - 2 * border) / (bar + space);
-
-            lastPos = (count - 1) * (bar + space) + border + 1;
-
-            bmp = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-            canv = new Canvas(bmp);
-
-            pt = new Paint();
-            pt.setAntiAlias(false);
-
-            pt.setColor(android.graphics.Color.BLACK);
-            pt.setStyle(Style.FILL);
-
-            canv.drawRect(0, 0, width, height, pt);
-        }
-
-        void update(int data, int color) {
-            if (bmp == null || bmp.isRecycled()) {
-                return;
+    static final class RenderState {
+
+        private boolean valid;
+        private int icon, iconLevel, viewIcon;
+        private long when;
+        private String title, text;
+        private HistoryGraph graph;
+        private int revision;
+
+        /**
+         * @return true if the content differs from the last one and needs to be posted
+         */
+        boolean update(Notification nc, int viewIcon, CharSequence title, CharSequence text,
+                       HistoryGraph graph) {
+            String newTitle = title == null ? null : title.toString();
+            String newText = text == null ? null : text.toString();
+
+            boolean same = valid && icon == nc.icon && iconLevel == nc.iconLevel
+                    && when == nc.when && this.viewIcon == viewIcon
+                    && TextUtils.equals(this.title, newTitle) && TextUtils.equals(this.text, newText)
+                    && this.graph == graph && (graph == null || revision == graph.revision);
+
+            if (same) {
+                return false;
             }
 
-            int top = (100 - data) * (height - border * 2 - 2) / 100 + border + 1;
-
-            canv.drawBitmap(bmp, -(bar + space), 0, pt);
-
-            pt.setStyle(Style.FILL);
-            pt.setColor(android.graphics.Color.BLACK);
-            canv.drawRect(lastPos, 0, width, height, pt);
-            canv.drawRect(0, 0, border, height, pt);
-
-            pt.setColor(color);
-            canv.drawRect(lastPos, top, lastPos + bar, height - border - 1, pt);
-
-            pt.setStyle(Style.STROKE);
-            pt.setColor(0xff696969);
-            canv.drawLine(0, 0, width, 0, pt);
-            canv.drawLine(0, 0, 0, height, pt);
-
-            pt.setColor(0xffe3e3e3);
-            canv.drawLine(width - 1, 0, width - 1, height, pt);
-            canv.drawLine(0, height - 1, width, height - 1, pt);
+            valid = true;
+            icon = nc.icon;
+            iconLevel = nc.iconLevel;
+            when = nc.when;
+            this.viewIcon = viewIcon;
+            this.title = newTitle;
+            this.text = newText;
+            this.graph = graph;
+            revision = graph == null ? 0 : graph.revision;
+
+            return true;
         }
 
-        void release() {
-            if (bmp != null && !bmp.isRecycled()) {
-                bmp.recycle();
-                bmp = null;
-            }
+        void invalidate() {
+            valid = false;
         }
     }
 
@@ -966,67 +995,104 @@ public final class StatusUpdaterService extends Service implements Constants {
         boolean showMemIcon;
         boolean showWifi;
         boolean showRates;
+        boolean showTopApp;
         boolean showWifiIcon;
         boolean invTitleColor;
         boolean showSsid;
         boolean useLegacyIcon;
 
-        long delay;
         long infoDelay, taskDelay, wifiDelay;
-        int totalRun, currentRun;
 
-        long[] lastLoad;
-        long[][] lastAllLoad;
-        long lastRx, lastTx;
+        int[] percents, clusterPercents;
+        long lastRx, lastTx, lastNetTime;
 
-        CpuState cpuObj = new CpuState();
+        SamplerHub.Sample lastInfoSample;
 
-        int lastHighPriority;
+        SamplerHub.Subscription infoSub, taskSub, netSub, historySub;
 
-        UpdaterRunnable() {
+        boolean adaptive;
+        int adaptiveThreshold;
+        boolean lowBattery, hidden;
 
-        }
+        AdaptiveScheduler scheduler;
+        AdaptiveScheduler.Channel infoChannel, taskChannel, netChannel;
 
-        void prepare() {
-            long minDelay = infoDelay != 0 ? infoDelay : (taskDelay != 0 ? taskDelay : wifiDelay);
+        RenderState infoState = new RenderState();
+        RenderState taskState = new RenderState();
+        RenderState netState = new RenderState();
 
-            if (taskDelay != 0 && taskDelay < minDelay) {
-                minDelay = taskDelay;
-            }
+        int lastHighPriority;
+
+        /**
+         * labels of the top talkers by uid
+         */
+        SparseArray<String> talkerLabels = new SparseArray<String>();
 
-            if (wifiDelay != 0 && wifiDelay < minDelay) {
-                minDelay = wifiDelay;
+        private SamplerHub.Listener infoListener = new SamplerHub.Listener() {
+
+            public void onSample(SamplerHub.Sample sample) {
+                updateInfo(sample);
             }
+        };
 
-            long maxDelay = infoDelay != 0 ? infoDelay : (taskDelay != 0 ? taskDelay : wifiDelay);
+        private SamplerHub.Listener taskListener = new SamplerHub.Listener() {
 
-            if (taskDelay != 0 && taskDelay > maxDelay) {
-                maxDelay = taskDelay;
+            public void onSample(SamplerHub.Sample sample) {
+                updateTask(sample);
             }
+        };
+
+        private SamplerHub.Listener netListener = new SamplerHub.Listener() {
 
-            if (wifiDelay != 0 && wifiDelay > maxDelay) {
-                maxDelay = wifiDelay;
+            public void onSample(SamplerHub.Sample sample) {
+                updateNet(sample);
             }
+        };
+
+        UpdaterRunnable() {
 
-            totalRun = minDelay == 0 ? 0 : (int) (maxDelay / minDelay);
-            currentRun = 0;
-            delay = minDelay;
         }
 
         void reset() {
-            lastLoad = null;
-            lastAllLoad = null;
+            infoState.invalidate();
+            taskState.invalidate();
+            netState.invalidate();
+
+            lastInfoSample = null;
             lastRx = 0;
             lastTx = 0;
-
-            cpuObj.reset();
+            lastNetTime = 0;
         }
 
-        private boolean canRun(long targetDelay) {
-            if (targetDelay > 0) {
-                return ((delay * currentRun) % targetDelay) == 0;
+        /**
+         * Cancels all the subscriptions to the sampler hub.
+         */
+        void stop() {
+            SamplerHub hub = SamplerHub.getInstance(StatusUpdaterService.this);
+
+            if (scheduler != null) {
+                if (scheduler.getWakeups() > 0) {
+                    Log.d(StatusUpdaterService.class.getName(), "Adaptive refresh saved " //$NON-NLS-1$
+                            + scheduler.getWakeupsSaved() + " wakeups in " //$NON-NLS-1$
+                            + scheduler.getWakeups() + " updates"); //$NON-NLS-1$
+                }
+
+                scheduler.clear();
             }
-            return false;
+
+            infoChannel = null;
+            taskChannel = null;
+            netChannel = null;
+
+            hub.unsubscribe(infoSub);
+            hub.unsubscribe(taskSub);
+            hub.unsubscribe(netSub);
+            hub.unsubscribe(historySub);
+
+            infoSub = null;
+            taskSub = null;
+            netSub = null;
+            historySub = null;
         }
 
         int getRealGraphWidth(DisplayMetrics dm) {
@@ -1034,173 +1100,249 @@ public final class StatusUpdaterService extends Service implements Constants {
             return Math.min(GRAPH_WIDTH, usable);
         }
 
+        /**
+         * (Re)subscribes to the sampler hub according to the current settings.
+         */
         public void run() {
-            if (showCpu && canRun(infoDelay)) {
-                int cl = 1;
-                int pl = 0;
+            stop();
+
+            // settings may have changed or other code may have posted the notifications
+            infoState.invalidate();
+            taskState.invalidate();
+            netState.invalidate();
 
-                long[] load = ProcessManager.readCpuLoad();
+            SamplerHub hub = SamplerHub.getInstance(StatusUpdaterService.this);
 
-                if (lastLoad != null && load != null) {
-                    long totaldelta = load[0] + load[1] - (lastLoad[0] + lastLoad[1]);
+            if (scheduler == null) {
+                scheduler = new AdaptiveScheduler(StatusUpdaterService.this);
+            }
 
-                    if (totaldelta != 0) {
-                        long workdelta = load[0] - lastLoad[0];
+            if (showCpu && infoDelay > 0) {
+                int metrics = SamplerHub.METRIC_CPU | SamplerHub.METRIC_CPU_FREQ;
 
-                        cl = (int) (workdelta * 100 / totaldelta);
+                if (showCpuHistory && CpuTopology.get().getCoreCount() > 1) {
+                    metrics |= SamplerHub.METRIC_CPU_CORES;
+                }
 
-                        if (cl < 0) {
-                            cl = 0;
-                        }
+                infoSub = hub.subscribe(metrics, infoDelay, handler, infoListener);
+            }
 
-                        if (cl > 100) {
-                            cl = 100;
-                        }
+            if (showMem && taskDelay > 0) {
+                taskSub = hub.subscribe(SamplerHub.METRIC_MEM, taskDelay, handler, taskListener);
+            }
 
-                        pl = cl;
+            if (showWifi && wifiDelay > 0) {
+                netSub = hub.subscribe(SamplerHub.METRIC_NET
+                        | (showRates && showTopApp ? SamplerHub.METRIC_NET_UID : 0), wifiDelay, handler,
+                        netListener);
+            }
 
-                        cl = (cl / 15) + 1;
-                    }
-                }
+            // record what the active monitors show at the fastest active rate, but not below 1s
+            long historyDelay = Long.MAX_VALUE;
+            int historyMetrics = 0;
 
-                lastLoad = load;
+            if (infoSub != null) {
+                historyDelay = Math.min(historyDelay, infoDelay);
+                historyMetrics |= infoSub.metrics
+                        & (SamplerHub.METRIC_CPU | SamplerHub.METRIC_CPU_CORES);
+            }
 
-                StringBuilder cpuState = new StringBuilder();
+            if (taskSub != null) {
+                historyDelay = Math.min(historyDelay, taskDelay);
+                historyMetrics |= SamplerHub.METRIC_MEM;
+            }
 
-                cpuState.append(ResUtil.getString(StatusUpdaterService.this, R.string.cpu_usage));
-                cpuState.append(": ").append(pl).append('%'); //$NON-NLS-1$
+            if (netSub != null) {
+                historyDelay = Math.min(historyDelay, wifiDelay);
+                historyMetrics |= SamplerHub.METRIC_NET;
+            }
 
-                String[] cs = cpuObj.getMips();
-                if (cs != null && cs.length > 0) {
-                    if (cs.length == 1) {
-                        if (cs[0] != null) {
-                            cpuState.append(" (").append(cs[0]).append(')'); //$NON-NLS-1$
-                        }
-                    } else {
-                        cpuState.append(" ("); //$NON-NLS-1$
+            if (historyMetrics != 0) {
+                // recorded on the sampler thread, the main thread is not woken up for it
+                historySub = hub.subscribe(historyMetrics, Math.max(historyDelay, HISTORY_INTERVAL),
+                        null, new MetricsHistory.Recorder(StatusUpdaterService.this));
+            }
 
-                        for (int i = 0; i < cs.length; i++) {
-                            if (i > 0) {
-                                cpuState.append(", "); //$NON-NLS-1$
-                            }
+            scheduler.setEnabled(adaptive);
+            scheduler.setThreshold(adaptiveThreshold);
+            scheduler.setLowBattery(lowBattery);
+            scheduler.setHidden(hidden);
 
-                            cpuState.append(cs[i] != null ? cs[i] : "zZ"); //$NON-NLS-1$
-                        }
+            if (infoSub != null) {
+                infoChannel = scheduler.add(infoSub, infoDelay, false);
+            }
 
-                        cpuState.append(')');
-                    }
-                }
+            if (taskSub != null) {
+                taskChannel = scheduler.add(taskSub, taskDelay, false);
+            }
 
-                infoNotify.iconLevel = cl;
-                if (Util.SDK_VER >= 21) {
-                    infoNotify.icon = getCpuIcon(useLegacyIcon);
-                    if (!showCpuIcon) {
-                        infoNotify.iconLevel = INFO_ICON_HIDDEN_LEVEL;
-                    }
-                } else {
-                    infoNotify.icon = showCpuIcon ? getCpuIcon(useLegacyIcon) : HIDDEN_ICON;
-                }
-                infoNotify.when = showCpuIcon ? INFO_TIME : HIDDEN_TIME;
+            if (netSub != null) {
+                netChannel = scheduler.add(netSub, wifiDelay, true);
+            }
 
-                if (Util.SDK_VER >= 16) {
-                    Util.setNotificationPriority(infoNotify, showCpuIcon ? 0 : -2);
-                }
+            if (historySub != null) {
+                scheduler.setFollower(historySub, HISTORY_INTERVAL);
+            }
+        }
 
-                if (showCpuHistory) {
-                    int pc = Runtime.getRuntime().availableProcessors();
+        void setLowBattery(boolean lowBattery) {
+            this.lowBattery = lowBattery;
 
-                    if (pc > 1) {
-                        long[][] allLoad = ProcessManager.readAllCpuLoad(pc);
+            if (scheduler != null) {
+                scheduler.setLowBattery(lowBattery);
+            }
+        }
 
-                        int[] percents = new int[pc];
+        void setHidden(boolean hidden) {
+            this.hidden = hidden;
 
-                        if (lastAllLoad != null && allLoad != null) {
-                            for (int i = 0; i < pc; i++) {
-                                if (allLoad[i] == null || i >= lastAllLoad.length || lastAllLoad[i] == null) {
-                                    continue;
-                                }
+            if (scheduler != null) {
+                scheduler.setHidden(hidden);
+            }
+        }
 
-                                long totaldelta =
-                                        allLoad[i][0] + allLoad[i][1] - (lastAllLoad[i][0] + lastAllLoad[i][1]);
+        /**
+         * @return the current refresh period of the given target in milliseconds, or 0 if not
+         * running
+         */
+        long getEffectivePeriod(int target) {
+            if (scheduler == null) {
+                return 0;
+            }
 
-                                if (totaldelta != 0) {
-                                    long workdelta = allLoad[i][0] - lastAllLoad[i][0];
+            switch (target) {
+                case TARGET_INFO:
+                    return scheduler.getEffectivePeriod(infoChannel);
+                case TARGET_TASK:
+                    return scheduler.getEffectivePeriod(taskChannel);
+                case TARGET_WIFI:
+                    return scheduler.getEffectivePeriod(netChannel);
+            }
 
-                                    percents[i] = (int) (workdelta * 100 / totaldelta);
+            return 0;
+        }
 
-                                    if (percents[i] < 0) {
-                                        percents[i] = 0;
-                                    }
+        void updateInfo(SamplerHub.Sample sample) {
+            int cl = 1;
+            int pl = 0;
 
-                                    if (percents[i] > 100) {
-                                        percents[i] = 100;
-                                    }
-                                }
-                            }
-                        }
+            SamplerHub.Sample last = lastInfoSample;
+            lastInfoSample = sample;
 
-                        lastAllLoad = allLoad;
+            int pc = sample.coreLoads != null ? sample.coreLoads.length : 1;
 
-                        if (extraInfoGraph == null || extraInfoGraph.length != pc) {
-                            if (extraInfoGraph != null) {
-                                for (Graph g : extraInfoGraph) {
-                                    g.release();
-                                }
-                            }
+            int percent = CpuLoadReader.getLoadPercent(sample.cpuLoad, last == null ? null
+                    : last.cpuLoad);
 
-                            extraInfoGraph = new Graph[pc];
+            if (percent >= 0) {
+                pl = percent;
 
-                            DisplayMetrics dm = getResources().getDisplayMetrics();
-                            float scale = dm.density;
+                cl = (percent / 15) + 1;
 
-                            int width = (int) ((getRealGraphWidth(dm) - pc * 2 - 2) * scale / pc);
+                scheduler.onValue(infoChannel, sample.time, percent);
+            }
 
-                            for (int i = 0; i < pc; i++) {
-                                extraInfoGraph[i] =
-                                        new Graph(width, (int) (GRAPH_HEIGHT * scale), (int) ((pc > 4 ? GRAPH_BAR_SMALL
-                                                : GRAPH_BAR) * scale), (int) (GRAPH_SPACE * scale),
-                                                (int) (GRAPH_BORDER * scale));
-                            }
-                        }
+            StringBuilder cpuState = new StringBuilder();
 
-                        updateEvent(infoNotify, StatusUpdaterService.this, R.drawable.icon, cpuState,
-                                null, extraInfoGraph, percents, 0xff52b652, infoNotify.contentIntent,
-                                TARGET_INFO, invTitleColor);
-                    } else {
-                        if (infoGraph == null) {
-                            DisplayMetrics dm = getResources().getDisplayMetrics();
-                            float scale = dm.density;
-                            infoGraph =
-                                    new Graph((int) (getRealGraphWidth(dm) * scale), (int) (GRAPH_HEIGHT * scale),
-                                            (int) (GRAPH_BAR * scale), (int) (GRAPH_SPACE * scale),
-                                            (int) (GRAPH_BORDER * scale));
+            cpuState.append(ResUtil.getString(StatusUpdaterService.this, R.string.cpu_usage));
+            cpuState.append(": ").append(pl).append('%'); //$NON-NLS-1$
+
+            String[] cs = sample.mips;
+            if (cs != null && cs.length > 0) {
+                if (cs.length == 1) {
+                    if (cs[0] != null) {
+                        cpuState.append(" (").append(cs[0]).append(')'); //$NON-NLS-1$
+                    }
+                } else {
+                    cpuState.append(" ("); //$NON-NLS-1$
+
+                    for (int i = 0; i < cs.length; i++) {
+                        if (i > 0) {
+                            cpuState.append(", "); //$NON-NLS-1$
                         }
 
-                        updateEvent(infoNotify, StatusUpdaterService.this, R.drawable.icon, cpuState,
-                                null, infoGraph, pl, 0xff52b652, infoNotify.contentIntent,
-                                TARGET_INFO, invTitleColor);
+                        cpuState.append(cs[i] != null ? cs[i] : "zZ"); //$NON-NLS-1$
+                    }
+
+                    cpuState.append(')');
+                }
+            }
+
+            infoNotify.iconLevel = cl;
+            if (Util.SDK_VER >= 21) {
+                infoNotify.icon = getCpuIcon(useLegacyIcon);
+                if (!showCpuIcon) {
+                    infoNotify.iconLevel = INFO_ICON_HIDDEN_LEVEL;
+                }
+            } else {
+                infoNotify.icon = showCpuIcon ? getCpuIcon(useLegacyIcon) : HIDDEN_ICON;
+            }
+            infoNotify.when = showCpuIcon ? INFO_TIME : HIDDEN_TIME;
+
+            if (Util.SDK_VER >= 16) {
+                Util.setNotificationPriority(infoNotify, showCpuIcon ? 0 : -2);
+            }
+
+            String hint;
+
+            if (showCpuHistory) {
+                if (percents == null || percents.length != pc) {
+                    percents = new int[pc];
+                }
+
+                if (pc > 1) {
+                    long[][] lastCores = last == null ? null : last.coreLoads;
+
+                    // offline cores stay negative and are drawn empty
+                    for (int i = 0; i < pc; i++) {
+                        percents[i] = CpuLoadReader.getLoadPercent(sample.coreLoads[i],
+                                lastCores != null && i < lastCores.length ? lastCores[i] : null);
                     }
                 } else {
+                    percents[0] = pl;
+                }
+
+                int lanes = getCoreLanes(sample.topology, pc);
+                int[] laneData = percents;
+
+                if (lanes != pc) {
+                    if (clusterPercents == null || clusterPercents.length != lanes) {
+                        clusterPercents = new int[lanes];
+                    }
+
+                    sample.topology.aggregate(percents, clusterPercents);
+
+                    laneData = clusterPercents;
+                }
+
+                // all cores share one bitmap, one lane per core or cluster
+                if (infoGraph == null || infoGraph.getLanes() != lanes) {
                     if (infoGraph != null) {
                         infoGraph.release();
-                        infoGraph = null;
                     }
 
-                    if (extraInfoGraph != null) {
-                        for (Graph g : extraInfoGraph) {
-                            if (g != null) {
-                                g.release();
-                            }
-                        }
+                    DisplayMetrics dm = getResources().getDisplayMetrics();
 
-                        extraInfoGraph = null;
-                    }
+                    infoGraph = HistoryGraph.create(dm, getRealGraphWidth(dm), lanes);
+                }
+
+                infoGraph.update(laneData, 0xff52b652);
 
-                    updateEvent(infoNotify, StatusUpdaterService.this, R.drawable.icon, cpuState,
-                            ResUtil.getString(StatusUpdaterService.this, R.string.info_icon_hint),
-                            null, 0, 0, infoNotify.contentIntent, TARGET_INFO, invTitleColor);
+                hint = null;
+            } else {
+                if (infoGraph != null) {
+                    infoGraph.release();
+                    infoGraph = null;
                 }
 
+                hint = ResUtil.getString(StatusUpdaterService.this, R.string.info_icon_hint);
+            }
+
+            // the views are only built if the content differs from the last posted
+            if (infoState.update(infoNotify, R.drawable.icon, cpuState, hint, infoGraph)) {
+                updateEvent(infoNotify, StatusUpdaterService.this, R.drawable.icon, cpuState,
+                        hint, infoGraph, infoNotify.contentIntent, TARGET_INFO, invTitleColor);
+
                 try {
                     ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(
                             NOTIFY_INFO_UPDATE, infoNotify);
@@ -1208,83 +1350,70 @@ public final class StatusUpdaterService extends Service implements Constants {
                     Log.e(StatusUpdaterService.class.getName(), e.getLocalizedMessage(), e);
                 }
             }
+        }
 
-            if (showMem && canRun(taskDelay)) {
-                int cl = 1;
-                int pl = 0;
-                String size = ResUtil.getString(StatusUpdaterService.this, R.string.unknown);
+        void updateTask(SamplerHub.Sample sample) {
+            int cl = 1;
+            int pl = 0;
+            String size = ResUtil.getString(StatusUpdaterService.this, R.string.unknown);
 
-                long[] mem = Util.getMemState(StatusUpdaterService.this);
+            int percent = sample.getMemPercent();
 
-                if (mem != null && mem[0] > 0) {
-                    long used = mem[0] - mem[2];
+            if (percent >= 0) {
+                size = Util.safeFormatFileSize(StatusUpdaterService.this, sample.getMemUsed());
 
-                    if (used < 0) {
-                        used = 0;
-                    }
+                pl = percent;
 
-                    size = Util.safeFormatFileSize(StatusUpdaterService.this, used);
+                cl = (percent / 15) + 1;
 
-                    cl = (int) (used * 100 / mem[0]);
+                scheduler.onValue(taskChannel, sample.time, percent);
+            }
 
-                    if (cl < 0) {
-                        cl = 0;
-                    }
+            taskNotify.iconLevel = cl;
+            if (Util.SDK_VER >= 21) {
+                taskNotify.icon = getMemIcon(useLegacyIcon);
+                if (!showMemIcon) {
+                    taskNotify.iconLevel = TASK_ICON_HIDDEN_LEVEL;
+                }
+            } else {
+                taskNotify.icon = showMemIcon ? getMemIcon(useLegacyIcon) : HIDDEN_ICON;
+            }
+            taskNotify.when = showMemIcon ? TASK_TIME : HIDDEN_TIME;
 
-                    if (cl > 100) {
-                        cl = 100;
-                    }
+            if (Util.SDK_VER >= 16) {
+                Util.setNotificationPriority(taskNotify, showMemIcon ? 0 : -2);
+            }
 
-                    pl = cl;
+            String title = ResUtil.getString(StatusUpdaterService.this, R.string.memory_usage)
+                    + ": " //$NON-NLS-1$
+                    + pl + "% (" //$NON-NLS-1$
+                    + size + ')';
 
-                    cl = (cl / 15) + 1;
-                }
+            String hint;
 
-                taskNotify.iconLevel = cl;
-                if (Util.SDK_VER >= 21) {
-                    taskNotify.icon = getMemIcon(useLegacyIcon);
-                    if (!showMemIcon) {
-                        taskNotify.iconLevel = TASK_ICON_HIDDEN_LEVEL;
-                    }
-                } else {
-                    taskNotify.icon = showMemIcon ? getMemIcon(useLegacyIcon) : HIDDEN_ICON;
-                }
-                taskNotify.when = showMemIcon ? TASK_TIME : HIDDEN_TIME;
+            if (showMemHistory) {
+                if (taskGraph == null) {
+                    DisplayMetrics dm = getResources().getDisplayMetrics();
 
-                if (Util.SDK_VER >= 16) {
-                    Util.setNotificationPriority(taskNotify, showMemIcon ? 0 : -2);
+                    taskGraph = HistoryGraph.create(dm, getRealGraphWidth(dm), 1);
                 }
 
-                if (showMemHistory) {
-                    if (taskGraph == null) {
-                        DisplayMetrics dm = getResources().getDisplayMetrics();
-                        float scale = dm.density;
-                        taskGraph =
-                                new Graph((int) (getRealGraphWidth(dm) * scale), (int) (GRAPH_HEIGHT * scale),
-                                        (int) (GRAPH_BAR * scale), (int) (GRAPH_SPACE * scale),
-                                        (int) (GRAPH_BORDER * scale));
-                    }
-
-                    updateEvent(taskNotify, StatusUpdaterService.this, R.drawable.end,
-                            ResUtil.getString(StatusUpdaterService.this, R.string.memory_usage) + ": " //$NON-NLS-1$
-                                    + pl + "% (" //$NON-NLS-1$
-                                    + size + ')',
-                            null, taskGraph, pl, 0xff5275c6, taskNotify.contentIntent,
-                            TARGET_TASK, invTitleColor);
-                } else {
-                    if (taskGraph != null) {
-                        taskGraph.release();
-                        taskGraph = null;
-                    }
+                taskGraph.update(pl, 0xff5275c6);
 
-                    updateEvent(taskNotify, StatusUpdaterService.this, R.drawable.end,
-                            ResUtil.getString(StatusUpdaterService.this, R.string.memory_usage) + ": " //$NON-NLS-1$
-                                    + pl + "% (" //$NON-NLS-1$
-                                    + size + ')',
-                            ResUtil.getString(StatusUpdaterService.this, R.string.task_icon_hint),
-                            null, 0, 0, taskNotify.contentIntent, TARGET_TASK, invTitleColor);
+                hint = null;
+            } else {
+                if (taskGraph != null) {
+                    taskGraph.release();
+                    taskGraph = null;
                 }
 
+                hint = ResUtil.getString(StatusUpdaterService.this, R.string.task_icon_hint);
+            }
+
+            if (taskState.update(taskNotify, R.drawable.end, title, hint, taskGraph)) {
+                updateEvent(taskNotify, StatusUpdaterService.this, R.drawable.end, title, hint,
+                        taskGraph, taskNotify.contentIntent, TARGET_TASK, invTitleColor);
+
                 try {
                     ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(
                             NOTIFY_TASK_UPDATE, taskNotify);
@@ -1292,124 +1421,171 @@ public final class StatusUpdaterService extends Service implements Constants {
                     Log.e(StatusUpdaterService.class.getName(), e.getLocalizedMessage(), e);
                 }
             }
+        }
+
+        /**
+         * Drops the labels of the uids that are no longer among the talkers.
+         */
+        private void pruneTalkerLabels(UidTraffic.Talker[] talkers) {
+            for (int i = talkerLabels.size() - 1; i >= 0; i--) {
+                int uid = talkerLabels.keyAt(i);
+                boolean found = false;
+
+                if (talkers != null) {
+                    for (UidTraffic.Talker t : talkers) {
+                        if (t.uid == uid) {
+                            found = true;
+                            break;
+                        }
+                    }
+                }
+
+                if (!found) {
+                    talkerLabels.delete(uid);
+                }
+            }
+        }
 
-            if (showWifi && canRun(wifiDelay)) {
-                boolean cancelNet = true;
+        private String getTalkerLabel(int uid) {
+            String label = talkerLabels.get(uid);
 
-                ConnectivityManager cm =
-                        (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (label == null) {
+                label = UidIndex.loadLabel(getPackageManager(), uid);
 
-                if (cm != null) {
-                    NetworkInfo nif = cm.getActiveNetworkInfo();
+                talkerLabels.put(uid, label);
+            }
 
-                    if (nif != null && nif.isConnected()) {
-                        String netDev = null;
-                        String netType = nif.getSubtypeName();
-                        boolean forceHideIcon = false;
+            return label;
+        }
 
-                        nif = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+        void updateNet(SamplerHub.Sample sample) {
+            boolean cancelNet = true;
 
-                        if (nif != null && nif.isConnected()) {
-                            netDev = Util.getActiveWifiDevice();
-                            netType = "Wi-Fi"; //$NON-NLS-1$
+            ConnectivityManager cm =
+                    (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
 
-                            if (showSsid) {
-                                WifiManager wm = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+            if (cm != null) {
+                NetworkInfo nif = cm.getActiveNetworkInfo();
 
-                                WifiInfo wi = wm.getConnectionInfo();
+                if (nif != null && nif.isConnected()) {
+                    String netDev = null;
+                    String netType = nif.getSubtypeName();
+                    boolean forceHideIcon = false;
+                    long rx = 0, tx = 0;
 
-                                if (wi != null && wi.getSSID() != null) {
-                                    netType = wi.getSSID();
-                                }
+                    nif = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+
+                    if (nif != null && nif.isConnected()) {
+                        netDev = sample.wifiDev;
+                        rx = sample.wifiRx;
+                        tx = sample.wifiTx;
+                        netType = "Wi-Fi"; //$NON-NLS-1$
+
+                        if (showSsid) {
+                            WifiManager wm = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+
+                            WifiInfo wi = wm.getConnectionInfo();
+
+                            if (wi != null && wi.getSSID() != null) {
+                                netType = wi.getSSID();
                             }
+                        }
+                    } else {
+                        netDev = sample.cellDev;
+                        rx = sample.cellRx;
+                        tx = sample.cellTx;
+                        forceHideIcon = true;
+                    }
+
+                    if (netDev != null) {
+                        if (rx > lastRx && tx > lastTx) {
+                            netNotify.iconLevel = 3;
+                        } else if (tx > lastTx) {
+                            netNotify.iconLevel = 2;
+                        } else if (rx > lastRx) {
+                            netNotify.iconLevel = 1;
                         } else {
-                            netDev = Util.getActiveCellDevice();
-                            forceHideIcon = true;
+                            netNotify.iconLevel = 0;
                         }
 
-                        if (netDev != null) {
-                            long rx = Util.getRxBytes(netDev);
-                            long tx = Util.getTxBytes(netDev);
+                        long drx = 0;
+                        long dtx = 0;
 
-                            if (rx > lastRx && tx > lastTx) {
-                                netNotify.iconLevel = 3;
-                            } else if (tx > lastTx) {
-                                netNotify.iconLevel = 2;
-                            } else if (rx > lastRx) {
-                                netNotify.iconLevel = 1;
-                            } else {
-                                netNotify.iconLevel = 0;
+                        // rates are measured by the sampler against the real interval
+                        NetDevStats.Iface itf = sample.getIface(netDev);
+
+                        if (itf != null) {
+                            drx = itf.rxRate;
+                            dtx = itf.txRate;
+
+                            if (lastNetTime != 0) {
+                                scheduler.onValue(netChannel, sample.time, drx + dtx);
                             }
+                        }
 
-                            long drx = 0;
-                            long dtx = 0;
+                        lastRx = rx;
+                        lastTx = tx;
+                        lastNetTime = sample.time;
 
-                            if (showRates && wifiDelay > 0) {
-                                if (lastRx != 0) {
-                                    drx = rx - lastRx;
+                        String hint;
 
-                                    if (drx > 0) {
-                                        drx = drx * 1000 / wifiDelay;
-                                    } else {
-                                        drx = 0;
-                                    }
-                                }
+                        if (showRates) {
+                            hint = ResUtil.getString(StatusUpdaterService.this, R.string.rates) + ": Tx: " //$NON-NLS-1$
+                                    + Util.safeFormatFileSize(StatusUpdaterService.this, dtx) + "/s, Rx: " //$NON-NLS-1$
+                                    + Util.safeFormatFileSize(StatusUpdaterService.this, drx) + "/s"; //$NON-NLS-1$
 
-                                if (lastTx != 0) {
-                                    dtx = tx - lastTx;
+                            if (sample.talkers != null && sample.talkers.length > 0) {
+                                UidTraffic.Talker top = sample.talkers[0];
 
-                                    if (dtx > 0) {
-                                        dtx = dtx * 1000 / wifiDelay;
-                                    } else {
-                                        dtx = 0;
-                                    }
+                                hint += ", " + getTalkerLabel(top.uid) + ": " //$NON-NLS-1$ //$NON-NLS-2$
+                                        + Util.safeFormatFileSize(StatusUpdaterService.this,
+                                        top.txRate + top.rxRate) + "/s"; //$NON-NLS-1$
+
+                                if (top.iface != null) {
+                                    hint += " (" + top.iface + ')'; //$NON-NLS-1$
                                 }
                             }
 
-                            lastRx = rx;
-                            lastTx = tx;
-
-                            String hint;
+                            pruneTalkerLabels(sample.talkers);
+                        } else {
+                            hint = ResUtil.getString(StatusUpdaterService.this, R.string.net_icon_hint);
+                        }
 
-                            if (showRates) {
-                                hint = ResUtil.getString(StatusUpdaterService.this, R.string.rates) + ": Tx: " //$NON-NLS-1$
-                                        + Util.safeFormatFileSize(StatusUpdaterService.this, dtx) + "/s, Rx: " //$NON-NLS-1$
-                                        + Util.safeFormatFileSize(StatusUpdaterService.this, drx) + "/s"; //$NON-NLS-1$
+                        if (forceHideIcon) {
+                            if (Util.SDK_VER >= 21) {
+                                netNotify.icon = getWifiIcon(useLegacyIcon);
+                                netNotify.iconLevel = WIFI_ICON_HIDDEN_LEVEL;
                             } else {
-                                hint = ResUtil.getString(StatusUpdaterService.this, R.string.net_icon_hint);
+                                netNotify.icon = HIDDEN_ICON;
                             }
-
-                            if (forceHideIcon) {
-                                if (Util.SDK_VER >= 21) {
-                                    netNotify.icon = getWifiIcon(useLegacyIcon);
+                            netNotify.when = HIDDEN_TIME;
+                        } else {
+                            if (Util.SDK_VER >= 21) {
+                                netNotify.icon = getWifiIcon(useLegacyIcon);
+                                if (!showWifiIcon) {
                                     netNotify.iconLevel = WIFI_ICON_HIDDEN_LEVEL;
-                                } else {
-                                    netNotify.icon = HIDDEN_ICON;
                                 }
-                                netNotify.when = HIDDEN_TIME;
                             } else {
-                                if (Util.SDK_VER >= 21) {
-                                    netNotify.icon = getWifiIcon(useLegacyIcon);
-                                    if (!showWifiIcon) {
-                                        netNotify.iconLevel = WIFI_ICON_HIDDEN_LEVEL;
-                                    }
-                                } else {
-                                    netNotify.icon = showWifiIcon ? getWifiIcon(useLegacyIcon) : HIDDEN_ICON;
-                                }
-                                netNotify.when = showWifiIcon ? WIFI_TIME : HIDDEN_TIME;
+                                netNotify.icon = showWifiIcon ? getWifiIcon(useLegacyIcon) : HIDDEN_ICON;
                             }
+                            netNotify.when = showWifiIcon ? WIFI_TIME : HIDDEN_TIME;
+                        }
 
-                            if (Util.SDK_VER >= 16) {
-                                Util.setNotificationPriority(netNotify, (showWifiIcon && !forceHideIcon) ? 0 : -2);
-                            }
+                        if (Util.SDK_VER >= 16) {
+                            Util.setNotificationPriority(netNotify, (showWifiIcon && !forceHideIcon) ? 0 : -2);
+                        }
+
+                        int viewIcon = forceHideIcon ? ("EDGE".equalsIgnoreCase(netType) ? R.drawable.mobile_edge_noop //$NON-NLS-1$
+                                : R.drawable.mobile_noop) : R.drawable.wifi_noop;
+
+                        String title = (TextUtils.isEmpty(netType) ? "" //$NON-NLS-1$
+                                : netType) + " Tx: " //$NON-NLS-1$
+                                + Util.safeFormatFileSize(StatusUpdaterService.this, lastTx) + ", Rx: " //$NON-NLS-1$
+                                + Util.safeFormatFileSize(StatusUpdaterService.this, lastRx);
 
-                            updateEvent(netNotify, StatusUpdaterService.this,
-                                    forceHideIcon ? ("EDGE".equalsIgnoreCase(netType) ? R.drawable.mobile_edge_noop //$NON-NLS-1$
-                                            : R.drawable.mobile_noop) : R.drawable.wifi_noop, (TextUtils.isEmpty(netType) ? "" //$NON-NLS-1$
-                                            : netType) + " Tx: " //$NON-NLS-1$
-                                            + Util.safeFormatFileSize(StatusUpdaterService.this, lastTx) + ", Rx: " //$NON-NLS-1$
-                                            + Util.safeFormatFileSize(StatusUpdaterService.this, lastRx),
-                                    hint, null, 0, 0, netNotify.contentIntent, TARGET_WIFI, invTitleColor);
+                        if (netState.update(netNotify, viewIcon, title, hint, null)) {
+                            updateEvent(netNotify, StatusUpdaterService.this, viewIcon, title,
+                                    hint, null, netNotify.contentIntent, TARGET_WIFI, invTitleColor);
 
                             try {
                                 ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(
@@ -1417,35 +1593,28 @@ public final class StatusUpdaterService extends Service implements Constants {
                             } catch (Exception e) {
                                 Log.e(StatusUpdaterService.class.getName(), e.getLocalizedMessage(), e);
                             }
-
-                            cancelNet = false;
                         }
-                    }
-                }
-
-                if (cancelNet) {
-                    lastRx = 0;
-                    lastTx = 0;
 
-                    if (lastHighPriority == TARGET_WIFI) {
-                        lastHighPriority = 0;
-
-                        Util.stopForeground(StatusUpdaterService.this);
+                        cancelNet = false;
                     }
-
-                    ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE))
-                            .cancel(NOTIFY_NET_UPDATE);
                 }
             }
 
-            if (delay > 0) {
-                handler.postDelayed(this, delay);
+            if (cancelNet) {
+                netState.invalidate();
+
+                lastRx = 0;
+                lastTx = 0;
+                lastNetTime = 0;
 
-                currentRun++;
+                if (lastHighPriority == TARGET_WIFI) {
+                    lastHighPriority = 0;
 
-                if (currentRun >= totalRun) {
-                    currentRun -= totalRun;
+                    Util.stopForeground(StatusUpdaterService.this);
                 }
+
+                ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE))
+                        .cancel(NOTIFY_NET_UPDATE);
             }
         }
     }
@@ -81,6 +81,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -140,6 +141,8 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
     private static final int DMESG_LOG = 4;
     private static final int LOGCAT_LOG = 5;
 
+    private static final long HISTORY_REPORT_RANGE = 24 * 60 * 60 * 1000;
+
     private static final int WIDGET_BAR = 0;
     private static final int WIDGET_INFO = 1;
     private static final int WIDGET_TASK = 2;
@@ -562,6 +565,16 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
     }
 
     private int getSensorState() {
+        String count = DeviceFacts.get(this, DeviceFacts.FACT_SENSOR_COUNT);
+
+        if (count != null) {
+            try {
+                return Integer.parseInt(count);
+            } catch (NumberFormatException e) {
+                Log.e(SysInfoManager.class.getName(), e.getLocalizedMessage(), e);
+            }
+        }
+
         SensorManager sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
 
         if (sm != null) {
@@ -573,6 +586,8 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
                 c = ss.size();
             }
 
+            DeviceFacts.put(this, DeviceFacts.FACT_SENSOR_COUNT, String.valueOf(c));
+
             return c;
         }
 
@@ -1283,6 +1298,7 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
                 Util.updateBooleanOption(data, es, PREF_KEY_SHOW_MEM_HISTORY);
                 Util.updateBooleanOption(data, es, PREF_KEY_SHOW_WIFI_ACTIVITY);
                 Util.updateBooleanOption(data, es, PREF_KEY_SHOW_WIFI_RATES);
+                Util.updateBooleanOption(data, es, PREF_KEY_SHOW_TOP_APP, false);
                 Util.updateBooleanOption(data, es, PREF_KEY_SHOW_WIFI_SSID);
 
                 boolean resetInfoIcon = Util.updateBooleanOption(data, es, PREF_KEY_SHOW_BAR_ICON_INFO);
@@ -1296,6 +1312,9 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
                 Util.updateBooleanOption(data, es, PREF_KEY_INVERSE_NOTIFY_TITLE_COLOR,
                         Util.INVERT_TITLE_COLOR_DEFAULT_SETTING);
                 Util.updateBooleanOption(data, es, PREF_KEY_HIGH_PRIORITY);
+                Util.updateBooleanOption(data, es, PREF_KEY_ADAPTIVE_REFRESH);
+                Util.updateIntOption(data, es, PREF_KEY_ADAPTIVE_THRESHOLD,
+                        AdaptiveScheduler.DEFAULT_THRESHOLD);
                 Util.updateIntOption(data, es, PREF_KEY_REFRESH_INTERVAL_CPU, REFRESH_LOW);
                 Util.updateIntOption(data, es, PREF_KEY_REFRESH_INTERVAL_MEM, REFRESH_LOW);
                 Util.updateIntOption(data, es, PREF_KEY_REFRESH_INTERVAL_NET, REFRESH_LOW);
@@ -1418,6 +1437,8 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
                     Util.getBooleanOption(prefStore, PREF_KEY_SHOW_WIFI_ACTIVITY));
             it.putExtra(PREF_KEY_SHOW_WIFI_RATES,
                     Util.getBooleanOption(prefStore, PREF_KEY_SHOW_WIFI_RATES));
+            it.putExtra(PREF_KEY_SHOW_TOP_APP,
+                    Util.getBooleanOption(prefStore, PREF_KEY_SHOW_TOP_APP, false));
             it.putExtra(PREF_KEY_SHOW_WIFI_SSID,
                     Util.getBooleanOption(prefStore, PREF_KEY_SHOW_WIFI_SSID));
             it.putExtra(PREF_KEY_SHOW_BAR_ICON_INFO,
@@ -1431,6 +1452,10 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             it.putExtra(PREF_KEY_INVERSE_NOTIFY_TITLE_COLOR, Util.getBooleanOption(prefStore,
                     PREF_KEY_INVERSE_NOTIFY_TITLE_COLOR, Util.INVERT_TITLE_COLOR_DEFAULT_SETTING));
             it.putExtra(PREF_KEY_HIGH_PRIORITY, Util.getBooleanOption(prefStore, PREF_KEY_HIGH_PRIORITY));
+            it.putExtra(PREF_KEY_ADAPTIVE_REFRESH,
+                    Util.getBooleanOption(prefStore, PREF_KEY_ADAPTIVE_REFRESH));
+            it.putExtra(PREF_KEY_ADAPTIVE_THRESHOLD, Util.getIntOption(prefStore,
+                    PREF_KEY_ADAPTIVE_THRESHOLD, AdaptiveScheduler.DEFAULT_THRESHOLD));
             it.putExtra(PREF_KEY_REFRESH_INTERVAL_CPU,
                     Util.getIntOption(prefStore, PREF_KEY_REFRESH_INTERVAL_CPU, REFRESH_LOW));
             it.putExtra(PREF_KEY_REFRESH_INTERVAL_MEM,
@@ -1751,6 +1776,13 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             } catch (Exception e) {
                 Log.e(SysInfoManager.class.getName(), e.getLocalizedMessage(), e);
             }
+
+            String history = getRecentHistory();
+            if (history != null) {
+                sb.append("* ") //$NON-NLS-1$
+                        .append(ResUtil.getString(this, R.string.metrics_history)).append('\n');
+                sb.append(history).append('\n');
+            }
         }
 
         if (items[APPLICATIONS]) {
@@ -1873,6 +1905,82 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
         return sb.toString();
     }
 
+    /**
+     * @return the CSV of the recorded metrics in the last day, or null if nothing was recorded
+     */
+    private String getRecentHistory() {
+        MetricsHistory history = MetricsHistory.getInstance(this);
+
+        long now = System.currentTimeMillis();
+        long from = now - HISTORY_REPORT_RANGE;
+
+        if (history.getLastTime() < from) {
+            return null;
+        }
+
+        try {
+            StringWriter sw = new StringWriter();
+            history.writeCsv(sw, from, now + 1);
+            return sw.toString();
+        } catch (IOException e) {
+            Log.e(SysInfoManager.class.getName(), e.getLocalizedMessage(), e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Appends the recorded metrics of the last day as rows of the report table.
+     */
+    private void appendHtmlHistory(StringBuffer sb) {
+        MetricsHistory history = MetricsHistory.getInstance(this);
+
+        long now = System.currentTimeMillis();
+        long from = now - HISTORY_REPORT_RANGE;
+
+        if (history.getLastTime() < from) {
+            return;
+        }
+
+        MetricsHistory.Cursor cursor = history.query(from, now + 1);
+
+        if (cursor == null) {
+            return;
+        }
+
+        sb.append(openFullRow).append(ResUtil.getString(this, R.string.metrics_history))
+                .append(closeRow);
+
+        sb.append(openTitleRow);
+
+        for (int i = 0; i < MetricsHistory.COLUMNS.length; i++) {
+            if (i > 0) {
+                sb.append(nextColumn);
+            }
+            sb.append("<b>").append(MetricsHistory.COLUMNS[i]).append("</b>"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        sb.append(closeRow);
+
+        while (cursor.moveToNext()) {
+            sb.append(openRow).append(cursor.getTime()).append(nextColumn).append(cursor.getCpu())
+                    .append(nextColumn).append(cursor.getMem()).append(nextColumn)
+                    .append(cursor.getMemUsed()).append(nextColumn).append(cursor.getRx())
+                    .append(nextColumn).append(cursor.getTx()).append(nextColumn);
+
+            for (int i = 0, cores = cursor.getCoreCount(); i < cores; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(cursor.getCore(i));
+            }
+
+            sb.append(closeRow);
+        }
+
+        sb.append(emptyRow);
+    }
+
     String generateHtmlReport(boolean[] items) {
         StringBuffer sb = new StringBuffer();
 
@@ -2036,6 +2144,8 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             } catch (Exception e) {
                 Log.e(SysInfoManager.class.getName(), e.getLocalizedMessage(), e);
             }
+
+            appendHtmlHistory(sb);
         }
 
         if (items[APPLICATIONS]) {
@@ -2294,6 +2404,11 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
 
         private static final int MSG_EXT_NLS = MSG_PRIVATE + 1;
 
+        /**
+         * change thresholds offered for the adaptive refresh, in percent
+         */
+        private static final int[] ADAPTIVE_THRESHOLDS = {2, 5, 10, 20};
+
         ProgressDialog progress;
 
         Map<String, String> extNLS;
@@ -2499,6 +2614,12 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             prefRates.setSummary(ResUtil.getString(this, R.string.show_rates_sum));
             psWifi.addPreference(prefRates);
 
+            CheckBoxPreference prefTopApp = new CheckBoxPreference(this);
+            prefTopApp.setKey(PREF_KEY_SHOW_TOP_APP);
+            prefTopApp.setTitle(ResUtil.getString(this, R.string.show_top_app));
+            prefTopApp.setSummary(ResUtil.getString(this, R.string.show_top_app_sum));
+            psWifi.addPreference(prefTopApp);
+
             CheckBoxPreference prefSsid = new CheckBoxPreference(this);
             prefSsid.setKey(PREF_KEY_SHOW_WIFI_SSID);
             prefSsid.setTitle(ResUtil.getString(this, R.string.show_ssid));
@@ -2546,6 +2667,17 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             prefHigh.setSummary(ResUtil.getString(this, R.string.high_priority_sum));
             pc.addPreference(prefHigh);
 
+            CheckBoxPreference prefAdaptive = new CheckBoxPreference(this);
+            prefAdaptive.setKey(PREF_KEY_ADAPTIVE_REFRESH);
+            prefAdaptive.setTitle(ResUtil.getString(this, R.string.adaptive_refresh));
+            prefAdaptive.setSummary(ResUtil.getString(this, R.string.adaptive_refresh_sum));
+            pc.addPreference(prefAdaptive);
+
+            Preference prefThreshold = new Preference(this);
+            prefThreshold.setKey(PREF_KEY_ADAPTIVE_THRESHOLD);
+            prefThreshold.setTitle(ResUtil.getString(this, R.string.adaptive_threshold));
+            pc.addPreference(prefThreshold);
+
             pc = new PreferenceCategory(this);
             pc.setTitle(ResUtil.getString(this, R.string.backup));
             getPreferenceScreen().addPreference(pc);
@@ -2576,6 +2708,7 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             refreshBooleanOption(PREF_KEY_SHOW_MEM_HISTORY, true);
             refreshBooleanOption(PREF_KEY_SHOW_WIFI_ACTIVITY, true);
             refreshBooleanOption(PREF_KEY_SHOW_WIFI_RATES, true);
+            refreshBooleanOption(PREF_KEY_SHOW_TOP_APP, false);
             refreshBooleanOption(PREF_KEY_SHOW_WIFI_SSID, true);
             refreshBooleanOption(PREF_KEY_SHOW_BAR_ICON_INFO, true);
             refreshBooleanOption(PREF_KEY_SHOW_BAR_ICON_TASK, true);
@@ -2586,6 +2719,9 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             refreshBooleanOption(PREF_KEY_INVERSE_NOTIFY_TITLE_COLOR,
                     Util.INVERT_TITLE_COLOR_DEFAULT_SETTING);
             refreshBooleanOption(PREF_KEY_HIGH_PRIORITY, false);
+            refreshBooleanOption(PREF_KEY_ADAPTIVE_REFRESH, true);
+            refreshAdaptive();
+            refreshThreshold();
 
             prefCpuMon.setEnabled(prefInfo.isChecked());
             prefCpuHistory.setEnabled(prefInfo.isChecked() && prefCpuMon.isChecked());
@@ -2596,6 +2732,7 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             prefTaskBarIcon.setEnabled(prefTask.isChecked());
 
             prefRates.setEnabled(prefWifi.isChecked());
+            prefTopApp.setEnabled(prefWifi.isChecked() && prefRates.isChecked());
             prefWifiBarIcon.setEnabled(prefWifi.isChecked());
 
             boolean disableAllIcons = prefDisableAll.isChecked();
@@ -2608,6 +2745,8 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             prefPersist.setEnabled(!disableAllIcons);
             prefInvColor.setEnabled(!disableAllIcons);
             prefHigh.setEnabled(!disableAllIcons);
+            prefAdaptive.setEnabled(!disableAllIcons);
+            prefThreshold.setEnabled(prefAdaptive.isChecked() && !disableAllIcons);
 
             psInfo.setEnabled(!disableAllIcons);
             psTask.setEnabled(!disableAllIcons);
@@ -2870,6 +3009,38 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
             findPreference(prefKey).setEnabled(enabled);
         }
 
+        void refreshAdaptive() {
+            String summary = ResUtil.getString(this, R.string.adaptive_refresh_sum);
+
+            long[] stats = StatusUpdaterService.getAdaptiveStats();
+
+            if (stats != null && stats[3] > 0) {
+                summary += '\n' + ResUtil.getString(this, R.string.adaptive_refresh_rate,
+                        formatPeriod(stats[0]), formatPeriod(stats[1]), formatPeriod(stats[2]))
+                        + '\n' + ResUtil.getString(this, R.string.adaptive_refresh_saved, stats[4],
+                        stats[3] + stats[4]);
+            }
+
+            findPreference(PREF_KEY_ADAPTIVE_REFRESH).setSummary(summary);
+        }
+
+        private static String formatPeriod(long period) {
+            if (period <= 0) {
+                return "-"; //$NON-NLS-1$
+            }
+
+            return (period % 1000 == 0 ? String.valueOf(period / 1000) : String.valueOf(period / 1000f))
+                    + 's';
+        }
+
+        void refreshThreshold() {
+            int threshold = getIntent().getIntExtra(PREF_KEY_ADAPTIVE_THRESHOLD,
+                    AdaptiveScheduler.DEFAULT_THRESHOLD);
+
+            findPreference(PREF_KEY_ADAPTIVE_THRESHOLD).setSummary(
+                    ResUtil.getString(this, R.string.adaptive_threshold_sum, threshold));
+        }
+
         void refreshEmail() {
             String email = getIntent().getStringExtra(PREF_KEY_DEFAULT_EMAIL);
 
@@ -3139,6 +3310,8 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
                 it.putExtra(PREF_KEY_SHOW_WIFI_ACTIVITY, enabled);
 
                 prefWifiRates.setEnabled(enabled);
+                findPreference(PREF_KEY_SHOW_TOP_APP).setEnabled(
+                        enabled && prefWifiRates.isChecked());
                 prefWifiSsid.setEnabled(enabled);
                 prefWifiBarIcon.setEnabled(enabled);
 
@@ -3161,12 +3334,19 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
 
                 it.putExtra(PREF_KEY_SHOW_WIFI_RATES, enabled);
 
+                findPreference(PREF_KEY_SHOW_TOP_APP).setEnabled(prefWifi.isChecked() && enabled);
+
                 startService(new Intent(this, StatusUpdaterService.class)
                         .putExtra(StatusUpdaterService.EXTRA_TARGET, StatusUpdaterService.TARGET_WIFI)
                         .putExtra(StatusUpdaterService.EXTRA_STATE, prefWifi.isChecked())
                         .putExtra(StatusUpdaterService.EXTRA_RATES, enabled)
                         .putExtra(StatusUpdaterService.EXTRA_ICON, prefWifiBarIcon.isChecked()));
 
+                return true;
+            } else if (PREF_KEY_SHOW_TOP_APP.equals(prefKey)) {
+                it.putExtra(PREF_KEY_SHOW_TOP_APP,
+                        ((CheckBoxPreference) findPreference(PREF_KEY_SHOW_TOP_APP)).isChecked());
+
                 return true;
             } else if (PREF_KEY_SHOW_BAR_ICON_INFO.equals(prefKey)) {
                 boolean enabled = prefInfoBarIcon.isChecked();
@@ -3220,6 +3400,46 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
                 it.putExtra(PREF_KEY_HIGH_PRIORITY,
                         ((CheckBoxPreference) findPreference(PREF_KEY_HIGH_PRIORITY)).isChecked());
 
+                return true;
+            } else if (PREF_KEY_ADAPTIVE_REFRESH.equals(prefKey)) {
+                boolean adaptive =
+                        ((CheckBoxPreference) findPreference(PREF_KEY_ADAPTIVE_REFRESH)).isChecked();
+
+                it.putExtra(PREF_KEY_ADAPTIVE_REFRESH, adaptive);
+
+                findPreference(PREF_KEY_ADAPTIVE_THRESHOLD).setEnabled(adaptive);
+
+                return true;
+            } else if (PREF_KEY_ADAPTIVE_THRESHOLD.equals(prefKey)) {
+                OnClickListener listener = new OnClickListener() {
+
+                    public void onClick(DialogInterface dialog, int which) {
+                        it.putExtra(PREF_KEY_ADAPTIVE_THRESHOLD, ADAPTIVE_THRESHOLDS[which]);
+
+                        dialog.dismiss();
+
+                        refreshThreshold();
+                    }
+                };
+
+                int threshold = it.getIntExtra(PREF_KEY_ADAPTIVE_THRESHOLD,
+                        AdaptiveScheduler.DEFAULT_THRESHOLD);
+
+                CharSequence[] labels = new CharSequence[ADAPTIVE_THRESHOLDS.length];
+                int selection = -1;
+
+                for (int i = 0; i < ADAPTIVE_THRESHOLDS.length; i++) {
+                    labels[i] = ADAPTIVE_THRESHOLDS[i] + "%"; //$NON-NLS-1$
+
+                    if (ADAPTIVE_THRESHOLDS[i] == threshold) {
+                        selection = i;
+                    }
+                }
+
+                new AlertDialog.Builder(this)
+                        .setTitle(ResUtil.getString(this, R.string.adaptive_threshold))
+                        .setSingleChoiceItems(labels, selection, listener).create().show();
+
                 return true;
             } else if (PREF_KEY_REFRESH_INTERVAL_CPU.equals(prefKey)) {
                 editInterval(it, PREF_KEY_REFRESH_INTERVAL_CPU, PREF_KEY_SHOW_INFO_ICON,
@@ -3247,6 +3467,11 @@ public class SysInfoManager extends PreferenceActivity implements Constants,
                 findPreference(PREF_KEY_INVERSE_NOTIFY_TITLE_COLOR).setEnabled(!disableAllIcons);
                 findPreference(PREF_KEY_HIGH_PRIORITY).setEnabled(!disableAllIcons);
 
+                boolean adaptive =
+                        ((CheckBoxPreference) findPreference(PREF_KEY_ADAPTIVE_REFRESH)).isChecked();
+                findPreference(PREF_KEY_ADAPTIVE_REFRESH).setEnabled(!disableAllIcons);
+                findPreference(PREF_KEY_ADAPTIVE_THRESHOLD).setEnabled(adaptive && !disableAllIcons);
+
                 findPreference(KEY_INFO_PREF_SCREEN).setEnabled(!disableAllIcons);
                 findPreference(KEY_TASK_PREF_SCREEN).setEnabled(!disableAllIcons);
                 findPreference(KEY_WIFI_PREF_SCREEN).setEnabled(!disableAllIcons);
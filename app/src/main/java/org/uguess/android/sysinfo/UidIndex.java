@@ -0,0 +1,210 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+import org.uguess.android.sysinfo.ConnectionTracker.Connection;
+
+import java.util.Arrays;
+
+/**
+ * UidIndex <br>
+ * <br>
+ * The owners of the listed connections by uid: the application labels, or the system user name,
+ * and optionally the traffic totals and rates from a {@link UidTraffic} collector. An index is
+ * built off the main thread once per poll and not changed after, so the list can look up a row by
+ * binary search. Labels are carried over from the previous index as they rarely change.
+ */
+final class UidIndex {
+
+    static final UidIndex EMPTY = new UidIndex(0);
+
+    /**
+     * sorted ascending
+     */
+    private final int[] uids;
+    private final String[] labels;
+
+    /**
+     * traffic totals in bytes, or -1 if not read
+     */
+    private final long[] tx, rx;
+
+    /**
+     * traffic rates in bytes per second
+     */
+    private final long[] txRate, rxRate;
+
+    private int count;
+
+    private UidIndex(int capacity) {
+        uids = new int[capacity];
+        labels = new String[capacity];
+        tx = new long[capacity];
+        rx = new long[capacity];
+        txRate = new long[capacity];
+        rxRate = new long[capacity];
+    }
+
+    /**
+     * @param previous index of the last poll to take the labels from, or null
+     * @param traffic  updated collector to take the traffic from, or null
+     */
+    static UidIndex build(PackageManager pm, Connection[] items, UidIndex previous,
+                          UidTraffic traffic) {
+        int[] sorted = new int[items.length];
+        int n = 0;
+
+        for (Connection c : items) {
+            if (c.uid >= 0) {
+                sorted[n++] = c.uid;
+            }
+        }
+
+        Arrays.sort(sorted, 0, n);
+
+        int distinct = 0;
+
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+
+        UidIndex index = new UidIndex(distinct);
+
+        for (int i = 0; i < distinct; i++) {
+            int uid = sorted[i];
+
+            String label = previous == null ? null : previous.getLabel(uid);
+
+            if (label == null) {
+                label = loadLabel(pm, uid);
+            }
+
+            index.uids[i] = uid;
+            index.labels[i] = label;
+
+            UidTraffic.Talker talker = traffic == null ? null : traffic.get(uid);
+
+            if (talker != null) {
+                index.tx[i] = talker.txTotal;
+                index.rx[i] = talker.rxTotal;
+                index.txRate[i] = talker.txRate;
+                index.rxRate[i] = talker.rxRate;
+            } else {
+                index.tx[i] = -1;
+                index.rx[i] = -1;
+            }
+        }
+
+        index.count = distinct;
+
+        return index;
+    }
+
+    /**
+     * @return the owner label, or null if the uid is not in the index
+     */
+    String getLabel(int uid) {
+        int idx = Arrays.binarySearch(uids, 0, count, uid);
+
+        return idx < 0 ? null : labels[idx];
+    }
+
+    /**
+     * @return the bytes sent by the uid, or -1 if unknown
+     */
+    long getTx(int uid) {
+        int idx = Arrays.binarySearch(uids, 0, count, uid);
+
+        return idx < 0 ? -1 : tx[idx];
+    }
+
+    /**
+     * @return the bytes received by the uid, or -1 if unknown
+     */
+    long getRx(int uid) {
+        int idx = Arrays.binarySearch(uids, 0, count, uid);
+
+        return idx < 0 ? -1 : rx[idx];
+    }
+
+    /**
+     * @return the bytes per second sent by the uid in the last interval
+     */
+    long getTxRate(int uid) {
+        int idx = Arrays.binarySearch(uids, 0, count, uid);
+
+        return idx < 0 ? 0 : txRate[idx];
+    }
+
+    /**
+     * @return the bytes per second received by the uid in the last interval
+     */
+    long getRxRate(int uid) {
+        int idx = Arrays.binarySearch(uids, 0, count, uid);
+
+        return idx < 0 ? 0 : rxRate[idx];
+    }
+
+    /**
+     * @return the labels of the packages sharing the uid, or the uid and system user name
+     */
+    static String loadLabel(PackageManager pm, int uid) {
+        StringBuilder sb = new StringBuilder();
+
+        String[] pkgs = pm.getPackagesForUid(uid);
+
+        if (pkgs != null) {
+            for (String pkg : pkgs) {
+                String s = pkg;
+
+                try {
+                    ApplicationInfo appInfo = pm.getApplicationInfo(pkg, 0);
+
+                    if (appInfo != null) {
+                        CharSequence label = pm.getApplicationLabel(appInfo);
+
+                        if (label != null) {
+                            s = label.toString();
+                        }
+                    }
+                } catch (NameNotFoundException e) {
+                    // ignore
+                }
+
+                if (sb.length() > 0) {
+                    sb.append(", "); //$NON-NLS-1$
+                }
+
+                sb.append(s);
+            }
+        }
+
+        if (sb.length() == 0) {
+            String uname = NetStateManager.USER_MAP.get(uid);
+
+            sb.append(uid).append('(').append(uname == null ? "?" : uname) //$NON-NLS-1$
+                    .append(')');
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,549 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * UidTraffic <br>
+ * <br>
+ * Collects the traffic per uid and interface from /proc/net/xt_qtaguid/stats, or from the older
+ * /proc/uid_stat files where the former is missing, and computes the rates between two reads. The
+ * stats file is parsed line by line through a fixed buffer as it is read. Not thread safe, each
+ * collector should be read from one worker thread.
+ */
+final class UidTraffic {
+
+    static final int SRC_NONE = 0;
+    static final int SRC_QTAGUID = 1;
+    static final int SRC_UID_STAT = 2;
+
+    /**
+     * Talker. A snapshot of the traffic of one uid, not changed after it is made.
+     */
+    static final class Talker {
+
+        final int uid;
+
+        /**
+         * bytes since boot, or since the counters were last reset
+         */
+        final long rxTotal, txTotal;
+
+        /**
+         * bytes per second over the last interval
+         */
+        final long rxRate, txRate;
+
+        /**
+         * interface with the most traffic in the last interval, or null if not known
+         */
+        final String iface;
+
+        Talker(int uid, long rxTotal, long txTotal, long rxRate, long txRate, String iface) {
+            this.uid = uid;
+            this.rxTotal = rxTotal;
+            this.txTotal = txTotal;
+            this.rxRate = rxRate;
+            this.txRate = txRate;
+            this.iface = iface;
+        }
+    }
+
+    /**
+     * Entry
+     */
+    private static final class Entry {
+
+        final int uid;
+
+        long rx, tx, lastRx, lastTx;
+        long rxRate, txRate;
+
+        /**
+         * traffic per interface, in the same layout as the uid totals
+         */
+        String[] ifaces = new String[2];
+        long[] ifRx = new long[2], ifTx = new long[2];
+        long[] ifLastRx = new long[2], ifLastTx = new long[2];
+        int ifCount;
+
+        /**
+         * interface with the most traffic in the last interval, or -1
+         */
+        int topIface = -1;
+
+        int generation;
+
+        Entry(int uid) {
+            this.uid = uid;
+            this.lastRx = -1;
+            this.lastTx = -1;
+        }
+
+        int addIface(String name) {
+            if (ifCount == ifaces.length) {
+                int cap = ifCount * 2;
+
+                String[] nifaces = new String[cap];
+                System.arraycopy(ifaces, 0, nifaces, 0, ifCount);
+                ifaces = nifaces;
+
+                ifRx = grow(ifRx, cap);
+                ifTx = grow(ifTx, cap);
+                ifLastRx = grow(ifLastRx, cap);
+                ifLastTx = grow(ifLastTx, cap);
+            }
+
+            ifaces[ifCount] = name;
+            ifRx[ifCount] = 0;
+            ifTx[ifCount] = 0;
+            ifLastRx[ifCount] = -1;
+            ifLastTx[ifCount] = -1;
+
+            return ifCount++;
+        }
+
+        private long[] grow(long[] arr, int cap) {
+            long[] narr = new long[cap];
+            System.arraycopy(arr, 0, narr, 0, ifCount);
+            return narr;
+        }
+    }
+
+    private static final String QTAGUID_PATH = "/proc/net/xt_qtaguid/stats"; //$NON-NLS-1$
+    private static final String UID_STAT_PATH = "/proc/uid_stat"; //$NON-NLS-1$
+
+    private final SparseArray<Entry> entries = new SparseArray<Entry>();
+
+    private int generation;
+
+    private long lastTime;
+
+    private int source = -1;
+
+    private byte[] buf = new byte[4096];
+
+    /**
+     * the uids to read in ascending order, or null for all
+     */
+    private int[] wanted;
+
+    /**
+     * Reads the counters and updates the rates.
+     *
+     * @param now  elapsed realtime of the read
+     * @param uids the uids to read in ascending order, or null for all
+     * @return false if no source could be read
+     */
+    boolean update(long now, int[] uids) {
+        generation++;
+
+        wanted = uids;
+
+        if (source == -1) {
+            source = probe();
+        }
+
+        boolean ok;
+
+        if (source == SRC_QTAGUID) {
+            ok = readQtaguid();
+        } else if (source == SRC_UID_STAT) {
+            ok = readUidStat();
+        } else {
+            ok = false;
+        }
+
+        if (!ok) {
+            return false;
+        }
+
+        long elapsed = lastTime == 0 ? 0 : now - lastTime;
+
+        lastTime = now;
+
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry e = entries.valueAt(i);
+
+            if (e.generation != generation) {
+                // the uid has gone, e.g. the app was removed
+                entries.delete(e.uid);
+                continue;
+            }
+
+            e.rxRate = rate(e.lastRx, e.rx, elapsed);
+            e.txRate = rate(e.lastTx, e.tx, elapsed);
+            e.lastRx = e.rx;
+            e.lastTx = e.tx;
+
+            long topBytes = 0;
+            e.topIface = -1;
+
+            for (int k = 0; k < e.ifCount; k++) {
+                long bytes = Math.max(0, e.ifRx[k] - e.ifLastRx[k])
+                        + Math.max(0, e.ifTx[k] - e.ifLastTx[k]);
+
+                if (e.ifLastRx[k] >= 0 && bytes > topBytes) {
+                    topBytes = bytes;
+                    e.topIface = k;
+                }
+
+                e.ifLastRx[k] = e.ifRx[k];
+                e.ifLastTx[k] = e.ifTx[k];
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the traffic of the uid as of the last update, or null if not known
+     */
+    Talker get(int uid) {
+        Entry e = entries.get(uid);
+
+        return e == null ? null : toTalker(e);
+    }
+
+    /**
+     * @param count maximum number of talkers
+     * @return the uids with traffic in the last interval, busiest first
+     */
+    Talker[] getTop(int count) {
+        int size = entries.size();
+
+        Entry[] active = new Entry[size];
+        int n = 0;
+
+        for (int i = 0; i < size; i++) {
+            Entry e = entries.valueAt(i);
+
+            if (e.rxRate > 0 || e.txRate > 0) {
+                active[n++] = e;
+            }
+        }
+
+        Arrays.sort(active, 0, n, new Comparator<Entry>() {
+
+            public int compare(Entry obj1, Entry obj2) {
+                long v1 = obj1.rxRate + obj1.txRate;
+                long v2 = obj2.rxRate + obj2.txRate;
+
+                return v1 == v2 ? (obj1.uid - obj2.uid) : (v1 > v2 ? -1 : 1);
+            }
+        });
+
+        Talker[] result = new Talker[Math.min(count, n)];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = toTalker(active[i]);
+        }
+
+        return result;
+    }
+
+    private static Talker toTalker(Entry e) {
+        return new Talker(e.uid, e.rx, e.tx, e.rxRate, e.txRate,
+                e.topIface == -1 ? null : e.ifaces[e.topIface]);
+    }
+
+    private boolean isWanted(int uid) {
+        return wanted == null || Arrays.binarySearch(wanted, uid) >= 0;
+    }
+
+    /**
+     * @return bytes per second, 0 on the first read or if the counter was reset
+     */
+    private static long rate(long last, long current, long elapsed) {
+        if (elapsed <= 0 || last < 0 || current < last) {
+            return 0;
+        }
+
+        return (current - last) * 1000 / elapsed;
+    }
+
+    private static int probe() {
+        if (CapabilityRegistry.getAccess(CapabilityRegistry.SRC_NET_QTAGUID)
+                != CapabilityRegistry.ACCESS_NONE) {
+            return SRC_QTAGUID;
+        }
+
+        if (CapabilityRegistry.getAccess(CapabilityRegistry.SRC_UID_STAT)
+                != CapabilityRegistry.ACCESS_NONE) {
+            return SRC_UID_STAT;
+        }
+
+        return SRC_NONE;
+    }
+
+    private Entry getEntry(int uid) {
+        Entry e = entries.get(uid);
+
+        if (e == null) {
+            e = new Entry(uid);
+
+            entries.put(uid, e);
+        }
+
+        if (e.generation != generation) {
+            // first row of the uid in this read
+            e.generation = generation;
+            e.rx = 0;
+            e.tx = 0;
+
+            for (int k = 0; k < e.ifCount; k++) {
+                e.ifRx[k] = 0;
+                e.ifTx[k] = 0;
+            }
+        }
+
+        return e;
+    }
+
+    private boolean readQtaguid() {
+        if (CapabilityRegistry.peekAccess(CapabilityRegistry.SRC_NET_QTAGUID)
+                == CapabilityRegistry.ACCESS_ROOT) {
+            return readQtaguidRoot();
+        }
+
+        FileInputStream fis = null;
+
+        try {
+            fis = new FileInputStream(QTAGUID_PATH);
+
+            int len = 0;
+            int n;
+
+            while ((n = fis.read(buf, len, buf.length - len)) > 0) {
+                len += n;
+
+                int start = 0;
+
+                for (int i = 0; i < len; i++) {
+                    if (buf[i] == '\n') {
+                        parseStatsLine(buf, start, i);
+                        start = i + 1;
+                    }
+                }
+
+                // keep the partial line for the next read
+                len -= start;
+                System.arraycopy(buf, start, buf, 0, len);
+
+                if (len == buf.length) {
+                    byte[] nbuf = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, nbuf, 0, len);
+                    buf = nbuf;
+                }
+            }
+
+            if (len > 0) {
+                parseStatsLine(buf, 0, len);
+            }
+
+            return true;
+        } catch (FileNotFoundException fe) {
+            Log.d(UidTraffic.class.getName(), "File not found: " + fe.getLocalizedMessage()); //$NON-NLS-1$
+        } catch (IOException e) {
+            Log.e(UidTraffic.class.getName(), e.getLocalizedMessage(), e);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(UidTraffic.class.getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean readQtaguidRoot() {
+        List<String> lines = RootUtil.readFileRoot(QTAGUID_PATH);
+
+        if (lines == null) {
+            return false;
+        }
+
+        for (String ln : lines) {
+            int size = ln.length();
+
+            if (size > buf.length) {
+                buf = new byte[size];
+            }
+
+            // the stats are plain ascii
+            for (int i = 0; i < size; i++) {
+                buf[i] = (byte) ln.charAt(i);
+            }
+
+            parseStatsLine(buf, 0, size);
+        }
+
+        return true;
+    }
+
+    /**
+     * The columns are: idx, iface, acct_tag_hex, uid_tag_int, cnt_set, rx_bytes, rx_packets,
+     * tx_bytes, tx_packets, and more that are not used. Only the untagged rows are counted, the
+     * tagged ones are a breakdown of them.
+     */
+    private void parseStatsLine(byte[] data, int pos, int end) {
+        int ifStart = 0, ifEnd = 0;
+        int uid = -1;
+        long rx = 0;
+
+        for (int column = 0; column < 8; column++) {
+            while (pos < end && data[pos] == ' ') {
+                pos++;
+            }
+
+            if (pos == end) {
+                return;
+            }
+
+            int start = pos;
+
+            while (pos < end && data[pos] != ' ') {
+                pos++;
+            }
+
+            switch (column) {
+                case 0:
+                    if (data[start] < '0' || data[start] > '9') {
+                        // the header line
+                        return;
+                    }
+                    break;
+                case 1:
+                    ifStart = start;
+                    ifEnd = pos;
+                    break;
+                case 2:
+                    if (pos - start != 3 || data[start + 2] != '0') {
+                        // a tagged row
+                        return;
+                    }
+                    break;
+                case 3:
+                    uid = (int) FileHandlePool.parseLong(data, start, pos - start);
+
+                    if (!isWanted(uid)) {
+                        return;
+                    }
+                    break;
+                case 5:
+                    rx = FileHandlePool.parseLong(data, start, pos - start);
+                    break;
+                case 7:
+                    long tx = FileHandlePool.parseLong(data, start, pos - start);
+
+                    Entry e = getEntry(uid);
+
+                    e.rx += rx;
+                    e.tx += tx;
+
+                    int k = findIface(e, data, ifStart, ifEnd);
+
+                    e.ifRx[k] += rx;
+                    e.ifTx[k] += tx;
+                    break;
+            }
+        }
+    }
+
+    private static int findIface(Entry e, byte[] data, int start, int end) {
+        int len = end - start;
+
+        for (int k = 0; k < e.ifCount; k++) {
+            String name = e.ifaces[k];
+
+            if (name.length() == len) {
+                int i = 0;
+
+                while (i < len && name.charAt(i) == data[start + i]) {
+                    i++;
+                }
+
+                if (i == len) {
+                    return k;
+                }
+            }
+        }
+
+        return e.addIface(new String(data, start, len));
+    }
+
+    private boolean readUidStat() {
+        String[] uids = new File(UID_STAT_PATH).list();
+
+        if (uids == null) {
+            return false;
+        }
+
+        for (String name : uids) {
+            int uid;
+
+            try {
+                uid = Integer.parseInt(name);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            if (!isWanted(uid)) {
+                continue;
+            }
+
+            String base = UID_STAT_PATH + '/' + name;
+
+            Entry e = getEntry(uid);
+
+            e.rx = sum(base + "/tcp_rcv", base + "/udp_rcv"); //$NON-NLS-1$ //$NON-NLS-2$
+            e.tx = sum(base + "/tcp_snd", base + "/udp_snd"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        return true;
+    }
+
+    private static long sum(String tcp, String udp) {
+        long total = 0;
+
+        long v = Util.readFileLong(tcp, true);
+
+        if (v > 0) {
+            total += v;
+        }
+
+        v = Util.readFileLong(udp, true);
+
+        if (v > 0) {
+            total += v;
+        }
+
+        return total;
+    }
+}
@@ -122,6 +122,16 @@ public final class Util implements Constants {
     private static String cachedWifiDevice = null;
     private static String cachedCellDevice = null;
 
+    /**
+     * whether the cached devices are current, cleared when the connectivity changes
+     */
+    private static boolean wifiDeviceKnown, cellDeviceKnown;
+
+    /**
+     * the wifi.interface property, or empty if not set
+     */
+    private static String wifiInterfaceProp = null;
+
     private static final Field fdTargetSdkVersion = getField(ApplicationInfo.class, "targetSdkVersion"); //$NON-NLS-1$
     private static final Field fdInstallLocation = getField(PackageInfo.class, "installLocation"); //$NON-NLS-1$
     private static final Field fdScreenLayout = getField(Configuration.class, "screenLayout"); //$NON-NLS-1$
@@ -1043,59 +1053,65 @@ public final class Util implements Constants {
         }
     }
 
+    /**
+     * Makes the next calls look up the active devices again, the device may go down e.g. when
+     * switched to mobile data.
+     */
+    synchronized static void resetActiveNetDevices() {
+        wifiDeviceKnown = false;
+        cellDeviceKnown = false;
+    }
+
+    /**
+     * @return the active wifi device, or null. The result is kept until {@link
+     * #resetActiveNetDevices()}.
+     */
     synchronized static String getActiveWifiDevice() {
-        if (cachedWifiDevice != null) {
-            return cachedWifiDevice;
+        if (!wifiDeviceKnown) {
+            cachedWifiDevice = findWifiDevice();
+            wifiDeviceKnown = true;
         }
 
+        return cachedWifiDevice;
+    }
+
+    /**
+     * @return the active cell device, or null. The result is kept until {@link
+     * #resetActiveNetDevices()}.
+     */
+    synchronized static String getActiveCellDevice() {
+        if (!cellDeviceKnown) {
+            cachedCellDevice = findCellDevice();
+            cellDeviceKnown = true;
+        }
+
+        return cachedCellDevice;
+    }
+
+    private static String findWifiDevice() {
         String[] infs = new String[]{"eth0", "tiwlan0", "wlan0", "athwlan0", "eth1" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
         };
 
         for (String inf : infs) {
             if (isNetInterfaceUp(inf)) {
-                cachedWifiDevice = inf;
                 return inf;
             }
         }
 
-        File buildFile = new File(Environment.getRootDirectory(), "build.prop"); //$NON-NLS-1$
+        if (wifiInterfaceProp == null) {
+            String inf = PropertyReader.get("wifi.interface"); //$NON-NLS-1$
 
-        if (buildFile.exists() && buildFile.isFile() && buildFile.canRead()) {
-            Properties props = new Properties();
-
-            InputStream is = null;
-
-            try {
-                is = new FileInputStream(buildFile);
-                props.load(is);
-
-                String inf = props.getProperty("wifi.interface"); //$NON-NLS-1$
+            wifiInterfaceProp = inf == null ? "" : inf; //$NON-NLS-1$
+        }
 
-                if (!TextUtils.isEmpty(inf) && isNetInterfaceUp(inf)) {
-                    cachedWifiDevice = inf;
-                    return inf;
-                }
-            } catch (Exception e) {
-                Log.e(Util.class.getName(), e.getLocalizedMessage(), e);
-            } finally {
-                if (is != null) {
-                    try {
-                        is.close();
-                    } catch (IOException e) {
-                        Log.e(Util.class.getName(), e.getLocalizedMessage(), e);
-                    }
-                }
-            }
+        if (wifiInterfaceProp.length() > 0 && isNetInterfaceUp(wifiInterfaceProp)) {
+            return wifiInterfaceProp;
         }
 
         return null;
     }
 
-    synchronized static String getActiveCellDevice() {
-        if (cachedCellDevice != null) {
-            return cachedCellDevice;
-        }
-
+    private static String findCellDevice() {
         String[] infs = new String[]{"rmnet0", //$NON-NLS-1$
                 "rmnet_usb0", //$NON-NLS-1$
                 "pdp0", //$NON-NLS-1$
@@ -1117,7 +1133,6 @@ public final class Util implements Constants {
 
         for (String inf : infs) {
             if (isNetInterfaceUp(inf)) {
-                cachedCellDevice = inf;
                 return inf;
             }
         }
@@ -1126,11 +1141,13 @@ public final class Util implements Constants {
     }
 
     static long getRxBytes(String inf) {
-        return readFileLong("/sys/class/net/" + inf + "/statistics/rx_bytes", false); //$NON-NLS-1$ //$NON-NLS-2$
+        long rx = FileHandlePool.readLong("/sys/class/net/" + inf + "/statistics/rx_bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+        return rx < 0 ? 0 : rx;
     }
 
     static long getTxBytes(String inf) {
-        return readFileLong("/sys/class/net/" + inf + "/statistics/tx_bytes", false); //$NON-NLS-1$ //$NON-NLS-2$
+        long tx = FileHandlePool.readLong("/sys/class/net/" + inf + "/statistics/tx_bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+        return tx < 0 ? 0 : tx;
     }
 
     static String getIfAddress(String inf) {
@@ -1142,7 +1159,7 @@ public final class Util implements Constants {
     }
 
     private static boolean isNetInterfaceUp(String inf) {
-        return readFileLong("/sys/class/net/" + inf + "/carrier", true) > 0; //$NON-NLS-1$ //$NON-NLS-2$
+        return FileHandlePool.readLong("/sys/class/net/" + inf + "/carrier") > 0; //$NON-NLS-1$ //$NON-NLS-2$
     }
 
     static String readFileFirstLine(String fileName, int bufSize) {
@@ -2184,12 +2201,10 @@ public final class Util implements Constants {
 
         sb.append('\n');
 
-        try {
-            readRawText(sb, new FileInputStream(F_VERSION), 1024);
+        String kver = DeviceFacts.getKernelVersion(ctx);
 
-            sb.append('\n');
-        } catch (Exception e) {
-            Log.e(Util.class.getName(), e.getLocalizedMessage(), e);
+        if (kver != null) {
+            sb.append(kver).append("\n\n"); //$NON-NLS-1$
         }
     }
 
@@ -2229,11 +2244,11 @@ public final class Util implements Constants {
 
         sb.append(openHeaderRow).append(ResUtil.getString(ctx, R.string.sys_version)).append(closeHeaderRow);
 
-        try {
-            readRawHTML(sb, new FileInputStream(F_VERSION), 1024);
+        String kver = DeviceFacts.getKernelVersion(ctx);
+
+        if (kver != null) {
+            sb.append(openFullRow).append(escapeHtml(kver)).append(closeRow);
             sb.append(emptyRow);
-        } catch (Exception e) {
-            Log.e(Util.class.getName(), e.getLocalizedMessage(), e);
         }
     }
 
@@ -2407,97 +2422,21 @@ public final class Util implements Constants {
      * @return [total, idle, free]
      */
     static long[] getMemState(Context ctx) {
-        BufferedReader reader = null;
+        MemSnapshot snapshot = MemSnapshot.getShared();
 
-        try {
-            reader =
-                    new BufferedReader(new InputStreamReader(new FileInputStream(new File(F_MEM_INFO))), 1024);
-
-            String line;
-            String totalMsg = null;
-            String freeMsg = null;
-
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("MemTotal")) //$NON-NLS-1$
-                {
-                    totalMsg = line;
-                } else if (line.startsWith("MemFree")) //$NON-NLS-1$
-                {
-                    freeMsg = line;
-                }
-
-                if (totalMsg != null && freeMsg != null) {
-                    break;
-                }
+        synchronized (snapshot) {
+            if (!snapshot.read()) {
+                return null;
             }
 
             long[] mem = new long[3];
 
-            mem[0] = extractMemCount(totalMsg);
-            mem[1] = extractMemCount(freeMsg);
-
-            ActivityManager am = (ActivityManager) ctx.getSystemService(Context.ACTIVITY_SERVICE);
-            ActivityManager.MemoryInfo mi = new ActivityManager.MemoryInfo();
-            am.getMemoryInfo(mi);
-            mem[2] = mi.availMem;
+            mem[0] = snapshot.get(MemSnapshot.MEM_TOTAL);
+            mem[1] = snapshot.get(MemSnapshot.MEM_FREE);
+            mem[2] = snapshot.getAvailable(ctx);
 
             return mem;
-        } catch (Exception e) {
-            Log.e(Util.class.getName(), e.getLocalizedMessage(), e);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException ie) {
-                    Log.e(Util.class.getName(), ie.getLocalizedMessage(), ie);
-                }
-            }
-        }
-
-        return null;
-    }
-
-    static long extractMemCount(String line) {
-        if (line != null) {
-            int idx = line.indexOf(':');
-
-            if (idx != -1) {
-                line = line.substring(idx + 1).trim();
-
-                idx = line.lastIndexOf(' ');
-
-                if (idx != -1) {
-                    String unit = line.substring(idx + 1);
-
-                    try {
-                        long size = Long.parseLong(line.substring(0, idx).trim());
-
-                        if ("kb".equalsIgnoreCase(unit)) //$NON-NLS-1$
-                        {
-                            size *= 1024;
-                        } else if ("mb".equalsIgnoreCase(unit)) //$NON-NLS-1$
-                        {
-                            size *= 1024 * 1024;
-                        } else if ("gb".equalsIgnoreCase(unit)) //$NON-NLS-1$
-                        {
-                            size *= 1024 * 1024 * 1024;
-                        } else {
-                            Log.w(Util.class.getName(), "Unexpected mem unit format: " + line); //$NON-NLS-1$
-                        }
-
-                        return size;
-                    } catch (Exception e) {
-                        Log.e(Util.class.getName(), e.getLocalizedMessage(), e);
-                    }
-                } else {
-                    Log.e(Util.class.getName(), "Unexpected mem value format: " + line); //$NON-NLS-1$
-                }
-            } else {
-                Log.e(Util.class.getName(), "Unexpected mem format: " + line); //$NON-NLS-1$
-            }
         }
-
-        return -1;
     }
 
     static String getNetAddressInfo() {
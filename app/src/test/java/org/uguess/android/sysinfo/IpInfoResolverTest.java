@@ -0,0 +1,296 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.uguess.android.sysinfo.NetStateManager.IpInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IpInfoResolverTest <br>
+ * <br>
+ * Runs the resolver on queued executors, so the lookups and the io run only when the test says.
+ */
+public class IpInfoResolverTest {
+
+    private static final String IP = "192.0.2.1"; //$NON-NLS-1$
+
+    /**
+     * QueueExecutor
+     */
+    private static final class QueueExecutor implements Executor {
+
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+        boolean reject;
+
+        public void execute(Runnable command) {
+            if (reject) {
+                throw new RejectedExecutionException();
+            }
+
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * CountingLookup. Names every address "host-" + address and finds a location for all.
+     */
+    private static final class CountingLookup implements IpInfoResolver.Lookup {
+
+        int infos, hosts;
+
+        boolean located = true;
+
+        public IpInfo getInfo(String ip) {
+            infos++;
+
+            IpInfo info = new IpInfo();
+            info.ip = ip;
+            info.host = "host-" + ip; //$NON-NLS-1$
+
+            if (located) {
+                info.country = "XX"; //$NON-NLS-1$
+            }
+
+            return info;
+        }
+
+        public String getHost(String ip) {
+            hosts++;
+
+            return "host-" + ip; //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Results
+     */
+    private static final class Results implements IpInfoResolver.Callback {
+
+        final ArrayList<IpInfo> infos = new ArrayList<IpInfo>();
+
+        public void onResolved(IpInfo info) {
+            infos.add(info);
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File dir;
+
+    private QueueExecutor lookups, io;
+
+    private CountingLookup lookup;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("ipinfo", ""); //$NON-NLS-1$ //$NON-NLS-2$
+        dir.delete();
+        dir.mkdir();
+
+        lookups = new QueueExecutor();
+        io = new QueueExecutor();
+        lookup = new CountingLookup();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+
+        dir.delete();
+    }
+
+    private IpInfoResolver createResolver() {
+        IpInfoResolver resolver = new IpInfoResolver(dir, lookups, io, DIRECT, lookup);
+
+        io.runAll();
+
+        return resolver;
+    }
+
+    @Test
+    public void coalescesRequestsForTheSameAddress() {
+        IpInfoResolver resolver = createResolver();
+
+        Results first = new Results();
+        Results second = new Results();
+
+        resolver.query(IP, first);
+        resolver.query(IP, second);
+        resolver.prefetchHost(IP, null);
+        resolver.prefetchHost(IP, null);
+
+        assertEquals(2, lookups.tasks.size());
+
+        lookups.runAll();
+
+        assertEquals(1, lookup.infos);
+        assertEquals(1, lookup.hosts);
+        assertEquals(1, first.infos.size());
+        assertEquals(1, second.infos.size());
+        assertEquals("XX", second.infos.get(0).country); //$NON-NLS-1$
+
+        // served from the cache now
+        Results third = new Results();
+        resolver.query(IP, third);
+
+        assertTrue(lookups.tasks.isEmpty());
+        assertEquals(1, third.infos.size());
+    }
+
+    @Test
+    public void keepsHostWhenLocationFails() {
+        IpInfoResolver resolver = createResolver();
+
+        lookup.located = false;
+
+        Results results = new Results();
+        resolver.query(IP, results);
+        lookups.runAll();
+
+        assertEquals(1, results.infos.size());
+        assertNull(resolver.getCached(IP, true));
+        assertEquals("host-" + IP, resolver.getCachedHost(IP)); //$NON-NLS-1$
+    }
+
+    @Test
+    public void expiresByKindOfEntry() {
+        long now = 1000000000000L;
+
+        IpInfoResolver.CacheEntry ent = new IpInfoResolver.CacheEntry();
+        ent.info = new IpInfo();
+        ent.hostTime = now;
+
+        // no other name than the address, asked again sooner
+        assertTrue(IpInfoResolver.isHostValid(ent, now + IpInfoResolver.NO_HOST_TTL - 1));
+        assertFalse(IpInfoResolver.isHostValid(ent, now + IpInfoResolver.NO_HOST_TTL));
+
+        ent.info.host = "host"; //$NON-NLS-1$
+
+        assertTrue(IpInfoResolver.isHostValid(ent, now + IpInfoResolver.HOST_TTL - 1));
+        assertFalse(IpInfoResolver.isHostValid(ent, now + IpInfoResolver.HOST_TTL));
+
+        assertTrue(IpInfoResolver.isValid(now, now + IpInfoResolver.INFO_TTL - 1,
+                IpInfoResolver.INFO_TTL));
+        assertFalse(IpInfoResolver.isValid(now, now + IpInfoResolver.INFO_TTL,
+                IpInfoResolver.INFO_TTL));
+
+        // never done, or the clock went back
+        assertFalse(IpInfoResolver.isValid(0, now, IpInfoResolver.INFO_TTL));
+        assertFalse(IpInfoResolver.isValid(now, now - 1, IpInfoResolver.INFO_TTL));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        IpInfoResolver resolver = createResolver();
+
+        for (int i = 0; i < IpInfoResolver.MAX_ENTRIES; i++) {
+            resolver.prefetchHost("10.0.0." + i, null); //$NON-NLS-1$
+        }
+
+        lookups.runAll();
+
+        // touch the oldest, the second oldest goes first
+        assertNotNull(resolver.getCached("10.0.0.0", false)); //$NON-NLS-1$
+
+        resolver.prefetchHost(IP, null);
+        lookups.runAll();
+
+        assertNotNull(resolver.getCached("10.0.0.0", false)); //$NON-NLS-1$
+        assertNull(resolver.getCached("10.0.0.1", false)); //$NON-NLS-1$
+        assertNotNull(resolver.getCached(IP, false));
+    }
+
+    @Test
+    public void endsRejectedQueries() {
+        IpInfoResolver resolver = createResolver();
+
+        lookups.reject = true;
+
+        Results results = new Results();
+        resolver.query(IP, results);
+        resolver.prefetchHost(IP, results);
+
+        // the query ends without location, the prefetch is dropped
+        assertEquals(1, results.infos.size());
+        assertNull(results.infos.get(0).country);
+
+        lookups.reject = false;
+
+        resolver.prefetchHost(IP, null);
+
+        assertEquals(1, lookups.tasks.size());
+    }
+
+    @Test
+    public void savesAndLoadsInOrder() {
+        IpInfoResolver resolver = createResolver();
+
+        resolver.query(IP, new Results());
+        lookups.runAll();
+
+        resolver.flush();
+        resolver.flush();
+
+        assertEquals(1, io.tasks.size());
+
+        io.runAll();
+
+        IpInfoResolver loaded = new IpInfoResolver(dir, lookups, io, DIRECT, lookup);
+
+        // looked up before the load finished, kept along the saved entries
+        loaded.prefetchHost("10.0.0.1", null); //$NON-NLS-1$
+        lookups.runAll();
+
+        assertNull(loaded.getCached(IP, true));
+
+        io.runAll();
+
+        assertEquals("XX", loaded.getCached(IP, true).country); //$NON-NLS-1$
+        assertNotNull(loaded.getCached("10.0.0.1", false)); //$NON-NLS-1$
+    }
+}
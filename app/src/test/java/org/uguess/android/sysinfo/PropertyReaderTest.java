@@ -0,0 +1,227 @@
+/********************************************************************************
+ * (C) Copyright 2000-2021, by Shawn Q.
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ ********************************************************************************/
+
+package org.uguess.android.sysinfo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PropertyReaderTest <br>
+ * <br>
+ * Walks a hand built property area in the trie layout: 128 bytes of header, trie nodes of
+ * namelen, prop, left, right, children and name, and prop infos with the value at 4 and the name
+ * at 96.
+ */
+public class PropertyReaderTest {
+
+    private static final int NODE_PROP = 4;
+    private static final int NODE_LEFT = 8;
+    private static final int NODE_RIGHT = 12;
+    private static final int NODE_CHILDREN = 16;
+
+    private static final String LONG_VALUE = "vendor/product/device:12/SP1A.210812.016/7679548" //$NON-NLS-1$
+            + ":user/release-keys,vendor/product/device:12/SP1A.210812.016/7679548" //$NON-NLS-1$
+            + ":user/release-keys"; //$NON-NLS-1$
+
+    /**
+     * AreaBuilder. Lays out the nodes and prop infos one after another from the start of the trie
+     * data, with the offsets relative to it as in bionic.
+     */
+    private static final class AreaBuilder {
+
+        private static final int DATA = 128;
+
+        private final ByteBuffer bb = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+
+        private int used;
+
+        AreaBuilder() {
+            bb.putInt(8, 0x504f5250);
+            bb.putInt(12, 0xfc6ed0ab);
+
+            // the root node is at offset 0
+            node(""); //$NON-NLS-1$
+        }
+
+        int node(String name) {
+            int off = alloc(20 + name.length() + 1);
+
+            bb.putInt(DATA + off, name.length());
+            putString(DATA + off + 20, name);
+
+            return off;
+        }
+
+        void link(int node, int field, int target) {
+            bb.putInt(DATA + node + field, target);
+        }
+
+        int prop(String name, String value) {
+            int off = alloc(96 + name.length() + 1);
+
+            putString(DATA + off + 4, value);
+            putString(DATA + off + 96, name);
+
+            return off;
+        }
+
+        /**
+         * Long read-only values follow the name, the value field holds an error message and the
+         * offset of the value from the prop info.
+         */
+        int longProp(String name, String value) {
+            int off = alloc(96 + name.length() + 1);
+            int valueOff = alloc(value.length() + 1);
+
+            bb.putInt(DATA + off, 1 << 16);
+            putString(DATA + off + 4, "Must use __system_property_read_callback() to read"); //$NON-NLS-1$
+            bb.putInt(DATA + off + 4 + 56, valueOff - off);
+            putString(DATA + off + 96, name);
+            putString(DATA + valueOff, value);
+
+            return off;
+        }
+
+        ByteBuffer build() {
+            bb.putInt(0, used);
+            bb.limit(DATA + used);
+
+            return bb;
+        }
+
+        private int alloc(int size) {
+            int off = used;
+
+            used += (size + 3) & ~3;
+
+            return off;
+        }
+
+        private void putString(int off, String s) {
+            for (int i = 0; i < s.length(); i++) {
+                bb.put(off + i, (byte) s.charAt(i));
+            }
+        }
+    }
+
+    /**
+     * ro.build.id, ro.build.fingerprint (long), ro.debuggable and persist.sys.x. Siblings are
+     * ordered by name length first, so "ro" is left of "persist" and "debuggable" right of
+     * "build".
+     */
+    private static ByteBuffer createArea() {
+        AreaBuilder ab = new AreaBuilder();
+
+        int persist = ab.node("persist"); //$NON-NLS-1$
+        int ro = ab.node("ro"); //$NON-NLS-1$
+        ab.link(0, NODE_CHILDREN, persist);
+        ab.link(persist, NODE_LEFT, ro);
+
+        int build = ab.node("build"); //$NON-NLS-1$
+        int debuggable = ab.node("debuggable"); //$NON-NLS-1$
+        ab.link(ro, NODE_CHILDREN, build);
+        ab.link(build, NODE_RIGHT, debuggable);
+        ab.link(debuggable, NODE_PROP, ab.prop("ro.debuggable", "0")); //$NON-NLS-1$ //$NON-NLS-2$
+
+        int id = ab.node("id"); //$NON-NLS-1$
+        int fingerprint = ab.node("fingerprint"); //$NON-NLS-1$
+        ab.link(build, NODE_CHILDREN, id);
+        ab.link(id, NODE_RIGHT, fingerprint);
+        ab.link(id, NODE_PROP, ab.prop("ro.build.id", "SP1A.210812.016")); //$NON-NLS-1$ //$NON-NLS-2$
+        ab.link(fingerprint, NODE_PROP, ab.longProp("ro.build.fingerprint", LONG_VALUE)); //$NON-NLS-1$
+
+        int sys = ab.node("sys"); //$NON-NLS-1$
+        int x = ab.node("x"); //$NON-NLS-1$
+        ab.link(persist, NODE_CHILDREN, sys);
+        ab.link(sys, NODE_CHILDREN, x);
+        ab.link(x, NODE_PROP, ab.prop("persist.sys.x", "y")); //$NON-NLS-1$ //$NON-NLS-2$
+
+        return ab.build();
+    }
+
+    @Test
+    public void readsAllProperties() {
+        TreeMap<String, String> props = new TreeMap<String, String>();
+
+        assertTrue(PropertyReader.readArea(createArea(), "", props)); //$NON-NLS-1$
+
+        assertEquals(4, props.size());
+        assertEquals("SP1A.210812.016", props.get("ro.build.id")); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals(LONG_VALUE, props.get("ro.build.fingerprint")); //$NON-NLS-1$
+        assertEquals("0", props.get("ro.debuggable")); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals("y", props.get("persist.sys.x")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    @Test
+    public void descendsAlongThePrefix() {
+        TreeMap<String, String> props = new TreeMap<String, String>();
+
+        assertTrue(PropertyReader.readArea(createArea(), "ro.build.", props)); //$NON-NLS-1$
+
+        assertEquals(2, props.size());
+        assertTrue(props.containsKey("ro.build.id")); //$NON-NLS-1$
+        assertTrue(props.containsKey("ro.build.fingerprint")); //$NON-NLS-1$
+    }
+
+    @Test
+    public void matchesPartialSegments() {
+        TreeMap<String, String> props = new TreeMap<String, String>();
+
+        assertTrue(PropertyReader.readArea(createArea(), "ro.debug", props)); //$NON-NLS-1$
+
+        assertEquals(1, props.size());
+        assertEquals("0", props.get("ro.debuggable")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    @Test
+    public void returnsNothingForMissingPrefix() {
+        TreeMap<String, String> props = new TreeMap<String, String>();
+
+        assertTrue(PropertyReader.readArea(createArea(), "ro.product.", props)); //$NON-NLS-1$
+
+        assertTrue(props.isEmpty());
+    }
+
+    @Test
+    public void readsLongValueBeyondValueField() {
+        TreeMap<String, String> props = new TreeMap<String, String>();
+
+        PropertyReader.readArea(createArea(), "ro.build.fingerprint", props); //$NON-NLS-1$
+
+        String value = props.get("ro.build.fingerprint"); //$NON-NLS-1$
+
+        assertTrue(value.length() > 92);
+        assertEquals(LONG_VALUE, value);
+    }
+
+    @Test
+    public void rejectsUnknownArea() {
+        ByteBuffer bb = createArea();
+        bb.putInt(8, 0);
+
+        TreeMap<String, String> props = new TreeMap<String, String>();
+
+        assertFalse(PropertyReader.readArea(bb, "", props)); //$NON-NLS-1$
+        assertTrue(props.isEmpty());
+    }
+}